@@ -0,0 +1,390 @@
+package com.securevault.desktop.archivefs;
+
+import com.securevault.desktop.crypto.EncryptedArchive;
+import com.securevault.desktop.crypto.KeyDerivation;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A mounted {@code .encdir} archive. The directory tree is built from the archive's table of
+ * contents when it is mounted; member content is only decrypted when it is read.
+ */
+final class EncDirFileSystem extends FileSystem {
+
+    private final EncDirFileSystemProvider provider;
+    private final Path archivePath;
+    private final EncryptedArchive archive;
+    private final SecretKey ownedKey;
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final FileStore store = new EncDirFileStore();
+    private volatile boolean open = true;
+
+    /**
+     * @param ownedKey a key derived for this mount, destroyed when it closes; null if the caller owns the key
+     */
+    EncDirFileSystem(EncDirFileSystemProvider provider, Path archivePath, SecretKey key, SecretKey ownedKey) throws Exception {
+        this.provider = provider;
+        this.archivePath = archivePath;
+        this.ownedKey = ownedKey;
+        long archiveTime = Files.getLastModifiedTime(archivePath).toMillis();
+        this.archive = EncryptedArchive.open(archivePath, key);
+        nodes.put("/", new Node(null, archiveTime));
+        try {
+            for (EncryptedArchive.Entry entry : archive.entries()) {
+                String name = entry.getName().replace('\\', '/');
+                EncDirPath path = new EncDirPath(this, "/" + name);
+                if (!path.normalize().equals(path)) {
+                    throw new IOException("Archive entry is not a plain path: " + entry.getName());
+                }
+                add(path, entry, archiveTime);
+            }
+        } catch (Exception e) {
+            archive.close();
+            throw e;
+        }
+    }
+
+    private void add(EncDirPath path, EncryptedArchive.Entry entry, long archiveTime) {
+        String key = path.toString();
+        Node existing = nodes.get(key);
+        if (existing != null) {
+            // Implicit directories take the time of their explicit entry once it turns up
+            if (existing.entry == null && entry != null && entry.isDirectory()) {
+                nodes.put(key, new Node(entry, entry.getModifiedTime(), existing.children));
+            }
+            return;
+        }
+        EncDirPath parent = (EncDirPath) path.getParent();
+        if (!nodes.containsKey(parent.toString())) {
+            add(parent, null, archiveTime);
+        }
+        nodes.get(parent.toString()).children.add(path.getFileName().toString());
+        nodes.put(key, new Node(entry, entry != null ? entry.getModifiedTime() : archiveTime));
+    }
+
+    Path getArchivePath() {
+        return archivePath;
+    }
+
+    URI uriOf(EncDirPath path) {
+        URI archiveUri = archivePath.toUri();
+        try {
+            return new URI(EncDirFileSystemProvider.SCHEME,
+                    archiveUri.getScheme() + ":" + archiveUri.getSchemeSpecificPart() + "!" + path, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ===== Tree =====
+
+    /**
+     * One file or directory of the tree; implicit parent directories have no archive entry.
+     */
+    static final class Node implements BasicFileAttributes {
+        private final EncryptedArchive.Entry entry;
+        private final FileTime modified;
+        private final List<String> children;
+
+        Node(EncryptedArchive.Entry entry, long modifiedTime) {
+            this(entry, modifiedTime, new ArrayList<>());
+        }
+
+        private Node(EncryptedArchive.Entry entry, long modifiedTime, List<String> children) {
+            this.entry = entry;
+            this.modified = FileTime.fromMillis(modifiedTime);
+            this.children = children;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return modified;
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return modified;
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return modified;
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return entry != null && !entry.isDirectory();
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return !isRegularFile();
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return isRegularFile() ? entry.getSize() : 0;
+        }
+
+        @Override
+        public Object fileKey() {
+            return null;
+        }
+    }
+
+    Node node(EncDirPath path) throws IOException {
+        ensureOpen();
+        Node node = nodes.get(path.toAbsolutePath().normalize().toString());
+        if (node == null) {
+            throw new NoSuchFileException(path.toString());
+        }
+        return node;
+    }
+
+    InputStream newInputStream(EncDirPath path) throws IOException {
+        Node node = node(path);
+        if (!node.isRegularFile()) {
+            throw new IOException("Is a directory: " + path);
+        }
+        return archive.newInputStream(node.entry);
+    }
+
+    EntryChannel newByteChannel(EncDirPath path) throws IOException {
+        Node node = node(path);
+        if (!node.isRegularFile()) {
+            throw new IOException("Is a directory: " + path);
+        }
+        return new EntryChannel(archive, node.entry);
+    }
+
+    DirectoryStream<Path> newDirectoryStream(EncDirPath dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        Node node = node(dir);
+        if (!node.isDirectory()) {
+            throw new NotDirectoryException(dir.toString());
+        }
+        List<Path> entries = new ArrayList<>();
+        for (String child : node.children) {
+            Path path = dir.resolve(child);
+            if (filter.accept(path)) {
+                entries.add(path);
+            }
+        }
+        return new DirectoryStream<>() {
+            private boolean iterated;
+
+            @Override
+            public Iterator<Path> iterator() {
+                if (iterated) {
+                    throw new IllegalStateException("Directory stream can only be iterated once");
+                }
+                iterated = true;
+                Iterator<Path> it = entries.iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return open && it.hasNext();
+                    }
+
+                    @Override
+                    public Path next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return it.next();
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private void ensureOpen() {
+        if (!open) {
+            throw new ClosedFileSystemException();
+        }
+    }
+
+    // ===== FileSystem =====
+
+    @Override
+    public EncDirFileSystemProvider provider() {
+        return provider;
+    }
+
+    /**
+     * Unmounts the archive, zeroing its cached plaintext.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        provider.removed(this);
+        try {
+            archive.close();
+        } finally {
+            if (ownedKey != null) {
+                KeyDerivation.destroy(ownedKey);
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    @Override
+    public String getSeparator() {
+        return "/";
+    }
+
+    @Override
+    public Iterable<Path> getRootDirectories() {
+        return List.of(new EncDirPath(this, "/"));
+    }
+
+    @Override
+    public Iterable<FileStore> getFileStores() {
+        return List.of(store);
+    }
+
+    @Override
+    public Set<String> supportedFileAttributeViews() {
+        return Set.of("basic");
+    }
+
+    @Override
+    public Path getPath(String first, String... more) {
+        StringBuilder path = new StringBuilder(first);
+        for (String name : more) {
+            if (!name.isEmpty()) {
+                path.append(path.length() > 0 ? "/" : "").append(name);
+            }
+        }
+        return new EncDirPath(this, path.toString());
+    }
+
+    @Override
+    public PathMatcher getPathMatcher(String syntaxAndPattern) {
+        int colon = syntaxAndPattern.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected syntax:pattern, got " + syntaxAndPattern);
+        }
+        if (syntaxAndPattern.substring(0, colon).equalsIgnoreCase("regex")) {
+            Pattern pattern = Pattern.compile(syntaxAndPattern.substring(colon + 1));
+            return path -> pattern.matcher(path.toString()).matches();
+        }
+        // Glob syntax is the platform's; archive paths are matched as if they were local ones
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher(syntaxAndPattern);
+        return path -> matcher.matches(Paths.get(path.toString()));
+    }
+
+    @Override
+    public UserPrincipalLookupService getUserPrincipalLookupService() {
+        throw new UnsupportedOperationException("Archives have no owners");
+    }
+
+    @Override
+    public WatchService newWatchService() {
+        throw new UnsupportedOperationException("Archives are read-only and cannot be watched");
+    }
+
+    private final class EncDirFileStore extends FileStore {
+        @Override
+        public String name() {
+            return archivePath.getFileName().toString();
+        }
+
+        @Override
+        public String type() {
+            return EncDirFileSystemProvider.SCHEME;
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        @Override
+        public long getTotalSpace() throws IOException {
+            return Files.size(archivePath);
+        }
+
+        @Override
+        public long getUsableSpace() {
+            return 0;
+        }
+
+        @Override
+        public long getUnallocatedSpace() {
+            return 0;
+        }
+
+        @Override public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+            return type == BasicFileAttributeView.class;
+        }
+        @Override
+        public boolean supportsFileAttributeView(String name) {
+            return name.equals("basic");
+        }
+
+        @Override
+        public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+            return null;
+        }
+
+        @Override public Object getAttribute(String attribute) {
+            throw new UnsupportedOperationException("No file store attribute " + attribute);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.securevault.desktop.archivefs;
+
+import com.securevault.desktop.crypto.KeyDerivation;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mounts an {@code .encdir} archive as a read-only {@link FileSystem}, much like the JDK's zip
+ * file system does for {@code .zip} files:
+ * <pre>
+ * try (FileSystem fs = FileSystems.newFileSystem(archive, Map.of("key", key))) {
+ *     byte[] notes = Files.readAllBytes(fs.getPath("/docs/notes.txt"));
+ * }
+ * </pre>
+ * <p>The environment must hold either a {@value #KEY} ({@link SecretKey}) or a {@value #PASSWORD}
+ * ({@code char[]} or {@code String}); a key derived from a password is destroyed when the file
+ * system closes, a key passed in stays the caller's. Archives can also be mounted by URI, as
+ * {@code encdir:file:///path/to/photos.encdir}, and member paths then have URIs such as
+ * {@code encdir:file:///path/to/photos.encdir!/2024/a.jpg}.</p>
+ *
+ * <p>Reads only decrypt the chunks of the archive they touch; see
+ * {@link com.securevault.desktop.crypto.EncryptedArchive}. Anything that would modify the archive
+ * throws {@link ReadOnlyFileSystemException}.</p>
+ */
+public class EncDirFileSystemProvider extends FileSystemProvider {
+
+    public static final String SCHEME = "encdir";
+    public static final String KEY = "key";
+    public static final String PASSWORD = "password";
+    private static final String EXTENSION = ".encdir";
+    private static final String[] BASIC_ATTRIBUTES = {"lastModifiedTime", "lastAccessTime", "creationTime", "size",
+            "isRegularFile", "isDirectory", "isSymbolicLink", "isOther", "fileKey"};
+
+    // File systems mounted by URI, which getFileSystem(URI) and getPath(URI) can find again
+    private final Map<Path, EncDirFileSystem> mounted = new HashMap<>();
+
+    @Override
+    public String getScheme() {
+        return SCHEME;
+    }
+
+    @Override
+    public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+        Path archive = archiveOf(uri);
+        synchronized (mounted) {
+            if (mounted.containsKey(archive)) {
+                throw new FileSystemAlreadyExistsException(uri.toString());
+            }
+            EncDirFileSystem fs = mount(archive, env);
+            mounted.put(archive, fs);
+            return fs;
+        }
+    }
+
+    /**
+     * Mounts an archive that is not registered by URI; other providers are tried for anything
+     * not named {@code *.encdir}.
+     */
+    @Override
+    public FileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException {
+        Path fileName = path.getFileName();
+        if (fileName == null || !fileName.toString().endsWith(EXTENSION)) {
+            throw new UnsupportedOperationException("Not an " + EXTENSION + " archive: " + path);
+        }
+        return mount(path.toAbsolutePath().normalize(), env);
+    }
+
+    private EncDirFileSystem mount(Path archive, Map<String, ?> env) throws IOException {
+        Object key = env.get(KEY);
+        Object password = env.get(PASSWORD);
+        SecretKey ownedKey = null;
+        try {
+            if (!(key instanceof SecretKey)) {
+                if (password instanceof char[]) {
+                    ownedKey = KeyDerivation.deriveKeyFromPassword((char[]) password);
+                } else if (password instanceof String) {
+                    ownedKey = KeyDerivation.deriveKeyFromPassword(((String) password).toCharArray());
+                } else {
+                    throw new IllegalArgumentException("Mounting an archive needs a \"" + KEY + "\" or \"" + PASSWORD + "\" entry");
+                }
+                key = ownedKey;
+            }
+            return new EncDirFileSystem(this, archive, (SecretKey) key, ownedKey);
+        } catch (IOException | RuntimeException e) {
+            KeyDerivation.destroy(ownedKey);
+            throw e;
+        } catch (Exception e) {
+            KeyDerivation.destroy(ownedKey);
+            throw new IOException("Cannot open archive " + archive.getFileName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    void removed(EncDirFileSystem fs) {
+        synchronized (mounted) {
+            mounted.remove(fs.getArchivePath(), fs);
+        }
+    }
+
+    @Override
+    public FileSystem getFileSystem(URI uri) {
+        synchronized (mounted) {
+            EncDirFileSystem fs = mounted.get(archiveOf(uri));
+            if (fs == null) {
+                throw new FileSystemNotFoundException(uri.toString());
+            }
+            return fs;
+        }
+    }
+
+    @Override
+    public Path getPath(URI uri) {
+        String ssp = uri.getSchemeSpecificPart();
+        int separator = ssp.indexOf("!/");
+        return getFileSystem(uri).getPath(separator < 0 ? "/" : ssp.substring(separator + 1));
+    }
+
+    /**
+     * The archive file named by {@code encdir:<archive URI>[!/<member>]}.
+     */
+    private static Path archiveOf(URI uri) {
+        if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+            throw new IllegalArgumentException("URI scheme is not " + SCHEME + ": " + uri);
+        }
+        String ssp = uri.getSchemeSpecificPart();
+        int separator = ssp.indexOf("!/");
+        String archive = separator < 0 ? ssp : ssp.substring(0, separator);
+        int colon = archive.indexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("URI does not name an archive file: " + uri);
+        }
+        try {
+            return Paths.get(new URI(archive.substring(0, colon), archive.substring(colon + 1), null)).toAbsolutePath().normalize();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("URI does not name an archive file: " + uri, e);
+        }
+    }
+
+    // ===== Reading =====
+
+    @Override
+    public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+            throws IOException {
+        checkReadOnly(options.toArray(new OpenOption[0]));
+        EncDirPath p = EncDirPath.check(path);
+        return p.getFileSystem().newByteChannel(p);
+    }
+
+    @Override
+    public InputStream newInputStream(Path path, OpenOption... options) throws IOException {
+        checkReadOnly(options);
+        EncDirPath p = EncDirPath.check(path);
+        return p.getFileSystem().newInputStream(p);
+    }
+
+    private static void checkReadOnly(OpenOption[] options) {
+        for (OpenOption option : options) {
+            if (option == StandardOpenOption.WRITE || option == StandardOpenOption.APPEND
+                    || option == StandardOpenOption.CREATE || option == StandardOpenOption.CREATE_NEW
+                    || option == StandardOpenOption.TRUNCATE_EXISTING || option == StandardOpenOption.DELETE_ON_CLOSE) {
+                throw new ReadOnlyFileSystemException();
+            }
+        }
+    }
+
+    @Override
+    public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+        EncDirPath p = EncDirPath.check(dir);
+        return p.getFileSystem().newDirectoryStream(p, filter);
+    }
+
+    @Override
+    public boolean isSameFile(Path path, Path path2) throws IOException {
+        if (path.equals(path2)) {
+            return true;
+        }
+        if (!(path2 instanceof EncDirPath) || path.getFileSystem() != path2.getFileSystem()) {
+            return false;
+        }
+        return path.toRealPath().equals(path2.toRealPath());
+    }
+
+    @Override
+    public boolean isHidden(Path path) {
+        return false;
+    }
+
+    @Override
+    public FileStore getFileStore(Path path) throws IOException {
+        EncDirPath p = EncDirPath.check(path);
+        p.getFileSystem().node(p);
+        return p.getFileSystem().getFileStores().iterator().next();
+    }
+
+    @Override
+    public void checkAccess(Path path, AccessMode... modes) throws IOException {
+        EncDirPath p = EncDirPath.check(path);
+        p.getFileSystem().node(p);
+        for (AccessMode mode : modes) {
+            if (mode == AccessMode.WRITE) {
+                throw new AccessDeniedException(path.toString(), null, "archive is read-only");
+            }
+        }
+    }
+
+    // ===== Attributes =====
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+        EncDirPath p = EncDirPath.check(path);
+        if (type != BasicFileAttributeView.class) {
+            return null;
+        }
+        return (V) new BasicFileAttributeView() {
+            @Override
+            public String name() {
+                return "basic";
+            }
+
+            @Override
+            public BasicFileAttributes readAttributes() throws IOException {
+                return p.getFileSystem().node(p);
+            }
+
+            @Override
+            public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+                throw new ReadOnlyFileSystemException();
+            }
+        };
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+        if (type != BasicFileAttributes.class) {
+            throw new UnsupportedOperationException("Only basic attributes are supported");
+        }
+        EncDirPath p = EncDirPath.check(path);
+        return (A) p.getFileSystem().node(p);
+    }
+
+    @Override
+    public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+        String names = attributes;
+        int colon = attributes.indexOf(':');
+        if (colon >= 0) {
+            if (!attributes.substring(0, colon).equals("basic")) {
+                throw new UnsupportedOperationException("Only basic attributes are supported: " + attributes);
+            }
+            names = attributes.substring(colon + 1);
+        }
+        BasicFileAttributes attrs = readAttributes(path, BasicFileAttributes.class);
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (String name : names.equals("*") ? BASIC_ATTRIBUTES : names.split(",")) {
+            values.put(name, switch (name) {
+                case "lastModifiedTime" -> attrs.lastModifiedTime();
+                case "lastAccessTime" -> attrs.lastAccessTime();
+                case "creationTime" -> attrs.creationTime();
+                case "size" -> attrs.size();
+                case "isRegularFile" -> attrs.isRegularFile();
+                case "isDirectory" -> attrs.isDirectory();
+                case "isSymbolicLink" -> attrs.isSymbolicLink();
+                case "isOther" -> attrs.isOther();
+                case "fileKey" -> attrs.fileKey();
+                default -> throw new IllegalArgumentException("Unknown attribute " + name);
+            });
+        }
+        return values;
+    }
+
+    // ===== Writing =====
+
+    @Override
+    public void createDirectory(Path dir, FileAttribute<?>... attrs) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void delete(Path path) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void move(Path source, Path target, CopyOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+
+    @Override
+    public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+        throw new ReadOnlyFileSystemException();
+    }
+}
@@ -0,0 +1,228 @@
+package com.securevault.desktop.archivefs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A path inside a mounted archive. Separators are {@code /}, the root is {@code /} and relative
+ * paths resolve against the root.
+ */
+final class EncDirPath implements Path {
+
+    private final EncDirFileSystem fs;
+    private final String path;
+    private final String[] names;
+
+    EncDirPath(EncDirFileSystem fs, String path) {
+        this.fs = fs;
+        this.path = clean(path);
+        if (this.path.equals("/")) {
+            this.names = new String[0];
+        } else {
+            this.names = (isAbsolute() ? this.path.substring(1) : this.path).split("/", -1);
+        }
+    }
+
+    private static String clean(String path) {
+        String cleaned = path.replaceAll("/{2,}", "/");
+        if (cleaned.length() > 1 && cleaned.endsWith("/")) {
+            cleaned = cleaned.substring(0, cleaned.length() - 1);
+        }
+        return cleaned;
+    }
+
+    static EncDirPath check(Path path) {
+        if (!(path instanceof EncDirPath)) {
+            throw new ProviderMismatchException();
+        }
+        return (EncDirPath) path;
+    }
+
+    @Override
+    public EncDirFileSystem getFileSystem() {
+        return fs;
+    }
+
+    @Override
+    public boolean isAbsolute() {
+        return path.startsWith("/");
+    }
+
+    @Override
+    public Path getRoot() {
+        return isAbsolute() ? new EncDirPath(fs, "/") : null;
+    }
+
+    @Override
+    public Path getFileName() {
+        if (names.length == 0) {
+            return null;
+        }
+        return names.length == 1 && !isAbsolute() ? this : new EncDirPath(fs, names[names.length - 1]);
+    }
+
+    @Override
+    public Path getParent() {
+        if (names.length == 0 || (names.length == 1 && !isAbsolute())) {
+            return null;
+        }
+        if (names.length == 1) {
+            return getRoot();
+        }
+        return new EncDirPath(fs, (isAbsolute() ? "/" : "") + join(0, names.length - 1));
+    }
+
+    @Override
+    public int getNameCount() {
+        return names.length;
+    }
+
+    @Override
+    public Path getName(int index) {
+        return subpath(index, index + 1);
+    }
+
+    @Override
+    public Path subpath(int beginIndex, int endIndex) {
+        if (beginIndex < 0 || endIndex > names.length || beginIndex >= endIndex) {
+            throw new IllegalArgumentException("Invalid name range " + beginIndex + ".." + endIndex + " of " + path);
+        }
+        return new EncDirPath(fs, join(beginIndex, endIndex));
+    }
+
+    private String join(int beginIndex, int endIndex) {
+        return String.join("/", Arrays.asList(names).subList(beginIndex, endIndex));
+    }
+
+    @Override
+    public boolean startsWith(Path other) {
+        EncDirPath that = check(other);
+        if (that.fs != fs || that.isAbsolute() != isAbsolute()) {
+            return false;
+        }
+        if (that.path.isEmpty()) {
+            return path.isEmpty();
+        }
+        return that.names.length <= names.length
+                && Arrays.equals(names, 0, that.names.length, that.names, 0, that.names.length);
+    }
+
+    @Override
+    public boolean endsWith(Path other) {
+        EncDirPath that = check(other);
+        if (that.fs != fs) {
+            return false;
+        }
+        if (that.isAbsolute()) {
+            return equals(that);
+        }
+        if (that.path.isEmpty()) {
+            return path.isEmpty();
+        }
+        int offset = names.length - that.names.length;
+        return offset >= 0 && Arrays.equals(names, offset, names.length, that.names, 0, that.names.length);
+    }
+
+    @Override
+    public Path normalize() {
+        Deque<String> kept = new ArrayDeque<>();
+        for (String name : names) {
+            if (name.equals(".") || name.isEmpty()) {
+                continue;
+            }
+            if (name.equals("..") && !kept.isEmpty() && !kept.peekLast().equals("..")) {
+                kept.removeLast();
+            } else if (!name.equals("..") || !isAbsolute()) {
+                // ".." above the root stays at the root
+                kept.addLast(name);
+            }
+        }
+        return new EncDirPath(fs, (isAbsolute() ? "/" : "") + String.join("/", kept));
+    }
+
+    @Override
+    public Path resolve(Path other) {
+        EncDirPath that = check(other);
+        if (that.isAbsolute() || path.isEmpty()) {
+            return that;
+        }
+        if (that.path.isEmpty()) {
+            return this;
+        }
+        return new EncDirPath(fs, path + "/" + that.path);
+    }
+
+    @Override
+    public Path relativize(Path other) {
+        EncDirPath that = check(other);
+        if (that.isAbsolute() != isAbsolute()) {
+            throw new IllegalArgumentException("Cannot relativize " + that + " against " + this);
+        }
+        if (path.isEmpty()) {
+            return that;
+        }
+        int common = 0;
+        while (common < names.length && common < that.names.length && names[common].equals(that.names[common])) {
+            common++;
+        }
+        StringBuilder relative = new StringBuilder();
+        for (int i = common; i < names.length; i++) {
+            relative.append(relative.length() > 0 ? "/" : "").append("..");
+        }
+        for (int i = common; i < that.names.length; i++) {
+            relative.append(relative.length() > 0 ? "/" : "").append(that.names[i]);
+        }
+        return new EncDirPath(fs, relative.toString());
+    }
+
+    @Override
+    public URI toUri() {
+        return fs.uriOf((EncDirPath) toAbsolutePath());
+    }
+
+    @Override
+    public Path toAbsolutePath() {
+        return isAbsolute() ? this : new EncDirPath(fs, "/" + path);
+    }
+
+    @Override
+    public Path toRealPath(LinkOption... options) throws IOException {
+        EncDirPath real = (EncDirPath) toAbsolutePath().normalize();
+        fs.node(real);
+        return real;
+    }
+
+    @Override
+    public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+        throw new UnsupportedOperationException("Archives are read-only and cannot be watched");
+    }
+
+    @Override
+    public int compareTo(Path other) {
+        return path.compareTo(check(other).path);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof EncDirPath && ((EncDirPath) other).fs == fs && ((EncDirPath) other).path.equals(path);
+    }
+
+    @Override
+    public int hashCode() {
+        return path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
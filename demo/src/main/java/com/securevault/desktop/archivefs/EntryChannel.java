@@ -0,0 +1,107 @@
+package com.securevault.desktop.archivefs;
+
+import com.securevault.desktop.crypto.EncryptedArchive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only channel over one archive member. Compressed members can only be read front to back,
+ * so moving backwards reopens the member and inflates up to the new position again.
+ */
+final class EntryChannel implements SeekableByteChannel {
+
+    private final EncryptedArchive archive;
+    private final EncryptedArchive.Entry entry;
+    private InputStream in;
+    private long streamPosition;
+    private long position;
+    private boolean open = true;
+
+    EntryChannel(EncryptedArchive archive, EncryptedArchive.Entry entry) {
+        this.archive = archive;
+        this.entry = entry;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= entry.getSize()) {
+            return -1;
+        }
+        if (in == null || streamPosition > position) {
+            if (in != null) {
+                in.close();
+            }
+            in = archive.newInputStream(entry);
+            streamPosition = 0;
+        }
+        in.skipNBytes(position - streamPosition);
+        streamPosition = position;
+        byte[] buffer = new byte[(int) Math.min(dst.remaining(), Math.min(entry.getSize() - position, 64 * 1024))];
+        int read = in.read(buffer);
+        if (read < 0) {
+            return -1;
+        }
+        dst.put(buffer, 0, read);
+        position += read;
+        streamPosition += read;
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return entry.getSize();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
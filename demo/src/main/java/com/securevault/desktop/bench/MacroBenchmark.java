@@ -0,0 +1,428 @@
+package com.securevault.desktop.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.securevault.desktop.crypto.CryptoEngine;
+import com.securevault.desktop.crypto.EngineSettings;
+import com.securevault.desktop.crypto.KeyDerivation;
+import com.securevault.desktop.storage.ConfigurationManager;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end benchmark of encrypt, decrypt and verify through the public {@link CryptoEngine} API
+ * over deterministic synthetic corpora.
+ *
+ * <p>Corpora: {@code large} (one 10 GB file), {@code small} (100,000 files of 4 KB), {@code media}
+ * (a nested tree of incompressible files from 64 KB to 16 MB, encrypted as one directory) and
+ * {@code logs} (1 GB of highly compressible log lines). {@code --scale} multiplies every size.
+ * Generated corpora are kept in the work directory and reused by later runs.</p>
+ *
+ * <p>Each phase reports wall time, MB/s of plaintext, peak heap, peak RSS (Linux) and GC time.
+ * {@code --save-baseline} writes the results as JSON; {@code --baseline} compares against such a
+ * file, flags phases that got slower or hungrier than {@code --tolerance}, and exits with status 1
+ * if any did. {@code --profile} runs with one of the {@link ConfigurationManager} profiles instead of
+ * the defaults.</p>
+ *
+ * <pre>
+ * mvn -Pbenchmark compile exec:java -Dbench.args="--scale 0.01 --save-baseline baseline.json"
+ * mvn -Pbenchmark compile exec:java -Dbench.args="--scale 0.01 --baseline baseline.json"
+ * </pre>
+ */
+public class MacroBenchmark {
+
+    private static final long MB = 1024 * 1024;
+    private static final long SEED = 0x5EC0BE7A;
+    private static final String BENCH_PASSWORD = "macro-benchmark";
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        Files.createDirectories(options.workDir);
+        if (options.profile != null) {
+            EngineSettings settings = ConfigurationManager.profiles().get(options.profile);
+            if (settings == null) {
+                System.err.println("Unknown profile: " + options.profile);
+                System.exit(2);
+            }
+            EngineSettings.install(settings);
+            System.out.println("Profile: " + options.profile);
+        }
+        SecretKey key = KeyDerivation.deriveKeyFromPassword(BENCH_PASSWORD.toCharArray());
+
+        warmUp(options, key);
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        System.out.printf(Locale.ROOT, "%-6s %-8s %10s %10s %9s %10s %10s %8s%n",
+                "corpus", "phase", "MB", "wall ms", "MB/s", "heap MB", "RSS MB", "GC ms");
+        for (String corpus : options.corpora) {
+            Path plain = generate(corpus, options);
+            results.addAll(runCycle(corpus, plain, options, key));
+        }
+
+        if (options.saveBaseline != null) {
+            mapper().writeValue(options.saveBaseline.toFile(), results);
+            System.out.println("Baseline written to " + options.saveBaseline);
+        }
+        if (options.baseline != null) {
+            List<?> baseline = mapper().readValue(options.baseline.toFile(), List.class);
+            if (compare(results, baseline, options.tolerance) > 0) {
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Runs a few unmeasured cycles so the first corpus is not charged for JIT compilation.
+     */
+    private static void warmUp(Options options, SecretKey key) throws Exception {
+        Path dir = options.workDir.resolve("warmup");
+        deleteRecursively(dir);
+        Files.createDirectories(dir);
+        try {
+            writeRandom(dir.resolve("plain"), 16 * MB, new SplittableRandom(SEED));
+            for (int i = 0; i < 3; i++) {
+                CryptoEngine.encryptFile(dir.resolve("plain"), dir.resolve("plain.enc"), key);
+                CryptoEngine.decryptFile(dir.resolve("plain.enc"), dir.resolve("out"), key);
+                CryptoEngine.verifyFile(dir.resolve("plain.enc"), key);
+                Files.delete(dir.resolve("plain.enc"));
+            }
+        } finally {
+            deleteRecursively(dir);
+        }
+    }
+
+    // ===== Corpora =====
+
+    private static Path generate(String corpus, Options options) throws IOException {
+        Path dir = options.workDir.resolve("corpus-" + corpus + "-" + options.scale);
+        Path marker = dir.resolve(".complete");
+        Path data = dir.resolve("data");
+        if (Files.exists(marker)) {
+            return data;
+        }
+        deleteRecursively(dir);
+        Files.createDirectories(data);
+        SplittableRandom random = new SplittableRandom(SEED ^ corpus.hashCode());
+        System.out.println("Generating " + corpus + " corpus in " + dir + "...");
+
+        switch (corpus) {
+            case "large" -> writeRandom(data.resolve("large.bin"), scaled(10L * 1024 * MB, options), random);
+            case "small" -> {
+                int files = (int) Math.max(1, 100_000 * options.scale);
+                for (int i = 0; i < files; i++) {
+                    // Spread over subdirectories like a real tree rather than one huge directory
+                    Path file = data.resolve(String.format("d%03d/f%06d.dat", i % 256, i));
+                    Files.createDirectories(file.getParent());
+                    writeRandom(file, 4096, random);
+                }
+            }
+            case "media" -> {
+                long remaining = scaled(1024 * MB, options);
+                int i = 0;
+                while (remaining > 0) {
+                    // Log-uniform sizes between 64 KB and 16 MB, like photos, audio and short clips
+                    long size = Math.min(remaining, (long) (64 * 1024 * Math.pow(256, random.nextDouble())));
+                    String[] types = {"jpg", "png", "mp3", "mp4"};
+                    Path file = data.resolve(String.format("album%02d/%s/item%05d.%s",
+                            i % 12, types[i % types.length], i, types[i % types.length]));
+                    Files.createDirectories(file.getParent());
+                    writeRandom(file, size, random);
+                    remaining -= size;
+                    i++;
+                }
+            }
+            case "logs" -> writeLogs(data.resolve("app.log"), scaled(1024 * MB, options), random);
+            default -> throw new IllegalArgumentException("Unknown corpus: " + corpus);
+        }
+        Files.createFile(marker);
+        return data;
+    }
+
+    private static long scaled(long bytes, Options options) {
+        return Math.max(1, (long) (bytes * options.scale));
+    }
+
+    private static void writeRandom(Path file, long size, SplittableRandom random) throws IOException {
+        byte[] block = new byte[(int) Math.min(size, MB)];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                for (int i = 0; i < block.length; i += 8) {
+                    long value = random.nextLong();
+                    for (int j = 0; j < 8 && i + j < block.length; j++) {
+                        block[i + j] = (byte) (value >>> (j * 8));
+                    }
+                }
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private static void writeLogs(Path file, long size, SplittableRandom random) throws IOException {
+        String[] levels = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+        String[] messages = {"request handled", "cache miss for key", "connection pool resized",
+                "user session refreshed", "slow query detected", "retrying upstream call"};
+        long timestamp = 1_700_000_000_000L;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), (int) MB)) {
+            long written = 0;
+            while (written < size) {
+                timestamp += random.nextInt(50);
+                String line = String.format(Locale.ROOT, "%d %-5s [worker-%d] %s id=%d%n", timestamp,
+                        levels[random.nextInt(levels.length)], random.nextInt(8),
+                        messages[random.nextInt(messages.length)], random.nextInt(1000));
+                byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+                int length = (int) Math.min(bytes.length, size - written);
+                out.write(bytes, 0, length);
+                written += length;
+            }
+        }
+    }
+
+    // ===== Cycle =====
+
+    private static List<Map<String, Object>> runCycle(String corpus, Path plain, Options options,
+                                                      SecretKey key) throws Exception {
+        Path encrypted = options.workDir.resolve("run-" + corpus + "-encrypted");
+        Path decrypted = options.workDir.resolve("run-" + corpus + "-decrypted");
+        deleteRecursively(encrypted);
+        deleteRecursively(decrypted);
+        long bytes = sizeOf(plain);
+        boolean asDirectory = corpus.equals("media");
+        List<Path> inputs = asDirectory ? List.of(plain) : regularFiles(plain);
+        List<Map<String, Object>> results = new ArrayList<>();
+
+        try {
+            results.add(measure(corpus, "encrypt", bytes, () -> {
+                Files.createDirectories(encrypted);
+                for (Path input : inputs) {
+                    Path output = encrypted.resolve(plain.relativize(input) + (asDirectory ? ".encdir" : ".enc"));
+                    Files.createDirectories(output.toAbsolutePath().getParent());
+                    if (asDirectory) {
+                        CryptoEngine.encryptDirectory(input, output, key);
+                    } else {
+                        CryptoEngine.encryptFile(input, output, key);
+                    }
+                }
+            }));
+            // Skips the vault index and chunk tables written next to the containers
+            String extension = asDirectory ? ".encdir" : ".enc";
+            List<Path> containers = regularFiles(encrypted).stream()
+                    .filter(p -> p.getFileName().toString().endsWith(extension)).toList();
+            results.add(measure(corpus, "decrypt", bytes, () -> {
+                for (Path container : containers) {
+                    String name = encrypted.relativize(container).toString();
+                    Path output = decrypted.resolve(name.substring(0, name.length() - extension.length()));
+                    if (asDirectory) {
+                        CryptoEngine.decryptDirectory(container, output, key);
+                    } else {
+                        Files.createDirectories(output.getParent());
+                        CryptoEngine.decryptFile(container, output, key);
+                    }
+                }
+            }));
+            if (sizeOf(decrypted) != bytes) {
+                throw new IllegalStateException(corpus + ": decrypted size " + sizeOf(decrypted) + " != " + bytes);
+            }
+            results.add(measure(corpus, "verify", bytes, () -> {
+                for (Path container : containers) {
+                    if (!asDirectory) {
+                        CryptoEngine.verifyFile(container, key);
+                    } else {
+                        CryptoEngine.listDirectory(container, key);
+                    }
+                }
+            }));
+        } finally {
+            if (!options.keepOutputs) {
+                deleteRecursively(encrypted);
+                deleteRecursively(decrypted);
+            }
+        }
+        return results;
+    }
+
+    interface Phase {
+        void run() throws Exception;
+    }
+
+    private static Map<String, Object> measure(String corpus, String phase, long bytes, Phase body) throws Exception {
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP).toList();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        resetPeakRss();
+        long gcBefore = gcMillis();
+        long started = System.nanoTime();
+
+        body.run();
+
+        long wallMillis = Math.max(1, (System.nanoTime() - started) / 1_000_000);
+        long gcTime = gcMillis() - gcBefore;
+        // Summing per-pool peaks overestimates slightly, since pools peak at different times
+        long peakHeap = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+        long peakRss = peakRss();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("corpus", corpus);
+        result.put("phase", phase);
+        result.put("bytes", bytes);
+        result.put("wallMillis", wallMillis);
+        result.put("mbPerSecond", bytes / (double) MB / (wallMillis / 1000.0));
+        result.put("peakHeapMb", peakHeap / MB);
+        result.put("peakRssMb", peakRss < 0 ? -1 : peakRss / MB);
+        result.put("gcMillis", gcTime);
+        System.out.printf(Locale.ROOT, "%-6s %-8s %10.1f %10d %9.1f %10d %10s %8d%n", corpus, phase,
+                bytes / (double) MB, wallMillis, (double) result.get("mbPerSecond"), peakHeap / MB,
+                peakRss < 0 ? "n/a" : String.valueOf(peakRss / MB), gcTime);
+        return result;
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).filter(t -> t > 0).sum();
+    }
+
+    private static void resetPeakRss() {
+        try {
+            // Linux resets VmHWM to the current RSS when "5" is written here
+            Files.writeString(Paths.get("/proc/self/clear_refs"), "5");
+        } catch (Exception e) {
+            // Not Linux, or not permitted: the peak then covers the whole run so far
+        }
+    }
+
+    private static long peakRss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (Exception e) {
+            // Fall through
+        }
+        return -1;
+    }
+
+    // ===== Baseline =====
+
+    /**
+     * Prints a comparison with the baseline and returns the number of regressions.
+     */
+    private static int compare(List<Map<String, Object>> results, List<?> baseline, double tolerance) {
+        int regressions = 0;
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Comparison with baseline (tolerance %.0f%%):%n", tolerance * 100);
+        for (Map<String, Object> result : results) {
+            Map<?, ?> base = baseline.stream().map(b -> (Map<?, ?>) b)
+                    .filter(b -> result.get("corpus").equals(b.get("corpus")) && result.get("phase").equals(b.get("phase")))
+                    .findFirst().orElse(null);
+            if (base == null) {
+                continue;
+            }
+            double speed = (double) result.get("mbPerSecond");
+            double baseSpeed = ((Number) base.get("mbPerSecond")).doubleValue();
+            long heap = (long) result.get("peakHeapMb");
+            long baseHeap = ((Number) base.get("peakHeapMb")).longValue();
+
+            List<String> flags = new ArrayList<>();
+            if (speed < baseSpeed * (1 - tolerance)) {
+                flags.add("throughput");
+            }
+            // Small heaps fluctuate by a few MB between runs; only flag growth past a floor
+            if (heap > Math.max(baseHeap * (1 + tolerance), baseHeap + 16)) {
+                flags.add("heap");
+            }
+            regressions += flags.isEmpty() ? 0 : 1;
+            System.out.printf(Locale.ROOT, "%-6s %-8s %9.1f -> %9.1f MB/s (%+.1f%%)  heap %d -> %d MB  %s%n",
+                    result.get("corpus"), result.get("phase"), baseSpeed, speed, (speed / baseSpeed - 1) * 100,
+                    baseHeap, heap, flags.isEmpty() ? "ok" : "REGRESSION " + String.join(", ", flags));
+        }
+        System.out.println(regressions == 0 ? "No regressions." : regressions + " regression(s).");
+        return regressions;
+    }
+
+    private static ObjectMapper mapper() {
+        return new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    }
+
+    // ===== Helpers =====
+
+    private static List<Path> regularFiles(Path dir) throws IOException {
+        try (Stream<Path> stream = Files.walk(dir)) {
+            return stream.filter(Files::isRegularFile).sorted().toList();
+        }
+    }
+
+    private static long sizeOf(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (Stream<Path> stream = Files.walk(path)) {
+            return stream.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> stream = Files.walk(path)) {
+            for (Path p : stream.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(p);
+            }
+        }
+    }
+
+    private static final class Options {
+        private Path workDir = Paths.get(System.getProperty("java.io.tmpdir"), "securevault-bench");
+        private List<String> corpora = List.of("large", "small", "media", "logs");
+        private double scale = 1.0;
+        private double tolerance = 0.10;
+        private Path baseline;
+        private Path saveBaseline;
+        private boolean keepOutputs;
+        private String profile;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--dir" -> options.workDir = Paths.get(args[++i]);
+                    case "--corpora" -> options.corpora = List.of(args[++i].split(","));
+                    case "--scale" -> options.scale = Double.parseDouble(args[++i]);
+                    case "--tolerance" -> options.tolerance = Double.parseDouble(args[++i]) / 100;
+                    case "--baseline" -> options.baseline = Paths.get(args[++i]);
+                    case "--save-baseline" -> options.saveBaseline = Paths.get(args[++i]);
+                    case "--keep-outputs" -> options.keepOutputs = true;
+                    case "--profile" -> options.profile = args[++i];
+                    default -> {
+                        System.err.println("Usage: MacroBenchmark [--dir DIR] [--corpora large,small,media,logs]"
+                                + " [--scale FACTOR] [--baseline FILE] [--save-baseline FILE] [--tolerance PERCENT]"
+                                + " [--keep-outputs] [--profile NAME]");
+                        System.exit(2);
+                    }
+                }
+            }
+            return options;
+        }
+    }
+}
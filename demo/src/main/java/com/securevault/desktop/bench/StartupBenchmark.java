@@ -0,0 +1,193 @@
+package com.securevault.desktop.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.securevault.desktop.service.AppStartup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to first frame of the desktop app, measured over fresh JVMs.
+ *
+ * <p>Each run starts the app in a new JVM with {@code -Dsecurevault.startup.exit=first-frame} (see
+ * {@link AppStartup}) and records two times: the wall time from launching the process until the app
+ * reports its first frame, and the app's own figure, counted from JVM start. The first run is
+ * reported separately, since it alone pays for a cold file cache. {@code --cds} runs with an AppCDS
+ * archive from the {@code appcds} build profile; it only applies to the same {@code --jar} it was
+ * created from. {@code --baseline} and {@code --save-baseline} work as in {@link MacroBenchmark}.</p>
+ *
+ * <p>Needs a display, like the app itself.</p>
+ *
+ * <pre>
+ * mvn -Pstartup-benchmark compile exec:exec -Dstartup.args="--runs 10 --save-baseline startup.json"
+ * mvn -Pappcds package
+ * mvn -Pstartup-benchmark exec:exec -Dstartup.args="--jar target/securevault-desktop-1.0.0.jar --cds target/securevault.jsa"
+ * </pre>
+ */
+public class StartupBenchmark {
+
+    private static final String FX_MAIN = "com.securevault.desktop.ui.Launcher";
+    private static final String SWING_MAIN = "com.securevault.desktop.ui.DesktopApp";
+    private static final long TIMEOUT_SECONDS = 120;
+    private static final int OUTPUT_LINES_KEPT = 20;
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        String variant = options.ui + (options.cds != null ? "+cds" : "");
+        System.out.printf(Locale.ROOT, "%-10s %4s %12s %12s%n", "variant", "run", "wall ms", "in-app ms");
+
+        List<long[]> runs = new ArrayList<>();
+        for (int i = 0; i < options.runs; i++) {
+            long[] run = launch(options);
+            runs.add(run);
+            System.out.printf(Locale.ROOT, "%-10s %4d %12d %12d%n", variant, i + 1, run[0], run[1]);
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("variant", variant);
+        result.put("runs", runs.size());
+        result.put("coldWallMillis", runs.get(0)[0]);
+        List<long[]> warm = runs.size() > 1 ? runs.subList(1, runs.size()) : runs;
+        result.put("medianWallMillis", median(warm, 0));
+        result.put("medianFirstFrameMillis", median(warm, 1));
+        result.put("minWallMillis", warm.stream().mapToLong(r -> r[0]).min().orElse(-1));
+        System.out.printf(Locale.ROOT, "%s: cold %d ms, median %d ms (in-app %d ms), best %d ms%n", variant,
+                result.get("coldWallMillis"), result.get("medianWallMillis"), result.get("medianFirstFrameMillis"),
+                result.get("minWallMillis"));
+
+        if (options.saveBaseline != null) {
+            mapper().writeValue(options.saveBaseline.toFile(), List.of(result));
+            System.out.println("Baseline written to " + options.saveBaseline);
+        }
+        if (options.baseline != null) {
+            List<?> baseline = mapper().readValue(options.baseline.toFile(), List.class);
+            if (compare(result, baseline, options.tolerance) > 0) {
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Starts the app once and returns {@code {wall ms, in-app ms}}.
+     */
+    private static long[] launch(Options options) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (options.cds != null) {
+            command.add("-XX:SharedArchiveFile=" + options.cds);
+        }
+        command.add("-D" + AppStartup.EXIT_PROPERTY + "=" + AppStartup.EXIT_AT_FIRST_FRAME);
+        command.addAll(options.jvmArgs);
+        command.add("-cp");
+        command.add(options.jar != null ? options.jar.toString() : System.getProperty("java.class.path"));
+        command.add(options.ui.equals("swing") ? SWING_MAIN : FX_MAIN);
+
+        long started = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        Deque<String> output = new ArrayDeque<>();
+        long firstFrame = -1;
+        long wall = -1;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(AppStartup.FIRST_FRAME_MARKER)) {
+                    wall = (System.nanoTime() - started) / 1_000_000;
+                    firstFrame = Long.parseLong(line.substring(AppStartup.FIRST_FRAME_MARKER.length()).trim());
+                    break;
+                }
+                output.addLast(line);
+                if (output.size() > OUTPUT_LINES_KEPT) {
+                    output.removeFirst();
+                }
+            }
+        }
+        if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+        if (wall < 0) {
+            throw new IOException("The app exited with status " + process.exitValue() + " before its first frame:\n"
+                    + String.join("\n", output));
+        }
+        return new long[]{wall, firstFrame};
+    }
+
+    private static long median(List<long[]> runs, int column) {
+        long[] values = runs.stream().mapToLong(r -> r[column]).sorted().toArray();
+        return values[values.length / 2];
+    }
+
+    /**
+     * Prints a comparison with the baseline and returns the number of regressions.
+     */
+    private static int compare(Map<String, Object> result, List<?> baseline, double tolerance) {
+        Map<?, ?> base = baseline.stream().map(b -> (Map<?, ?>) b)
+                .filter(b -> result.get("variant").equals(b.get("variant")))
+                .findFirst().orElse(null);
+        System.out.println();
+        if (base == null) {
+            System.out.println("No baseline for " + result.get("variant") + ".");
+            return 0;
+        }
+        long median = (long) result.get("medianWallMillis");
+        long baseMedian = ((Number) base.get("medianWallMillis")).longValue();
+        boolean regressed = median > baseMedian * (1 + tolerance);
+        System.out.printf(Locale.ROOT, "Comparison with baseline (tolerance %.0f%%): %s %d -> %d ms (%+.1f%%)  %s%n",
+                tolerance * 100, result.get("variant"), baseMedian, median, (median / (double) baseMedian - 1) * 100,
+                regressed ? "REGRESSION" : "ok");
+        return regressed ? 1 : 0;
+    }
+
+    private static ObjectMapper mapper() {
+        return new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    }
+
+    private static final class Options {
+        private String ui = "fx";
+        private int runs = 6;
+        private Path jar;
+        private Path cds;
+        private List<String> jvmArgs = new ArrayList<>();
+        private double tolerance = 0.10;
+        private Path baseline;
+        private Path saveBaseline;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--ui" -> options.ui = args[++i];
+                    case "--runs" -> options.runs = Math.max(1, Integer.parseInt(args[++i]));
+                    case "--jar" -> options.jar = Paths.get(args[++i]);
+                    case "--cds" -> options.cds = Paths.get(args[++i]);
+                    case "--jvm-arg" -> options.jvmArgs.add(args[++i]);
+                    case "--tolerance" -> options.tolerance = Double.parseDouble(args[++i]) / 100;
+                    case "--baseline" -> options.baseline = Paths.get(args[++i]);
+                    case "--save-baseline" -> options.saveBaseline = Paths.get(args[++i]);
+                    default -> {
+                        System.err.println("Usage: StartupBenchmark [--ui fx|swing] [--runs N] [--jar FILE] [--cds ARCHIVE]"
+                                + " [--jvm-arg ARG]... [--baseline FILE] [--save-baseline FILE] [--tolerance PERCENT]");
+                        System.exit(2);
+                    }
+                }
+            }
+            if (!options.ui.equals("fx") && !options.ui.equals("swing")) {
+                System.err.println("Unknown UI: " + options.ui);
+                System.exit(2);
+            }
+            return options;
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package com.securevault.desktop.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypts and decrypts chunked files with overlapped I/O.
+ *
+ * <p>Chunks rotate through a few buffer slots, {@link #DEPTH} by default: while the calling thread
+ * runs the cipher on chunk N, reads of the following chunks and writes of the preceding ones are
+ * in flight on {@link AsynchronousFileChannel}s, so the disk and the CPU stay busy at the same time.
+ * For files with a {@link MerkleTree} trailer, each chunk is also hashed on a helper thread as
+ * soon as its plaintext is available, so hashing no longer runs in series with the cipher.</p>
+ *
+ * <p>The number of slots comes from {@link PipelineTuner}, which is also told how long the cipher
+ * thread waited on reads and writes, i.e. how often the read-ahead ran dry or the write-behind
+ * was full.</p>
+ */
+public class AsyncFilePipeline {
+
+    static final int DEPTH = 3; // triple buffering by default: read-ahead, cipher, write-behind
+
+    private static final ExecutorService HASHERS = hashers();
+
+    /**
+     * Direct buffer memory held by one encrypt or decrypt run with this chunk size.
+     */
+    public static long bufferFootprint(int chunkSize) {
+        return bufferFootprint(chunkSize, DEPTH);
+    }
+
+    public static long bufferFootprint(int chunkSize, int depth) {
+        return (long) depth * (chunkSize + ChunkCodec.TRAILER_LENGTH + ChunkCodec.finalChunkLength(chunkSize));
+    }
+
+    public static void encrypt(Path inputFile, Path outputFile, ChunkCodec codec) throws Exception {
+        encrypt(inputFile, outputFile, codec, null);
+    }
+
+    static void encrypt(Path inputFile, Path outputFile, ChunkCodec codec, PipelineTuner.Run run) throws Exception {
+        encrypt(inputFile, 0, -1, outputFile, codec, null, run);
+    }
+
+    /**
+     * Hooks that make an encryption run resumable; see {@link ResumableEncryption}.
+     */
+    interface Checkpointing {
+        /** Full chunks already durable in the output; the run starts after them. */
+        long committedChunks();
+
+        RunningHash hash();
+
+        /** Chunks between checkpoints. */
+        int interval();
+
+        /** Called once every chunk before {@code committedChunks} has been written and forced to disk. */
+        void commit(long committedChunks) throws Exception;
+    }
+
+    static void encrypt(Path inputFile, Path outputFile, ChunkCodec codec, Checkpointing checkpoints,
+                        PipelineTuner.Run run) throws Exception {
+        encrypt(inputFile, 0, -1, outputFile, codec, checkpoints, run);
+    }
+
+    /**
+     * Encrypts {@code length} bytes of the input starting at {@code inputOffset} into a complete
+     * file of its own; a negative length means up to the end of the input.
+     *
+     * @param run the depth to use and where to report the timings; null for the default depth
+     */
+    static void encrypt(Path inputFile, long inputOffset, long length, Path outputFile, ChunkCodec codec,
+                        Checkpointing checkpoints, PipelineTuner.Run run) throws Exception {
+        int chunkSize = codec.getChunkSize();
+        if (run == null) {
+            run = PipelineTuner.fixed(chunkSize);
+        }
+        int depth = run.getDepth();
+        byte[] header = codec.getHeader().toBytes();
+        long startChunk = checkpoints == null ? 0 : checkpoints.committedChunks();
+
+        try (AsynchronousFileChannel in = AsynchronousFileChannel.open(inputFile, StandardOpenOption.READ);
+             AsynchronousFileChannel out = checkpoints == null
+                     ? AsynchronousFileChannel.open(outputFile,
+                             StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                     : AsynchronousFileChannel.open(outputFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long size = length < 0 ? in.size() - inputOffset : length;
+            long fullChunks = codec.fullChunkCount(size);
+            long chunkCount = fullChunks + 1;
+            RunningHash digest = checkpoints == null ? RunningHash.create(codec.getHeader()) : checkpoints.hash();
+            MerkleTree tree = digest instanceof MerkleTree ? (MerkleTree) digest : null;
+
+            ByteBuffer[] plain = new ByteBuffer[depth];
+            ByteBuffer[] sealed = new ByteBuffer[depth];
+            CompletableFuture<Integer>[] reads = futures(depth);
+            CompletableFuture<Integer>[] writes = futures(depth);
+            CompletableFuture<byte[]>[] leaves = futures(depth);
+            for (int s = 0; s < depth; s++) {
+                writes[s] = CompletableFuture.completedFuture(0);
+            }
+            // Direct memory is costly to allocate and only freed by GC, so small files get only what they use
+            int bufferSize = (int) Math.min(chunkSize, size);
+            for (long i = startChunk; i < Math.min(startChunk + depth, chunkCount); i++) {
+                plain[(int) (i % depth)] = ByteBuffer.allocateDirect(bufferSize + ChunkCodec.TRAILER_LENGTH);
+                sealed[(int) (i % depth)] = ByteBuffer.allocateDirect(ChunkCodec.finalChunkLength(bufferSize));
+            }
+
+            run.started();
+            CompletableFuture<Integer> headerWrite = writeFully(out, ByteBuffer.wrap(header), 0);
+            for (long i = startChunk; i < Math.min(startChunk + depth, chunkCount); i++) {
+                int slot = (int) (i % depth);
+                reads[slot] = readChunk(in, plain[slot], inputOffset, i, size, chunkSize);
+                if (tree != null) {
+                    leaves[slot] = leafWhenRead(reads[slot], plain[slot], i);
+                }
+            }
+
+            try {
+                for (long i = startChunk; i < chunkCount; i++) {
+                    int slot = (int) (i % depth);
+                    boolean last = i == chunkCount - 1;
+                    ByteBuffer p = plain[slot];
+                    int expected = (int) (Math.min(size, (i + 1) * chunkSize) - i * chunkSize);
+                    long waitStart = System.nanoTime();
+                    int read = reads[slot].join();
+                    run.readWaited(System.nanoTime() - waitStart);
+                    if (read != expected) {
+                        throw new IOException("Input file changed while it was being encrypted: " + inputFile);
+                    }
+
+                    p.flip();
+                    if (tree != null) {
+                        tree.addLeaf(leaves[slot].join());
+                    } else {
+                        digest.update(p.duplicate());
+                    }
+                    if (last) {
+                        p.limit(p.limit() + ChunkCodec.TRAILER_LENGTH);
+                        p.put(p.limit() - ChunkCodec.TRAILER_LENGTH, digest.digest());
+                    }
+
+                    ByteBuffer s = sealed[slot];
+                    waitStart = System.nanoTime();
+                    writes[slot].join(); // slot's previous ciphertext must be on its way to disk
+                    run.writeWaited(System.nanoTime() - waitStart);
+                    s.clear();
+                    codec.seal(i, last, p, s);
+                    s.flip();
+                    writes[slot] = writeFully(out, s, codec.chunkOffset(i));
+
+                    if (i + depth < chunkCount) {
+                        reads[slot] = readChunk(in, p, inputOffset, i + depth, size, chunkSize);
+                        if (tree != null) {
+                            leaves[slot] = leafWhenRead(reads[slot], p, i + depth);
+                        }
+                    }
+
+                    if (checkpoints != null && !last && (i + 1 - startChunk) % checkpoints.interval() == 0) {
+                        headerWrite.join();
+                        for (CompletableFuture<Integer> write : writes) {
+                            write.join();
+                        }
+                        out.force(false);
+                        checkpoints.commit(i + 1);
+                    }
+                }
+                headerWrite.join();
+                for (CompletableFuture<Integer> write : writes) {
+                    write.join();
+                }
+                run.finished((chunkCount - startChunk - 1) * chunkSize + (size - fullChunks * chunkSize));
+            } catch (CompletionException e) {
+                throw unwrap(e);
+            }
+        } catch (Exception e) {
+            if (checkpoints == null) {
+                Files.deleteIfExists(outputFile);
+            }
+            throw e;
+        }
+    }
+
+    public static void decrypt(Path inputFile, Path outputFile, ChunkCodec codec) throws Exception {
+        decrypt(inputFile, outputFile, 0, codec, null);
+    }
+
+    /**
+     * Decrypts into the output starting at {@code outputOffset}. An offset of 0 replaces the
+     * output; any other keeps what is already written before it.
+     *
+     * @param run the depth to use and where to report the timings; null for the default depth
+     * @return the plaintext length
+     */
+    static long decrypt(Path inputFile, Path outputFile, long outputOffset, ChunkCodec codec, PipelineTuner.Run run)
+            throws Exception {
+        int chunkSize = codec.getChunkSize();
+        if (run == null) {
+            run = PipelineTuner.fixed(chunkSize);
+        }
+        int depth = run.getDepth();
+        long plaintextLength = 0;
+
+        try (AsynchronousFileChannel in = AsynchronousFileChannel.open(inputFile, StandardOpenOption.READ);
+             AsynchronousFileChannel out = outputOffset == 0
+                     ? AsynchronousFileChannel.open(outputFile,
+                             StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                     : AsynchronousFileChannel.open(outputFile, StandardOpenOption.WRITE)) {
+            long storedSize = in.size();
+            long fullChunks = codec.fullChunkCountForStoredSize(storedSize);
+            long chunkCount = fullChunks + 1;
+            RunningHash digest = RunningHash.create(codec.getHeader());
+            MerkleTree tree = digest instanceof MerkleTree ? (MerkleTree) digest : null;
+
+            ByteBuffer[] stored = new ByteBuffer[depth];
+            ByteBuffer[] plain = new ByteBuffer[depth];
+            CompletableFuture<Integer>[] reads = futures(depth);
+            CompletableFuture<Integer>[] writes = futures(depth);
+            CompletableFuture<byte[]>[] leaves = futures(depth);
+            for (int s = 0; s < depth; s++) {
+                writes[s] = CompletableFuture.completedFuture(0);
+            }
+            int storedChunkSize = (int) Math.min(ChunkCodec.finalChunkLength(chunkSize), storedSize - codec.chunkOffset(0));
+            for (long i = 0; i < Math.min(depth, chunkCount); i++) {
+                stored[(int) i] = ByteBuffer.allocateDirect(storedChunkSize);
+                plain[(int) i] = ByteBuffer.allocateDirect(storedChunkSize - ChunkCodec.OVERHEAD);
+            }
+
+            run.started();
+            for (long i = 0; i < Math.min(depth, chunkCount); i++) {
+                reads[(int) i] = readStored(in, stored[(int) i], codec, i, fullChunks, storedSize);
+            }
+
+            try {
+                for (long i = 0; i < chunkCount; i++) {
+                    int slot = (int) (i % depth);
+                    boolean last = i == chunkCount - 1;
+                    ByteBuffer s = stored[slot];
+                    long waitStart = System.nanoTime();
+                    reads[slot].join();
+                    run.readWaited(System.nanoTime() - waitStart);
+                    s.flip();
+
+                    ByteBuffer p = plain[slot];
+                    waitStart = System.nanoTime();
+                    writes[slot].join();
+                    run.writeWaited(System.nanoTime() - waitStart);
+                    // The slot's previous chunk must be hashed before its buffer is reused
+                    addLeaf(tree, leaves, slot);
+                    p.clear();
+                    codec.open(i, last, s, p);
+                    p.flip();
+
+                    byte[] storedChecksum = null;
+                    if (last) {
+                        if (p.remaining() < ChunkCodec.TRAILER_LENGTH) {
+                            throw new SecurityException("Final chunk is missing its checksum.");
+                        }
+                        storedChecksum = new byte[ChunkCodec.TRAILER_LENGTH];
+                        p.get(p.limit() - ChunkCodec.TRAILER_LENGTH, storedChecksum);
+                        p.limit(p.limit() - ChunkCodec.TRAILER_LENGTH);
+                    }
+                    if (tree != null) {
+                        ByteBuffer view = p.duplicate();
+                        long index = i;
+                        leaves[slot] = CompletableFuture.supplyAsync(() -> MerkleTree.leafHash(index, view), HASHERS);
+                    } else {
+                        digest.update(p.duplicate());
+                    }
+                    if (last) {
+                        for (long k = Math.max(0, i - depth + 1); k <= i; k++) {
+                            addLeaf(tree, leaves, (int) (k % depth));
+                        }
+                        if (!MessageDigest.isEqual(storedChecksum, digest.digest())) {
+                            throw new SecurityException("Checksum verification failed. File may be corrupted or tampered with.");
+                        }
+                    }
+                    plaintextLength += p.remaining();
+                    writes[slot] = writeFully(out, p, outputOffset + i * (long) chunkSize);
+
+                    if (i + depth < chunkCount) {
+                        reads[slot] = readStored(in, s, codec, i + depth, fullChunks, storedSize);
+                    }
+                }
+                for (CompletableFuture<Integer> write : writes) {
+                    write.join();
+                }
+                run.finished(plaintextLength);
+            } catch (CompletionException e) {
+                throw unwrap(e);
+            }
+        } catch (Exception e) {
+            Files.deleteIfExists(outputFile);
+            throw e;
+        }
+        return plaintextLength;
+    }
+
+    /**
+     * One future per pipeline slot.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> CompletableFuture<T>[] futures(int depth) {
+        return (CompletableFuture<T>[]) new CompletableFuture<?>[depth];
+    }
+
+    /**
+     * Hashes a chunk once it has been read. The view is fixed here because the cipher thread
+     * flips the buffer itself in the meantime.
+     */
+    private static CompletableFuture<byte[]> leafWhenRead(CompletableFuture<Integer> read, ByteBuffer buffer, long index) {
+        ByteBuffer view = buffer.duplicate();
+        return read.thenApplyAsync(length -> MerkleTree.leafHash(index, view.position(0).limit(length)), HASHERS);
+    }
+
+    private static void addLeaf(MerkleTree tree, CompletableFuture<byte[]>[] leaves, int slot) {
+        if (tree != null && leaves[slot] != null) {
+            tree.addLeaf(leaves[slot].join());
+            leaves[slot] = null;
+        }
+    }
+
+    private static ExecutorService hashers() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "chunk-hasher");
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static CompletableFuture<Integer> readChunk(AsynchronousFileChannel in, ByteBuffer buffer, long inputOffset,
+                                                        long index, long size, int chunkSize) {
+        long position = index * chunkSize;
+        buffer.clear();
+        buffer.limit((int) Math.min(chunkSize, size - position));
+        return readFully(in, buffer, inputOffset + position);
+    }
+
+    private static CompletableFuture<Integer> readStored(AsynchronousFileChannel in, ByteBuffer buffer, ChunkCodec codec,
+                                                         long index, long fullChunks, long storedSize) {
+        long position = codec.chunkOffset(index);
+        buffer.clear();
+        // Full chunks have a fixed stride; whatever follows the last of them is the final chunk
+        buffer.limit((int) (index < fullChunks ? codec.getChunkSize() + ChunkCodec.OVERHEAD : storedSize - position));
+        return readFully(in, buffer, position);
+    }
+
+    static CompletableFuture<Integer> readFully(AsynchronousFileChannel channel, ByteBuffer buffer, long position) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        int start = buffer.position();
+        channel.read(buffer, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer read, Void attachment) {
+                int done = buffer.position() - start;
+                if (read < 0 || !buffer.hasRemaining()) {
+                    result.complete(done);
+                } else {
+                    channel.read(buffer, position + done, null, this);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                result.completeExceptionally(exc);
+            }
+        });
+        return result;
+    }
+
+    static CompletableFuture<Integer> writeFully(AsynchronousFileChannel channel, ByteBuffer buffer, long position) {
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        int start = buffer.position();
+        channel.write(buffer, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer written, Void attachment) {
+                int done = buffer.position() - start;
+                if (!buffer.hasRemaining()) {
+                    result.complete(done);
+                } else {
+                    channel.write(buffer, position + done, null, this);
+                }
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                result.completeExceptionally(exc);
+            }
+        });
+        return result;
+    }
+
+    static Exception unwrap(CompletionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        return e;
+    }
+}
@@ -0,0 +1,150 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+/**
+ * Seals and opens the chunks of a {@link FileHeader#VERSION_CHUNKED} file.
+ *
+ * <p>Each chunk is stored as {@code nonce | ciphertext | tag} with a fresh random nonce.
+ * The associated data binds the file header, the chunk index and whether it is the final
+ * chunk, so chunks cannot be reordered, dropped, truncated or moved between files.
+ * Every chunk but the last carries exactly {@code chunkSize} plaintext bytes; the last one
+ * carries the remainder followed by a {@link #TRAILER_LENGTH}-byte checksum of the whole plaintext:
+ * a {@link MerkleTree} root, or a plain SHA-256 in files without {@link FileHeader#FLAG_MERKLE_TRAILER}.</p>
+ *
+ * <p>Instances hold a reusable {@link Cipher} and are not thread-safe.</p>
+ */
+public final class ChunkCodec {
+
+    public static final int OVERHEAD = CipherSuite.NONCE_LENGTH + CipherSuite.TAG_LENGTH;
+    public static final int TRAILER_LENGTH = 32;
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private final FileHeader header;
+    private final byte[] headerBytes;
+    private final CipherSuite suite;
+    private final SecretKey key;
+    private final Cipher cipher;
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] nonce = new byte[CipherSuite.NONCE_LENGTH];
+
+    public ChunkCodec(FileHeader header, SecretKey key) throws Exception {
+        if (!header.isChunked()) {
+            throw new IllegalArgumentException("Header does not describe a chunked file");
+        }
+        this.header = header;
+        this.headerBytes = header.fixedBytes();
+        this.suite = header.getSuite();
+        this.key = suite.adaptKey(key);
+        this.cipher = suite.getInstance();
+    }
+
+    public FileHeader getHeader() {
+        return header;
+    }
+
+    public int getChunkSize() {
+        return header.getChunkSize();
+    }
+
+    /**
+     * Encrypts the remaining bytes of {@code plaintext} into {@code out} as one stored chunk.
+     *
+     * @return the number of bytes written to {@code out}
+     */
+    public int seal(long index, boolean last, ByteBuffer plaintext, ByteBuffer out) throws Exception {
+        random.nextBytes(nonce);
+        suite.init(cipher, Cipher.ENCRYPT_MODE, key, nonce);
+        cipher.updateAAD(associatedData(index, last));
+        out.put(nonce);
+        return CipherSuite.NONCE_LENGTH + cipher.doFinal(plaintext, out);
+    }
+
+    /**
+     * Authenticates and decrypts one stored chunk from the remaining bytes of {@code stored}.
+     * Nothing is written to {@code out} unless the tag verifies.
+     *
+     * @return the number of plaintext bytes written to {@code out}
+     */
+    public int open(long index, boolean last, ByteBuffer stored, ByteBuffer out) throws Exception {
+        if (stored.remaining() < OVERHEAD) {
+            throw new SecurityException("Chunk " + index + " is truncated.");
+        }
+        stored.get(nonce);
+        suite.init(cipher, Cipher.DECRYPT_MODE, key, nonce);
+        cipher.updateAAD(associatedData(index, last));
+        try {
+            return cipher.doFinal(stored, out);
+        } catch (AEADBadTagException e) {
+            throw new SecurityException("Chunk " + index + " failed authentication. Wrong password, or file is corrupted or tampered with.");
+        }
+    }
+
+    private byte[] associatedData(long index, boolean last) {
+        ByteBuffer aad = ByteBuffer.allocate(headerBytes.length + 8 + 1);
+        aad.put(headerBytes).putLong(index).put((byte) (last ? 1 : 0));
+        return aad.array();
+    }
+
+    // ===== Layout =====
+
+    public long chunkOffset(long index) {
+        return header.getLength() + index * stride();
+    }
+
+    /**
+     * Stored length of a full chunk.
+     */
+    public long stride() {
+        return (long) getChunkSize() + OVERHEAD;
+    }
+
+    /**
+     * Number of full chunks that precede the final chunk for a plaintext of this size.
+     */
+    public long fullChunkCount(long plaintextSize) {
+        return plaintextSize / getChunkSize();
+    }
+
+    public long encryptedSize(long plaintextSize) {
+        long fullChunks = fullChunkCount(plaintextSize);
+        int tail = (int) (plaintextSize - fullChunks * getChunkSize());
+        return chunkOffset(fullChunks) + finalChunkLength(tail);
+    }
+
+    public static int finalChunkLength(int tailPlaintext) {
+        return tailPlaintext + TRAILER_LENGTH + OVERHEAD;
+    }
+
+    /**
+     * Recovers the number of full chunks from the stored size of a complete file.
+     */
+    public long fullChunkCountForStoredSize(long storedSize) throws IOException {
+        long body = storedSize - header.getLength();
+        int minFinal = finalChunkLength(0);
+        long stride = stride();
+        if (body < minFinal) {
+            throw new IOException("Encrypted file is truncated.");
+        }
+        long fullChunks = (body - minFinal) / stride;
+        long finalLength = body - fullChunks * stride;
+        if (finalLength > finalChunkLength(getChunkSize())) {
+            throw new IOException("Encrypted file is truncated.");
+        }
+        return fullChunks;
+    }
+
+    /**
+     * Plaintext length of a complete file of this stored size, not counting the checksum trailer.
+     */
+    public long plaintextSizeForStoredSize(long storedSize) throws IOException {
+        long fullChunks = fullChunkCountForStoredSize(storedSize);
+        long finalLength = storedSize - chunkOffset(fullChunks);
+        return fullChunks * getChunkSize() + finalLength - finalChunkLength(0);
+    }
+}
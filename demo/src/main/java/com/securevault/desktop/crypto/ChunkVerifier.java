@@ -0,0 +1,207 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Verifies a file with a {@link MerkleTree} trailer on several threads. Chunks are authenticated
+ * and hashed independently, a batch at a time, and the leaves are folded into the tree in order.
+ *
+ * <p>A damaged chunk does not end the run: every chunk is checked and all damaged ones are named,
+ * with their plaintext byte ranges, in the {@link SecurityException} thrown at the end. A first
+ * batch in which nothing authenticates is reported at once, since that is almost always a wrong key.</p>
+ */
+final class ChunkVerifier {
+
+    private static final int CHUNKS_PER_THREAD = 8;
+    private static final int MAX_LISTED = 10;
+
+    private ChunkVerifier() {
+    }
+
+    /**
+     * @return the plaintext length
+     */
+    static long verify(Path file, FileHeader header, SecretKey key, int threads) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long storedSize = channel.size();
+            ChunkCodec layout = new ChunkCodec(header, key);
+            long fullChunks = layout.fullChunkCountForStoredSize(storedSize);
+            long chunkCount = fullChunks + 1;
+            int workers = (int) Math.max(1, Math.min(threads, chunkCount));
+            int batch = workers * CHUNKS_PER_THREAD;
+
+            Worker[] slots = new Worker[workers];
+            for (int w = 0; w < workers; w++) {
+                slots[w] = new Worker(new ChunkCodec(header, key), channel, storedSize, fullChunks);
+            }
+            ExecutorService pool = workers == 1 ? null : Executors.newFixedThreadPool(workers, r -> {
+                Thread t = new Thread(r, "chunk-verify");
+                t.setDaemon(true);
+                return t;
+            });
+            MerkleTree tree = new MerkleTree();
+            List<Long> damaged = new ArrayList<>();
+            try {
+                for (long start = 0; start < chunkCount; start += batch) {
+                    int count = (int) Math.min(batch, chunkCount - start);
+                    byte[][] leaves = new byte[count][];
+                    runBatch(slots, pool, start, count, leaves);
+                    for (int j = 0; j < count; j++) {
+                        if (leaves[j] == null) {
+                            damaged.add(start + j);
+                        } else if (damaged.isEmpty()) {
+                            tree.addLeaf(leaves[j]);
+                        }
+                    }
+                    if (start == 0 && damaged.size() == count) {
+                        throw new SecurityException("Authentication failed. Wrong password, or file is corrupted or tampered with.");
+                    }
+                }
+            } finally {
+                if (pool != null) {
+                    pool.shutdownNow();
+                }
+                for (Worker worker : slots) {
+                    worker.clear();
+                }
+            }
+
+            if (!damaged.isEmpty()) {
+                throw new SecurityException(describe(damaged, chunkCount, header.getChunkSize(),
+                        layout.plaintextSizeForStoredSize(storedSize)));
+            }
+            byte[] storedRoot = null;
+            for (Worker worker : slots) {
+                if (worker.trailer != null) {
+                    storedRoot = worker.trailer;
+                }
+            }
+            if (storedRoot == null || !MessageDigest.isEqual(storedRoot, tree.digest())) {
+                throw new SecurityException("Checksum verification failed. File may be corrupted or tampered with.");
+            }
+            return layout.plaintextSizeForStoredSize(storedSize);
+        }
+    }
+
+    /**
+     * Worker {@code w} takes chunks {@code start + w}, {@code start + w + workers}, ... of the batch.
+     */
+    private static void runBatch(Worker[] slots, ExecutorService pool, long start, int count, byte[][] leaves) throws Exception {
+        if (pool == null) {
+            slots[0].run(start, 0, count, 1, leaves);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        for (int w = 0; w < slots.length && w < count; w++) {
+            Worker worker = slots[w];
+            int first = w;
+            futures.add(pool.submit(() -> {
+                worker.run(start, first, count, slots.length, leaves);
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+
+    private static String describe(List<Long> damaged, long chunkCount, int chunkSize, long plaintextSize) {
+        StringBuilder message = new StringBuilder();
+        message.append(damaged.size()).append(" of ").append(chunkCount).append(" chunks failed authentication: ");
+        for (int i = 0; i < Math.min(damaged.size(), MAX_LISTED); i++) {
+            long index = damaged.get(i);
+            message.append(i > 0 ? ", " : "").append("chunk ").append(index)
+                    .append(" (bytes ").append(index * chunkSize).append('-').append(Math.min((index + 1) * chunkSize, plaintextSize) - 1).append(')');
+        }
+        if (damaged.size() > MAX_LISTED) {
+            message.append(" and ").append(damaged.size() - MAX_LISTED).append(" more");
+        }
+        return message.append(". The rest of the file is intact.").toString();
+    }
+
+    /**
+     * One thread's codec and buffers; {@link FileChannel} positional reads may run concurrently.
+     */
+    private static final class Worker {
+        private final ChunkCodec codec;
+        private final FileChannel channel;
+        private final long storedSize;
+        private final long fullChunks;
+        private final ByteBuffer stored;
+        private final ByteBuffer plain;
+        private byte[] trailer; // set by whichever worker reads the final chunk
+
+        Worker(ChunkCodec codec, FileChannel channel, long storedSize, long fullChunks) {
+            this.codec = codec;
+            this.channel = channel;
+            this.storedSize = storedSize;
+            this.fullChunks = fullChunks;
+            int largest = (int) Math.min(ChunkCodec.finalChunkLength(codec.getChunkSize()), storedSize - codec.chunkOffset(0));
+            this.stored = ByteBuffer.allocate(largest);
+            this.plain = ByteBuffer.allocate(largest);
+        }
+
+        void run(long start, int first, int count, int step, byte[][] leaves) throws IOException {
+            for (int j = first; j < count; j += step) {
+                leaves[j] = leaf(start + j);
+            }
+        }
+
+        /**
+         * Returns the chunk's leaf hash, or null if it does not authenticate.
+         */
+        private byte[] leaf(long index) throws IOException {
+            boolean last = index == fullChunks;
+            long offset = codec.chunkOffset(index);
+            stored.clear();
+            stored.limit((int) (last ? storedSize - offset : codec.getChunkSize() + ChunkCodec.OVERHEAD));
+            while (stored.hasRemaining()) {
+                if (channel.read(stored, offset + stored.position()) < 0) {
+                    throw new IOException("File is truncated.");
+                }
+            }
+            stored.flip();
+            plain.clear();
+            try {
+                codec.open(index, last, stored, plain);
+            } catch (SecurityException e) {
+                return null;
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Cannot decrypt chunk " + index, e);
+            }
+            plain.flip();
+            if (last) {
+                if (plain.remaining() < ChunkCodec.TRAILER_LENGTH) {
+                    return null;
+                }
+                trailer = new byte[ChunkCodec.TRAILER_LENGTH];
+                plain.get(plain.limit() - ChunkCodec.TRAILER_LENGTH, trailer);
+                plain.limit(plain.limit() - ChunkCodec.TRAILER_LENGTH);
+            }
+            return MerkleTree.leafHash(index, plain);
+        }
+
+        void clear() {
+            Arrays.fill(plain.array(), (byte) 0);
+        }
+    }
+}
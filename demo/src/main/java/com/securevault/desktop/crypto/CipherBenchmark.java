@@ -0,0 +1,103 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.SecureRandom;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Picks the cipher suite used for new files.
+ * A config override wins; otherwise a short micro-benchmark measures each suite on this machine.
+ */
+public class CipherBenchmark {
+
+    public static final String OVERRIDE_PROPERTY = "securevault.cipher";
+
+    private static final int SAMPLE_SIZE = 1024 * 1024; // 1 MB per round
+    private static final long WARMUP_NANOS = 100_000_000L; // lets the JIT install the cipher intrinsics
+    private static final long MEASURE_NANOS = 100_000_000L; // per suite
+
+    private static volatile CipherSuite selected;
+    private static volatile Map<CipherSuite, Double> lastResults;
+
+    public static CipherSuite preferredSuite() {
+        CipherSuite suite = selected;
+        if (suite == null) {
+            synchronized (CipherBenchmark.class) {
+                if (selected == null) {
+                    selected = select();
+                }
+                suite = selected;
+            }
+        }
+        return suite;
+    }
+
+    /**
+     * Returns the MB/s measured per suite, or null if the selection came from an override.
+     */
+    public static Map<CipherSuite, Double> getLastResults() {
+        return lastResults;
+    }
+
+    private static CipherSuite select() {
+        String override = System.getProperty(OVERRIDE_PROPERTY);
+        if (override != null && !override.isBlank()) {
+            return CipherSuite.fromConfigName(override);
+        }
+        Map<CipherSuite, Double> results = run();
+        lastResults = results;
+
+        CipherSuite best = CipherSuite.AES_256_GCM;
+        for (Map.Entry<CipherSuite, Double> entry : results.entrySet()) {
+            if (entry.getValue() > results.get(best)) {
+                best = entry.getKey();
+            }
+        }
+        return best;
+    }
+
+    public static Map<CipherSuite, Double> run() {
+        SecureRandom random = new SecureRandom();
+        byte[] keyBytes = new byte[32];
+        random.nextBytes(keyBytes);
+        SecretKey key = new SecretKeySpec(keyBytes, "AES");
+        byte[] data = new byte[SAMPLE_SIZE];
+        random.nextBytes(data);
+
+        Map<CipherSuite, Double> results = new EnumMap<>(CipherSuite.class);
+        for (CipherSuite suite : CipherSuite.values()) {
+            try {
+                results.put(suite, measure(suite, key, data, random));
+            } catch (Exception e) {
+                // Suite not available on this JVM; never select it
+                results.put(suite, 0.0);
+            }
+        }
+        return results;
+    }
+
+    private static double measure(CipherSuite suite, SecretKey key, byte[] data, SecureRandom random) throws Exception {
+        encryptFor(suite, key, data, random, WARMUP_NANOS);
+
+        long start = System.nanoTime();
+        long bytes = encryptFor(suite, key, data, random, MEASURE_NANOS);
+        long elapsed = System.nanoTime() - start;
+
+        return (bytes / (1024.0 * 1024)) / (elapsed / 1_000_000_000.0);
+    }
+
+    private static long encryptFor(CipherSuite suite, SecretKey key, byte[] data, SecureRandom random, long nanos) throws Exception {
+        byte[] nonce = new byte[CipherSuite.NONCE_LENGTH];
+        long bytes = 0;
+        long deadline = System.nanoTime() + nanos;
+        do {
+            random.nextBytes(nonce);
+            suite.newCipher(Cipher.ENCRYPT_MODE, key, nonce).doFinal(data);
+            bytes += data.length;
+        } while (System.nanoTime() < deadline);
+        return bytes;
+    }
+}
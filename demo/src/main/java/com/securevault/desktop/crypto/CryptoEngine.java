@@ -1,70 +1,327 @@
 package com.securevault.desktop.crypto;
 
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.modes.AEADCipher;
+
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 public class CryptoEngine {
 
-    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    // Layout of files written before cipher suites were introduced
+    private static final String LEGACY_ALGORITHM = "AES/GCM/NoPadding";
     private static final int IV_LENGTH = 12; // 96 bits for GCM
     private static final int TAG_LENGTH = 128; // GCM tag length in bits
-
+    private static final int CHECKSUM_LENGTH = 32;
+    private static final int VERIFY_BUFFER_SIZE = 1024 * 1024;
+    public static final long MAX_IN_MEMORY_SIZE = 256L * 1024 * 1024;
+    private static final long RESUMABLE_THRESHOLD = 1024L * 1024 * 1024; // 1 GB
+    // ZIP extra field marking a directory archive entry as a copy of an earlier entry
+    static final short DUPLICATE_EXTRA_ID = (short) 0x5356;
+
+    private static volatile Consumer<String> warnings = System.err::println;
+
+    /**
+     * Encrypts {@code inputFile} into a new container, replacing {@code outputFile} if it exists.
+     * Use {@link #updateFile} to rewrite only what changed in an existing one.
+     */
     public static void encryptFile(Path inputFile, Path outputFile, SecretKey key) throws Exception {
-        byte[] fileBytes = Files.readAllBytes(inputFile);
+        encryptNew(inputFile, outputFile, outputFile, key);
+        // A chunk table or journal left by updates of the replaced file no longer applies
+        DeltaUpdate.discard(outputFile);
+        updateIndex(() -> VaultIndex.recordFile(outputFile, inputFile, key));
+    }
 
-        SecureRandom random = new SecureRandom();
-        byte[] iv = new byte[IV_LENGTH];
-        random.nextBytes(iv);
+    /**
+     * Brings the existing container {@code encryptedFile} up to date with {@code inputFile},
+     * re-encrypting only the chunks that changed; see {@link DeltaUpdate}. The container keeps its
+     * header, so its cipher suite, chunk size and file id stay as they were.
+     *
+     * @return the number of chunks written, the final chunk included
+     */
+    public static long updateFile(Path inputFile, Path encryptedFile, SecretKey key) throws Exception {
+        return DeltaUpdate.update(inputFile, encryptedFile, key);
+    }
+
+    /**
+     * Encrypts into {@code batch}: {@code outputFile} appears, durably, when the batch commits.
+     *
+     * @return the file that was written, which the caller may verify before committing
+     */
+    public static Path encryptFile(Path inputFile, Path outputFile, SecretKey key, GroupCommit batch) throws Exception {
+        Path staged = batch.stage(outputFile);
+        encryptNew(inputFile, staged, outputFile, key);
+        batch.afterCommit(() -> VaultIndex.recordFile(outputFile, inputFile, key));
+        return staged;
+    }
+
+    /**
+     * Writes a new container for {@code inputFile} to {@code file}, tuned for where {@code outputFile} lives.
+     */
+    private static void encryptNew(Path inputFile, Path file, Path outputFile, SecretKey key) throws Exception {
+        // Big inputs checkpoint as they go, so an interrupted run can pick up where it stopped
+        if (ResumableEncryption.hasPartialOutput(file) || Files.size(inputFile) >= RESUMABLE_THRESHOLD) {
+            ResumableEncryption.encryptFile(inputFile, file, key);
+        } else {
+            PipelineTuner.Run run = PipelineTuner.forEncryption(outputFile);
+            FileHeader header = FileMetadata.forFile(inputFile)
+                    .attachTo(FileHeader.chunked(CipherBenchmark.preferredSuite(), run.getChunkSize()), key);
+            AsyncFilePipeline.encrypt(inputFile, file, new ChunkCodec(header, key), run);
+        }
+    }
 
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        GCMParameterSpec parameterSpec = new GCMParameterSpec(TAG_LENGTH, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, parameterSpec);
+    public static void decryptFile(Path inputFile, Path outputFile, SecretKey key) throws Exception {
+        DeltaUpdate.startReading(inputFile, key);
+        try {
+            FileHeader header = readHeader(inputFile);
+            if (header != null && header.isChunked()) {
+                AsyncFilePipeline.decrypt(inputFile, outputFile, 0, new ChunkCodec(header, key),
+                        PipelineTuner.forDecryption(outputFile, header.getChunkSize()));
+                return;
+            }
+            byte[] decryptedBytes = open(Files.readAllBytes(inputFile), key);
+            Files.write(outputFile, decryptedBytes);
+        } finally {
+            DeltaUpdate.endReading(inputFile);
+        }
+    }
+
+    /**
+     * Encrypts a stream of unknown length, e.g. standard input, in constant memory. The output has
+     * the same layout as an encrypted file, without a metadata block since nothing is known about
+     * the content until it has been written.
+     *
+     * @return the number of plaintext bytes encrypted
+     */
+    public static long encryptStream(InputStream in, OutputStream out, SecretKey key) throws Exception {
+        FileHeader header = FileHeader.chunked(CipherBenchmark.preferredSuite(), EngineSettings.current().getChunkSize());
+        return StreamPipeline.encrypt(in, out, new ChunkCodec(header, key));
+    }
 
-        byte[] encryptedBytes = cipher.doFinal(fileBytes);
+    /**
+     * Decrypts a chunked file read from a stream; see {@link StreamPipeline} for what is written
+     * before a damaged stream is detected. Older single-message files need {@link #decryptFile}.
+     *
+     * @return the number of plaintext bytes written
+     */
+    public static long decryptStream(InputStream in, OutputStream out, SecretKey key) throws Exception {
+        FileHeader header = FileHeader.read(in, new byte[FileHeader.PREFIX_LENGTH]);
+        if (header == null || !header.isChunked()) {
+            throw new IOException("Only chunked files can be decrypted from a stream; decrypt this one as a file");
+        }
+        return StreamPipeline.decrypt(in, out, new ChunkCodec(header, key));
+    }
 
-        // Calculate SHA-256 checksum of the original file
+    /**
+     * Reads the header of an encrypted file, or returns null for the legacy layout.
+     */
+    public static FileHeader readHeader(Path inputFile) throws IOException {
+        try (InputStream in = Files.newInputStream(inputFile)) {
+            return FileHeader.read(in, new byte[FileHeader.PREFIX_LENGTH]);
+        }
+    }
+
+    public static void encryptDirectory(Path inputDir, Path outputFile, SecretKey key) throws Exception {
+        byte[] zipBytes = zipDirectory(inputDir);
+
+        // Chunked, so single members can be read back without decrypting the whole archive
+        FileHeader header = FileMetadata.forDirectory(inputDir)
+                .attachTo(FileHeader.chunked(CipherBenchmark.preferredSuite(), EngineSettings.current().getChunkSize()), key);
+        try {
+            writeChunked(zipBytes, outputFile, new ChunkCodec(header, key));
+        } finally {
+            Arrays.fill(zipBytes, (byte) 0);
+        }
+        updateIndex(() -> VaultIndex.recordDirectory(outputFile, inputDir, key));
+    }
+
+    /**
+     * Writes {@code data} as a chunked file, the checksum trailer going into the final chunk.
+     */
+    private static void writeChunked(byte[] data, Path outputFile, ChunkCodec codec) throws Exception {
+        int chunkSize = codec.getChunkSize();
+        long fullChunks = codec.fullChunkCount(data.length);
+        RunningHash digest = RunningHash.create(codec.getHeader());
+        ByteBuffer stored = ByteBuffer.allocate(ChunkCodec.finalChunkLength(chunkSize));
+        ByteBuffer tail = null;
+        try (OutputStream out = Files.newOutputStream(outputFile)) {
+            out.write(codec.getHeader().toBytes());
+            for (long i = 0; i <= fullChunks; i++) {
+                boolean last = i == fullChunks;
+                int offset = (int) (i * chunkSize);
+                int length = last ? data.length - offset : chunkSize;
+                ByteBuffer plain = ByteBuffer.wrap(data, offset, length);
+                digest.update(plain.duplicate());
+                if (last) {
+                    tail = ByteBuffer.allocate(length + ChunkCodec.TRAILER_LENGTH);
+                    tail.put(plain).put(digest.digest()).flip();
+                    plain = tail;
+                }
+                stored.clear();
+                codec.seal(i, last, plain, stored);
+                out.write(stored.array(), 0, stored.position());
+            }
+        } finally {
+            if (tail != null) {
+                Arrays.fill(tail.array(), (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Encrypts a file into volumes of at most {@code volumeSize} bytes spread over
+     * {@code targetDirs}; see {@link VolumeSet}.
+     *
+     * @return the volumes, in order
+     */
+    public static List<Path> encryptFile(Path inputFile, Path outputFile, SecretKey key, long volumeSize, List<Path> targetDirs) throws Exception {
+        return VolumeSet.encryptFile(inputFile, outputFile, volumeSize, targetDirs, key);
+    }
+
+    /**
+     * Encrypts a directory into volumes of at most {@code volumeSize} bytes spread over
+     * {@code targetDirs}; see {@link VolumeSet}.
+     *
+     * @return the volumes, in order
+     */
+    public static List<Path> encryptDirectory(Path inputDir, Path outputFile, SecretKey key, long volumeSize, List<Path> targetDirs) throws Exception {
+        byte[] zipBytes = zipDirectory(inputDir);
+        try {
+            return VolumeSet.encryptBytes(zipBytes, outputFile, volumeSize, targetDirs, key);
+        } finally {
+            Arrays.fill(zipBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Restores a file or directory from the volume set described by {@code manifestFile}.
+     *
+     * @param searchDirs where to look for volumes besides the manifest's directory
+     */
+    public static void decryptVolumes(Path manifestFile, Path output, SecretKey key, List<Path> searchDirs) throws Exception {
+        if (VolumeSet.kindOf(manifestFile, key) == VolumeSet.KIND_DIRECTORY) {
+            byte[] zipBytes = VolumeSet.decryptBytes(manifestFile, key, searchDirs);
+            try (GroupCommit batch = GroupCommit.begin(output, key)) {
+                unzipToDirectory(zipBytes, output, batch);
+                batch.commit();
+            } finally {
+                Arrays.fill(zipBytes, (byte) 0);
+            }
+        } else {
+            VolumeSet.decryptFile(manifestFile, output, key, searchDirs);
+        }
+    }
+
+    interface IndexUpdate {
+        void run() throws Exception;
+    }
+
+    /**
+     * Routes warnings about work that failed without failing the operation, such as an index
+     * update, to the application log. They go to standard error until this is called.
+     */
+    public static void setWarningListener(Consumer<String> listener) {
+        warnings = listener;
+    }
+
+    /**
+     * Records new output in the vault index. The index is rebuilt from the containers on the next
+     * search if this fails, so a failure here must not fail the encryption itself; it is only
+     * reported as a warning.
+     */
+    static void updateIndex(IndexUpdate update) {
+        try {
+            update.run();
+        } catch (Exception e) {
+            warnings.accept("Vault index not updated, it will be rebuilt on the next search: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encrypts {@code plaintext} into the header | nonce | checksum | ciphertext layout.
+     * The header is bound to the ciphertext as associated data.
+     */
+    static byte[] seal(byte[] plaintext, SecretKey key, CipherSuite suite) throws Exception {
+        byte[] header = new FileHeader(FileHeader.VERSION_SINGLE_SHOT, suite).toBytes();
+
+        SecureRandom random = new SecureRandom();
+        byte[] nonce = new byte[CipherSuite.NONCE_LENGTH];
+        random.nextBytes(nonce);
+
+        Cipher cipher = suite.newCipher(Cipher.ENCRYPT_MODE, key, nonce);
+        cipher.updateAAD(header);
+        byte[] encryptedBytes = cipher.doFinal(plaintext);
+
+        // Calculate SHA-256 checksum of the plaintext
         MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] checksum = digest.digest(fileBytes);
+        byte[] checksum = digest.digest(plaintext);
 
-        // Combine IV, checksum, and encrypted data for storage
-        ByteBuffer byteBuffer = ByteBuffer.allocate(iv.length + 32 + encryptedBytes.length);
-        byteBuffer.put(iv);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(header.length + nonce.length + CHECKSUM_LENGTH + encryptedBytes.length);
+        byteBuffer.put(header);
+        byteBuffer.put(nonce);
         byteBuffer.put(checksum);
         byteBuffer.put(encryptedBytes);
-
-        Files.write(outputFile, byteBuffer.array());
+        return byteBuffer.array();
     }
 
-    public static void decryptFile(Path inputFile, Path outputFile, SecretKey key) throws Exception {
-        byte[] fileBytes = Files.readAllBytes(inputFile);
+    /**
+     * Decrypts and verifies a file produced by {@link #seal} or by the legacy AES-GCM writer.
+     */
+    static byte[] open(byte[] fileBytes, SecretKey key) throws Exception {
+        FileHeader header = FileHeader.parse(fileBytes);
 
         ByteBuffer byteBuffer = ByteBuffer.wrap(fileBytes);
-        byte[] iv = new byte[IV_LENGTH];
-        byteBuffer.get(iv);
-
-        byte[] storedChecksum = new byte[32];
-        byteBuffer.get(storedChecksum);
+        Cipher cipher;
+        byte[] storedChecksum = new byte[CHECKSUM_LENGTH];
+        if (header == null) {
+            byte[] iv = new byte[IV_LENGTH];
+            byteBuffer.get(iv);
+            byteBuffer.get(storedChecksum);
+
+            cipher = Cipher.getInstance(LEGACY_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH, iv));
+        } else {
+            if (header.isChunked()) {
+                throw new IOException("Chunked files must be decrypted with decryptFile");
+            }
+            byte[] headerBytes = new byte[header.getLength()];
+            byteBuffer.get(headerBytes);
+            byte[] nonce = new byte[CipherSuite.NONCE_LENGTH];
+            byteBuffer.get(nonce);
+            byteBuffer.get(storedChecksum);
+
+            cipher = header.getSuite().newCipher(Cipher.DECRYPT_MODE, key, nonce);
+            cipher.updateAAD(headerBytes);
+        }
 
         byte[] encryptedBytes = new byte[byteBuffer.remaining()];
         byteBuffer.get(encryptedBytes);
-
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        GCMParameterSpec parameterSpec = new GCMParameterSpec(TAG_LENGTH, iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, parameterSpec);
-
         byte[] decryptedBytes = cipher.doFinal(encryptedBytes);
 
         // Verify checksum
@@ -74,43 +331,259 @@ public class CryptoEngine {
         if (!Arrays.equals(storedChecksum, calculatedChecksum)) {
             throw new SecurityException("Checksum verification failed. File may be corrupted or tampered with.");
         }
+        return decryptedBytes;
+    }
 
-        Files.write(outputFile, decryptedBytes);
+    /**
+     * Authenticates an encrypted file and checks its checksum without keeping the plaintext.
+     * Memory use is bounded by the read buffer regardless of file size.
+     *
+     * @return the plaintext length
+     */
+    public static long verifyFile(Path inputFile, SecretKey key) throws Exception {
+        return verifyFile(inputFile, key, 1);
     }
 
-    public static void encryptDirectory(Path inputDir, Path outputFile, SecretKey key) throws Exception {
-        // Create ZIP archive of the directory in memory
-        ByteArrayOutputStream zipBuffer = new ByteArrayOutputStream();
-        try (ZipOutputStream zos = new ZipOutputStream(zipBuffer)) {
-            zipDirectory(inputDir, inputDir, zos);
+    /**
+     * Like {@link #verifyFile(Path, SecretKey)}, spreading the chunks of a file with a hash-tree
+     * trailer over {@code threads} threads; a damaged file is reported with every damaged chunk.
+     */
+    public static long verifyFile(Path inputFile, SecretKey key, int threads) throws Exception {
+        DeltaUpdate.startReading(inputFile, key);
+        try (InputStream in = Files.newInputStream(inputFile)) {
+            byte[] prefix = new byte[FileHeader.PREFIX_LENGTH];
+            FileHeader header = FileHeader.read(in, prefix);
+            if (header != null && header.hasMerkleTrailer()) {
+                return ChunkVerifier.verify(inputFile, header, key, threads);
+            }
+            if (header != null && header.isChunked()) {
+                return verifyChunked(in, new ChunkCodec(header, key), Files.size(inputFile));
+            }
+
+            CipherSuite suite;
+            byte[] associatedData;
+            byte[] nonce;
+            if (header == null) {
+                // Legacy files start directly with the IV, so the bytes read so far belong to it
+                suite = CipherSuite.AES_256_GCM;
+                associatedData = null;
+                nonce = concat(prefix, in.readNBytes(IV_LENGTH - prefix.length));
+            } else {
+                suite = header.getSuite();
+                associatedData = prefix;
+                nonce = in.readNBytes(CipherSuite.NONCE_LENGTH);
+            }
+            byte[] storedChecksum = in.readNBytes(CHECKSUM_LENGTH);
+            if (nonce.length != CipherSuite.NONCE_LENGTH || storedChecksum.length != CHECKSUM_LENGTH) {
+                throw new SecurityException("File is truncated.");
+            }
+
+            AEADCipher cipher = suite.newStreamingDecryptor(key, nonce, associatedData);
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[VERIFY_BUFFER_SIZE];
+            // Each update may also release bytes the cipher held back from the previous call
+            byte[] plain = new byte[buffer.length + 128];
+            long plaintextLength = 0;
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                int produced = cipher.processBytes(buffer, 0, read, plain, 0);
+                digest.update(plain, 0, produced);
+                plaintextLength += produced;
+            }
+            try {
+                int produced = cipher.doFinal(plain, 0);
+                digest.update(plain, 0, produced);
+                plaintextLength += produced;
+            } catch (InvalidCipherTextException e) {
+                throw new SecurityException("Authentication failed. Wrong password, or file is corrupted or tampered with.");
+            } finally {
+                Arrays.fill(plain, (byte) 0);
+            }
+
+            if (!MessageDigest.isEqual(storedChecksum, digest.digest())) {
+                throw new SecurityException("Checksum verification failed. File may be corrupted or tampered with.");
+            }
+            return plaintextLength;
+        } finally {
+            DeltaUpdate.endReading(inputFile);
         }
-        byte[] zipBytes = zipBuffer.toByteArray();
+    }
 
-        // Encrypt the ZIP archive
-        SecureRandom random = new SecureRandom();
-        byte[] iv = new byte[IV_LENGTH];
-        random.nextBytes(iv);
+    private static long verifyChunked(InputStream in, ChunkCodec codec, long storedSize) throws Exception {
+        return streamChunks(in, codec, storedSize, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Decrypts at most {@code maxBytes} of plaintext from the start of an encrypted file into memory.
+     * Chunked files only touch the chunks needed; every returned byte has been authenticated,
+     * and the whole-file checksum is also checked when the head reaches the end of the file.
+     * Older single-shot files have to be decrypted whole, so they are capped at {@link #MAX_IN_MEMORY_SIZE}.
+     */
+    public static byte[] decryptHead(Path inputFile, SecretKey key, int maxBytes) throws Exception {
+        DeltaUpdate.startReading(inputFile, key);
+        try {
+            FileHeader header = readHeader(inputFile);
+            if (header != null && header.isChunked()) {
+                ByteArrayOutputStream head = new ByteArrayOutputStream(Math.min(maxBytes, header.getChunkSize()));
+                try (InputStream in = Files.newInputStream(inputFile)) {
+                    in.skipNBytes(header.getLength());
+                    streamChunks(in, new ChunkCodec(header, key), Files.size(inputFile), maxBytes, head);
+                }
+                return head.toByteArray();
+            }
+            if (Files.size(inputFile) > MAX_IN_MEMORY_SIZE) {
+                throw new IOException("File is too large to decrypt into memory: " + inputFile.getFileName());
+            }
+            byte[] plaintext = open(Files.readAllBytes(inputFile), key);
+            if (plaintext.length <= maxBytes) {
+                return plaintext;
+            }
+            byte[] head = Arrays.copyOf(plaintext, maxBytes);
+            Arrays.fill(plaintext, (byte) 0);
+            return head;
+        } finally {
+            DeltaUpdate.endReading(inputFile);
+        }
+    }
 
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        GCMParameterSpec parameterSpec = new GCMParameterSpec(TAG_LENGTH, iv);
-        cipher.init(Cipher.ENCRYPT_MODE, key, parameterSpec);
+    /**
+     * Decrypts chunks in order, passing up to {@code limit} plaintext bytes to {@code sink} (if any).
+     *
+     * @return the number of plaintext bytes authenticated
+     */
+    private static long streamChunks(InputStream in, ChunkCodec codec, long storedSize, long limit,
+                                     ByteArrayOutputStream sink) throws Exception {
+        int chunkSize = codec.getChunkSize();
+        long fullChunks = codec.fullChunkCountForStoredSize(storedSize);
+        RunningHash digest = RunningHash.create(codec.getHeader());
+        byte[] stored = new byte[ChunkCodec.finalChunkLength(chunkSize)];
+        ByteBuffer plain = ByteBuffer.allocate(chunkSize + ChunkCodec.TRAILER_LENGTH);
+        long plaintextLength = 0;
+
+        try {
+            for (long i = 0; i <= fullChunks && plaintextLength < limit; i++) {
+                boolean last = i == fullChunks;
+                int length = last ? (int) (storedSize - codec.chunkOffset(i)) : chunkSize + ChunkCodec.OVERHEAD;
+                if (in.readNBytes(stored, 0, length) != length) {
+                    throw new SecurityException("File is truncated.");
+                }
+                plain.clear();
+                codec.open(i, last, ByteBuffer.wrap(stored, 0, length), plain);
+                plain.flip();
+                if (last) {
+                    byte[] storedChecksum = new byte[ChunkCodec.TRAILER_LENGTH];
+                    plain.get(plain.limit() - ChunkCodec.TRAILER_LENGTH, storedChecksum);
+                    plain.limit(plain.limit() - ChunkCodec.TRAILER_LENGTH);
+                    digest.update(plain.duplicate());
+                    if (!MessageDigest.isEqual(storedChecksum, digest.digest())) {
+                        throw new SecurityException("Checksum verification failed. File may be corrupted or tampered with.");
+                    }
+                } else {
+                    digest.update(plain.duplicate());
+                }
+                if (sink != null) {
+                    sink.write(plain.array(), 0, (int) Math.min(plain.limit(), limit - plaintextLength));
+                }
+                plaintextLength += plain.limit();
+            }
+        } finally {
+            Arrays.fill(plain.array(), (byte) 0);
+        }
+        return Math.min(plaintextLength, limit);
+    }
 
-        byte[] encryptedBytes = cipher.doFinal(zipBytes);
+    /**
+     * Lists the entries of an encrypted directory archive without extracting them.
+     */
+    public static List<ArchiveEntry> listDirectory(Path inputFile, SecretKey key) throws Exception {
+        FileHeader header = readHeader(inputFile);
+        if (header != null && header.isChunked()) {
+            // Only the chunks holding the central directory are decrypted
+            try (EncryptedArchive archive = EncryptedArchive.open(inputFile, key)) {
+                List<ArchiveEntry> entries = new ArrayList<>();
+                for (EncryptedArchive.Entry entry : archive.entries()) {
+                    entries.add(new ArchiveEntry(entry.getName(), entry.isDirectory(), entry.getSize(), entry.getModifiedTime()));
+                }
+                return entries;
+            }
+        }
+        if (Files.size(inputFile) > MAX_IN_MEMORY_SIZE) {
+            throw new IOException("Archive is too large to list in memory: " + inputFile.getFileName());
+        }
+        byte[] zipData = open(Files.readAllBytes(inputFile), key);
+        List<ArchiveEntry> entries = new ArrayList<>();
+        Map<String, Long> sizes = new HashMap<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipData))) {
+            ZipEntry entry;
+            byte[] skip = new byte[8192];
+            while ((entry = zis.getNextEntry()) != null) {
+                long size = 0;
+                int read;
+                while ((read = zis.read(skip)) > 0) {
+                    size += read;
+                }
+                String original = referencedName(entry);
+                if (original != null) {
+                    size = sizes.getOrDefault(original, 0L);
+                } else {
+                    sizes.put(entry.getName(), size);
+                }
+                entries.add(new ArchiveEntry(entry.getName(), entry.isDirectory(), size, entry.getTime()));
+                zis.closeEntry();
+            }
+        } finally {
+            Arrays.fill(zipData, (byte) 0);
+        }
+        return entries;
+    }
 
-        // Calculate SHA-256 checksum of the original ZIP data
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] checksum = digest.digest(zipBytes);
+    public static class ArchiveEntry {
+        private final String name;
+        private final boolean directory;
+        private final long size;
+        private final long modifiedTime;
+
+        public ArchiveEntry(String name, boolean directory, long size, long modifiedTime) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+        }
 
-        // Combine IV, checksum, and encrypted data for storage
-        ByteBuffer byteBuffer = ByteBuffer.allocate(iv.length + 32 + encryptedBytes.length);
-        byteBuffer.put(iv);
-        byteBuffer.put(checksum);
-        byteBuffer.put(encryptedBytes);
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+    }
 
-        Files.write(outputFile, byteBuffer.array());
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
     }
 
-    private static void zipDirectory(Path rootDir, Path currentDir, ZipOutputStream zos) throws IOException {
+    private static byte[] zipDirectory(Path inputDir) throws Exception {
+        // Create ZIP archive of the directory in memory
+        ByteArrayOutputStream zipBuffer = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(zipBuffer)) {
+            zos.setLevel(EngineSettings.current().getCompressionLevel());
+            zipDirectory(inputDir, inputDir, zos, new Dedup(inputDir));
+        }
+        return zipBuffer.toByteArray();
+    }
+
+    private static void zipDirectory(Path rootDir, Path currentDir, ZipOutputStream zos, Dedup dedup) throws Exception {
         try (var stream = Files.list(currentDir)) {
             for (Path path : stream.toList()) {
                 String relativePath = rootDir.relativize(path).toString();
@@ -119,51 +592,133 @@ public class CryptoEngine {
                     zos.putNextEntry(new ZipEntry(relativePath + "/"));
                     zos.closeEntry();
                     // Recursively process subdirectory
-                    zipDirectory(rootDir, path, zos);
+                    zipDirectory(rootDir, path, zos, dedup);
                 } else {
-                    // Add file entry
-                    zos.putNextEntry(new ZipEntry(relativePath));
-                    Files.copy(path, zos);
+                    ZipEntry entry = new ZipEntry(relativePath);
+                    String original = dedup.originalOf(path, relativePath);
+                    if (original != null) {
+                        // Same content already stored: record where to copy it from instead
+                        entry.setExtra(referenceExtra(original));
+                        zos.putNextEntry(entry);
+                    } else {
+                        zos.putNextEntry(entry);
+                        Files.copy(path, zos);
+                    }
                     zos.closeEntry();
                 }
             }
         }
     }
 
-    public static void decryptDirectory(Path inputFile, Path outputDir, SecretKey key) throws Exception {
-        byte[] fileBytes = Files.readAllBytes(inputFile);
-
-        ByteBuffer byteBuffer = ByteBuffer.wrap(fileBytes);
-        byte[] iv = new byte[IV_LENGTH];
-        byteBuffer.get(iv);
-
-        byte[] storedChecksum = new byte[32];
-        byteBuffer.get(storedChecksum);
+    /**
+     * Finds files whose content was already added to the archive. Only files that share their size
+     * with another file are hashed, so trees without duplicates are read once as before.
+     */
+    private static final class Dedup {
+        private final Set<Long> sharedSizes = new HashSet<>();
+        private final Map<String, String> firstByHash = new HashMap<>();
+
+        Dedup(Path rootDir) throws IOException {
+            Set<Long> seen = new HashSet<>();
+            try (var stream = Files.walk(rootDir)) {
+                for (Path file : stream.filter(Files::isRegularFile).toList()) {
+                    long size = Files.size(file);
+                    // An empty file is as small as a reference to one
+                    if (size > 0 && !seen.add(size)) {
+                        sharedSizes.add(size);
+                    }
+                }
+            }
+        }
 
-        byte[] encryptedBytes = new byte[byteBuffer.remaining()];
-        byteBuffer.get(encryptedBytes);
+        /**
+         * Returns the entry name that already holds the content of {@code file}, or null after
+         * remembering {@code name} as its first occurrence.
+         */
+        String originalOf(Path file, String name) throws Exception {
+            if (!sharedSizes.contains(Files.size(file))) {
+                return null;
+            }
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            String hash = HexFormat.of().formatHex(digest.digest()) + ":" + Files.size(file);
+            return firstByHash.putIfAbsent(hash, name);
+        }
+    }
 
-        Cipher cipher = Cipher.getInstance(ALGORITHM);
-        GCMParameterSpec parameterSpec = new GCMParameterSpec(TAG_LENGTH, iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, parameterSpec);
+    private static byte[] referenceExtra(String original) {
+        byte[] name = original.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer extra = ByteBuffer.allocate(4 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        extra.putShort(DUPLICATE_EXTRA_ID).putShort((short) name.length).put(name);
+        return extra.array();
+    }
 
-        byte[] decryptedBytes = cipher.doFinal(encryptedBytes);
+    /**
+     * Returns the entry a duplicate refers to, or null for an entry that holds its own content.
+     */
+    static String referencedName(ZipEntry entry) {
+        byte[] extra = entry.getExtra();
+        if (extra == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.remaining() >= 4) {
+            short id = buffer.getShort();
+            int length = buffer.getShort() & 0xFFFF;
+            if (length > buffer.remaining()) {
+                return null;
+            }
+            if (id == DUPLICATE_EXTRA_ID) {
+                return new String(extra, buffer.position(), length, StandardCharsets.UTF_8);
+            }
+            buffer.position(buffer.position() + length);
+        }
+        return null;
+    }
 
-        // Verify checksum
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] calculatedChecksum = digest.digest(decryptedBytes);
+    /**
+     * Extracts a directory archive below {@code outputDir}. The files are written as one
+     * {@link GroupCommit} batch, so they become durable with a single round of syncs.
+     */
+    public static void decryptDirectory(Path inputFile, Path outputDir, SecretKey key) throws Exception {
+        byte[] decryptedBytes = openArchive(inputFile, key);
 
-        if (!Arrays.equals(storedChecksum, calculatedChecksum)) {
-            throw new SecurityException("Checksum verification failed. File may be corrupted or tampered with.");
+        // Extract the ZIP archive
+        try (GroupCommit batch = GroupCommit.begin(outputDir, key)) {
+            unzipToDirectory(decryptedBytes, outputDir, batch);
+            batch.commit();
+        } finally {
+            Arrays.fill(decryptedBytes, (byte) 0);
         }
+    }
 
-        // Extract the ZIP archive
-        unzipToDirectory(decryptedBytes, outputDir);
+    /**
+     * Decrypts a whole directory archive, either layout, authenticating it before anything is extracted.
+     */
+    private static byte[] openArchive(Path inputFile, SecretKey key) throws Exception {
+        FileHeader header = readHeader(inputFile);
+        if (header == null || !header.isChunked()) {
+            return open(Files.readAllBytes(inputFile), key);
+        }
+        ChunkCodec codec = new ChunkCodec(header, key);
+        long storedSize = Files.size(inputFile);
+        if (codec.plaintextSizeForStoredSize(storedSize) > Integer.MAX_VALUE - 8) {
+            throw new IOException("Directory archive is too large to extract in memory");
+        }
+        ByteArrayOutputStream zipData = new ByteArrayOutputStream((int) codec.plaintextSizeForStoredSize(storedSize));
+        try (InputStream in = Files.newInputStream(inputFile)) {
+            in.skipNBytes(header.getLength());
+            streamChunks(in, codec, storedSize, Long.MAX_VALUE, zipData);
+        }
+        return zipData.toByteArray();
     }
 
-    private static void unzipToDirectory(byte[] zipData, Path outputDir) throws IOException {
+    private static void unzipToDirectory(byte[] zipData, Path outputDir, GroupCommit batch) throws IOException {
         // Normalize outputDir to ensure consistent path comparison
         Path normalizedOutputDir = outputDir.toAbsolutePath().normalize();
+        Map<String, Path> extracted = new HashMap<>();
         try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipData))) {
             ZipEntry entry;
             while ((entry = zis.getNextEntry()) != null) {
@@ -177,8 +732,20 @@ public class CryptoEngine {
                 } else {
                     // Ensure parent directories exist
                     Files.createDirectories(targetPath.getParent());
-                    // Use REPLACE_EXISTING to handle overwrites explicitly
-                    Files.copy(zis, targetPath, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                    String original = referencedName(entry);
+                    if (original != null) {
+                        // Only an earlier file of this archive can be referenced, never anything else on disk
+                        Path source = extracted.get(original);
+                        if (source == null) {
+                            throw new IOException("Entry refers to a missing entry: " + entry.getName());
+                        }
+                        Files.copy(source, batch.stage(targetPath), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                    } else {
+                        // Use REPLACE_EXISTING to handle overwrites explicitly
+                        Path staged = batch.stage(targetPath);
+                        Files.copy(zis, staged, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                        extracted.put(entry.getName(), staged);
+                    }
                 }
                 zis.closeEntry();
             }
@@ -0,0 +1,593 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Brings an existing chunked file up to date with a changed input by re-encrypting only the
+ * chunks whose plaintext changed, each with a fresh nonce.
+ *
+ * <p>Changed chunks are compared through a chunk table, {@code <file>.chunks}: a keyed hash of
+ * every chunk's plaintext, MAC'ed and tied to the file by its header and whole-plaintext checksum.
+ * Without a valid table the old chunks are decrypted and compared instead, and a table is written
+ * for next time. The final chunk carries the checksum of the whole plaintext, so it is always rewritten.</p>
+ *
+ * <p>The new chunks and table first go to a redo journal, {@code <file>.journal}, which is forced
+ * to disk and sealed with a key-derived MAC before the file is touched. A crash while applying it is repaired
+ * by the next update of the file replaying the journal. Only updates recover, under a per-file lock;
+ * readers share that lock and refuse a file with a sealed journal, whose chunks may be half written.</p>
+ */
+public class DeltaUpdate {
+
+    public static final String TABLE_SUFFIX = ".chunks";
+    public static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final byte[] TABLE_MAGIC = "SVCT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JOURNAL_MAGIC = "SVDJ".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    // Version 1 journals were sealed with a plain digest and are discarded unapplied
+    private static final int JOURNAL_VERSION = 2;
+    private static final int HASH_LENGTH = 32;
+    private static final int MAC_LENGTH = 32;
+
+    private static final ConcurrentHashMap<Path, ReentrantReadWriteLock> LOCKS = new ConcurrentHashMap<>();
+
+    /**
+     * Rewrites the chunks of {@code encryptedFile} that differ from {@code inputFile}.
+     *
+     * @return the number of chunks written, the final chunk included
+     */
+    public static long update(Path inputFile, Path encryptedFile, SecretKey key) throws Exception {
+        Lock lock = lockFor(encryptedFile).writeLock();
+        lock.lock();
+        long written;
+        try {
+            recover(encryptedFile, key);
+            written = stage(inputFile, encryptedFile, key);
+            recover(encryptedFile, key);
+        } finally {
+            lock.unlock();
+        }
+        CryptoEngine.updateIndex(() -> VaultIndex.recordFile(encryptedFile, inputFile, key));
+        return written;
+    }
+
+    /**
+     * Takes a read lock on {@code encryptedFile}, so no update of it runs until {@link #endReading}.
+     *
+     * @throws IOException if an update of the file under {@code key} was interrupted; journals that
+     *                     were never sealed, or are sealed under another key, leave the file as it was
+     */
+    public static void startReading(Path encryptedFile, SecretKey key) throws Exception {
+        Lock lock = lockFor(encryptedFile).readLock();
+        lock.lock();
+        try {
+            Path journalFile = sibling(encryptedFile, JOURNAL_SUFFIX);
+            if (Files.exists(journalFile)
+                    && Journal.state(journalFile, CryptoEngine.readHeader(encryptedFile), key) == Journal.State.SEALED) {
+                throw new IOException(encryptedFile.getFileName() + " has an unfinished update; update it again to finish it.");
+            }
+        } catch (Exception e) {
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    public static void endReading(Path encryptedFile) {
+        lockFor(encryptedFile).readLock().unlock();
+    }
+
+    /**
+     * Writes and seals the journal that brings {@code encryptedFile} up to date, without touching
+     * the file itself; {@link #recover} applies it.
+     *
+     * @return the number of chunks in the journal
+     */
+    static long stage(Path inputFile, Path encryptedFile, SecretKey key) throws Exception {
+        FileHeader header = CryptoEngine.readHeader(encryptedFile);
+        if (header == null || !header.isChunked()) {
+            throw new IOException("Only chunked files can be updated in place: " + encryptedFile.getFileName());
+        }
+        ChunkCodec codec = new ChunkCodec(header, key);
+        int chunkSize = codec.getChunkSize();
+        Mac chunkMac = chunkMac(key);
+        Path tableFile = sibling(encryptedFile, TABLE_SUFFIX);
+        Path journalFile = sibling(encryptedFile, JOURNAL_SUFFIX);
+
+        long inputSize = Files.size(inputFile);
+        long fullChunks = codec.fullChunkCount(inputSize);
+        byte[][] newTable = new byte[(int) fullChunks][];
+        RunningHash plaintextDigest = RunningHash.create(header);
+        ByteBuffer plain = ByteBuffer.allocate(chunkSize + ChunkCodec.TRAILER_LENGTH);
+        ByteBuffer sealed = ByteBuffer.allocate(ChunkCodec.finalChunkLength(chunkSize));
+        ByteBuffer oldPlain = ByteBuffer.allocate(chunkSize + ChunkCodec.TRAILER_LENGTH);
+        long written = 0;
+
+        try (FileChannel file = FileChannel.open(encryptedFile, StandardOpenOption.READ);
+             InputStream in = new BufferedInputStream(Files.newInputStream(inputFile), chunkSize);
+             Journal journal = new Journal(journalFile, header, key)) {
+            long oldFullChunks = codec.fullChunkCountForStoredSize(file.size());
+            // Fails under the wrong key, which must not seal a journal over the file
+            byte[] oldChecksum = readTrailer(codec, file);
+            byte[][] oldTable = loadTable(tableFile, codec, file, oldChecksum, key);
+
+            for (long i = 0; i < fullChunks; i++) {
+                plain.clear();
+                readChunk(in, plain.array(), chunkSize);
+                plain.limit(chunkSize);
+                plaintextDigest.update(ByteBuffer.wrap(plain.array(), 0, chunkSize));
+                byte[] hash = chunkMac.doFinal(Arrays.copyOf(plain.array(), chunkSize));
+                newTable[(int) i] = hash;
+
+                // A chunk that used to be the final one is bound as final, so it must be rewritten
+                if (i < oldFullChunks) {
+                    boolean same = oldTable != null
+                            ? MessageDigest.isEqual(oldTable[(int) i], hash)
+                            : sameAsStored(codec, file, i, plain, oldPlain);
+                    if (same) {
+                        continue;
+                    }
+                }
+                sealed.clear();
+                codec.seal(i, false, plain, sealed);
+                sealed.flip();
+                journal.add(codec.chunkOffset(i), sealed);
+                written++;
+            }
+
+            int tail = (int) (inputSize - fullChunks * chunkSize);
+            plain.clear();
+            readChunk(in, plain.array(), tail);
+            plaintextDigest.update(ByteBuffer.wrap(plain.array(), 0, tail));
+            byte[] checksum = plaintextDigest.digest();
+            plain.position(tail);
+            plain.put(checksum);
+            plain.flip();
+            sealed.clear();
+            codec.seal(fullChunks, true, plain, sealed);
+            sealed.flip();
+            journal.add(codec.chunkOffset(fullChunks), sealed);
+            written++;
+            if (header.hasMetadata()) {
+                // The chunks do not bind the block, so it is resealed for the new plaintext in place
+                byte[] block = new FileMetadata.Reader(key).seal(header, FileMetadata.forFile(inputFile));
+                journal.add(header.getMetadataOffset(), ByteBuffer.wrap(block));
+            }
+            Arrays.fill(plain.array(), (byte) 0);
+            Arrays.fill(oldPlain.array(), (byte) 0);
+
+            journal.commit(codec.chunkOffset(fullChunks) + ChunkCodec.finalChunkLength(tail),
+                    tableBytes(header, checksum, newTable, key));
+        }
+        return written;
+    }
+
+    /**
+     * Deletes the chunk table and any journal of {@code encryptedFile}, once it has been replaced
+     * by a new container they do not describe.
+     */
+    public static void discard(Path encryptedFile) throws IOException {
+        Lock lock = lockFor(encryptedFile).writeLock();
+        lock.lock();
+        try {
+            Files.deleteIfExists(sibling(encryptedFile, JOURNAL_SUFFIX));
+            Files.deleteIfExists(sibling(encryptedFile, TABLE_SUFFIX));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finishes applying a journal sealed under {@code key} that a crash left behind, or discards one
+     * that was never sealed or was written for a container that has since been replaced. The
+     * caller holds the file's write lock.
+     *
+     * @throws SecurityException if the journal was started under another key
+     * @throws IOException if a sealed journal does not fit the container
+     */
+    static void recover(Path encryptedFile, SecretKey key) throws Exception {
+        Path journalFile = sibling(encryptedFile, JOURNAL_SUFFIX);
+        if (!Files.exists(journalFile)) {
+            return;
+        }
+        FileHeader header = CryptoEngine.readHeader(encryptedFile);
+        switch (Journal.state(journalFile, header, key)) {
+            case NONE:
+                return;
+            case FOREIGN:
+                throw new SecurityException("An unfinished update of " + encryptedFile.getFileName()
+                        + " was started with another password.");
+            case SEALED:
+                break;
+            default:
+                // Nothing was written to the container before the journal was sealed
+                Files.delete(journalFile);
+                return;
+        }
+        ChunkCodec codec = new ChunkCodec(header, key);
+        // Everything is checked against the container before the first write
+        Journal.replay(journalFile, header, codec, null);
+
+        byte[] table;
+        try (FileChannel file = FileChannel.open(encryptedFile, StandardOpenOption.WRITE)) {
+            table = Journal.replay(journalFile, header, codec, file);
+            file.force(true);
+        }
+
+        Path tableFile = sibling(encryptedFile, TABLE_SUFFIX);
+        Path temp = sibling(encryptedFile, TABLE_SUFFIX + ".tmp");
+        Files.write(temp, table);
+        try {
+            Files.move(temp, tableFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, tableFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.delete(journalFile);
+    }
+
+    private static boolean sameAsStored(ChunkCodec codec, FileChannel file, long index, ByteBuffer plain,
+                                        ByteBuffer oldPlain) throws Exception {
+        int chunkSize = codec.getChunkSize();
+        ByteBuffer stored = ByteBuffer.allocate(chunkSize + ChunkCodec.OVERHEAD);
+        readFully(file, codec.chunkOffset(index), stored);
+        stored.flip();
+        oldPlain.clear();
+        codec.open(index, false, stored, oldPlain);
+        oldPlain.flip();
+        return oldPlain.equals(plain.duplicate());
+    }
+
+    /**
+     * Decrypts the final chunk and returns the whole-plaintext checksum it carries.
+     */
+    private static byte[] readTrailer(ChunkCodec codec, FileChannel file) throws Exception {
+        long fullChunks = codec.fullChunkCountForStoredSize(file.size());
+        long offset = codec.chunkOffset(fullChunks);
+        ByteBuffer stored = ByteBuffer.allocate((int) (file.size() - offset));
+        readFully(file, offset, stored);
+        stored.flip();
+        ByteBuffer plain = ByteBuffer.allocate(stored.remaining());
+        codec.open(fullChunks, true, stored, plain);
+        byte[] trailer = Arrays.copyOfRange(plain.array(), plain.position() - ChunkCodec.TRAILER_LENGTH, plain.position());
+        Arrays.fill(plain.array(), (byte) 0);
+        return trailer;
+    }
+
+    // ===== Chunk table =====
+
+    private static byte[] tableBytes(FileHeader header, byte[] checksum, byte[][] hashes, SecretKey key) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            byte[] headerBytes = header.fixedBytes();
+            out.write(TABLE_MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(headerBytes.length);
+            out.write(headerBytes);
+            out.write(checksum);
+            out.writeInt(hashes.length);
+            for (byte[] hash : hashes) {
+                out.write(hash);
+            }
+        }
+        byte[] body = bytes.toByteArray();
+        byte[] tag = tableMac(key).doFinal(body);
+        byte[] table = Arrays.copyOf(body, body.length + tag.length);
+        System.arraycopy(tag, 0, table, body.length, tag.length);
+        return table;
+    }
+
+    /**
+     * Returns the chunk hashes if the table belongs to exactly the file on disk, otherwise null.
+     */
+    private static byte[][] loadTable(Path tableFile, ChunkCodec codec, FileChannel file, byte[] storedChecksum,
+                                      SecretKey key) throws Exception {
+        if (!Files.exists(tableFile)) {
+            return null;
+        }
+        byte[] data = Files.readAllBytes(tableFile);
+        if (data.length < HASH_LENGTH) {
+            return null;
+        }
+        byte[] body = Arrays.copyOf(data, data.length - HASH_LENGTH);
+        byte[] tag = Arrays.copyOfRange(data, data.length - HASH_LENGTH, data.length);
+        if (!MessageDigest.isEqual(tag, tableMac(key).doFinal(body))) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+            if (!Arrays.equals(in.readNBytes(TABLE_MAGIC.length), TABLE_MAGIC) || in.readUnsignedByte() != VERSION) {
+                return null;
+            }
+            byte[] headerBytes = in.readNBytes(in.readUnsignedShort());
+            byte[] checksum = in.readNBytes(ChunkCodec.TRAILER_LENGTH);
+            // The table is only trusted for the exact plaintext the file holds now
+            if (!Arrays.equals(headerBytes, codec.getHeader().fixedBytes())
+                    || !MessageDigest.isEqual(checksum, storedChecksum)) {
+                return null;
+            }
+            int count = in.readInt();
+            if (count != codec.fullChunkCountForStoredSize(file.size())) {
+                return null;
+            }
+            byte[][] hashes = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                hashes[i] = in.readNBytes(HASH_LENGTH);
+            }
+            return hashes;
+        }
+    }
+
+    private static Mac chunkMac(SecretKey key) throws Exception {
+        return hmac(key, "securevault chunk hash v1");
+    }
+
+    private static Mac tableMac(SecretKey key) throws Exception {
+        return hmac(key, "securevault chunk table v1");
+    }
+
+    private static Mac journalMac(SecretKey key) throws Exception {
+        return hmac(key, "securevault delta journal v1");
+    }
+
+    private static Mac hmac(SecretKey key, String label) throws Exception {
+        byte[] macKey = KeyDerivation.deriveSubkey(key, label);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        Arrays.fill(macKey, (byte) 0);
+        return mac;
+    }
+
+    // ===== Helpers =====
+
+    private static void readChunk(InputStream in, byte[] buffer, int length) throws IOException {
+        if (in.readNBytes(buffer, 0, length) != length) {
+            throw new IOException("Input changed while it was being read");
+        }
+    }
+
+    private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static ReentrantReadWriteLock lockFor(Path file) {
+        return LOCKS.computeIfAbsent(file.toAbsolutePath().normalize(), f -> new ReentrantReadWriteLock());
+    }
+
+    private static Path sibling(Path file, String suffix) {
+        Path name = Paths.get(file.getFileName().toString() + suffix);
+        Path parent = file.toAbsolutePath().getParent();
+        return parent == null ? name : parent.resolve(name);
+    }
+
+    /**
+     * Redo log of {@code offset | chunk} writes, preceded by the fixed header of the container it
+     * belongs to and a key check, and closed by the new file size, the new chunk table and an HMAC
+     * over everything before it. The MAC is written last and forced, so a journal it verifies is
+     * complete and was written by someone holding the key.
+     */
+    private static final class Journal implements AutoCloseable {
+
+        enum State { NONE, INCOMPLETE, STALE, FOREIGN, SEALED }
+
+        private final Path path;
+        private final FileChannel channel;
+        private final Mac mac;
+        private final DataOutputStream out;
+        private final Path entriesFile;
+        private final DataOutputStream entries;
+        private int count;
+        private boolean committed;
+
+        Journal(Path path, FileHeader header, SecretKey key) throws Exception {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.mac = journalMac(key);
+            this.out = new DataOutputStream(new MacOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1024 * 1024), mac));
+            byte[] headerBytes = header.fixedBytes();
+            out.write(JOURNAL_MAGIC);
+            out.writeByte(JOURNAL_VERSION);
+            out.writeShort(headerBytes.length);
+            out.write(headerBytes);
+            out.write(keyCheck(headerBytes, key));
+            // Entries are spooled first because the count precedes them
+            this.entriesFile = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+            this.entries = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(entriesFile), 1024 * 1024));
+        }
+
+        void add(long offset, ByteBuffer chunk) throws IOException {
+            entries.writeLong(offset);
+            entries.writeInt(chunk.remaining());
+            entries.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+            count++;
+        }
+
+        void commit(long newSize, byte[] table) throws IOException {
+            entries.close();
+            out.writeLong(newSize);
+            out.writeInt(count);
+            Files.copy(entriesFile, out);
+            out.writeInt(table.length);
+            out.write(table);
+            out.flush();
+            channel.write(ByteBuffer.wrap(mac.doFinal()));
+            channel.force(true);
+            committed = true;
+        }
+
+        /**
+         * Tells what the journal at {@code path}, if any, means for the container with {@code header}:
+         * whether it is sealed under {@code key}, was never finished, was left by an update under
+         * another key, or was written for a container that has since been replaced.
+         */
+        static State state(Path path, FileHeader header, SecretKey key) throws Exception {
+            if (!Files.exists(path)) {
+                return State.NONE;
+            }
+            if (header == null || !header.isChunked()) {
+                return State.STALE;
+            }
+            byte[] headerBytes = header.fixedBytes();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                // An unfinished journal may not even hold its prefix yet
+                if (!Arrays.equals(in.readNBytes(JOURNAL_MAGIC.length), JOURNAL_MAGIC)
+                        || in.readUnsignedByte() != JOURNAL_VERSION) {
+                    return State.INCOMPLETE;
+                }
+                if (!Arrays.equals(in.readNBytes(in.readUnsignedShort()), headerBytes)) {
+                    return State.STALE;
+                }
+                if (!MessageDigest.isEqual(in.readNBytes(MAC_LENGTH), keyCheck(headerBytes, key))) {
+                    return State.FOREIGN;
+                }
+            } catch (EOFException e) {
+                return State.INCOMPLETE;
+            }
+            return isSealed(path, journalMac(key)) ? State.SEALED : State.INCOMPLETE;
+        }
+
+        private static boolean isSealed(Path path, Mac mac) throws IOException {
+            long size = Files.size(path);
+            if (size < MAC_LENGTH) {
+                return false;
+            }
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+                byte[] buffer = new byte[64 * 1024];
+                long remaining = size - MAC_LENGTH;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        return false;
+                    }
+                    mac.update(buffer, 0, read);
+                    remaining -= read;
+                }
+                return MessageDigest.isEqual(mac.doFinal(), in.readNBytes(MAC_LENGTH));
+            }
+        }
+
+        private static byte[] keyCheck(byte[] headerBytes, SecretKey key) throws Exception {
+            return hmac(key, "securevault delta journal key check v1").doFinal(headerBytes);
+        }
+
+        /**
+         * Reads a sealed journal of the container with {@code header} and checks every entry against
+         * it; with a {@code target}, also writes the entries to it and truncates it to the new size.
+         *
+         * @return the new chunk table
+         * @throws IOException if an entry does not fit the container
+         */
+        static byte[] replay(Path path, FileHeader header, ChunkCodec codec, FileChannel target) throws IOException {
+            long end = Files.size(path) - MAC_LENGTH;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                int prefixLength = JOURNAL_MAGIC.length + 1 + 2 + header.fixedBytes().length + MAC_LENGTH;
+                in.skipNBytes(prefixLength);
+                long newSize = in.readLong();
+                codec.fullChunkCountForStoredSize(newSize); // no container has any other size
+                int count = in.readInt();
+                long position = prefixLength + 8 + 4;
+                for (int i = 0; i < count; i++) {
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    position += 8 + 4 + (long) length;
+                    if (length < 0 || position > end || !fits(header, codec, newSize, offset, length)) {
+                        throw new IOException("Journal entry out of bounds at offset " + offset + ": " + path);
+                    }
+                    if (target == null) {
+                        in.skipNBytes(length);
+                        continue;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(in.readNBytes(length));
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer, offset + buffer.position());
+                    }
+                }
+                int tableLength = in.readInt();
+                if (tableLength < 0 || position + 4 + tableLength != end) {
+                    throw new IOException("Malformed journal: " + path);
+                }
+                byte[] table = in.readNBytes(tableLength);
+                if (target != null) {
+                    target.truncate(newSize);
+                }
+                return table;
+            }
+        }
+
+        /**
+         * True if the entry is the metadata block or one whole chunk slot within the new size.
+         */
+        private static boolean fits(FileHeader header, ChunkCodec codec, long newSize, long offset, int length) {
+            if (header.hasMetadata() && offset == header.getMetadataOffset()) {
+                return length == FileMetadata.BLOCK_LENGTH;
+            }
+            return offset >= header.getLength() && (offset - header.getLength()) % codec.stride() == 0
+                    && length <= ChunkCodec.finalChunkLength(codec.getChunkSize()) && offset + length <= newSize;
+        }
+
+        @Override
+        public void close() throws IOException {
+            entries.close();
+            Files.deleteIfExists(entriesFile);
+            channel.close();
+            if (!committed) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Feeds everything written through it to a MAC.
+     */
+    private static final class MacOutputStream extends FilterOutputStream {
+        private final Mac mac;
+
+        MacOutputStream(OutputStream out, Mac mac) {
+            super(out);
+            this.mac = mac;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mac.update((byte) b);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mac.update(b, off, len);
+            out.write(b, off, len);
+        }
+    }
+}
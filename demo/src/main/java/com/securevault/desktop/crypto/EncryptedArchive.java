@@ -0,0 +1,418 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.SecretKey;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Reads single members of an encrypted directory archive without extracting it.
+ *
+ * <p>Chunked archives are decrypted a chunk at a time, only where members are read, and the last
+ * {@link #CACHED_CHUNKS} decrypted chunks are kept so neighbouring reads do not decrypt them again.
+ * Every chunk is authenticated before any of it is returned, but the whole-archive checksum is not
+ * checked, since that would mean reading everything; use {@link CryptoEngine#verifyFile} for that.
+ * Older single-shot archives are decrypted into memory once, so they are capped at
+ * {@link CryptoEngine#MAX_IN_MEMORY_SIZE}.</p>
+ *
+ * <p>Instances are thread-safe; streams opened on one are not.</p>
+ */
+public final class EncryptedArchive implements Closeable {
+
+    static final int CACHED_CHUNKS = 8;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_LENGTH = 30;
+    private static final int CENTRAL_HEADER_LENGTH = 46;
+    private static final int END_LENGTH = 22;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private static final long ZIP64_MARKER = 0xFFFFFFFFL;
+
+    private final FileChannel channel;
+    private final ChunkCodec codec;
+    private final long storedSize;
+    private final long fullChunks;
+    private final long size;
+    private byte[] plaintext;
+    private final Map<Long, byte[]> cache = new LinkedHashMap<>(CACHED_CHUNKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            if (size() > CACHED_CHUNKS) {
+                Arrays.fill(eldest.getValue(), (byte) 0);
+                return true;
+            }
+            return false;
+        }
+    };
+    private List<Entry> entries;
+    private boolean closed;
+
+    private EncryptedArchive(FileChannel channel, ChunkCodec codec, long storedSize) throws IOException {
+        this.channel = channel;
+        this.codec = codec;
+        this.storedSize = storedSize;
+        this.fullChunks = codec.fullChunkCountForStoredSize(storedSize);
+        this.size = codec.plaintextSizeForStoredSize(storedSize);
+    }
+
+    private EncryptedArchive(byte[] plaintext) {
+        this.channel = null;
+        this.codec = null;
+        this.storedSize = 0;
+        this.fullChunks = 0;
+        this.size = plaintext.length;
+        this.plaintext = plaintext;
+    }
+
+    /**
+     * Opens an archive and reads its table of contents.
+     *
+     * @throws SecurityException if the key is wrong or the chunks read so far were tampered with
+     */
+    public static EncryptedArchive open(Path file, SecretKey key) throws Exception {
+        FileHeader header = CryptoEngine.readHeader(file);
+        EncryptedArchive archive;
+        if (header != null && header.isChunked()) {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                archive = new EncryptedArchive(channel, new ChunkCodec(header, key), channel.size());
+            } catch (Exception e) {
+                channel.close();
+                throw e;
+            }
+        } else {
+            if (Files.size(file) > CryptoEngine.MAX_IN_MEMORY_SIZE) {
+                throw new IOException("Archive is too large to open in memory: " + file.getFileName());
+            }
+            archive = new EncryptedArchive(CryptoEngine.open(Files.readAllBytes(file), key));
+        }
+        try {
+            archive.entries = archive.readCentralDirectory();
+        } catch (Exception e) {
+            archive.close();
+            throw e;
+        }
+        return archive;
+    }
+
+    /**
+     * Members in archive order; directories end with {@code /}.
+     */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Streams a member's content, decrypting the chunks it covers as they are reached.
+     */
+    public InputStream newInputStream(Entry entry) throws IOException {
+        if (entry.isDirectory()) {
+            throw new IOException("Not a file: " + entry.getName());
+        }
+        byte[] local = new byte[LOCAL_HEADER_LENGTH];
+        readFully(entry.localHeaderOffset, local);
+        ByteBuffer header = ByteBuffer.wrap(local).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Archive entry is damaged: " + entry.getName());
+        }
+        long dataStart = entry.localHeaderOffset + LOCAL_HEADER_LENGTH
+                + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        InputStream data = new RangeInputStream(dataStart, dataStart + entry.compressedSize);
+        return switch (entry.method) {
+            case ZipEntry.STORED -> data;
+            case ZipEntry.DEFLATED -> new EntryInflaterInputStream(data);
+            default -> throw new IOException("Unsupported compression method " + entry.method + ": " + entry.getName());
+        };
+    }
+
+    /**
+     * Closes the file and zeroes every decrypted byte still held.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        for (byte[] chunk : cache.values()) {
+            Arrays.fill(chunk, (byte) 0);
+        }
+        cache.clear();
+        if (plaintext != null) {
+            Arrays.fill(plaintext, (byte) 0);
+            plaintext = null;
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // ===== Plaintext access =====
+
+    /**
+     * Copies plaintext starting at {@code position} into {@code b}.
+     *
+     * @return the number of bytes copied, or -1 at the end of the archive
+     */
+    private synchronized int read(long position, byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Archive is closed");
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int count = (int) Math.min(len, size - position);
+        if (plaintext != null) {
+            System.arraycopy(plaintext, (int) position, b, off, count);
+            return count;
+        }
+        int chunkSize = codec.getChunkSize();
+        byte[] chunk = chunk(position / chunkSize);
+        int inChunk = (int) (position % chunkSize);
+        count = Math.min(count, chunk.length - inChunk);
+        System.arraycopy(chunk, inChunk, b, off, count);
+        return count;
+    }
+
+    private void readFully(long position, byte[] b) throws IOException {
+        int done = 0;
+        while (done < b.length) {
+            int read = read(position + done, b, done, b.length - done);
+            if (read < 0) {
+                throw new EOFException("Archive is truncated");
+            }
+            done += read;
+        }
+    }
+
+    private byte[] chunk(long index) throws IOException {
+        byte[] cached = cache.get(index);
+        if (cached != null) {
+            return cached;
+        }
+        boolean last = index == fullChunks;
+        long offset = codec.chunkOffset(index);
+        int length = last ? (int) (storedSize - offset) : codec.getChunkSize() + ChunkCodec.OVERHEAD;
+        ByteBuffer stored = ByteBuffer.allocate(length);
+        while (stored.hasRemaining()) {
+            if (channel.read(stored, offset + stored.position()) < 0) {
+                throw new SecurityException("File is truncated.");
+            }
+        }
+        stored.flip();
+        ByteBuffer plain = ByteBuffer.allocate(codec.getChunkSize() + ChunkCodec.TRAILER_LENGTH);
+        try {
+            codec.open(index, last, stored, plain);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Cannot decrypt chunk " + index, e);
+        }
+        int plainLength = plain.position() - (last ? ChunkCodec.TRAILER_LENGTH : 0);
+        byte[] chunk = Arrays.copyOf(plain.array(), plainLength);
+        Arrays.fill(plain.array(), (byte) 0);
+        cache.put(index, chunk);
+        return chunk;
+    }
+
+    // ===== Table of contents =====
+
+    private List<Entry> readCentralDirectory() throws IOException {
+        int tailLength = (int) Math.min(size, END_LENGTH + MAX_COMMENT_LENGTH);
+        byte[] tail = new byte[tailLength];
+        readFully(size - tailLength, tail);
+        ByteBuffer end = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        int endOffset = -1;
+        for (int i = tailLength - END_LENGTH; i >= 0; i--) {
+            if (end.getInt(i) == END_SIGNATURE) {
+                endOffset = i;
+                break;
+            }
+        }
+        if (endOffset < 0) {
+            throw new IOException("Not a directory archive: end of central directory not found");
+        }
+        long directorySize = end.getInt(endOffset + 12) & ZIP64_MARKER;
+        long directoryOffset = end.getInt(endOffset + 16) & ZIP64_MARKER;
+        if (directoryOffset == ZIP64_MARKER || directoryOffset + directorySize > size) {
+            throw new IOException("Unsupported or damaged central directory");
+        }
+
+        byte[] directory = new byte[(int) directorySize];
+        readFully(directoryOffset, directory);
+        ByteBuffer cen = ByteBuffer.wrap(directory).order(ByteOrder.LITTLE_ENDIAN);
+        List<Entry> list = new ArrayList<>();
+        Map<String, Entry> byName = new HashMap<>();
+        int pos = 0;
+        while (pos + CENTRAL_HEADER_LENGTH <= directory.length && cen.getInt(pos) == CENTRAL_HEADER_SIGNATURE) {
+            int method = cen.getShort(pos + 10) & 0xFFFF;
+            int time = cen.getShort(pos + 12) & 0xFFFF;
+            int date = cen.getShort(pos + 14) & 0xFFFF;
+            long compressedSize = cen.getInt(pos + 20) & ZIP64_MARKER;
+            long uncompressedSize = cen.getInt(pos + 24) & ZIP64_MARKER;
+            int nameLength = cen.getShort(pos + 28) & 0xFFFF;
+            int extraLength = cen.getShort(pos + 30) & 0xFFFF;
+            int commentLength = cen.getShort(pos + 32) & 0xFFFF;
+            long localHeaderOffset = cen.getInt(pos + 42) & ZIP64_MARKER;
+            int next = pos + CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+            if (next > directory.length || compressedSize == ZIP64_MARKER || uncompressedSize == ZIP64_MARKER
+                    || localHeaderOffset == ZIP64_MARKER) {
+                throw new IOException("Unsupported or damaged central directory");
+            }
+            String name = new String(directory, pos + CENTRAL_HEADER_LENGTH, nameLength, StandardCharsets.UTF_8);
+            Entry entry = new Entry(name, uncompressedSize, dosToMillis(date, time), method, compressedSize, localHeaderOffset);
+
+            ZipEntry zipEntry = new ZipEntry(name);
+            zipEntry.setExtra(Arrays.copyOfRange(directory, pos + CENTRAL_HEADER_LENGTH + nameLength,
+                    pos + CENTRAL_HEADER_LENGTH + nameLength + extraLength));
+            String original = CryptoEngine.referencedName(zipEntry);
+            if (original != null) {
+                // Duplicates read the content stored for the earlier entry
+                Entry source = byName.get(original);
+                if (source == null || source.isDirectory()) {
+                    throw new IOException("Entry refers to a missing entry: " + name);
+                }
+                entry = new Entry(name, source.size, entry.modifiedTime, source.method, source.compressedSize,
+                        source.localHeaderOffset);
+            }
+            list.add(entry);
+            byName.putIfAbsent(name, entry);
+            pos = next;
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    private static long dosToMillis(int date, int time) {
+        try {
+            return LocalDateTime.of(((date >> 9) & 0x7f) + 1980, (date >> 5) & 0x0f, date & 0x1f,
+                            (time >> 11) & 0x1f, (time >> 5) & 0x3f, (time << 1) & 0x3e)
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            return 0;
+        }
+    }
+
+    public static final class Entry {
+        private final String name;
+        private final long size;
+        private final long modifiedTime;
+        private final int method;
+        private final long compressedSize;
+        private final long localHeaderOffset;
+
+        private Entry(String name, long size, long modifiedTime, int method, long compressedSize, long localHeaderOffset) {
+            this.name = name;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+    }
+
+    /**
+     * The stored bytes of one member.
+     */
+    private final class RangeInputStream extends InputStream {
+        private long position;
+        private final long end;
+
+        RangeInputStream(long start, long end) {
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int read = EncryptedArchive.this.read(position, b, off, (int) Math.min(len, end - position));
+            if (read < 0) {
+                throw new EOFException("Archive is truncated");
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Inflates a raw deflate stream; like {@code ZipFile}, feeds one dummy byte at the end, which
+     * the inflater may need to finish.
+     */
+    private static final class EntryInflaterInputStream extends InflaterInputStream {
+        private boolean eof;
+
+        EntryInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true), 8192);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of archive entry");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+}
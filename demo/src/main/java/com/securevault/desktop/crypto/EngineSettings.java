@@ -0,0 +1,110 @@
+package com.securevault.desktop.crypto;
+
+import java.util.zip.Deflater;
+
+/**
+ * Run-time tunables of the engine. The installed instance is read each time a job starts, so a
+ * new profile applies to the next file; only the worker pool size is fixed once jobs have run.
+ * With auto-tuning on, the chunk size here is where {@link PipelineTuner} starts from.
+ *
+ * <p>Nothing here changes what is written in a way readers depend on: the chunk size is recorded
+ * in each file's header. The key derivation cost is deliberately absent, since containers do not
+ * record it and a different cost would derive a different key.</p>
+ */
+public class EngineSettings {
+
+    public static final int MIN_CHUNK_SIZE = 64 * 1024;
+    public static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    public static final int AUTO = 0;
+
+    public static final EngineSettings DEFAULTS = new EngineSettings(ChunkCodec.DEFAULT_CHUNK_SIZE, AUTO, AUTO, AUTO,
+            Deflater.DEFAULT_COMPRESSION, true);
+
+    private static volatile EngineSettings current = DEFAULTS;
+
+    private final int chunkSize;
+    private final int workers;
+    private final long memoryBudgetMb;
+    private final int scrubThreads;
+    private final int compressionLevel;
+    private final boolean autoTune;
+
+    /**
+     * @param workers concurrent background jobs, or {@link #AUTO}
+     * @param memoryBudgetMb memory the scheduler lets jobs reserve, or {@link #AUTO}
+     * @param scrubThreads threads verifying the vault, or {@link #AUTO}
+     * @param compressionLevel deflate level of directory archives, 0-9 or -1 for the default
+     * @param autoTune whether {@link PipelineTuner} may move the chunk size and pipeline depth away
+     *        from {@code chunkSize} and the default depth
+     */
+    public EngineSettings(int chunkSize, int workers, long memoryBudgetMb, int scrubThreads, int compressionLevel,
+                          boolean autoTune) {
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between " + MIN_CHUNK_SIZE / 1024 + " KB and "
+                    + MAX_CHUNK_SIZE / (1024 * 1024) + " MB: " + chunkSize);
+        }
+        if (workers < 0 || memoryBudgetMb < 0 || scrubThreads < 0) {
+            throw new IllegalArgumentException("Thread counts and memory budget cannot be negative");
+        }
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be between -1 and 9: " + compressionLevel);
+        }
+        this.chunkSize = chunkSize;
+        this.workers = workers;
+        this.memoryBudgetMb = memoryBudgetMb;
+        this.scrubThreads = scrubThreads;
+        this.compressionLevel = compressionLevel;
+        this.autoTune = autoTune;
+    }
+
+    public static EngineSettings current() {
+        return current;
+    }
+
+    public static void install(EngineSettings settings) {
+        current = settings;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public long getMemoryBudgetMb() {
+        return memoryBudgetMb;
+    }
+
+    public int getScrubThreads() {
+        return scrubThreads;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public boolean isAutoTune() {
+        return autoTune;
+    }
+
+    /**
+     * Half the cores, at most 4, unless set.
+     */
+    public int effectiveWorkers() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return workers != AUTO ? workers : Math.min(4, Math.max(1, cores / 2));
+    }
+
+    /**
+     * Half the max heap, unless set.
+     */
+    public long effectiveMemoryBudgetMb() {
+        return memoryBudgetMb != AUTO ? memoryBudgetMb : Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024);
+    }
+
+    public int effectiveScrubThreads() {
+        return scrubThreads != AUTO ? scrubThreads : Runtime.getRuntime().availableProcessors();
+    }
+}
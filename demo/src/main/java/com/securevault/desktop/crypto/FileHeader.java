@@ -0,0 +1,249 @@
+package com.securevault.desktop.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Fixed header at the start of every encrypted file written by this version.
+ * Files without the magic prefix are treated as the legacy AES-GCM layout.
+ *
+ * <p>Version 1 is a single AEAD message. Version 2 splits the payload into independently
+ * authenticated chunks and additionally records flags, the chunk size and a random file id. With
+ * {@link #FLAG_METADATA} a sealed {@link FileMetadata} block follows those fields; it counts as part
+ * of the header, but only the fixed fields are bound into the chunks, so the block can be rewritten
+ * without touching them.</p>
+ */
+public final class FileHeader {
+
+    private static final byte[] MAGIC = "SVLT".getBytes(StandardCharsets.US_ASCII);
+    public static final int VERSION_SINGLE_SHOT = 1;
+    public static final int VERSION_CHUNKED = 2;
+    public static final int PREFIX_LENGTH = MAGIC.length + 2; // magic + version + suite id
+    public static final int FILE_ID_LENGTH = 16;
+    // The checksum trailer is a MerkleTree root rather than a SHA-256 over the whole plaintext
+    public static final int FLAG_MERKLE_TRAILER = 0x0001;
+    // A FileMetadata block follows the fixed fields
+    public static final int FLAG_METADATA = 0x0002;
+    private static final int KNOWN_FLAGS = FLAG_MERKLE_TRAILER | FLAG_METADATA;
+    private static final int CHUNKED_LENGTH = PREFIX_LENGTH + 2 + 4 + FILE_ID_LENGTH; // + flags + chunk size + file id
+
+    private final int version;
+    private final CipherSuite suite;
+    private final int flags;
+    private final int chunkSize;
+    private final byte[] fileId;
+    private final byte[] metadataBlock;
+
+    public FileHeader(int version, CipherSuite suite) {
+        this(version, suite, 0, 0, new byte[0], null);
+    }
+
+    private FileHeader(int version, CipherSuite suite, int flags, int chunkSize, byte[] fileId, byte[] metadataBlock) {
+        this.version = version;
+        this.suite = suite;
+        this.flags = flags;
+        this.chunkSize = chunkSize;
+        this.fileId = fileId;
+        this.metadataBlock = metadataBlock;
+    }
+
+    /**
+     * Creates a chunked header with a fresh random file id.
+     */
+    public static FileHeader chunked(CipherSuite suite, int chunkSize) {
+        byte[] fileId = new byte[FILE_ID_LENGTH];
+        new SecureRandom().nextBytes(fileId);
+        return new FileHeader(VERSION_CHUNKED, suite, FLAG_MERKLE_TRAILER, chunkSize, fileId, null);
+    }
+
+    /**
+     * Returns this header carrying a sealed metadata block of {@link FileMetadata#BLOCK_LENGTH} bytes.
+     * Replacing the block of a header that already has one keeps the chunks valid.
+     */
+    FileHeader withMetadata(byte[] block) {
+        if (!isChunked() || block.length != FileMetadata.BLOCK_LENGTH) {
+            throw new IllegalArgumentException("Metadata needs a chunked header and a " + FileMetadata.BLOCK_LENGTH + "-byte block");
+        }
+        return new FileHeader(version, suite, flags | FLAG_METADATA, chunkSize, fileId, block.clone());
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public CipherSuite getSuite() {
+        return suite;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public byte[] getFileId() {
+        return fileId.clone();
+    }
+
+    public boolean isChunked() {
+        return version == VERSION_CHUNKED;
+    }
+
+    public boolean hasMerkleTrailer() {
+        return (flags & FLAG_MERKLE_TRAILER) != 0;
+    }
+
+    public boolean hasMetadata() {
+        return (flags & FLAG_METADATA) != 0;
+    }
+
+    /**
+     * The sealed metadata block, or null if the file has none.
+     */
+    public byte[] getMetadataBlock() {
+        return metadataBlock == null ? null : metadataBlock.clone();
+    }
+
+    /**
+     * Length of the header on disk, metadata block included.
+     */
+    public int getLength() {
+        return lengthFor(version) + (hasMetadata() ? FileMetadata.BLOCK_LENGTH : 0);
+    }
+
+    /**
+     * Offset of the metadata block in the file.
+     */
+    int getMetadataOffset() {
+        return lengthFor(version);
+    }
+
+    /**
+     * The header as written to disk, metadata block included.
+     */
+    public byte[] toBytes() {
+        byte[] fixed = fixedBytes();
+        if (!hasMetadata()) {
+            return fixed;
+        }
+        byte[] bytes = Arrays.copyOf(fixed, fixed.length + metadataBlock.length);
+        System.arraycopy(metadataBlock, 0, bytes, fixed.length, metadataBlock.length);
+        return bytes;
+    }
+
+    /**
+     * The fields before the metadata block. These, not {@link #toBytes}, are what chunks and
+     * chunk tables bind to, so rewriting the block leaves them valid.
+     */
+    byte[] fixedBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(lengthFor(version));
+        buffer.put(MAGIC);
+        buffer.put((byte) version);
+        buffer.put((byte) suite.getId());
+        if (isChunked()) {
+            buffer.putShort((short) flags);
+            buffer.putInt(chunkSize);
+            buffer.put(fileId);
+        }
+        return buffer.array();
+    }
+
+    public static boolean hasMagic(byte[] data) {
+        return data.length >= PREFIX_LENGTH && Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+    }
+
+    private static int lengthFor(int version) {
+        return version == VERSION_CHUNKED ? CHUNKED_LENGTH : PREFIX_LENGTH;
+    }
+
+    /**
+     * Returns the length of the fixed fields announced by a prefix of {@link #PREFIX_LENGTH} bytes.
+     * A metadata block may follow them.
+     */
+    public static int lengthOf(byte[] prefix) throws IOException {
+        return lengthFor(checkVersion(prefix[MAGIC.length] & 0xFF));
+    }
+
+    /**
+     * Parses the header from the start of {@code data}, or returns null for legacy files.
+     */
+    public static FileHeader parse(byte[] data) throws IOException {
+        if (!hasMagic(data)) {
+            return null;
+        }
+        int version = checkVersion(data[MAGIC.length] & 0xFF);
+        if (data.length < lengthFor(version)) {
+            throw new IOException("Truncated file header");
+        }
+        CipherSuite suite;
+        try {
+            suite = CipherSuite.fromId(data[MAGIC.length + 1] & 0xFF);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        if (version != VERSION_CHUNKED) {
+            return new FileHeader(version, suite);
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data, PREFIX_LENGTH, CHUNKED_LENGTH - PREFIX_LENGTH);
+        int flags = buffer.getShort() & 0xFFFF;
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IOException("Unsupported file flags: 0x" + Integer.toHexString(flags));
+        }
+        int chunkSize = buffer.getInt();
+        // Not authenticated yet, but sizes the buffers that authentication needs
+        if (chunkSize <= 0 || chunkSize > EngineSettings.MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk size: " + chunkSize);
+        }
+        byte[] fileId = new byte[FILE_ID_LENGTH];
+        buffer.get(fileId);
+        byte[] metadataBlock = null;
+        if ((flags & FLAG_METADATA) != 0) {
+            if (data.length < CHUNKED_LENGTH + FileMetadata.BLOCK_LENGTH) {
+                throw new IOException("Truncated file header");
+            }
+            metadataBlock = Arrays.copyOfRange(data, CHUNKED_LENGTH, CHUNKED_LENGTH + FileMetadata.BLOCK_LENGTH);
+        }
+        return new FileHeader(version, suite, flags, chunkSize, fileId, metadataBlock);
+    }
+
+    /**
+     * Reads a header from the stream. Returns null for legacy files, in which case the
+     * {@link #PREFIX_LENGTH} bytes already consumed are left in {@code prefixOut}.
+     */
+    public static FileHeader read(InputStream in, byte[] prefixOut) throws IOException {
+        byte[] prefix = in.readNBytes(PREFIX_LENGTH);
+        System.arraycopy(prefix, 0, prefixOut, 0, prefix.length);
+        if (!hasMagic(prefix)) {
+            if (prefix.length < PREFIX_LENGTH) {
+                throw new IOException("File is truncated.");
+            }
+            return null;
+        }
+        byte[] full = concat(prefix, in.readNBytes(lengthOf(prefix) - PREFIX_LENGTH));
+        if (full.length == CHUNKED_LENGTH
+                && (ByteBuffer.wrap(full, PREFIX_LENGTH, 2).getShort() & FLAG_METADATA) != 0) {
+            full = concat(full, in.readNBytes(FileMetadata.BLOCK_LENGTH));
+        }
+        return parse(full);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] joined = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, joined, a.length, b.length);
+        return joined;
+    }
+
+    private static int checkVersion(int version) throws IOException {
+        if (version != VERSION_SINGLE_SHOT && version != VERSION_CHUNKED) {
+            throw new IOException("Unsupported file format version: " + version);
+        }
+        return version;
+    }
+}
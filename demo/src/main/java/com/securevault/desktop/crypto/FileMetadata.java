@@ -0,0 +1,269 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/**
+ * What an encrypted file holds: original name, kind, plaintext size, entry count, modification time
+ * and content type. It is sealed in a small block right after the {@link FileHeader}, so a listing
+ * can show it with one short read per file instead of decrypting the payload.
+ *
+ * <p>The block is encrypted with the header's suite under its own subkey and bound to the file id,
+ * but not to the chunks, so a {@link DeltaUpdate} can rewrite it in place. Its plaintext is padded to
+ * a fixed length and does not give away how long the name is.</p>
+ */
+public final class FileMetadata {
+
+    public static final int KIND_FILE = 0;
+    public static final int KIND_DIRECTORY = 1;
+    public static final String DIRECTORY_TYPE = "inode/directory";
+    private static final int PLAINTEXT_LENGTH = 512;
+    public static final int BLOCK_LENGTH = CipherSuite.NONCE_LENGTH + PLAINTEXT_LENGTH + CipherSuite.TAG_LENGTH;
+
+    private static final int VERSION = 1;
+    // version + kind + size + entries + modified + two length prefixes
+    private static final int FIXED_FIELDS_LENGTH = 1 + 1 + 8 + 4 + 8 + 2 + 2;
+    private static final int MAX_TYPE_BYTES = 64;
+    private static final String SUBKEY_LABEL = "securevault metadata v1";
+    private static final byte[] AAD_LABEL = "SVMD".getBytes(StandardCharsets.US_ASCII);
+
+    private final int kind;
+    private final String name;
+    private final long size;
+    private final int entryCount;
+    private final long modified;
+    private final String type;
+
+    private FileMetadata(int kind, String name, long size, int entryCount, long modified, String type) {
+        this.kind = kind;
+        this.name = name;
+        this.size = size;
+        this.entryCount = entryCount;
+        this.modified = modified;
+        this.type = type;
+    }
+
+    public static FileMetadata forFile(Path file) throws IOException {
+        String type;
+        try {
+            type = Files.probeContentType(file);
+        } catch (IOException e) {
+            type = null;
+        }
+        return new FileMetadata(KIND_FILE, file.getFileName().toString(), Files.size(file), 1,
+                Files.getLastModifiedTime(file).toMillis(), type == null ? "" : type);
+    }
+
+    /**
+     * Describes a directory by the files under it: their count and total size.
+     */
+    public static FileMetadata forDirectory(Path dir) throws IOException {
+        long size = 0;
+        int entries = 0;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                size += Files.size(file);
+                entries++;
+            }
+        }
+        return new FileMetadata(KIND_DIRECTORY, dir.getFileName().toString(), size, entries,
+                Files.getLastModifiedTime(dir).toMillis(), DIRECTORY_TYPE);
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    public boolean isDirectory() {
+        return kind == KIND_DIRECTORY;
+    }
+
+    /**
+     * The name the plaintext had, truncated if it was longer than the block allows.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Plaintext size; for a directory, the total size of its files.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    /**
+     * MIME type, or an empty string if it is not known.
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Returns {@code header} with this metadata sealed into it.
+     */
+    public FileHeader attachTo(FileHeader header, SecretKey key) throws Exception {
+        return header.withMetadata(new Reader(key).seal(header, this));
+    }
+
+    /**
+     * Reads the metadata of one file. Use a {@link Reader} for many.
+     */
+    public static FileMetadata read(Path file, SecretKey key) throws Exception {
+        return new Reader(key).read(file);
+    }
+
+    private byte[] encode() throws IOException {
+        byte[] typeBytes = truncate(type, MAX_TYPE_BYTES);
+        byte[] nameBytes = truncate(name, PLAINTEXT_LENGTH - FIXED_FIELDS_LENGTH - typeBytes.length);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(PLAINTEXT_LENGTH);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeByte(kind);
+            out.writeLong(size);
+            out.writeInt(entryCount);
+            out.writeLong(modified);
+            out.writeShort(nameBytes.length);
+            out.write(nameBytes);
+            out.writeShort(typeBytes.length);
+            out.write(typeBytes);
+        }
+        return Arrays.copyOf(bytes.toByteArray(), PLAINTEXT_LENGTH);
+    }
+
+    private static FileMetadata decode(byte[] plaintext) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plaintext))) {
+            if (in.readUnsignedByte() != VERSION) {
+                return null; // written by a newer version
+            }
+            int kind = in.readUnsignedByte();
+            long size = in.readLong();
+            int entries = in.readInt();
+            long modified = in.readLong();
+            String name = new String(in.readNBytes(in.readUnsignedShort()), StandardCharsets.UTF_8);
+            String type = new String(in.readNBytes(in.readUnsignedShort()), StandardCharsets.UTF_8);
+            return new FileMetadata(kind, name, size, entries, modified, type);
+        }
+    }
+
+    /**
+     * UTF-8 bytes of {@code value}, cut at a code point boundary to at most {@code max} bytes.
+     */
+    private static byte[] truncate(String value, int max) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= max) {
+            return bytes;
+        }
+        int end = max;
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--; // continuation byte
+        }
+        return Arrays.copyOf(bytes, end);
+    }
+
+    private static byte[] associatedData(FileHeader header) {
+        byte[] fileId = header.getFileId();
+        byte[] aad = Arrays.copyOf(AAD_LABEL, AAD_LABEL.length + fileId.length);
+        System.arraycopy(fileId, 0, aad, AAD_LABEL.length, fileId.length);
+        return aad;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + (isDirectory() ? entryCount + " entries, " : "") + size + " bytes)";
+    }
+
+    /**
+     * Reads and seals metadata blocks under one key, deriving the subkey once. Meant for listing a
+     * whole vault in a session; not thread-safe.
+     */
+    public static final class Reader {
+
+        private static final int MAX_HEADER_LENGTH = FileHeader.PREFIX_LENGTH + 2 + 4 + FileHeader.FILE_ID_LENGTH + BLOCK_LENGTH;
+
+        private final SecretKey subkey;
+        private final SecureRandom random = new SecureRandom();
+        private final ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_LENGTH);
+
+        public Reader(SecretKey key) throws Exception {
+            byte[] derived = KeyDerivation.deriveSubkey(key, SUBKEY_LABEL);
+            this.subkey = new SecretKeySpec(derived, "AES");
+            Arrays.fill(derived, (byte) 0);
+        }
+
+        /**
+         * Reads the metadata with a single read of the file's first bytes.
+         *
+         * @return null if the file carries no metadata, e.g. because it was written by an older version
+         * @throws SecurityException if the block does not authenticate under this key
+         */
+        public FileMetadata read(Path file) throws Exception {
+            buffer.clear();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // A regular file fills the buffer in one read
+                }
+            }
+            FileHeader header = FileHeader.parse(Arrays.copyOf(buffer.array(), buffer.position()));
+            return header == null ? null : open(header);
+        }
+
+        /**
+         * Opens the block in {@code header}, or returns null if it has none.
+         */
+        public FileMetadata open(FileHeader header) throws Exception {
+            byte[] block = header.getMetadataBlock();
+            if (block == null) {
+                return null;
+            }
+            byte[] nonce = Arrays.copyOf(block, CipherSuite.NONCE_LENGTH);
+            Cipher cipher = header.getSuite().newCipher(Cipher.DECRYPT_MODE, subkey, nonce);
+            cipher.updateAAD(associatedData(header));
+            byte[] plaintext;
+            try {
+                plaintext = cipher.doFinal(block, CipherSuite.NONCE_LENGTH, block.length - CipherSuite.NONCE_LENGTH);
+            } catch (AEADBadTagException e) {
+                throw new SecurityException("Metadata authentication failed. Wrong password or tampered file.");
+            }
+            return decode(plaintext);
+        }
+
+        /**
+         * Seals {@code metadata} for the file {@code header} belongs to, with a fresh nonce.
+         */
+        byte[] seal(FileHeader header, FileMetadata metadata) throws Exception {
+            byte[] nonce = new byte[CipherSuite.NONCE_LENGTH];
+            random.nextBytes(nonce);
+            Cipher cipher = header.getSuite().newCipher(Cipher.ENCRYPT_MODE, subkey, nonce);
+            cipher.updateAAD(associatedData(header));
+            byte[] sealed = cipher.doFinal(metadata.encode());
+            byte[] block = Arrays.copyOf(nonce, BLOCK_LENGTH);
+            System.arraycopy(sealed, 0, block, nonce.length, sealed.length);
+            return block;
+        }
+    }
+}
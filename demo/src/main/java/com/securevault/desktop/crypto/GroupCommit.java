@@ -0,0 +1,431 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Makes a batch of new files durable with one round of syncs instead of one per file.
+ *
+ * <p>Each output is written to a staged name, {@code <target>.staged.tmp}. {@link #commit} then
+ * forces every staged file and their directories, writes the list of targets to a redo journal,
+ * {@code .svbatch-<id>.journal} in the batch's root directory, which is forced and sealed with a MAC
+ * under the batch's key, renames everything into place, forces the directories again and deletes
+ * the journal. After a crash before the journal is sealed none of the batch's targets have been
+ * touched; a crash or a failed rename after it is finished by the next batch begun in that root
+ * under the same key, so either every file of the batch appears, complete, or none does.</p>
+ *
+ * <p>Targets are recorded relative to the root, and a journal whose entries leave the root is
+ * rejected, so a journal planted in a folder cannot move files anywhere. Journals sealed under
+ * another key are neither applied nor deleted.</p>
+ *
+ * <p>Files still staged when the batch is closed without committing are deleted, unless the journal
+ * that owns them was sealed; those are left for recovery.</p>
+ */
+public final class GroupCommit implements AutoCloseable {
+
+    public static final String STAGED_SUFFIX = ".staged.tmp";
+    static final String JOURNAL_PREFIX = ".svbatch-";
+    static final String JOURNAL_SUFFIX = ".journal";
+
+    private static final byte[] JOURNAL_MAGIC = "SVGC".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final int MAC_LENGTH = 32;
+    // Syncs block on the device, not the CPU, so this is independent of the core count
+    private static final int FORCE_THREADS = 16;
+    private static final ExecutorService FORCE_POOL = Executors.newFixedThreadPool(FORCE_THREADS, r -> {
+        Thread t = new Thread(r, "group-commit-force");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Journals and staged files of open batches, which recovery must not touch
+    private static final Set<Path> LIVE_JOURNALS = ConcurrentHashMap.newKeySet();
+    private static final Set<Path> LIVE_STAGED = ConcurrentHashMap.newKeySet();
+    private static final Object RECOVERY_LOCK = new Object();
+    // What readJournal returns for a journal of another key, compared by identity
+    private static final List<String> FOREIGN = List.of();
+
+    private final Path root;
+    private final Path journalFile;
+    private final SecretKey key;
+    private final Map<Path, Path> staged = new LinkedHashMap<>(); // target -> staged file
+    private final List<CryptoEngine.IndexUpdate> afterCommit = new ArrayList<>();
+    private boolean sealed;
+
+    private GroupCommit(Path root, Path journalFile, SecretKey key) {
+        this.root = root;
+        this.journalFile = journalFile;
+        this.key = key;
+    }
+
+    /**
+     * Starts a batch whose journal lives in {@code root}, first finishing any batch under
+     * {@code key} that a crash interrupted there.
+     */
+    public static GroupCommit begin(Path root, SecretKey key) throws Exception {
+        Path normalized = root.toAbsolutePath().normalize();
+        Files.createDirectories(normalized);
+        byte[] id = new byte[8];
+        RANDOM.nextBytes(id);
+        Path journalFile = normalized.resolve(JOURNAL_PREFIX + HexFormat.of().formatHex(id) + JOURNAL_SUFFIX);
+        LIVE_JOURNALS.add(journalFile);
+        try {
+            recover(normalized, key);
+        } catch (Exception e) {
+            LIVE_JOURNALS.remove(journalFile);
+            throw e;
+        }
+        return new GroupCommit(normalized, journalFile, key);
+    }
+
+    /**
+     * Returns the file to write {@code target}'s content to. Staging the same target twice
+     * returns the same file.
+     *
+     * @throws IllegalArgumentException if {@code target} is not below the batch's root
+     */
+    public Path stage(Path target) {
+        Path absolute = target.toAbsolutePath().normalize();
+        if (!absolute.startsWith(root) || absolute.equals(root)) {
+            throw new IllegalArgumentException("Target is outside of the batch's folder: " + target);
+        }
+        return staged.computeIfAbsent(absolute, t -> {
+            Path file = stagedFile(t);
+            LIVE_STAGED.add(file);
+            return file;
+        });
+    }
+
+    /**
+     * True if {@code target} is staged in this batch and so will exist once it commits.
+     */
+    public boolean isStaged(Path target) {
+        return staged.containsKey(target.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Drops {@code target} from the batch and deletes what was staged for it.
+     */
+    public void unstage(Path target) throws IOException {
+        Path file = staged.remove(target.toAbsolutePath().normalize());
+        if (file != null) {
+            Files.deleteIfExists(file);
+            LIVE_STAGED.remove(file);
+        }
+    }
+
+    public int size() {
+        return staged.size();
+    }
+
+    /**
+     * Runs {@code update} once the batch is committed, e.g. to index the final names.
+     */
+    void afterCommit(CryptoEngine.IndexUpdate update) {
+        afterCommit.add(update);
+    }
+
+    /**
+     * Makes every staged file durable and moves it to its target. If a rename fails, the sealed
+     * journal and the remaining staged files stay behind for the next batch begun in the root.
+     */
+    public void commit() throws Exception {
+        if (staged.isEmpty()) {
+            return;
+        }
+        Set<Path> directories = new LinkedHashSet<>();
+        staged.values().forEach(file -> directories.add(file.getParent()));
+        forceAll(staged.values());
+        forceDirectories(directories);
+
+        List<String> names = new ArrayList<>(staged.size());
+        for (Path target : staged.keySet()) {
+            names.add(root.relativize(target).toString());
+        }
+        writeJournal(journalFile, names, key);
+        sealed = true;
+        forceDirectory(root);
+        apply(staged, directories);
+        Files.delete(journalFile);
+        sealed = false;
+        LIVE_STAGED.removeAll(staged.values());
+        staged.clear();
+
+        for (CryptoEngine.IndexUpdate update : afterCommit) {
+            CryptoEngine.updateIndex(update);
+        }
+        afterCommit.clear();
+    }
+
+    /**
+     * Deletes whatever is still staged, unless a sealed journal owns it.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!sealed) {
+                for (Path file : staged.values()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } finally {
+            LIVE_STAGED.removeAll(staged.values());
+            staged.clear();
+            afterCommit.clear();
+            LIVE_JOURNALS.remove(journalFile);
+        }
+    }
+
+    /**
+     * Finishes every batch under {@code key} whose journal was sealed in {@code root} before a crash,
+     * and discards journals that were never sealed along with the staged files left in {@code root}.
+     * Journals of open batches are skipped. While a journal of another key is present, staged files
+     * are left alone, since they may be that batch's.
+     *
+     * @throws IOException if a sealed journal names a file outside {@code root}
+     */
+    static void recover(Path root, SecretKey key) throws Exception {
+        synchronized (RECOVERY_LOCK) {
+            boolean foreign = false;
+            for (Path journal : list(root, p -> isJournalName(p.getFileName().toString()))) {
+                if (LIVE_JOURNALS.contains(journal)) {
+                    continue;
+                }
+                List<String> names = readJournal(journal, key);
+                if (names == FOREIGN) {
+                    foreign = true;
+                    continue;
+                }
+                if (names != null) {
+                    Map<Path, Path> renames = resolve(root, names);
+                    Set<Path> directories = new LinkedHashSet<>();
+                    renames.values().forEach(file -> directories.add(file.getParent()));
+                    apply(renames, directories);
+                }
+                Files.delete(journal);
+            }
+            if (!foreign) {
+                for (Path file : list(root, p -> p.getFileName().toString().endsWith(STAGED_SUFFIX))) {
+                    if (!LIVE_STAGED.contains(file)) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<Path> list(Path root, Predicate<Path> filter) throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.filter(filter).toList();
+        } catch (NoSuchFileException e) {
+            return List.of(); // Nothing was ever written here
+        }
+    }
+
+    private static boolean isJournalName(String name) {
+        return name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX);
+    }
+
+    private static Path stagedFile(Path target) {
+        return target.resolveSibling(target.getFileName() + STAGED_SUFFIX);
+    }
+
+    /**
+     * Maps each journaled name to its target and staged file, checking all of them before any is used.
+     */
+    private static Map<Path, Path> resolve(Path root, List<String> names) throws IOException {
+        Map<Path, Path> renames = new LinkedHashMap<>();
+        for (String name : names) {
+            Path target = root.resolve(name).normalize();
+            if (name.isEmpty() || !target.startsWith(root) || target.equals(root)) {
+                throw new IOException("Batch journal in " + root + " names a file outside of it: " + name);
+            }
+            renames.put(target, stagedFile(target));
+        }
+        return renames;
+    }
+
+    /**
+     * Renames each staged file to its target; files already moved by an earlier attempt are skipped.
+     */
+    private static void apply(Map<Path, Path> renames, Set<Path> directories) throws IOException {
+        for (Map.Entry<Path, Path> rename : renames.entrySet()) {
+            Path file = rename.getValue();
+            if (!Files.exists(file)) {
+                continue;
+            }
+            try {
+                Files.move(file, rename.getKey(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(file, rename.getKey(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        forceDirectories(directories);
+    }
+
+    /**
+     * Forces the files concurrently: file systems fold syncs that are in flight together into one
+     * journal commit, which is what makes a batch cheaper than syncing each file as it is written.
+     */
+    private static void forceAll(Collection<Path> files) throws IOException {
+        List<Future<?>> forces = new ArrayList<>(files.size());
+        for (Path file : files) {
+            forces.add(FORCE_POOL.submit(() -> {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+                return null;
+            }));
+        }
+        IOException failure = null;
+        for (Future<?> force : forces) {
+            try {
+                force.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while forcing a batch");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static void forceDirectories(Set<Path> directories) {
+        for (Path directory : directories) {
+            forceDirectory(directory);
+        }
+    }
+
+    /**
+     * Persists a directory's entries. Not every platform can open a directory; there the rename
+     * itself is as durable as it gets.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Windows cannot open directories
+        }
+    }
+
+    /**
+     * {@code magic | version | keyCheck | count | name*}, then an HMAC over everything before it,
+     * written last and forced, so a journal with a valid MAC is complete. Names are relative to the
+     * journal's directory.
+     */
+    static void writeJournal(Path journalFile, List<String> names, SecretKey key) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(JOURNAL_MAGIC);
+            out.writeByte(VERSION);
+            out.write(keyCheck(key));
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+        }
+        byte[] body = bytes.toByteArray();
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(body.length + MAC_LENGTH).put(body).put(journalMac(key).doFinal(body));
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Returns the journal's names, null if it was never sealed, or {@link #FOREIGN} if it was
+     * written under another key or by another version.
+     */
+    private static List<String> readJournal(Path journalFile, SecretKey key) throws Exception {
+        byte[] data = Files.readAllBytes(journalFile);
+        int prefix = JOURNAL_MAGIC.length + 1 + MAC_LENGTH;
+        if (data.length < prefix) {
+            return null;
+        }
+        if (!Arrays.equals(Arrays.copyOf(data, JOURNAL_MAGIC.length), JOURNAL_MAGIC)
+                || data[JOURNAL_MAGIC.length] != VERSION
+                || !MessageDigest.isEqual(Arrays.copyOfRange(data, JOURNAL_MAGIC.length + 1, prefix), keyCheck(key))) {
+            return FOREIGN;
+        }
+        if (data.length < prefix + 4 + MAC_LENGTH) {
+            return null;
+        }
+        byte[] body = Arrays.copyOf(data, data.length - MAC_LENGTH);
+        if (!MessageDigest.isEqual(journalMac(key).doFinal(body), Arrays.copyOfRange(data, body.length, data.length))) {
+            return null;
+        }
+        List<String> names = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, prefix, body.length - prefix))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                names.add(in.readUTF());
+            }
+            if (in.available() != 0) {
+                throw new IOException("Malformed batch journal: " + journalFile);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Malformed batch journal: " + journalFile, e);
+        }
+        return names;
+    }
+
+    private static byte[] keyCheck(SecretKey key) throws Exception {
+        return hmac(key, "securevault batch journal key check v1").doFinal(JOURNAL_MAGIC);
+    }
+
+    private static Mac journalMac(SecretKey key) throws Exception {
+        return hmac(key, "securevault batch journal v1");
+    }
+
+    private static Mac hmac(SecretKey key, String label) throws Exception {
+        byte[] macKey = KeyDerivation.deriveSubkey(key, label);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        Arrays.fill(macKey, (byte) 0);
+        return mac;
+    }
+}
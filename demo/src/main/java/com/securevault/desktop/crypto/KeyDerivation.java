@@ -3,9 +3,15 @@ package com.securevault.desktop.crypto;
 import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
 import org.bouncycastle.crypto.params.Argon2Parameters;
 
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 public class KeyDerivation {
 
@@ -15,6 +21,20 @@ public class KeyDerivation {
     private static final int MEMORY = 65536; // 64 MB
     private static final int PARALLELISM = 1;
 
+    /**
+     * Heap the Argon2 derivation touches while it runs.
+     */
+    public static long memoryCostBytes() {
+        return MEMORY * 1024L;
+    }
+
+    /**
+     * Argon2 parameters, for display. They cannot be tuned: a different cost derives another key.
+     */
+    public static String describeCost() {
+        return String.format("Argon2id, %d MB, %d iterations, parallelism %d", MEMORY / 1024, ITERATIONS, PARALLELISM);
+    }
+
     public static SecretKey deriveKeyFromPassword(char[] password) {
         // For simplicity, using a static salt. IN A REAL-WORLD SCENARIO, GENERATE AND STORE A UNIQUE SALT.
         byte[] salt = "static-salt-for-mvp-demo-app".getBytes(StandardCharsets.UTF_8);
@@ -32,6 +52,80 @@ public class KeyDerivation {
         byte[] hash = new byte[HASH_LENGTH];
         generator.generateBytes(password, hash);
 
-        return new SecretKeySpec(hash, "AES");
+        SecretKey key = new DerivedKey(hash);
+        Arrays.fill(hash, (byte) 0);
+        return key;
+    }
+
+    /**
+     * Zeroes a key returned by {@link #deriveKeyFromPassword}; further use of it fails.
+     */
+    public static void destroy(SecretKey key) {
+        if (key instanceof DerivedKey) {
+            ((DerivedKey) key).destroy();
+        }
+    }
+
+    /**
+     * Derives an independent 32-byte key for one purpose, so the file key is never reused directly
+     * outside AEAD encryption. Callers should zero the result when done.
+     */
+    public static byte[] deriveSubkey(SecretKey key, String label) throws Exception {
+        Mac derive = Mac.getInstance("HmacSHA256");
+        derive.init(new SecretKeySpec(key.getEncoded(), "HmacSHA256"));
+        return derive.doFinal(label.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * AES key whose bytes can be zeroed. {@link SecretKeySpec} keeps its own copy and cannot be
+     * destroyed on this JDK; ciphers only ever see copies from {@link #getEncoded}. It refuses to be
+     * serialized, which would leave a copy of the bytes that destroy() cannot reach.
+     */
+    private static final class DerivedKey implements SecretKey {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] key;
+        private volatile boolean destroyed;
+
+        DerivedKey(byte[] key) {
+            this.key = key.clone();
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return "AES";
+        }
+
+        @Override
+        public String getFormat() {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            if (destroyed) {
+                throw new IllegalStateException("Key has been destroyed");
+            }
+            return key.clone();
+        }
+
+        @Override
+        public void destroy() {
+            destroyed = true;
+            Arrays.fill(key, (byte) 0);
+        }
+
+        @Override
+        public boolean isDestroyed() {
+            return destroyed;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            throw new NotSerializableException("Derived keys cannot be serialized");
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException {
+            throw new NotSerializableException("Derived keys cannot be serialized");
+        }
     }
 }
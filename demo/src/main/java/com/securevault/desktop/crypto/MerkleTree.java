@@ -0,0 +1,118 @@
+package com.securevault.desktop.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Root of a hash tree over the chunks of a file, stored as its checksum trailer when the header
+ * has {@link FileHeader#FLAG_MERKLE_TRAILER}.
+ *
+ * <p>Leaves are {@code SHA-256(0x00 | chunk index | chunk plaintext)} and inner nodes
+ * {@code SHA-256(0x01 | left | right)}, shaped as in RFC 6962: the left subtree of every node is
+ * the largest complete one. Leaves do not depend on each other, so chunks can be hashed on any
+ * thread; they only have to be added in order. Only the roots of the complete subtrees seen so far
+ * are kept, one per set bit of the leaf count, which is also all a checkpoint has to store.</p>
+ */
+public final class MerkleTree extends RunningHash.Resumable {
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+    private static final int HASH_LENGTH = 32;
+
+    private final List<byte[]> subtrees = new ArrayList<>(); // largest first
+    private long leafCount;
+
+    public static byte[] leafHash(long index, ByteBuffer chunk) {
+        MessageDigest digest = sha256();
+        digest.update(LEAF);
+        digest.update(ByteBuffer.allocate(8).putLong(0, index));
+        digest.update(chunk.duplicate());
+        return digest.digest();
+    }
+
+    private static byte[] nodeHash(byte[] left, byte[] right) {
+        MessageDigest digest = sha256();
+        digest.update(NODE);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    /**
+     * Adds the hash of the next chunk, as computed by {@link #leafHash}.
+     */
+    public void addLeaf(byte[] leaf) {
+        byte[] node = leaf;
+        // Every trailing 1 bit of the count is a complete subtree of the same size to merge with
+        for (long count = leafCount; (count & 1) == 1; count >>>= 1) {
+            node = nodeHash(subtrees.remove(subtrees.size() - 1), node);
+        }
+        subtrees.add(node);
+        leafCount++;
+    }
+
+    public long getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * Hashes {@code data} as the next chunk.
+     */
+    @Override
+    public void update(ByteBuffer data) {
+        addLeaf(leafHash(leafCount, data));
+        data.position(data.limit());
+    }
+
+    /**
+     * The root over every chunk added so far.
+     */
+    @Override
+    public byte[] digest() {
+        if (subtrees.isEmpty()) {
+            throw new IllegalStateException("No chunks were hashed");
+        }
+        byte[] root = subtrees.get(subtrees.size() - 1);
+        for (int i = subtrees.size() - 2; i >= 0; i--) {
+            root = nodeHash(subtrees.get(i), root);
+        }
+        return root;
+    }
+
+    @Override
+    public byte[] encodedState() {
+        ByteBuffer state = ByteBuffer.allocate(8 + subtrees.size() * HASH_LENGTH);
+        state.putLong(leafCount);
+        for (byte[] subtree : subtrees) {
+            state.put(subtree);
+        }
+        return state.array();
+    }
+
+    static MerkleTree restore(byte[] encodedState) throws IOException {
+        ByteBuffer state = ByteBuffer.wrap(encodedState);
+        MerkleTree tree = new MerkleTree();
+        tree.leafCount = encodedState.length >= 8 ? state.getLong() : -1;
+        if (tree.leafCount < 0 || state.remaining() != Long.bitCount(tree.leafCount) * HASH_LENGTH) {
+            throw new IOException("Invalid hash tree state");
+        }
+        while (state.hasRemaining()) {
+            byte[] subtree = new byte[HASH_LENGTH];
+            state.get(subtree);
+            tree.subtrees.add(subtree);
+        }
+        return tree;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,602 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only encrypted container for many small files.
+ *
+ * <p>Layout: pack header, then a log of records {@code type | length | nonce | ciphertext}.
+ * Each append session ends with an encrypted INDEX record listing every live member and a
+ * FOOTER record pointing at it. Members are read back by offset with a single positional read.
+ * Every record binds the pack header, its type and its offset as associated data.</p>
+ */
+public class PackFile implements Closeable {
+
+    public static final String EXTENSION = ".svpack";
+    static final String TEMP_SUFFIX = ".tmp"; // a replacement pack while it is written
+    public static final int MAX_MEMBER_SIZE = 64 * 1024 * 1024; // larger files belong in their own .enc
+    // Directories of at least this many files averaging at most SMALL_FILE_SIZE go into a pack
+    private static final int MIN_PACKED_FILES = 16;
+    private static final int SMALL_FILE_SIZE = 256 * 1024;
+
+    private static final byte[] MAGIC = "SVPK".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int PACK_ID_LENGTH = 16;
+    private static final int HEADER_LENGTH = MAGIC.length + 2 + PACK_ID_LENGTH;
+
+    private static final byte TYPE_DATA = 1;
+    private static final byte TYPE_INDEX = 2;
+    private static final byte TYPE_FOOTER = 3;
+    private static final int RECORD_PREFIX = 1 + 4; // type + length
+    private static final int FOOTER_LENGTH = RECORD_PREFIX + 8;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final SecretKey key;
+    private final byte[] header;
+    private final CipherSuite suite;
+    private final Cipher cipher;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Entry> index = new LinkedHashMap<>();
+
+    private OutputStream appendStream;
+    private long appendOffset;
+    // Where the last commit ended, and the index as of that commit
+    private long committedEnd;
+    private Map<String, Entry> committedIndex = Map.of();
+    private boolean dirty;
+    private boolean readOnly;
+
+    private PackFile(FileChannel channel, SecretKey key, byte[] header, CipherSuite suite) throws Exception {
+        this.channel = channel;
+        this.header = header;
+        this.suite = suite;
+        this.key = suite.adaptKey(key);
+        this.cipher = suite.getInstance();
+    }
+
+    /**
+     * Opens an existing pack, or creates an empty one using the preferred cipher suite.
+     */
+    public static PackFile open(Path packPath, SecretKey key) throws Exception {
+        return open(packPath, key, false);
+    }
+
+    /**
+     * Opens an existing pack for reading only; an uncommitted tail is ignored rather than truncated.
+     */
+    public static PackFile openReadOnly(Path packPath, SecretKey key) throws Exception {
+        return open(packPath, key, true);
+    }
+
+    private static PackFile open(Path packPath, SecretKey key, boolean readOnly) throws Exception {
+        FileChannel channel = readOnly
+                ? FileChannel.open(packPath, StandardOpenOption.READ)
+                : FileChannel.open(packPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                if (readOnly) {
+                    throw new IOException("Empty pack file: " + packPath);
+                }
+                CipherSuite suite = CipherBenchmark.preferredSuite();
+                byte[] packId = new byte[PACK_ID_LENGTH];
+                new SecureRandom().nextBytes(packId);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+                header.put(MAGIC).put((byte) VERSION).put((byte) suite.getId()).put(packId);
+                header.flip();
+                channel.write(header, 0);
+                PackFile pack = new PackFile(channel, key, header.array(), suite);
+                pack.appendOffset = HEADER_LENGTH;
+                pack.markCommitted();
+                return pack;
+            }
+
+            byte[] header = readFully(channel, 0, HEADER_LENGTH);
+            if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+                throw new IOException("Not a pack file: " + packPath);
+            }
+            if ((header[MAGIC.length] & 0xFF) != VERSION) {
+                throw new IOException("Unsupported pack version: " + (header[MAGIC.length] & 0xFF));
+            }
+            PackFile pack = new PackFile(channel, key, header, CipherSuite.fromId(header[MAGIC.length + 1] & 0xFF));
+            pack.readOnly = readOnly;
+            pack.loadIndex();
+            pack.markCommitted();
+            return pack;
+        } catch (Exception e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public List<Entry> entries() {
+        return new ArrayList<>(index.values());
+    }
+
+    public Entry getEntry(String name) {
+        return index.get(name);
+    }
+
+    public void add(Path file, String name) throws Exception {
+        long size = Files.size(file);
+        if (size > MAX_MEMBER_SIZE) {
+            throw new IOException("File too large for a pack (" + size + " bytes): " + file);
+        }
+        add(name, Files.readAllBytes(file), Files.getLastModifiedTime(file).toMillis());
+    }
+
+    public void add(String name, byte[] data, long modifiedTime) throws Exception {
+        if (data.length > MAX_MEMBER_SIZE) {
+            throw new IOException("Member too large for a pack (" + data.length + " bytes): " + name);
+        }
+        if (readOnly) {
+            throw new IOException("Pack is open read-only");
+        }
+        long offset = appendOffset;
+        int recordLength = appendRecord(TYPE_DATA, data);
+        // A later member with the same name supersedes the earlier one
+        index.put(name, new Entry(name, offset, recordLength, data.length, modifiedTime));
+    }
+
+    public byte[] read(String name) throws Exception {
+        Entry entry = index.get(name);
+        if (entry == null) {
+            throw new IOException("No such member: " + name);
+        }
+        flushAppends();
+        return readRecord(entry.offset, TYPE_DATA);
+    }
+
+    /**
+     * Authenticates every live member; the index itself was authenticated when the pack was opened.
+     *
+     * @return the total plaintext size of all members
+     */
+    public long verify() throws Exception {
+        flushAppends();
+        long total = 0;
+        for (Entry entry : index.values()) {
+            byte[] data = readRecord(entry.offset, TYPE_DATA);
+            if (data.length != entry.size) {
+                throw new SecurityException("Pack member size mismatch: " + entry.name);
+            }
+            total += data.length;
+            Arrays.fill(data, (byte) 0);
+        }
+        return total;
+    }
+
+    /**
+     * Writes the index and footer for everything appended so far and forces them to disk.
+     */
+    public void commit() throws Exception {
+        if (!dirty) {
+            return;
+        }
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(indexBytes)) {
+            out.writeInt(index.size());
+            for (Entry entry : index.values()) {
+                out.writeUTF(entry.name);
+                out.writeLong(entry.offset);
+                out.writeInt(entry.recordLength);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modifiedTime);
+            }
+        }
+        long indexOffset = appendOffset;
+        appendRecord(TYPE_INDEX, indexBytes.toByteArray());
+
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+        footer.put(TYPE_FOOTER).putInt(8).putLong(indexOffset);
+        appendStream.write(footer.array());
+        appendOffset += FOOTER_LENGTH;
+
+        flushAppends();
+        channel.force(false);
+        dirty = false;
+        markCommitted();
+    }
+
+    /**
+     * Drops every member added since the last commit and truncates the file back to that commit's
+     * footer, so closing the pack afterwards commits nothing.
+     */
+    public void rollback() throws IOException {
+        if (readOnly) {
+            return;
+        }
+        // Whatever is still buffered is simply never written
+        appendStream = null;
+        channel.truncate(committedEnd);
+        appendOffset = committedEnd;
+        index.clear();
+        index.putAll(committedIndex);
+        dirty = false;
+    }
+
+    private void markCommitted() {
+        committedEnd = appendOffset;
+        committedIndex = new LinkedHashMap<>(index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to commit pack index", e);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private int appendRecord(byte type, byte[] plaintext) throws Exception {
+        if (appendStream == null) {
+            channel.position(appendOffset);
+            appendStream = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+        }
+        byte[] nonce = new byte[CipherSuite.NONCE_LENGTH];
+        random.nextBytes(nonce);
+        suite.init(cipher, Cipher.ENCRYPT_MODE, key, nonce);
+        cipher.updateAAD(associatedData(type, appendOffset));
+        byte[] ciphertext = cipher.doFinal(plaintext);
+
+        int length = nonce.length + ciphertext.length;
+        ByteBuffer prefix = ByteBuffer.allocate(RECORD_PREFIX);
+        prefix.put(type).putInt(length);
+        appendStream.write(prefix.array());
+        appendStream.write(nonce);
+        appendStream.write(ciphertext);
+
+        appendOffset += RECORD_PREFIX + length;
+        dirty = true;
+        return RECORD_PREFIX + length;
+    }
+
+    private void flushAppends() throws IOException {
+        if (appendStream != null) {
+            appendStream.flush();
+        }
+    }
+
+    private byte[] readRecord(long offset, byte expectedType) throws Exception {
+        ByteBuffer prefix = ByteBuffer.wrap(readFully(channel, offset, RECORD_PREFIX));
+        byte type = prefix.get();
+        int length = prefix.getInt();
+        if (type != expectedType || length < CipherSuite.NONCE_LENGTH + CipherSuite.TAG_LENGTH
+                || offset + RECORD_PREFIX + length > channel.size()) {
+            throw new SecurityException("Pack record at offset " + offset + " is corrupted.");
+        }
+        byte[] record = readFully(channel, offset + RECORD_PREFIX, length);
+
+        suite.init(cipher, Cipher.DECRYPT_MODE, key, Arrays.copyOf(record, CipherSuite.NONCE_LENGTH));
+        cipher.updateAAD(associatedData(type, offset));
+        return cipher.doFinal(record, CipherSuite.NONCE_LENGTH, length - CipherSuite.NONCE_LENGTH);
+    }
+
+    private byte[] associatedData(byte type, long offset) {
+        ByteBuffer aad = ByteBuffer.allocate(header.length + 1 + 8);
+        aad.put(header).put(type).putLong(offset);
+        return aad.array();
+    }
+
+    /**
+     * Loads the index of the last committed session. A footer is only trusted once the index
+     * record it points at authenticates and ends right before it; the tail after it is discarded
+     * on a read-write open only if it holds nothing but members of a session that never committed.
+     */
+    private void loadIndex() throws Exception {
+        long size = channel.size();
+        long footerOffset = size - FOOTER_LENGTH;
+        long indexOffset = footerOffset >= HEADER_LENGTH ? footerAt(footerOffset) : -1;
+        if (indexOffset >= 0) {
+            readIndex(indexOffset, footerOffset);
+            appendOffset = size;
+            return;
+        }
+
+        // No footer at the end: an append session died before committing, or the footer is damaged
+        Walk walk = walkRecords(size);
+        long indexEnd = walk.lastIndex > walk.lastFooter ? readIndex(walk.lastIndex, -1) : -1;
+        boolean onlyFooterDamaged = indexEnd >= 0 && walk.end == indexEnd && size - indexEnd <= FOOTER_LENGTH;
+        if (walk.end < size && !onlyFooterDamaged && !isTornTail(walk.end, size)) {
+            throw new IOException("Pack is damaged at offset " + walk.end + "; refusing to discard what follows.");
+        }
+        if (indexEnd >= 0) {
+            // The last session wrote its index, so only the footer after it is lost
+            appendOffset = indexEnd;
+            if (!readOnly) {
+                channel.truncate(indexEnd);
+                writeFooter(walk.lastIndex);
+                channel.force(false);
+            }
+            appendOffset += FOOTER_LENGTH;
+            return;
+        }
+        long committedEnd = HEADER_LENGTH;
+        if (walk.lastFooter >= 0) {
+            long lastIndexOffset = footerAt(walk.lastFooter);
+            if (lastIndexOffset < 0) {
+                throw new SecurityException("Pack footer at offset " + walk.lastFooter + " is corrupted.");
+            }
+            readIndex(lastIndexOffset, walk.lastFooter);
+            committedEnd = walk.lastFooter + FOOTER_LENGTH;
+        }
+        if (!readOnly) {
+            channel.truncate(committedEnd);
+        }
+        appendOffset = committedEnd;
+    }
+
+    /**
+     * Returns the index offset the footer at {@code offset} points at, or -1 if there is no
+     * well-formed footer there. The footer itself is not authenticated; see {@link #readIndex}.
+     */
+    private long footerAt(long offset) throws IOException {
+        ByteBuffer footer = ByteBuffer.wrap(readFully(channel, offset, FOOTER_LENGTH));
+        if (footer.get() != TYPE_FOOTER || footer.getInt() != 8) {
+            return -1;
+        }
+        long indexOffset = footer.getLong();
+        return indexOffset >= HEADER_LENGTH && indexOffset < offset ? indexOffset : -1;
+    }
+
+    /**
+     * Authenticates and loads the index record at {@code indexOffset}, which must end at
+     * {@code footerOffset} unless that is -1.
+     *
+     * @return the offset just past the index record
+     * @throws SecurityException if the record does not authenticate or is not where the footer says
+     */
+    private long readIndex(long indexOffset, long footerOffset) throws Exception {
+        int recordLength = ByteBuffer.wrap(readFully(channel, indexOffset + 1, 4)).getInt();
+        long indexEnd = indexOffset + RECORD_PREFIX + recordLength;
+        if (recordLength < 0 || (footerOffset >= 0 && indexEnd != footerOffset)) {
+            throw new SecurityException("Pack footer at offset " + footerOffset + " is corrupted.");
+        }
+        byte[] indexBytes;
+        try {
+            indexBytes = readRecord(indexOffset, TYPE_INDEX);
+        } catch (AEADBadTagException e) {
+            throw new SecurityException("Pack index at offset " + indexOffset + " failed authentication.");
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(indexBytes))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF(), in.readLong(), in.readInt(), in.readLong(), in.readLong());
+                index.put(entry.name, entry);
+            }
+        }
+        return indexEnd;
+    }
+
+    private void writeFooter(long indexOffset) throws IOException {
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_LENGTH);
+        footer.put(TYPE_FOOTER).putInt(8).putLong(indexOffset);
+        footer.flip();
+        while (footer.hasRemaining()) {
+            channel.write(footer, appendOffset + footer.position());
+        }
+    }
+
+    /**
+     * Where the well-formed records end, and the last index and footer among them.
+     */
+    private static final class Walk {
+        long end = HEADER_LENGTH;
+        long lastIndex = -1;
+        long lastFooter = -1;
+    }
+
+    private Walk walkRecords(long size) throws IOException {
+        Walk walk = new Walk();
+        while (walk.end + RECORD_PREFIX <= size) {
+            ByteBuffer prefix = ByteBuffer.wrap(readFully(channel, walk.end, RECORD_PREFIX));
+            byte type = prefix.get();
+            int length = prefix.getInt();
+            if (type < TYPE_DATA || type > TYPE_FOOTER || length < 0 || walk.end + RECORD_PREFIX + length > size) {
+                break;
+            }
+            if (type == TYPE_INDEX) {
+                walk.lastIndex = walk.end;
+            } else if (type == TYPE_FOOTER) {
+                walk.lastFooter = walk.end;
+            }
+            walk.end += RECORD_PREFIX + length;
+        }
+        return walk;
+    }
+
+    /**
+     * True if the bytes from {@code offset} look like what a crash leaves after the last complete
+     * record: a record cut short, a partial prefix, or zeros the file system had not yet filled in.
+     */
+    private boolean isTornTail(long offset, long size) throws IOException {
+        if (size - offset < RECORD_PREFIX) {
+            return true;
+        }
+        ByteBuffer prefix = ByteBuffer.wrap(readFully(channel, offset, RECORD_PREFIX));
+        byte type = prefix.get();
+        int length = prefix.getInt();
+        if (type >= TYPE_DATA && type <= TYPE_FOOTER && length >= 0) {
+            return true; // runs past the end of the file
+        }
+        ByteBuffer rest = ByteBuffer.allocate(64 * 1024);
+        for (long position = offset; position < size; position += rest.limit()) {
+            rest.clear().limit((int) Math.min(rest.capacity(), size - position));
+            channel.read(rest, position);
+            for (int i = 0; i < rest.position(); i++) {
+                if (rest.get(i) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of pack file");
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * True if {@code dir} holds many small files, which a pack takes in far faster than separate
+     * containers, and none too large to be a member.
+     */
+    public static boolean suits(Path dir) throws IOException {
+        long count = 0;
+        long total = 0;
+        try (var stream = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) stream.filter(Files::isRegularFile)::iterator) {
+                long size = Files.size(path);
+                if (size > MAX_MEMBER_SIZE) {
+                    return false;
+                }
+                count++;
+                total += size;
+            }
+        }
+        return count >= MIN_PACKED_FILES && total / count <= SMALL_FILE_SIZE;
+    }
+
+    /**
+     * Adds every regular file below {@code inputDir} to the pack, keyed by its relative path.
+     * An existing pack is appended to; members with the same path supersede the earlier ones,
+     * and members whose file has since been deleted stay. Empty directories are not recorded.
+     * If any file cannot be added, nothing of this call is committed: an existing pack is
+     * truncated back to its last commit, a new one is deleted.
+     */
+    public static int packDirectory(Path inputDir, Path packPath, SecretKey key) throws Exception {
+        return packDirectory(inputDir, packPath, key, false);
+    }
+
+    /**
+     * Like {@link #packDirectory(Path, Path, SecretKey)}, but with {@code replace} the files go
+     * into a new pack that takes the place of an existing one only once it is complete.
+     */
+    public static int packDirectory(Path inputDir, Path packPath, SecretKey key, boolean replace) throws Exception {
+        Path target = replace ? packPath.resolveSibling(packPath.getFileName() + TEMP_SUFFIX) : packPath;
+        if (replace) {
+            Files.deleteIfExists(target);
+        }
+        int count = 0;
+        List<VaultIndex.Entry> members = new ArrayList<>();
+        boolean created = !Files.exists(target);
+        try (PackFile pack = open(target, key)) {
+            try (var stream = Files.walk(inputDir)) {
+                for (Path path : (Iterable<Path>) stream.filter(Files::isRegularFile)::iterator) {
+                    pack.add(path, inputDir.relativize(path).toString().replace('\\', '/'));
+                    count++;
+                }
+                pack.commit();
+            } catch (Exception e) {
+                pack.rollback();
+                throw e;
+            }
+            for (Entry entry : pack.entries()) {
+                members.add(new VaultIndex.Entry(packPath.getFileName().toString(), entry.name, entry.size, entry.modifiedTime));
+            }
+        } catch (Exception e) {
+            if (created) {
+                Files.deleteIfExists(target);
+            }
+            throw e;
+        }
+        if (replace) {
+            try {
+                Files.move(target, packPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(target, packPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        // Recorded after close, which settles the pack's mtime
+        CryptoEngine.updateIndex(() -> VaultIndex.record(packPath, members, key));
+        return count;
+    }
+
+    /**
+     * Extracts every live member of the pack below {@code outputDir}, as one {@link GroupCommit} batch.
+     */
+    public static int unpackToDirectory(Path packPath, Path outputDir, SecretKey key) throws Exception {
+        Path normalizedOutputDir = outputDir.toAbsolutePath().normalize();
+        try (PackFile pack = openReadOnly(packPath, key);
+             GroupCommit batch = GroupCommit.begin(normalizedOutputDir, key)) {
+            for (Entry entry : pack.entries()) {
+                Path targetPath = normalizedOutputDir.resolve(entry.name).normalize();
+                // Ensure the target path is within the output directory (prevent path traversal)
+                if (!targetPath.startsWith(normalizedOutputDir)) {
+                    throw new IOException("Entry is outside of the target directory: " + entry.name);
+                }
+                Files.createDirectories(targetPath.getParent());
+                Files.write(batch.stage(targetPath), pack.read(entry.name));
+            }
+            batch.commit();
+            return pack.index.size();
+        }
+    }
+
+    public static class Entry {
+        private final String name;
+        private final long offset;
+        private final int recordLength;
+        private final long size;
+        private final long modifiedTime;
+
+        Entry(String name, long offset, int recordLength, long size, long modifiedTime) {
+            this.name = name;
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.securevault.desktop.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+
+/**
+ * Learns, per file system, the chunk size and {@link AsyncFilePipeline} depth that move data
+ * fastest, so an NVMe drive and a NAS mount each end up with their own settings.
+ *
+ * <p>Every pipeline run large enough to measure reports its throughput and how long the cipher
+ * thread sat waiting on reads and writes. Once the current best setting has been measured twice,
+ * the next runs try its neighbours (double or half the chunk size, one slot more or less) one at
+ * a time, starting with the ones that help the bottleneck the waits point at: deeper queues and
+ * larger chunks when I/O-bound, smaller buffers when the cipher is the limit. A neighbour that is
+ * clearly faster becomes the new best. Every {@value #REEXPLORE_RUNS} measured runs the
+ * neighbours are forgotten and measured again, so a changed disk or load is noticed.</p>
+ *
+ * <p>A file's chunk size is fixed in its header, so the chunk size is chosen per file for
+ * encryption only; decryption tunes the depth for the chunk size it is given. What was learned is
+ * kept in {@value #TUNING_FILE} once {@link #load} has named the file.</p>
+ */
+public final class PipelineTuner {
+
+    public static final String TUNING_FILE = "tuning.properties";
+    static final int MIN_DEPTH = 2;
+    static final int MAX_DEPTH = 8;
+    static final int MIN_CHUNK_SIZE = 256 * 1024;
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final long MIN_SAMPLE_BYTES = 32L * 1024 * 1024;
+    private static final int MIN_SAMPLE_CHUNKS = 8;
+    private static final double SMOOTHING = 0.3; // weight of a new sample in the running average
+    private static final double SWITCH_MARGIN = 1.05; // a neighbour must be 5% faster to take over
+    private static final double IO_BOUND_SHARE = 0.5;
+    private static final int REEXPLORE_RUNS = 50;
+
+    private static final Map<String, Target> targets = new LinkedHashMap<>();
+    private static Path tuningFile;
+    private static boolean warmedUp;
+
+    private PipelineTuner() {
+    }
+
+    /**
+     * Restores what was learned on earlier runs from {@code file}, and saves there from now on.
+     * Entries that cannot be parsed, or that name a setting outside what the tuner would try,
+     * are dropped.
+     */
+    public static synchronized void load(Path file) throws IOException {
+        tuningFile = file;
+        targets.clear();
+        if (!Files.exists(file)) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.endsWith(".best")) {
+                continue;
+            }
+            String key = name.substring(0, name.length() - ".best".length());
+            try {
+                Setting best = Setting.parse(properties.getProperty(name));
+                if (!inRange(key, best)) {
+                    continue;
+                }
+                Target target = new Target(key, best);
+                for (String measured : properties.getProperty(key + ".measured", "").split(";")) {
+                    if (!measured.isBlank()) {
+                        String[] parts = measured.split("=");
+                        Setting setting = Setting.parse(parts[0]);
+                        if (inRange(key, setting)) {
+                            target.stats.put(setting, Stat.parse(parts[1]));
+                        }
+                    }
+                }
+                target.runs = Integer.parseInt(properties.getProperty(key + ".runs", "0"));
+                targets.put(key, target);
+            } catch (RuntimeException e) {
+                // A damaged entry is relearned rather than blocking startup
+            }
+        }
+    }
+
+    /**
+     * True if {@code setting} is one the tuner could have chosen for the target {@code key}: a
+     * depth within bounds, and a chunk size within bounds for encryption or the file's own for
+     * decryption.
+     */
+    private static boolean inRange(String key, Setting setting) {
+        if (setting.depth < MIN_DEPTH || setting.depth > MAX_DEPTH) {
+            return false;
+        }
+        int decrypt = key.lastIndexOf("|decrypt|");
+        if (decrypt >= 0) {
+            return setting.chunkSize >= EngineSettings.MIN_CHUNK_SIZE && setting.chunkSize <= EngineSettings.MAX_CHUNK_SIZE
+                    && setting.chunkSize / 1024 == Integer.parseInt(key.substring(decrypt + "|decrypt|".length()));
+        }
+        return setting.chunkSize >= MIN_CHUNK_SIZE && setting.chunkSize <= MAX_CHUNK_SIZE;
+    }
+
+    /**
+     * Settings for encrypting a new file into {@code output}.
+     */
+    public static Run forEncryption(Path output) {
+        EngineSettings settings = EngineSettings.current();
+        String store = settings.isAutoTune() ? storeOf(output) : null;
+        if (store == null) {
+            return new Run(null, new Setting(settings.getChunkSize(), AsyncFilePipeline.DEPTH));
+        }
+        int start = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, settings.getChunkSize()));
+        return plan(store + "|encrypt", new Setting(start, AsyncFilePipeline.DEPTH), false);
+    }
+
+    /**
+     * Settings for decrypting a file of {@code chunkSize} chunks into {@code output}.
+     */
+    public static Run forDecryption(Path output, int chunkSize) {
+        String store = EngineSettings.current().isAutoTune() ? storeOf(output) : null;
+        if (store == null) {
+            return new Run(null, new Setting(chunkSize, AsyncFilePipeline.DEPTH));
+        }
+        return plan(store + "|decrypt|" + chunkSize / 1024, new Setting(chunkSize, AsyncFilePipeline.DEPTH), true);
+    }
+
+    /**
+     * Settings that are neither tuned nor measured.
+     */
+    static Run fixed(int chunkSize) {
+        return new Run(null, new Setting(chunkSize, AsyncFilePipeline.DEPTH));
+    }
+
+    private static synchronized Run plan(String key, Setting initial, boolean fixedChunkSize) {
+        Target target = targets.computeIfAbsent(key, k -> new Target(k, initial));
+        target.fixedChunkSize = fixedChunkSize;
+        return new Run(target, target.next());
+    }
+
+    /**
+     * Largest pipeline buffer footprint an encryption would run with now, on any store.
+     */
+    public static synchronized long largestFootprint() {
+        long largest = AsyncFilePipeline.bufferFootprint(EngineSettings.current().getChunkSize());
+        if (EngineSettings.current().isAutoTune()) {
+            for (Target target : targets.values()) {
+                largest = Math.max(largest, target.next().footprint());
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Largest pipeline buffer footprint a decryption of {@code chunkSize} chunks would run with now.
+     */
+    public static synchronized long largestFootprint(int chunkSize) {
+        int depth = AsyncFilePipeline.DEPTH;
+        if (EngineSettings.current().isAutoTune()) {
+            for (Target target : targets.values()) {
+                depth = Math.max(depth, target.next().depth);
+            }
+        }
+        return AsyncFilePipeline.bufferFootprint(chunkSize, depth);
+    }
+
+    /**
+     * What has been learned, one store and direction per line.
+     */
+    public static synchronized String describe() {
+        StringBuilder text = new StringBuilder();
+        for (Target target : targets.values()) {
+            Stat best = target.stats.get(target.best);
+            text.append(String.format("%s: %s%s%n", target.key.replace('|', ' '), target.best,
+                    best == null ? " (not measured yet)" : String.format(", %.0f MB/s, %d run(s)", best.mbPerSecond, best.samples)));
+        }
+        return text.toString();
+    }
+
+    private static String storeOf(Path output) {
+        try {
+            Path dir = output.toAbsolutePath().getParent();
+            while (dir != null && !Files.exists(dir)) {
+                dir = dir.getParent();
+            }
+            if (dir == null) {
+                return null;
+            }
+            FileStore store = Files.getFileStore(dir);
+            return store.type() + ":" + store.name();
+        } catch (IOException e) {
+            return null; // Unknown stores run with the profile's settings
+        }
+    }
+
+    private static synchronized void record(Target target, Setting setting, long bytes, long elapsedNanos, long ioWaitNanos) {
+        if (bytes < Math.max(MIN_SAMPLE_BYTES, (long) MIN_SAMPLE_CHUNKS * setting.chunkSize) || elapsedNanos <= 0) {
+            return; // Small runs are dominated by setup and say little about throughput
+        }
+        if (!warmedUp) {
+            warmedUp = true; // The first large run of a process also pays for compiling the cipher path
+            return;
+        }
+        target.stats.computeIfAbsent(setting, s -> new Stat()).add(bytes / 1e6 / (elapsedNanos / 1e9));
+        target.ioBound = ioWaitNanos > elapsedNanos * IO_BOUND_SHARE;
+        target.runs++;
+
+        Stat best = target.stats.get(target.best);
+        for (Map.Entry<Setting, Stat> entry : target.stats.entrySet()) {
+            if (best == null || entry.getValue().mbPerSecond > best.mbPerSecond * SWITCH_MARGIN) {
+                target.best = entry.getKey();
+                best = entry.getValue();
+            }
+        }
+        if (target.runs % REEXPLORE_RUNS == 0) {
+            target.stats.keySet().removeIf(s -> !s.equals(target.best));
+        }
+        save();
+    }
+
+    private static void save() {
+        if (tuningFile == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        for (Target target : targets.values()) {
+            properties.setProperty(target.key + ".best", target.best.toString());
+            properties.setProperty(target.key + ".runs", String.valueOf(target.runs));
+            List<String> measured = new ArrayList<>();
+            target.stats.forEach((setting, stat) -> measured.add(setting + "=" + stat));
+            properties.setProperty(target.key + ".measured", String.join(";", measured));
+        }
+        Path temp = tuningFile.resolveSibling(TUNING_FILE + ".tmp");
+        try {
+            Files.createDirectories(tuningFile.getParent());
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, "Learned pipeline settings per file system");
+            }
+            try {
+                Files.move(temp, tuningFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, tuningFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // Losing what was learned only costs a few exploratory runs next time
+        }
+    }
+
+    /**
+     * One pipeline run: the settings it should use and what it measured.
+     */
+    public static final class Run {
+        private final Target target;
+        private final Setting setting;
+        private long startNanos;
+        private long readWaitNanos;
+        private long writeWaitNanos;
+
+        private Run(Target target, Setting setting) {
+            this.target = target;
+            this.setting = setting;
+        }
+
+        public int getChunkSize() {
+            return setting.chunkSize;
+        }
+
+        public int getDepth() {
+            return setting.depth;
+        }
+
+        void started() {
+            startNanos = System.nanoTime();
+        }
+
+        /** The cipher thread waited for a read: the read-ahead queue ran dry. */
+        void readWaited(long nanos) {
+            readWaitNanos += nanos;
+        }
+
+        /** The cipher thread waited for a write: the write-behind queue was full. */
+        void writeWaited(long nanos) {
+            writeWaitNanos += nanos;
+        }
+
+        void finished(long bytes) {
+            if (target != null) {
+                record(target, setting, bytes, System.nanoTime() - startNanos, readWaitNanos + writeWaitNanos);
+            }
+        }
+    }
+
+    private static final class Target {
+        private final String key;
+        private final Map<Setting, Stat> stats = new LinkedHashMap<>();
+        private Setting best;
+        private boolean fixedChunkSize;
+        private boolean ioBound = true;
+        private int runs;
+
+        Target(String key, Setting best) {
+            this.key = key;
+            this.best = best;
+        }
+
+        /**
+         * The best setting until it has been measured twice, then each unmeasured neighbour in turn.
+         */
+        Setting next() {
+            Stat stat = stats.get(best);
+            if (stat == null || stat.samples < 2) {
+                return best;
+            }
+            for (Setting neighbour : neighbours()) {
+                if (!stats.containsKey(neighbour)) {
+                    return neighbour;
+                }
+            }
+            return best;
+        }
+
+        private List<Setting> neighbours() {
+            List<Setting> depths = List.of(new Setting(best.chunkSize, best.depth + 1), new Setting(best.chunkSize, best.depth - 1));
+            List<Setting> sizes = fixedChunkSize ? List.of()
+                    : List.of(new Setting(best.chunkSize * 2, best.depth), new Setting(best.chunkSize / 2, best.depth));
+            List<Setting> ordered = new ArrayList<>();
+            if (ioBound) {
+                // deeper, larger, smaller, shallower
+                ordered.add(depths.get(0));
+                ordered.addAll(sizes);
+                ordered.add(depths.get(1));
+            } else {
+                // smaller, shallower, larger, deeper
+                ordered.addAll(sizes.isEmpty() ? List.of() : List.of(sizes.get(1)));
+                ordered.add(depths.get(1));
+                ordered.addAll(sizes.isEmpty() ? List.of() : List.of(sizes.get(0)));
+                ordered.add(depths.get(0));
+            }
+            long budget = EngineSettings.current().effectiveMemoryBudgetMb() * 1024 * 1024 / 4;
+            ordered.removeIf(s -> s.depth < MIN_DEPTH || s.depth > MAX_DEPTH || s.footprint() > budget
+                    || (s.chunkSize != best.chunkSize && (s.chunkSize < MIN_CHUNK_SIZE || s.chunkSize > MAX_CHUNK_SIZE)));
+            return ordered;
+        }
+    }
+
+    private static final class Setting {
+        private final int chunkSize;
+        private final int depth;
+
+        Setting(int chunkSize, int depth) {
+            this.chunkSize = chunkSize;
+            this.depth = depth;
+        }
+
+        long footprint() {
+            return AsyncFilePipeline.bufferFootprint(chunkSize, depth);
+        }
+
+        static Setting parse(String text) {
+            String[] parts = text.trim().split("x");
+            return new Setting(Math.multiplyExact(Integer.parseInt(parts[0].replace("KB", "")), 1024), Integer.parseInt(parts[1]));
+        }
+
+        @Override
+        public String toString() {
+            return chunkSize / 1024 + "KBx" + depth;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Setting && ((Setting) o).chunkSize == chunkSize && ((Setting) o).depth == depth;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(chunkSize, depth);
+        }
+    }
+
+    private static final class Stat {
+        private double mbPerSecond;
+        private int samples;
+
+        void add(double sample) {
+            mbPerSecond = samples == 0 ? sample : SMOOTHING * sample + (1 - SMOOTHING) * mbPerSecond;
+            samples++;
+        }
+
+        static Stat parse(String text) {
+            String[] parts = text.split("/");
+            Stat stat = new Stat();
+            stat.mbPerSecond = Double.parseDouble(parts[0]);
+            stat.samples = Integer.parseInt(parts[1]);
+            return stat;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%.1f/%d", mbPerSecond, samples);
+        }
+    }
+}
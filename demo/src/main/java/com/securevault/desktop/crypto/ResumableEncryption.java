@@ -0,0 +1,251 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Chunked encryption of very large files that survives a crash.
+ *
+ * <p>Ciphertext goes to {@code <output>.part}. Every {@link #CHECKPOINT_INTERVAL} chunks the
+ * part file is forced to disk and {@code <output>.ckpt} is atomically replaced with the header,
+ * the input's size and mtime, the number of committed chunks and the running checksum state,
+ * all MAC'ed with a key derived from the encryption key. Running the same job again validates
+ * the checkpoint and the last committed chunk, truncates anything written after it, and carries on.</p>
+ */
+public class ResumableEncryption {
+
+    public static final String PART_SUFFIX = ".part";
+    public static final String CHECKPOINT_SUFFIX = ".ckpt";
+    static final int CHECKPOINT_INTERVAL = 256; // chunks, 256 MB at the default chunk size
+
+    private static final byte[] MAGIC = "SVCK".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int MAC_LENGTH = 32;
+
+    /**
+     * Encrypts {@code inputFile}, resuming a previous interrupted run into the same output if one exists.
+     *
+     * @return the number of chunks that were skipped because an earlier run had committed them
+     */
+    public static long encryptFile(Path inputFile, Path outputFile, SecretKey key) throws Exception {
+        Path partFile = sibling(outputFile, PART_SUFFIX);
+        Path checkpointFile = sibling(outputFile, CHECKPOINT_SUFFIX);
+        Mac mac = checkpointMac(key);
+
+        Checkpoint checkpoint = loadValidCheckpoint(inputFile, partFile, checkpointFile, key, mac);
+        PipelineTuner.Run run = null; // a resumed run keeps the chunk size it started with and is not measured
+        if (checkpoint == null) {
+            run = PipelineTuner.forEncryption(outputFile);
+            FileHeader header = FileMetadata.forFile(inputFile)
+                    .attachTo(FileHeader.chunked(CipherBenchmark.preferredSuite(), run.getChunkSize()), key);
+            checkpoint = new Checkpoint(header.toBytes(), Files.size(inputFile),
+                    Files.getLastModifiedTime(inputFile).toMillis(), 0, null);
+            Files.deleteIfExists(partFile);
+        }
+
+        long resumedChunks = checkpoint.committedChunks;
+        Checkpoint start = checkpoint;
+        ChunkCodec codec = new ChunkCodec(FileHeader.parse(start.header), key);
+        RunningHash.Resumable hash = RunningHash.resumable(codec.getHeader(), start.hashState);
+
+        AsyncFilePipeline.encrypt(inputFile, partFile, codec, new AsyncFilePipeline.Checkpointing() {
+            @Override
+            public long committedChunks() {
+                return start.committedChunks;
+            }
+
+            @Override
+            public RunningHash hash() {
+                return hash;
+            }
+
+            @Override
+            public int interval() {
+                return CHECKPOINT_INTERVAL;
+            }
+
+            @Override
+            public void commit(long committedChunks) throws Exception {
+                Checkpoint next = new Checkpoint(start.header, start.inputSize, start.inputModified,
+                        committedChunks, hash.encodedState());
+                writeCheckpoint(checkpointFile, next, mac);
+            }
+        }, run);
+
+        // The final chunk was just written; make the file durable before publishing it
+        try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        try {
+            Files.move(partFile, outputFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile, outputFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.deleteIfExists(checkpointFile);
+        return resumedChunks;
+    }
+
+    /**
+     * True if an interrupted run left state behind for this output.
+     */
+    public static boolean hasPartialOutput(Path outputFile) {
+        return Files.exists(sibling(outputFile, CHECKPOINT_SUFFIX)) && Files.exists(sibling(outputFile, PART_SUFFIX));
+    }
+
+    private static Checkpoint loadValidCheckpoint(Path inputFile, Path partFile, Path checkpointFile,
+                                                  SecretKey key, Mac mac) throws Exception {
+        if (!Files.exists(checkpointFile) || !Files.exists(partFile)) {
+            return null;
+        }
+        Checkpoint checkpoint;
+        try {
+            checkpoint = readCheckpoint(checkpointFile, mac);
+        } catch (IOException | SecurityException e) {
+            return null; // written by another key, or damaged: start over
+        }
+        if (checkpoint.inputSize != Files.size(inputFile)
+                || checkpoint.inputModified != Files.getLastModifiedTime(inputFile).toMillis()) {
+            return null; // input changed since the interrupted run
+        }
+
+        ChunkCodec codec = new ChunkCodec(FileHeader.parse(checkpoint.header), key);
+        long committedEnd = codec.chunkOffset(checkpoint.committedChunks);
+        try (FileChannel part = FileChannel.open(partFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel input = FileChannel.open(inputFile, StandardOpenOption.READ)) {
+            if (part.size() < committedEnd || !Arrays.equals(readFully(part, 0, checkpoint.header.length), checkpoint.header)) {
+                return null;
+            }
+            if (checkpoint.committedChunks > 0 && !lastChunkMatches(codec, checkpoint.committedChunks - 1, part, input)) {
+                return null;
+            }
+            // Anything after the checkpoint was never committed
+            part.truncate(committedEnd);
+        }
+        return checkpoint;
+    }
+
+    private static boolean lastChunkMatches(ChunkCodec codec, long index, FileChannel part, FileChannel input) throws Exception {
+        int chunkSize = codec.getChunkSize();
+        ByteBuffer stored = ByteBuffer.wrap(readFully(part, codec.chunkOffset(index), chunkSize + ChunkCodec.OVERHEAD));
+        ByteBuffer plain = ByteBuffer.allocate(chunkSize);
+        try {
+            codec.open(index, false, stored, plain);
+        } catch (SecurityException e) {
+            return false;
+        }
+        return Arrays.equals(plain.array(), readFully(input, index * chunkSize, chunkSize));
+    }
+
+    private static void writeCheckpoint(Path checkpointFile, Checkpoint checkpoint, Mac mac) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeShort(checkpoint.header.length);
+            out.write(checkpoint.header);
+            out.writeLong(checkpoint.inputSize);
+            out.writeLong(checkpoint.inputModified);
+            out.writeLong(checkpoint.committedChunks);
+            out.writeShort(checkpoint.hashState.length);
+            out.write(checkpoint.hashState);
+        }
+        byte[] body = bytes.toByteArray();
+        byte[] tag = mac.doFinal(body);
+
+        Path temp = sibling(checkpointFile, ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(body));
+            channel.write(ByteBuffer.wrap(tag));
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Checkpoint readCheckpoint(Path checkpointFile, Mac mac) throws IOException {
+        byte[] data = Files.readAllBytes(checkpointFile);
+        if (data.length < MAC_LENGTH) {
+            throw new IOException("Checkpoint is truncated");
+        }
+        byte[] body = Arrays.copyOf(data, data.length - MAC_LENGTH);
+        byte[] tag = Arrays.copyOfRange(data, data.length - MAC_LENGTH, data.length);
+        if (!MessageDigest.isEqual(tag, mac.doFinal(body))) {
+            throw new SecurityException("Checkpoint authentication failed");
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+            byte[] magic = in.readNBytes(MAGIC.length);
+            if (!Arrays.equals(magic, MAGIC) || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Not a checkpoint file");
+            }
+            byte[] header = in.readNBytes(in.readUnsignedShort());
+            long inputSize = in.readLong();
+            long inputModified = in.readLong();
+            long committedChunks = in.readLong();
+            byte[] hashState = in.readNBytes(in.readUnsignedShort());
+            return new Checkpoint(header, inputSize, inputModified, committedChunks, hashState);
+        }
+    }
+
+    private static Mac checkpointMac(SecretKey key) throws Exception {
+        byte[] macKey = KeyDerivation.deriveSubkey(key, "securevault checkpoint v1");
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        Arrays.fill(macKey, (byte) 0);
+        return mac;
+    }
+
+    private static byte[] readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static Path sibling(Path file, String suffix) {
+        Path name = Paths.get(file.getFileName().toString() + suffix);
+        Path parent = file.toAbsolutePath().getParent();
+        return parent == null ? name : parent.resolve(name);
+    }
+
+    private static final class Checkpoint {
+        private final byte[] header;
+        private final long inputSize;
+        private final long inputModified;
+        private final long committedChunks;
+        private final byte[] hashState;
+
+        Checkpoint(byte[] header, long inputSize, long inputModified, long committedChunks, byte[] hashState) {
+            this.header = header;
+            this.inputSize = inputSize;
+            this.inputModified = inputModified;
+            this.committedChunks = committedChunks;
+            this.hashState = hashState;
+        }
+    }
+}
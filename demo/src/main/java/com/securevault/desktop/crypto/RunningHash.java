@@ -0,0 +1,92 @@
+package com.securevault.desktop.crypto;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Checksum over a plaintext as it streams through a pipeline, one chunk per {@link #update}.
+ * The JDK digest is faster; the BouncyCastle one can export its state for checkpoints.
+ */
+public abstract class RunningHash {
+
+    public abstract void update(ByteBuffer data);
+
+    public abstract byte[] digest();
+
+    public static RunningHash create() throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        return new RunningHash() {
+            @Override
+            public void update(ByteBuffer data) {
+                digest.update(data);
+            }
+
+            @Override
+            public byte[] digest() {
+                return digest.digest();
+            }
+        };
+    }
+
+    /**
+     * The checksum trailer {@code header} calls for: a {@link MerkleTree} root, or a SHA-256 over
+     * the whole plaintext in files written before hash trees were introduced.
+     */
+    public static RunningHash create(FileHeader header) throws NoSuchAlgorithmException {
+        return header.hasMerkleTrailer() ? new MerkleTree() : create();
+    }
+
+    /**
+     * Like {@link #create(FileHeader)}, continuing from a state exported by {@link Resumable#encodedState}.
+     */
+    public static Resumable resumable(FileHeader header, byte[] encodedState) throws IOException {
+        if (header.hasMerkleTrailer()) {
+            return encodedState == null ? new MerkleTree() : MerkleTree.restore(encodedState);
+        }
+        return new Sha256(encodedState == null ? new SHA256Digest() : new SHA256Digest(encodedState));
+    }
+
+    public abstract static class Resumable extends RunningHash {
+        public abstract byte[] encodedState();
+    }
+
+    private static final class Sha256 extends Resumable {
+        private final SHA256Digest digest;
+        private byte[] scratch = new byte[0];
+
+        private Sha256(SHA256Digest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(ByteBuffer data) {
+            if (data.hasArray()) {
+                digest.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+                return;
+            }
+            if (scratch.length < data.remaining()) {
+                scratch = new byte[data.remaining()];
+            }
+            int length = data.remaining();
+            data.get(scratch, 0, length);
+            digest.update(scratch, 0, length);
+        }
+
+        @Override
+        public byte[] digest() {
+            byte[] out = new byte[digest.getDigestSize()];
+            digest.doFinal(out, 0);
+            return out;
+        }
+
+        @Override
+        public byte[] encodedState() {
+            return digest.getEncodedState();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.securevault.desktop.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Encrypts and decrypts chunked files between streams of unknown length, e.g. a shell pipeline.
+ *
+ * <p>The format is the same as {@link AsyncFilePipeline} writes to files, so a stream can be
+ * decrypted as a file and the other way round. Memory stays at a few chunks whatever the length.
+ * The cipher runs on the calling thread and a single writer thread drains up to {@link
+ * AsyncFilePipeline#DEPTH} chunks behind it; when the consumer is slower, the writer blocks, the
+ * cipher waits for a free slot and the input is no longer read, so back-pressure reaches the
+ * producer.</p>
+ *
+ * <p>Decryption writes a chunk's plaintext only after that chunk has been authenticated, and the
+ * final chunk only after the checksum over the whole plaintext has been checked. A stream that is
+ * cut short or tampered with still fails, but the chunks before the damage have already been
+ * written by then, so consumers must treat the output as incomplete unless decryption succeeded.</p>
+ */
+public class StreamPipeline {
+
+    private StreamPipeline() {
+    }
+
+    /**
+     * Encrypts {@code in} up to its end into {@code out}. Neither stream is closed.
+     *
+     * @return the number of plaintext bytes encrypted
+     */
+    public static long encrypt(InputStream in, OutputStream out, ChunkCodec codec) throws Exception {
+        int chunkSize = codec.getChunkSize();
+        int depth = AsyncFilePipeline.DEPTH;
+        RunningHash digest = RunningHash.create(codec.getHeader());
+        ByteBuffer plain = ByteBuffer.allocate(chunkSize + ChunkCodec.TRAILER_LENGTH);
+        ByteBuffer[] sealed = new ByteBuffer[depth];
+        CompletableFuture<Void>[] writes = AsyncFilePipeline.futures(depth);
+        for (int s = 0; s < depth; s++) {
+            sealed[s] = ByteBuffer.allocate(ChunkCodec.finalChunkLength(chunkSize));
+            writes[s] = CompletableFuture.completedFuture(null);
+        }
+
+        ExecutorService writer = writer();
+        long total = 0;
+        try {
+            CompletableFuture<Void> headerWrite = write(out, ByteBuffer.wrap(codec.getHeader().toBytes()), writer);
+            for (long i = 0; ; i++) {
+                int slot = (int) (i % depth);
+                plain.clear();
+                // A short read means the end of the input; a multiple of the chunk size ends with an empty final chunk
+                int read = in.readNBytes(plain.array(), 0, chunkSize);
+                boolean last = read < chunkSize;
+                total += read;
+                plain.limit(read);
+                digest.update(plain.duplicate());
+                if (last) {
+                    plain.limit(read + ChunkCodec.TRAILER_LENGTH);
+                    plain.put(read, digest.digest());
+                }
+
+                ByteBuffer s = sealed[slot];
+                writes[slot].join(); // the slot's previous chunk must be written out
+                s.clear();
+                codec.seal(i, last, plain, s);
+                s.flip();
+                writes[slot] = write(out, s, writer);
+                if (last) {
+                    break;
+                }
+            }
+            headerWrite.join();
+            for (CompletableFuture<Void> write : writes) {
+                write.join();
+            }
+            out.flush();
+            return total;
+        } catch (CompletionException e) {
+            throw AsyncFilePipeline.unwrap(e);
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    /**
+     * Decrypts the chunks that follow an already consumed header from {@code in} into {@code out}.
+     * Neither stream is closed.
+     *
+     * <p>The final chunk can only be told apart from a full one by where the input ends, so the
+     * input is read one full chunk plus the smallest possible final chunk ahead.</p>
+     *
+     * @return the number of plaintext bytes written
+     */
+    public static long decrypt(InputStream in, OutputStream out, ChunkCodec codec) throws Exception {
+        int chunkSize = codec.getChunkSize();
+        int stride = chunkSize + ChunkCodec.OVERHEAD;
+        int depth = AsyncFilePipeline.DEPTH;
+        RunningHash digest = RunningHash.create(codec.getHeader());
+        ByteBuffer window = ByteBuffer.allocate(stride + ChunkCodec.finalChunkLength(0));
+        ByteBuffer[] plain = new ByteBuffer[depth];
+        CompletableFuture<Void>[] writes = AsyncFilePipeline.futures(depth);
+        for (int s = 0; s < depth; s++) {
+            plain[s] = ByteBuffer.allocate(chunkSize + ChunkCodec.TRAILER_LENGTH);
+            writes[s] = CompletableFuture.completedFuture(null);
+        }
+
+        ExecutorService writer = writer();
+        long total = 0;
+        try {
+            for (long i = 0; ; i++) {
+                int slot = (int) (i % depth);
+                int buffered = window.position()
+                        + in.readNBytes(window.array(), window.position(), window.remaining());
+                // With a full window another chunk must follow this one; otherwise what is left is the final chunk
+                boolean last = buffered < window.capacity();
+                int length = last ? buffered : stride;
+                if (last && (length < ChunkCodec.finalChunkLength(0) || length > ChunkCodec.finalChunkLength(chunkSize))) {
+                    throw new IOException("Encrypted stream is truncated.");
+                }
+
+                ByteBuffer p = plain[slot];
+                writes[slot].join(); // the slot's previous plaintext must be written out
+                p.clear();
+                codec.open(i, last, ByteBuffer.wrap(window.array(), 0, length), p);
+                p.flip();
+                window.position(length).limit(buffered);
+                window.compact();
+
+                byte[] storedChecksum = null;
+                if (last) {
+                    storedChecksum = new byte[ChunkCodec.TRAILER_LENGTH];
+                    p.get(p.limit() - ChunkCodec.TRAILER_LENGTH, storedChecksum);
+                    p.limit(p.limit() - ChunkCodec.TRAILER_LENGTH);
+                }
+                digest.update(p.duplicate());
+                if (last && !MessageDigest.isEqual(storedChecksum, digest.digest())) {
+                    throw new SecurityException("Checksum verification failed. Stream may be corrupted or tampered with.");
+                }
+                total += p.remaining();
+                writes[slot] = write(out, p, writer);
+                if (last) {
+                    break;
+                }
+            }
+            for (CompletableFuture<Void> write : writes) {
+                write.join();
+            }
+            out.flush();
+            return total;
+        } catch (CompletionException e) {
+            throw AsyncFilePipeline.unwrap(e);
+        } finally {
+            writer.shutdownNow();
+        }
+    }
+
+    /**
+     * Queues a write of {@code data}'s remaining bytes; writes run one at a time, in order.
+     */
+    private static CompletableFuture<Void> write(OutputStream out, ByteBuffer data, ExecutorService writer) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, writer);
+    }
+
+    private static ExecutorService writer() {
+        return Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "stream-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,428 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Encrypted index of what a vault directory holds: the original file names, archive member paths,
+ * sizes and timestamps of every container, so the vault can be searched without decrypting payloads.
+ *
+ * <p>Each key gets its own index file, {@code .index-<id>.svindex}, sealed with a key derived from
+ * the file key. Encrypt operations append a sealed record for their output as they finish, so bulk
+ * imports stay linear; a search replays the records, picks up containers that were added, replaced
+ * or removed behind the index's back, and compacts the log back into one record.</p>
+ */
+public class VaultIndex {
+
+    public static final String EXTENSION = ".svindex";
+
+    private static final byte[] MAGIC = "SVIX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = MAGIC.length + 2;
+    private static final int COMPACT_AFTER_RECORDS = 64;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd MMMM", Locale.ENGLISH);
+
+    // Index updates are read-modify-write; concurrent jobs in one process must not lose each other's entries
+    private static final Object LOCK = new Object();
+
+    /**
+     * Records a freshly encrypted file under its original name.
+     */
+    public static void recordFile(Path container, Path source, SecretKey key) throws Exception {
+        Entry entry = new Entry(container.getFileName().toString(), source.getFileName().toString(),
+                Files.size(source), Files.getLastModifiedTime(source).toMillis());
+        record(container, List.of(entry), key);
+    }
+
+    /**
+     * Records a freshly encrypted directory archive with one entry per member file.
+     */
+    public static void recordDirectory(Path container, Path sourceDir, SecretKey key) throws Exception {
+        String name = container.getFileName().toString();
+        List<Entry> members = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(sourceDir)) {
+            for (Path file : stream.filter(Files::isRegularFile).toList()) {
+                String member = sourceDir.relativize(file).toString().replace('\\', '/');
+                members.add(new Entry(name, member, Files.size(file), Files.getLastModifiedTime(file).toMillis()));
+            }
+        }
+        record(container, members, key);
+    }
+
+    /**
+     * Replaces whatever the index held for {@code container} with {@code members}.
+     */
+    public static void record(Path container, List<Entry> members, SecretKey key) throws Exception {
+        Path dir = container.toAbsolutePath().getParent();
+        String name = container.getFileName().toString();
+        Container entry = new Container(Files.getLastModifiedTime(container).toMillis(), false, members);
+        synchronized (LOCK) {
+            // Appending keeps bulk imports linear; searches compact the log
+            append(indexPath(dir, key), Map.of(name, entry), key);
+        }
+    }
+
+    /**
+     * Finds every indexed file or archive member matching all whitespace-separated terms of
+     * {@code query}. A term matches the container or member path, or the modified date written
+     * as e.g. {@code 2024-03-18 March}. An empty query lists everything.
+     *
+     * <p>Containers that changed since they were indexed are indexed first, which decrypts them once.</p>
+     */
+    public static List<Entry> search(Path vaultDir, SecretKey key, String query) throws Exception {
+        Map<String, Container> index;
+        synchronized (LOCK) {
+            Path indexFile = indexPath(vaultDir, key);
+            Loaded loaded;
+            try {
+                loaded = load(indexFile, key);
+            } catch (IOException | SecurityException e) {
+                loaded = new Loaded(); // damaged: re-scan the directory
+                loaded.torn = true;
+            }
+            index = loaded.containers;
+            if (refresh(vaultDir, index, key) || loaded.torn || loaded.records > COMPACT_AFTER_RECORDS) {
+                save(indexFile, index, key);
+            }
+        }
+
+        String[] terms = query.toLowerCase(Locale.ROOT).trim().split("\\s+");
+        List<Entry> matches = new ArrayList<>();
+        for (Container container : index.values()) {
+            for (Entry entry : container.members) {
+                if (entry.matches(terms)) {
+                    matches.add(entry);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Location of the index for {@code key} in {@code dir}. The id is derived from the key,
+     * so it reveals nothing about the password but keeps separate passwords' indexes apart.
+     */
+    public static Path indexPath(Path dir, SecretKey key) throws Exception {
+        byte[] id = KeyDerivation.deriveSubkey(key, "securevault index id v1");
+        String name = ".index-" + HexFormat.of().formatHex(id, 0, 8) + EXTENSION;
+        return dir.resolve(name);
+    }
+
+    /**
+     * Brings the index in line with the directory.
+     *
+     * @return whether anything changed
+     */
+    private static boolean refresh(Path dir, Map<String, Container> index, SecretKey key) throws Exception {
+        if (!Files.isDirectory(dir)) {
+            return false;
+        }
+        Map<String, Path> present = new LinkedHashMap<>();
+        try (Stream<Path> stream = Files.list(dir)) {
+            stream.filter(VaultIndex::isContainer).forEach(p -> present.put(p.getFileName().toString(), p));
+        }
+
+        boolean changed = index.keySet().retainAll(present.keySet());
+        for (Map.Entry<String, Path> file : present.entrySet()) {
+            long modified = Files.getLastModifiedTime(file.getValue()).toMillis();
+            Container known = index.get(file.getKey());
+            if (known != null && known.modified == modified) {
+                continue;
+            }
+            List<Entry> members = scan(file.getValue(), key);
+            // Remember containers this key cannot open so they are not retried on every search
+            index.put(file.getKey(), new Container(modified, members == null, members == null ? List.of() : members));
+            changed = true;
+        }
+        return changed;
+    }
+
+    private static boolean isContainer(Path path) {
+        String name = path.getFileName().toString();
+        return Files.isRegularFile(path)
+                && (name.endsWith(".enc") || name.endsWith(".encdir") || name.endsWith(PackFile.EXTENSION));
+    }
+
+    /**
+     * Reads a container's listing, or returns null if it was not encrypted with {@code key}.
+     */
+    private static List<Entry> scan(Path container, SecretKey key) {
+        String name = container.getFileName().toString();
+        List<Entry> members = new ArrayList<>();
+        try {
+            if (name.endsWith(".encdir")) {
+                for (CryptoEngine.ArchiveEntry entry : CryptoEngine.listDirectory(container, key)) {
+                    if (!entry.isDirectory()) {
+                        members.add(new Entry(name, entry.getName(), entry.getSize(), entry.getModifiedTime()));
+                    }
+                }
+            } else if (name.endsWith(PackFile.EXTENSION)) {
+                try (PackFile pack = PackFile.openReadOnly(container, key)) {
+                    for (PackFile.Entry entry : pack.entries()) {
+                        members.add(new Entry(name, entry.getName(), entry.getSize(), entry.getModifiedTime()));
+                    }
+                }
+            } else {
+                // The original timestamp is not stored in the file; the container's is the closest we have
+                members.add(new Entry(name, name.substring(0, name.length() - ".enc".length()),
+                        plaintextSize(container, key), Files.getLastModifiedTime(container).toMillis()));
+            }
+            return members;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static long plaintextSize(Path file, SecretKey key) throws Exception {
+        FileHeader header = CryptoEngine.readHeader(file);
+        if (header != null && header.isChunked()) {
+            // Authenticating the first chunk proves the key; the size follows from the layout
+            Arrays.fill(CryptoEngine.decryptHead(file, key, 1), (byte) 0);
+            return new ChunkCodec(header, key).plaintextSizeForStoredSize(Files.size(file));
+        }
+        return CryptoEngine.verifyFile(file, key);
+    }
+
+    // ===== Storage =====
+
+    /**
+     * Replays every record of the index. A torn or unreadable record after the first one is taken
+     * to be the tail of an interrupted append; it and anything after it are ignored.
+     */
+    private static Loaded load(Path indexFile, SecretKey key) throws Exception {
+        Loaded loaded = new Loaded();
+        if (!Files.exists(indexFile)) {
+            return loaded;
+        }
+        byte[] data = Files.readAllBytes(indexFile);
+        CipherSuite suite = parseHeader(data);
+        SecretKey indexKey = indexKey(key);
+        ByteBuffer buffer = ByteBuffer.wrap(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+        while (buffer.remaining() >= 4) {
+            int offset = buffer.position();
+            int length = buffer.getInt();
+            if (length < CipherSuite.NONCE_LENGTH + CipherSuite.TAG_LENGTH || length > buffer.remaining()) {
+                loaded.torn = true;
+                break;
+            }
+            byte[] nonce = new byte[CipherSuite.NONCE_LENGTH];
+            buffer.get(nonce);
+            byte[] plain;
+            try {
+                Cipher cipher = suite.newCipher(Cipher.DECRYPT_MODE, indexKey, nonce);
+                cipher.updateAAD(recordAad(data, offset));
+                plain = cipher.doFinal(data, buffer.position(), length - nonce.length);
+            } catch (AEADBadTagException e) {
+                if (loaded.records == 0) {
+                    throw new SecurityException("Vault index failed authentication");
+                }
+                loaded.torn = true;
+                break;
+            }
+            buffer.position(buffer.position() + length - nonce.length);
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain))) {
+                readContainers(in, loaded.containers);
+            } finally {
+                Arrays.fill(plain, (byte) 0);
+            }
+            loaded.records++;
+        }
+        loaded.torn |= buffer.hasRemaining();
+        return loaded;
+    }
+
+    /**
+     * Appends one record with {@code updates}; later records win over earlier ones on load.
+     */
+    private static void append(Path indexFile, Map<String, Container> updates, SecretKey key) throws Exception {
+        CipherSuite suite;
+        try (InputStream in = Files.newInputStream(indexFile)) {
+            suite = parseHeader(in.readNBytes(HEADER_LENGTH));
+        } catch (IOException e) {
+            save(indexFile, updates, key); // missing or not an index: start a new one
+            return;
+        }
+        byte[] header = headerBytes(suite);
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(sealRecord(header, channel.size(), updates, suite, key)));
+        }
+    }
+
+    /**
+     * Rewrites the index as a single record, replacing the file atomically.
+     */
+    private static void save(Path indexFile, Map<String, Container> index, SecretKey key) throws Exception {
+        CipherSuite suite = CipherBenchmark.preferredSuite();
+        byte[] header = headerBytes(suite);
+        byte[] record = sealRecord(header, HEADER_LENGTH, index, suite, key);
+
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        Files.write(temp, ByteBuffer.allocate(header.length + record.length).put(header).put(record).array());
+        try {
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static byte[] sealRecord(byte[] header, long offset, Map<String, Container> containers,
+                                     CipherSuite suite, SecretKey key) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeContainers(out, containers);
+        }
+        byte[] plain = bytes.toByteArray();
+
+        byte[] nonce = new byte[CipherSuite.NONCE_LENGTH];
+        new SecureRandom().nextBytes(nonce);
+        Cipher cipher = suite.newCipher(Cipher.ENCRYPT_MODE, indexKey(key), nonce);
+        // Binding the offset keeps records from being reordered or replayed elsewhere in the file
+        cipher.updateAAD(recordAad(header, offset));
+        byte[] ciphertext = cipher.doFinal(plain);
+        Arrays.fill(plain, (byte) 0);
+        return ByteBuffer.allocate(4 + nonce.length + ciphertext.length)
+                .putInt(nonce.length + ciphertext.length).put(nonce).put(ciphertext).array();
+    }
+
+    private static byte[] recordAad(byte[] header, long offset) {
+        return ByteBuffer.allocate(HEADER_LENGTH + 8).put(header, 0, HEADER_LENGTH).putLong(offset).array();
+    }
+
+    private static byte[] headerBytes(CipherSuite suite) {
+        return ByteBuffer.allocate(HEADER_LENGTH).put(MAGIC).put((byte) VERSION).put((byte) suite.getId()).array();
+    }
+
+    private static CipherSuite parseHeader(byte[] data) throws IOException {
+        if (data.length < HEADER_LENGTH || !Arrays.equals(Arrays.copyOf(data, MAGIC.length), MAGIC)
+                || data[MAGIC.length] != VERSION) {
+            throw new IOException("Not a vault index");
+        }
+        return CipherSuite.fromId(data[MAGIC.length + 1]);
+    }
+
+    private static void writeContainers(DataOutputStream out, Map<String, Container> containers) throws IOException {
+        out.writeInt(containers.size());
+        for (Map.Entry<String, Container> container : containers.entrySet()) {
+            out.writeUTF(container.getKey());
+            out.writeLong(container.getValue().modified);
+            out.writeBoolean(container.getValue().foreign);
+            out.writeInt(container.getValue().members.size());
+            for (Entry entry : container.getValue().members) {
+                out.writeUTF(entry.member);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modifiedTime);
+            }
+        }
+    }
+
+    private static void readContainers(DataInputStream in, Map<String, Container> containers) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            long modified = in.readLong();
+            boolean foreign = in.readBoolean();
+            int memberCount = in.readInt();
+            List<Entry> members = new ArrayList<>(memberCount);
+            for (int j = 0; j < memberCount; j++) {
+                members.add(new Entry(name, in.readUTF(), in.readLong(), in.readLong()));
+            }
+            containers.put(name, new Container(modified, foreign, members));
+        }
+    }
+
+    private static SecretKey indexKey(SecretKey key) throws Exception {
+        byte[] subkey = KeyDerivation.deriveSubkey(key, "securevault index v1");
+        SecretKey indexKey = new SecretKeySpec(subkey, "AES");
+        Arrays.fill(subkey, (byte) 0);
+        return indexKey;
+    }
+
+    private static final class Loaded {
+        private final Map<String, Container> containers = new LinkedHashMap<>();
+        private int records;
+        private boolean torn;
+    }
+
+    private static final class Container {
+        private final long modified;
+        private final boolean foreign;
+        private final List<Entry> members;
+
+        Container(long modified, boolean foreign, List<Entry> members) {
+            this.modified = modified;
+            this.foreign = foreign;
+            this.members = members;
+        }
+    }
+
+    public static class Entry {
+        private final String container;
+        private final String member;
+        private final long size;
+        private final long modifiedTime;
+
+        public Entry(String container, String member, long size, long modifiedTime) {
+            this.container = container;
+            this.member = member;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+        }
+
+        public String getContainer() {
+            return container;
+        }
+
+        public String getMember() {
+            return member;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+
+        boolean matches(String[] terms) {
+            String path = (container + "/" + member).toLowerCase(Locale.ROOT);
+            String date = LocalDate.ofInstant(Instant.ofEpochMilli(modifiedTime), ZoneId.systemDefault())
+                    .format(DATE_FORMAT).toLowerCase(Locale.ROOT);
+            for (String term : terms) {
+                if (!term.isEmpty() && !path.contains(term) && !date.contains(term)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies every encrypted file under a directory in parallel without writing any plaintext.
+ */
+public class VaultScrubber {
+
+    private static final String[] EXTENSIONS = {".enc", ".encdir", PackFile.EXTENSION};
+
+    public static Report scrub(Path vaultDir, SecretKey key) throws Exception {
+        return scrub(vaultDir, key, EngineSettings.current().effectiveScrubThreads());
+    }
+
+    public static Report scrub(Path vaultDir, SecretKey key, int threads) throws Exception {
+        List<Path> targets = new ArrayList<>();
+        try (var stream = Files.walk(vaultDir)) {
+            stream.filter(Files::isRegularFile).filter(VaultScrubber::isEncrypted).forEach(targets::add);
+        }
+        // Largest first, so one huge file does not start last and stretch the wall time
+        targets.sort(Comparator.comparingLong(VaultScrubber::sizeOrZero).reversed());
+
+        // A vault of fewer files than threads lends the spare ones to each file's chunks
+        int threadsPerFile = Math.max(1, threads / Math.max(1, targets.size()));
+
+        long start = System.nanoTime();
+        AtomicLong ciphertextBytes = new AtomicLong();
+        List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "vault-scrub");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Path target : targets) {
+                futures.add(pool.submit(() -> {
+                    try {
+                        verify(target, key, threadsPerFile);
+                    } catch (Exception e) {
+                        failures.add(new Failure(target, e.getMessage() != null ? e.getMessage() : e.toString()));
+                    }
+                    ciphertextBytes.addAndGet(sizeOrZero(target));
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return new Report(targets.size(), failures, ciphertextBytes.get(), System.nanoTime() - start);
+    }
+
+    private static void verify(Path target, SecretKey key, int threads) throws Exception {
+        if (target.getFileName().toString().endsWith(PackFile.EXTENSION)) {
+            try (PackFile pack = PackFile.openReadOnly(target, key)) {
+                pack.verify();
+            }
+        } else {
+            CryptoEngine.verifyFile(target, key, threads);
+        }
+    }
+
+    private static boolean isEncrypted(Path path) {
+        String name = path.getFileName().toString();
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long sizeOrZero(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public static class Failure {
+        private final Path file;
+        private final String reason;
+
+        Failure(Path file, String reason) {
+            this.file = file;
+            this.reason = reason;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    public static class Report {
+        private final int filesChecked;
+        private final List<Failure> failures;
+        private final long bytesChecked;
+        private final long elapsedNanos;
+
+        Report(int filesChecked, List<Failure> failures, long bytesChecked, long elapsedNanos) {
+            this.filesChecked = filesChecked;
+            this.failures = List.copyOf(failures);
+            this.bytesChecked = bytesChecked;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getFilesChecked() {
+            return filesChecked;
+        }
+
+        public List<Failure> getFailures() {
+            return failures;
+        }
+
+        public long getBytesChecked() {
+            return bytesChecked;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedNanos / 1_000_000;
+        }
+
+        public double getThroughputMBps() {
+            return elapsedNanos == 0 ? 0 : (bytesChecked / (1024.0 * 1024)) / (elapsedNanos / 1_000_000_000.0);
+        }
+
+        public String summary() {
+            return String.format("Verified %d files (%.1f MB) in %.2f s at %.1f MB/s: %d corrupted",
+                    filesChecked, bytesChecked / (1024.0 * 1024), elapsedNanos / 1_000_000_000.0,
+                    getThroughputMBps(), failures.size());
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits one encrypted file or directory archive into volumes of at most a fixed size, named
+ * {@code backup.enc.001}, {@code backup.enc.002}, ... and spread round-robin over the target
+ * directories. Each target directory is written by its own thread, so with one directory per disk
+ * the volumes are written in parallel.
+ *
+ * <p>Every volume is a complete encrypted file of its own and passes
+ * {@link CryptoEngine#verifyFile}. A manifest, {@code backup.enc.volumes}, is copied to every target
+ * directory once all volumes are written. It is MAC'ed and records the volume count, the sizes and
+ * an id per volume (the hash of its first bytes, which hold its random file id or nonce), so a
+ * missing, reordered or foreign volume is detected before any plaintext is written.</p>
+ */
+public class VolumeSet {
+
+    public static final String MANIFEST_SUFFIX = ".volumes";
+
+    static final byte KIND_FILE = 1;
+    static final byte KIND_DIRECTORY = 2;
+
+    private static final byte[] MAGIC = "SVVS".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int ID_PREFIX_LENGTH = 64;
+    private static final int ID_LENGTH = 32;
+    private static final int MAC_LENGTH = 32;
+
+    /**
+     * Encrypts a file into volumes of at most {@code volumeSize} bytes.
+     *
+     * @param output names the set; volumes are {@code output}'s file name plus {@code .001}, ...
+     * @param targetDirs where the volumes go, round-robin; empty means {@code output}'s directory
+     * @return the volumes, in order
+     */
+    public static List<Path> encryptFile(Path input, Path output, long volumeSize, List<Path> targetDirs, SecretKey key) throws Exception {
+        CipherSuite suite = CipherBenchmark.preferredSuite();
+        int chunkSize = EngineSettings.current().getChunkSize();
+        int headerLength = FileHeader.chunked(suite, chunkSize).getLength();
+        long chunksPerVolume = (volumeSize - headerLength - ChunkCodec.finalChunkLength(0)) / (chunkSize + ChunkCodec.OVERHEAD);
+        if (chunksPerVolume < 1) {
+            throw new IllegalArgumentException("Volumes must hold at least one " + chunkSize / 1024 + " KB chunk: "
+                    + (headerLength + chunkSize + ChunkCodec.OVERHEAD + ChunkCodec.finalChunkLength(0)) + " bytes");
+        }
+        long perVolume = chunksPerVolume * chunkSize;
+        long total = Files.size(input);
+
+        return write(KIND_FILE, total, perVolume, output, targetDirs, key, (index, volume) -> {
+            long offset = index * perVolume;
+            FileHeader header = FileHeader.chunked(suite, chunkSize);
+            AsyncFilePipeline.encrypt(input, offset, Math.min(perVolume, total - offset), volume, new ChunkCodec(header, key), null, null);
+        });
+    }
+
+    /**
+     * Encrypts an in-memory directory archive into volumes of at most {@code volumeSize} bytes.
+     */
+    static List<Path> encryptBytes(byte[] data, Path output, long volumeSize, List<Path> targetDirs, SecretKey key) throws Exception {
+        CipherSuite suite = CipherBenchmark.preferredSuite();
+        long perVolume = volumeSize - CryptoEngine.seal(new byte[0], key, suite).length;
+        if (perVolume < 1) {
+            throw new IllegalArgumentException("Volume size is smaller than the per-volume overhead: " + volumeSize);
+        }
+        return write(KIND_DIRECTORY, data.length, perVolume, output, targetDirs, key, (index, volume) -> {
+            int offset = (int) (index * perVolume);
+            byte[] slice = Arrays.copyOfRange(data, offset, (int) Math.min(data.length, offset + perVolume));
+            try {
+                Files.write(volume, CryptoEngine.seal(slice, key, suite));
+            } finally {
+                Arrays.fill(slice, (byte) 0);
+            }
+        });
+    }
+
+    /**
+     * Decrypts a file set back into one file, volume by volume in order.
+     *
+     * @param searchDirs where to look for volumes besides the manifest's directory
+     * @return the plaintext length
+     */
+    public static long decryptFile(Path manifestFile, Path output, SecretKey key, List<Path> searchDirs) throws Exception {
+        Manifest manifest = Manifest.read(manifestFile, key);
+        if (manifest.kind != KIND_FILE) {
+            throw new IOException("Volume set holds a directory: " + manifestFile.getFileName());
+        }
+        List<Path> volumes = locate(manifestFile, manifest, searchDirs);
+        for (int i = 0; i < manifest.count; i++) {
+            Path volume = volumes.get(i);
+            FileHeader header = CryptoEngine.readHeader(volume);
+            if (header == null || !header.isChunked()) {
+                throw new IOException("Not a chunked volume: " + volume.getFileName());
+            }
+            long written = AsyncFilePipeline.decrypt(volume, output, i * manifest.perVolume, new ChunkCodec(header, key), null);
+            if (written != manifest.volumeLength(i)) {
+                Files.deleteIfExists(output);
+                throw new SecurityException("Volume " + volume.getFileName() + " holds " + written + " bytes instead of "
+                        + manifest.volumeLength(i));
+            }
+        }
+        return manifest.totalSize;
+    }
+
+    /**
+     * Decrypts a directory set back into the archive bytes it was split from.
+     */
+    static byte[] decryptBytes(Path manifestFile, SecretKey key, List<Path> searchDirs) throws Exception {
+        Manifest manifest = Manifest.read(manifestFile, key);
+        if (manifest.kind != KIND_DIRECTORY) {
+            throw new IOException("Volume set holds a file: " + manifestFile.getFileName());
+        }
+        if (manifest.totalSize > Integer.MAX_VALUE - 8) {
+            throw new IOException("Directory archive is too large to extract in memory");
+        }
+        List<Path> volumes = locate(manifestFile, manifest, searchDirs);
+        byte[] data = new byte[(int) manifest.totalSize];
+        for (int i = 0; i < manifest.count; i++) {
+            byte[] slice = CryptoEngine.open(Files.readAllBytes(volumes.get(i)), key);
+            try {
+                if (slice.length != manifest.volumeLength(i)) {
+                    throw new SecurityException("Volume " + volumes.get(i).getFileName() + " holds " + slice.length
+                            + " bytes instead of " + manifest.volumeLength(i));
+                }
+                System.arraycopy(slice, 0, data, (int) (i * manifest.perVolume), slice.length);
+            } finally {
+                Arrays.fill(slice, (byte) 0);
+            }
+        }
+        return data;
+    }
+
+    static byte kindOf(Path manifestFile, SecretKey key) throws Exception {
+        return Manifest.read(manifestFile, key).kind;
+    }
+
+    /**
+     * Checks that every volume is present, belongs to the set and verifies, reading the volumes of
+     * different directories in parallel.
+     *
+     * @return the plaintext length of the whole set
+     */
+    public static long verify(Path manifestFile, SecretKey key, List<Path> searchDirs) throws Exception {
+        Manifest manifest = Manifest.read(manifestFile, key);
+        List<Path> volumes = locate(manifestFile, manifest, searchDirs);
+        Set<Path> dirs = new LinkedHashSet<>();
+        volumes.forEach(volume -> dirs.add(volume.toAbsolutePath().getParent()));
+        runLanes(manifest.count, dirs.size(), index -> {
+            long length = CryptoEngine.verifyFile(volumes.get(index), key);
+            if (length != manifest.volumeLength(index)) {
+                throw new SecurityException("Volume " + volumes.get(index).getFileName() + " holds " + length
+                        + " bytes instead of " + manifest.volumeLength(index));
+            }
+        });
+        return manifest.totalSize;
+    }
+
+    public static Path manifestPath(Path output) {
+        return output.resolveSibling(output.getFileName() + MANIFEST_SUFFIX);
+    }
+
+    public static boolean isManifest(Path file) {
+        return file.getFileName().toString().endsWith(MANIFEST_SUFFIX);
+    }
+
+    static String volumeName(String setName, int index) {
+        return String.format("%s.%03d", setName, index + 1);
+    }
+
+    private interface VolumeWriter {
+        void write(int index, Path volume) throws Exception;
+    }
+
+    private interface VolumeTask {
+        void run(int index) throws Exception;
+    }
+
+    private static List<Path> write(byte kind, long total, long perVolume, Path output, List<Path> targetDirs,
+                                    SecretKey key, VolumeWriter writer) throws Exception {
+        List<Path> dirs = targetDirs.isEmpty() ? List.of(output.toAbsolutePath().getParent()) : targetDirs;
+        String setName = output.getFileName().toString();
+        int count = (int) Math.max(1, (total + perVolume - 1) / perVolume);
+        if (count > 999) {
+            throw new IllegalArgumentException("A volume set holds at most 999 volumes; use larger volumes");
+        }
+        List<Path> volumes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            volumes.add(dirs.get(i % dirs.size()).resolve(volumeName(setName, i)));
+        }
+        for (Path dir : dirs) {
+            Files.createDirectories(dir);
+        }
+
+        byte[][] ids = new byte[count][];
+        try {
+            // Volume i goes to directory i % n and lane i % n writes it, so each disk has one writer
+            runLanes(count, dirs.size(), index -> {
+                writer.write(index, volumes.get(index));
+                ids[index] = volumeId(volumes.get(index));
+            });
+            Manifest manifest = new Manifest(kind, total, perVolume, count, ids);
+            byte[] bytes = manifest.toBytes(key);
+            for (Path dir : dirs) {
+                writeAtomically(dir.resolve(setName + MANIFEST_SUFFIX), bytes);
+            }
+        } catch (Exception e) {
+            for (Path volume : volumes) {
+                Files.deleteIfExists(volume);
+            }
+            throw e;
+        }
+        return volumes;
+    }
+
+    /**
+     * Runs {@code task} for every volume on {@code lanes} threads; lane j takes volumes j, j + lanes, ...
+     */
+    private static void runLanes(int count, int lanes, VolumeTask task) throws Exception {
+        int threads = Math.max(1, Math.min(lanes, count));
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "volume-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int lane = 0; lane < threads; lane++) {
+                int first = lane;
+                futures.add(pool.submit(() -> {
+                    for (int index = first; index < count; index += threads) {
+                        task.run(index);
+                    }
+                    return null;
+                }));
+            }
+            Exception failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Finds each volume next to the manifest or in one of {@code searchDirs} and checks that it is
+     * the one the manifest lists.
+     */
+    private static List<Path> locate(Path manifestFile, Manifest manifest, List<Path> searchDirs) throws Exception {
+        String fileName = manifestFile.getFileName().toString();
+        String setName = fileName.substring(0, fileName.length() - MANIFEST_SUFFIX.length());
+        List<Path> dirs = new ArrayList<>();
+        dirs.add(manifestFile.toAbsolutePath().getParent());
+        dirs.addAll(searchDirs);
+
+        List<Path> volumes = new ArrayList<>();
+        for (int i = 0; i < manifest.count; i++) {
+            String name = volumeName(setName, i);
+            Path found = null;
+            for (Path dir : dirs) {
+                Path candidate = dir.resolve(name);
+                if (Files.isRegularFile(candidate)) {
+                    found = candidate;
+                    break;
+                }
+            }
+            if (found == null) {
+                throw new IOException("Missing volume " + (i + 1) + " of " + manifest.count + ": " + name);
+            }
+            if (!MessageDigest.isEqual(volumeId(found), manifest.ids[i])) {
+                throw new SecurityException("Volume " + found + " does not belong to this volume set");
+            }
+            volumes.add(found);
+        }
+        return volumes;
+    }
+
+    private static byte[] volumeId(Path volume) throws Exception {
+        byte[] prefix;
+        try (InputStream in = Files.newInputStream(volume)) {
+            prefix = in.readNBytes(ID_PREFIX_LENGTH);
+        }
+        return MessageDigest.getInstance("SHA-256").digest(prefix);
+    }
+
+    private static void writeAtomically(Path file, byte[] bytes) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, bytes);
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Mac manifestMac(SecretKey key) throws Exception {
+        byte[] macKey = KeyDerivation.deriveSubkey(key, "securevault volumes v1");
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        Arrays.fill(macKey, (byte) 0);
+        return mac;
+    }
+
+    private static final class Manifest {
+        private final byte kind;
+        private final long totalSize;
+        private final long perVolume;
+        private final int count;
+        private final byte[][] ids;
+
+        Manifest(byte kind, long totalSize, long perVolume, int count, byte[][] ids) {
+            this.kind = kind;
+            this.totalSize = totalSize;
+            this.perVolume = perVolume;
+            this.count = count;
+            this.ids = ids;
+        }
+
+        long volumeLength(int index) {
+            return Math.min(perVolume, totalSize - index * perVolume);
+        }
+
+        byte[] toBytes(SecretKey key) throws Exception {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.write(MAGIC);
+                out.writeByte(VERSION);
+                out.writeByte(kind);
+                out.writeLong(totalSize);
+                out.writeLong(perVolume);
+                out.writeInt(count);
+                for (byte[] id : ids) {
+                    out.write(id);
+                }
+                out.write(manifestMac(key).doFinal(bytes.toByteArray()));
+            }
+            return bytes.toByteArray();
+        }
+
+        static Manifest read(Path file, SecretKey key) throws Exception {
+            byte[] data = Files.readAllBytes(file);
+            if (data.length < MAC_LENGTH) {
+                throw new IOException("Volume manifest is truncated: " + file.getFileName());
+            }
+            byte[] body = Arrays.copyOf(data, data.length - MAC_LENGTH);
+            byte[] tag = Arrays.copyOfRange(data, data.length - MAC_LENGTH, data.length);
+            if (!MessageDigest.isEqual(tag, manifestMac(key).doFinal(body))) {
+                throw new SecurityException("Volume manifest failed authentication. Wrong password or tampered manifest.");
+            }
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+                if (!Arrays.equals(in.readNBytes(MAGIC.length), MAGIC) || in.readUnsignedByte() != VERSION) {
+                    throw new IOException("Not a volume manifest: " + file.getFileName());
+                }
+                byte kind = in.readByte();
+                long totalSize = in.readLong();
+                long perVolume = in.readLong();
+                int count = in.readInt();
+                byte[][] ids = new byte[count][];
+                for (int i = 0; i < count; i++) {
+                    ids[i] = in.readNBytes(ID_LENGTH);
+                }
+                return new Manifest(kind, totalSize, perVolume, count, ids);
+            }
+        }
+    }
+}
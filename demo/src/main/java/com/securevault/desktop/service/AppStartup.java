@@ -0,0 +1,134 @@
+package com.securevault.desktop.service;
+
+import com.securevault.desktop.crypto.CipherSuite;
+import com.securevault.desktop.crypto.CryptoEngine;
+import com.securevault.desktop.storage.ConfigurationManager;
+import com.securevault.desktop.storage.LocalFileStorage;
+
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Startup work the first frame does not need. Front ends build and show their window first, then
+ * call {@link #begin}; vault setup, settings and class loading run on a background thread while the
+ * window is already on screen.
+ *
+ * <p>Settings size the shared {@link TaskScheduler}, so it waits for them if a job is somehow
+ * started before they are loaded. Tools that never call {@link #begin} are not held up.</p>
+ *
+ * <p>With {@code -Dsecurevault.startup.exit=first-frame} the app prints {@code first-frame-ms=<n>}
+ * and exits as soon as its first frame is up, which is how {@code StartupBenchmark} measures it. With
+ * {@code =startup} it exits once the background startup is done too, so an AppCDS training run
+ * records every class a normal start loads.</p>
+ */
+public final class AppStartup {
+
+    public static final String EXIT_PROPERTY = "securevault.startup.exit";
+    public static final String EXIT_AT_FIRST_FRAME = "first-frame";
+    public static final String EXIT_AFTER_STARTUP = "startup";
+    public static final String FIRST_FRAME_MARKER = "first-frame-ms=";
+
+    // Loaded and initialized in the background so the first operation does not pay for them
+    private static final List<String> PRELOADED = List.of(
+            "com.securevault.desktop.crypto.KeyDerivation",
+            "org.bouncycastle.crypto.generators.Argon2BytesGenerator",
+            "org.bouncycastle.crypto.params.Argon2Parameters",
+            "com.securevault.desktop.crypto.CipherSuite",
+            "com.securevault.desktop.crypto.CryptoEngine",
+            "com.securevault.desktop.crypto.AsyncFilePipeline",
+            "com.securevault.desktop.crypto.ChunkCodec",
+            "com.securevault.desktop.crypto.VaultIndex",
+            "com.securevault.desktop.crypto.VaultScrubber");
+
+    private static final CompletableFuture<Void> settingsLoaded = new CompletableFuture<>();
+    private static volatile boolean begun;
+
+    private AppStartup() {
+    }
+
+    /**
+     * Milliseconds since the JVM started. Call it once the first frame is up.
+     */
+    public static long firstFrame() {
+        long millis = ProcessHandle.current().info().startInstant()
+                .map(start -> Duration.between(start, Instant.now()).toMillis())
+                .orElse(-1L);
+        String exit = System.getProperty(EXIT_PROPERTY);
+        if (exit != null) {
+            System.out.println(FIRST_FRAME_MARKER + millis);
+            System.out.flush();
+            if (exit.equals(EXIT_AT_FIRST_FRAME)) {
+                System.exit(0);
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * Sets up the vault and loads the settings, then preloads the crypto classes.
+     *
+     * @param log receives startup messages, from the startup thread, and from then on the crypto
+     *            engine's warnings, from whichever thread raised them
+     * @return completes once the vault and settings are ready, before the preloading
+     */
+    public static CompletableFuture<Void> begin(Consumer<String> log) {
+        begun = true;
+        Thread thread = new Thread(() -> run(log), "startup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+        return settingsLoaded;
+    }
+
+    private static void run(Consumer<String> log) {
+        // Set here rather than in begin() so the engine's classes load off the UI thread
+        CryptoEngine.setWarningListener(log);
+        try {
+            LocalFileStorage.init();
+            log.accept("Vault path: " + LocalFileStorage.getVaultPath());
+        } catch (Exception e) {
+            log.accept("Failed to initialize the vault: " + e.getMessage());
+        }
+        try {
+            log.accept("Performance profile: " + ConfigurationManager.load());
+        } catch (Exception e) {
+            log.accept("Settings ignored, using the " + ConfigurationManager.DEFAULT_PROFILE + " profile: " + e.getMessage());
+        } finally {
+            settingsLoaded.complete(null);
+        }
+
+        ClassLoader loader = AppStartup.class.getClassLoader();
+        for (String name : PRELOADED) {
+            try {
+                Class.forName(name, true, loader);
+            } catch (ClassNotFoundException | LinkageError e) {
+                // Only an optimization; the class is loaded when it is first used
+            }
+        }
+        // The first lookup of a JCE provider scans and initializes all of them
+        for (CipherSuite suite : CipherSuite.values()) {
+            try {
+                suite.getInstance();
+            } catch (GeneralSecurityException e) {
+                // Reported when the suite is used
+            }
+        }
+
+        if (EXIT_AFTER_STARTUP.equals(System.getProperty(EXIT_PROPERTY))) {
+            System.exit(0);
+        }
+    }
+
+    /**
+     * Blocks until the settings are loaded, if {@link #begin} was called; returns at once otherwise.
+     */
+    static void awaitSettings() {
+        if (begun) {
+            settingsLoaded.join();
+        }
+    }
+}
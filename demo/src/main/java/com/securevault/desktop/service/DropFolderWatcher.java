@@ -0,0 +1,308 @@
+package com.securevault.desktop.service;
+
+import com.securevault.desktop.crypto.CryptoEngine;
+import com.securevault.desktop.crypto.GroupCommit;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Encrypts whatever lands in an inbox directory into the vault and removes the plaintext.
+ *
+ * <p>A {@link WatchService} reports arrivals; a file is only picked up once its size and mtime
+ * have stayed the same for {@link #QUIET_MILLIS}, so files still being copied are left alone.
+ * Settled files are encrypted in batches, one {@link TaskScheduler} job per batch, all with the
+ * key given at start. Only one batch runs at a time, and a batch is held back while the vault's
+ * disk lacks room for it or the system load is above the core count. The plaintext is deleted
+ * only after its ciphertext has been verified and the whole batch committed to disk.</p>
+ */
+public class DropFolderWatcher implements AutoCloseable {
+
+    static final long QUIET_MILLIS = 2000;
+    private static final long TICK_MILLIS = 500;
+    private static final int MAX_BATCH_FILES = 256;
+    private static final long MAX_BATCH_BYTES = 4L * 1024 * 1024 * 1024;
+    private static final long DISK_HEADROOM = 256L * 1024 * 1024;
+    // Partial downloads and editor swap files, which are renamed once complete
+    private static final List<String> IGNORED_SUFFIXES = List.of(".part", ".tmp", ".crdownload", ".download", ".swp");
+
+    private final Path inbox;
+    private final Path vault;
+    private final SecretKey key;
+    private final Consumer<String> log;
+    private final WatchService watchService;
+    private final ScheduledExecutorService ticker;
+    private final Thread watchThread;
+    private final Map<Path, Candidate> candidates = new LinkedHashMap<>();
+
+    private boolean batchRunning;
+    private String heldBackReason;
+    private volatile boolean closed;
+
+    private DropFolderWatcher(Path inbox, Path vault, SecretKey key, Consumer<String> log) throws IOException {
+        this.inbox = inbox.toAbsolutePath().normalize();
+        this.vault = vault;
+        this.key = key;
+        this.log = log;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.inbox.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "drop-folder-ticker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.watchThread = new Thread(this::watch, "drop-folder-watch");
+        this.watchThread.setDaemon(true);
+    }
+
+    /**
+     * Starts watching {@code inbox}; files already in it are picked up too.
+     *
+     * @param log receives one line per batch and per problem, from a background thread
+     */
+    public static DropFolderWatcher start(Path inbox, Path vault, SecretKey key, Consumer<String> log) throws IOException {
+        if (inbox.toAbsolutePath().normalize().equals(vault.toAbsolutePath().normalize())) {
+            throw new IOException("The drop folder cannot be the vault itself");
+        }
+        Files.createDirectories(vault);
+        DropFolderWatcher watcher = new DropFolderWatcher(inbox, vault, key, log);
+        watcher.rescan();
+        watcher.watchThread.start();
+        watcher.ticker.scheduleWithFixedDelay(watcher::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        return watcher;
+    }
+
+    public Path getInbox() {
+        return inbox;
+    }
+
+    private void watch() {
+        try {
+            while (!closed) {
+                WatchKey watchKey = watchService.take();
+                for (WatchEvent<?> event : watchKey.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan(); // events were dropped; the listing is the truth
+                    } else {
+                        offer(inbox.resolve((Path) event.context()));
+                    }
+                }
+                if (!watchKey.reset()) {
+                    log.accept("Drop folder is no longer accessible: " + inbox);
+                    close();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    private void rescan() {
+        try (Stream<Path> stream = Files.list(inbox)) {
+            stream.forEach(this::offer);
+        } catch (IOException e) {
+            log.accept("Cannot list drop folder: " + e.getMessage());
+        }
+    }
+
+    private synchronized void offer(Path file) {
+        String name = file.getFileName().toString();
+        if (name.startsWith(".") || IGNORED_SUFFIXES.stream().anyMatch(name::endsWith)) {
+            return;
+        }
+        // Reset the quiet period; tick() decides when the file has settled
+        candidates.put(file, new Candidate(-1, -1, System.currentTimeMillis()));
+    }
+
+    /**
+     * Debounces candidates and starts a batch with the settled ones, unless one is already running
+     * or the system is saturated.
+     */
+    private void tick() {
+        List<Path> batch = new ArrayList<>();
+        long batchBytes = 0;
+        synchronized (this) {
+            if (closed || batchRunning || candidates.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            var it = candidates.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Path, Candidate> entry = it.next();
+                Path file = entry.getKey();
+                Candidate seen = entry.getValue();
+                long size;
+                long modified;
+                try {
+                    if (!Files.isRegularFile(file)) {
+                        it.remove(); // gone again, or a directory
+                        continue;
+                    }
+                    size = Files.size(file);
+                    modified = Files.getLastModifiedTime(file).toMillis();
+                } catch (IOException e) {
+                    it.remove();
+                    continue;
+                }
+                if (size != seen.size || modified != seen.modified) {
+                    entry.setValue(new Candidate(size, modified, now));
+                } else if (now - seen.since >= QUIET_MILLIS
+                        && batch.size() < MAX_BATCH_FILES && batchBytes + size <= Math.max(MAX_BATCH_BYTES, size)) {
+                    batch.add(file);
+                    batchBytes += size;
+                }
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+
+            String reason = saturation(batchBytes);
+            if (reason != null) {
+                if (!reason.equals(heldBackReason)) {
+                    log.accept("Drop folder waiting: " + reason);
+                }
+                heldBackReason = reason;
+                return;
+            }
+            heldBackReason = null;
+            batch.forEach(candidates::remove);
+            batchRunning = true;
+        }
+
+        TaskScheduler.shared().submit("drop folder (" + batch.size() + " files)", TaskScheduler.Priority.LOW,
+                JobFootprint.dropFolderBatch(),
+                () -> encryptBatch(batch)).whenComplete((done, error) -> {
+                    if (error != null) {
+                        log.accept("Drop folder batch failed: " + error.getMessage());
+                    }
+                    synchronized (this) {
+                        batchRunning = false;
+                    }
+                });
+    }
+
+    /**
+     * Returns why a batch of this size should wait, or null if it can run now.
+     */
+    private String saturation(long batchBytes) {
+        try {
+            long usable = Files.getFileStore(vault).getUsableSpace();
+            if (usable < batchBytes + DISK_HEADROOM) {
+                return "not enough free space in the vault for " + (batchBytes / (1024 * 1024)) + " MB";
+            }
+        } catch (IOException e) {
+            return "cannot check free space in the vault: " + e.getMessage();
+        }
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (load > cores) {
+            return String.format("system load %.1f on %d cores", load, cores);
+        }
+        return null;
+    }
+
+    /**
+     * Encrypts the batch as one {@link GroupCommit}: the plaintexts are deleted only once all of
+     * their ciphertexts are durable in the vault.
+     */
+    private Void encryptBatch(List<Path> batch) throws Exception {
+        List<Path> committed = new ArrayList<>();
+        long bytes = 0;
+        long started = System.nanoTime();
+        try (GroupCommit commit = GroupCommit.begin(vault, key)) {
+            for (Path file : batch) {
+                if (closed) {
+                    break;
+                }
+                Path output = uniqueOutput(file.getFileName().toString(), commit);
+                try {
+                    long size = Files.size(file);
+                    long modified = Files.getLastModifiedTime(file).toMillis();
+                    Path written = CryptoEngine.encryptFile(file, output, key, commit);
+                    CryptoEngine.verifyFile(written, key);
+                    if (Files.size(file) != size || Files.getLastModifiedTime(file).toMillis() != modified) {
+                        // Rewritten while we encrypted it: keep both, and pick it up again once it settles
+                        offer(file);
+                        continue;
+                    }
+                    committed.add(file);
+                    bytes += size;
+                } catch (Exception e) {
+                    commit.unstage(output);
+                    log.accept("Drop folder could not encrypt " + file.getFileName() + ": " + e.getMessage());
+                }
+            }
+            commit.commit();
+        }
+        int encrypted = 0;
+        for (Path file : committed) {
+            try {
+                Files.delete(file);
+                encrypted++;
+            } catch (IOException e) {
+                log.accept("Drop folder could not remove " + file.getFileName() + ": " + e.getMessage());
+            }
+        }
+        log.accept(String.format("Drop folder encrypted %d of %d files (%.1f MB) in %d ms", encrypted, batch.size(),
+                bytes / (1024.0 * 1024), (System.nanoTime() - started) / 1_000_000));
+        return null;
+    }
+
+    /**
+     * Never overwrites: a second {@code report.pdf} becomes {@code report (2).pdf.enc}.
+     */
+    private Path uniqueOutput(String name, GroupCommit commit) {
+        Path output = vault.resolve(name + ".enc");
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int n = 2; Files.exists(output) || commit.isStaged(output); n++) {
+            output = vault.resolve(base + " (" + n + ")" + extension + ".enc");
+        }
+        return output;
+    }
+
+    /**
+     * Stops watching. A batch that is running finishes the file it is on.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ticker.shutdownNow();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private static final class Candidate {
+        private final long size;
+        private final long modified;
+        private final long since;
+
+        Candidate(long size, long modified, long since) {
+            this.size = size;
+            this.modified = modified;
+            this.since = since;
+        }
+    }
+}
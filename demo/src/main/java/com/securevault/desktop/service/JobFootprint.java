@@ -0,0 +1,117 @@
+package com.securevault.desktop.service;
+
+import com.securevault.desktop.crypto.ChunkCodec;
+import com.securevault.desktop.crypto.CryptoEngine;
+import com.securevault.desktop.crypto.EngineSettings;
+import com.securevault.desktop.crypto.FileHeader;
+import com.securevault.desktop.crypto.KeyDerivation;
+import com.securevault.desktop.crypto.PackFile;
+import com.securevault.desktop.crypto.PipelineTuner;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Estimated peak heap of each vault operation, used for admission by {@link TaskScheduler}.
+ * Every estimate includes the Argon2 derivation the job performs first. Directory estimates walk
+ * the whole tree, so they are taken off the UI thread.
+ */
+public class JobFootprint {
+
+    // In-memory paths hold the input, the intermediate buffer and the output at once
+    private static final int IN_MEMORY_COPIES = 3;
+    private static final long SMALL_JOB = 1024 * 1024;
+
+    public static long encryptFile(Path input) {
+        return KeyDerivation.memoryCostBytes() + PipelineTuner.largestFootprint();
+    }
+
+    public static long decryptFile(Path input) {
+        try {
+            FileHeader header = CryptoEngine.readHeader(input);
+            if (header != null && header.isChunked()) {
+                return KeyDerivation.memoryCostBytes() + PipelineTuner.largestFootprint(header.getChunkSize());
+            }
+        } catch (IOException e) {
+            // Fall through to the conservative estimate
+        }
+        return KeyDerivation.memoryCostBytes() + IN_MEMORY_COPIES * sizeOf(input);
+    }
+
+    public static long encryptDirectory(Path inputDir) {
+        long total = 0;
+        try (var stream = Files.walk(inputDir)) {
+            total = stream.filter(Files::isRegularFile).mapToLong(JobFootprint::sizeOf).sum();
+        } catch (IOException | UncheckedIOException e) {
+            // Unreadable trees fail inside the job; admit it as a small one
+        }
+        return KeyDerivation.memoryCostBytes() + IN_MEMORY_COPIES * total;
+    }
+
+    /**
+     * A pack holds one member in memory at a time, sealed and unsealed.
+     */
+    public static long packDirectory(Path inputDir) {
+        long largest = 0;
+        try (var stream = Files.walk(inputDir)) {
+            largest = stream.filter(Files::isRegularFile).mapToLong(JobFootprint::sizeOf).max().orElse(0);
+        } catch (IOException | UncheckedIOException e) {
+            // Unreadable trees fail inside the job; admit it as a small one
+        }
+        return KeyDerivation.memoryCostBytes() + IN_MEMORY_COPIES * Math.min(largest, PackFile.MAX_MEMBER_SIZE);
+    }
+
+    public static long unpackDirectory() {
+        return KeyDerivation.memoryCostBytes() + IN_MEMORY_COPIES * (long) PackFile.MAX_MEMBER_SIZE;
+    }
+
+    public static long decryptDirectory(Path input) {
+        return KeyDerivation.memoryCostBytes() + IN_MEMORY_COPIES * sizeOf(input);
+    }
+
+    public static long verifyVault(int threads) {
+        return KeyDerivation.memoryCostBytes() + (long) threads * ChunkCodec.finalChunkLength(EngineSettings.current().getChunkSize()) * 2;
+    }
+
+    /**
+     * The same job when its key was derived beforehand, see {@link SpeculativeKey}.
+     */
+    public static long withDerivedKey(long footprint) {
+        return Math.max(SMALL_JOB, footprint - KeyDerivation.memoryCostBytes());
+    }
+
+    /**
+     * Drop folder batches reuse an already derived key and stream one file at a time.
+     */
+    public static long dropFolderBatch() {
+        return PipelineTuner.largestFootprint();
+    }
+
+    /**
+     * Previews decrypt a bounded head, or at most a capped image, into memory.
+     */
+    public static long preview() {
+        return 2 * 32L * 1024 * 1024;
+    }
+
+    /**
+     * Mirroring streams through one hash buffer; copies bypass the heap.
+     */
+    public static long mirror() {
+        return SMALL_JOB;
+    }
+
+    public static long listing() {
+        return SMALL_JOB;
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
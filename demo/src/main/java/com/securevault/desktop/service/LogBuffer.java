@@ -0,0 +1,95 @@
+package com.securevault.desktop.service;
+
+/**
+ * Fixed-capacity ring of log lines that any thread can append to and the UI drains in batches.
+ *
+ * <p>Appending never touches the UI: the first line after a drain calls {@code onPending} once,
+ * which should schedule a single {@link #drain()} on the UI thread. However many lines arrive
+ * before that runs, the UI applies them as one append plus one removal at the start of the text,
+ * so its text never holds more than {@code capacity} lines.</p>
+ */
+public class LogBuffer {
+
+    public static final int DEFAULT_CAPACITY = 2000;
+
+    private final String[] lines;
+    private final Runnable onPending;
+    private final RotatingLogFile spill;
+    private int head;
+    private int size;
+    // The oldest lines of the ring that the UI already shows
+    private int shown;
+    // Characters of shown lines evicted since the last drain
+    private int evictedChars;
+    private boolean pending;
+
+    /**
+     * @param spill also receives every line, or null to keep the log in memory only
+     */
+    public LogBuffer(int capacity, Runnable onPending, RotatingLogFile spill) {
+        this.lines = new String[capacity];
+        this.onPending = onPending;
+        this.spill = spill;
+    }
+
+    public void append(String message) {
+        String line = message + "\n";
+        if (spill != null) {
+            spill.write(line);
+        }
+        boolean schedule;
+        synchronized (this) {
+            if (size == lines.length) {
+                if (shown > 0) {
+                    evictedChars += lines[head].length();
+                    shown--;
+                }
+                lines[head] = line;
+                head = (head + 1) % lines.length;
+            } else {
+                lines[(head + size) % lines.length] = line;
+                size++;
+            }
+            schedule = !pending;
+            pending = true;
+        }
+        if (schedule) {
+            onPending.run();
+        }
+    }
+
+    /**
+     * Takes the lines added since the last drain; to be called on the UI thread.
+     */
+    public synchronized Batch drain() {
+        StringBuilder text = new StringBuilder();
+        for (int i = shown; i < size; i++) {
+            text.append(lines[(head + i) % lines.length]);
+        }
+        Batch batch = new Batch(text.toString(), evictedChars);
+        shown = size;
+        evictedChars = 0;
+        pending = false;
+        return batch;
+    }
+
+    public static final class Batch {
+        private final String appended;
+        private final int removedChars;
+
+        Batch(String appended, int removedChars) {
+            this.appended = appended;
+            this.removedChars = removedChars;
+        }
+
+        /** Text to add at the end of the view. */
+        public String getAppended() {
+            return appended;
+        }
+
+        /** Characters to delete from the start of the view, after appending. */
+        public int getRemovedChars() {
+            return removedChars;
+        }
+    }
+}
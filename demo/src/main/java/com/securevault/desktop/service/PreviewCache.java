@@ -0,0 +1,136 @@
+package com.securevault.desktop.service;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of decrypted previews. Entries are keyed by path, size and mtime so a
+ * rewritten file is never served stale, and their plaintext is zeroed when evicted or cleared.
+ * The cache keeps its own copy of every preview and hands out copies, so zeroing an evicted entry
+ * never wipes bytes a caller is still displaying; callers zero their copy when done with it.
+ */
+public class PreviewCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Preview> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long usedBytes;
+
+    public PreviewCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static String keyFor(Path file) {
+        try {
+            return file.toAbsolutePath().normalize() + "@" + Files.size(file) + ":" + Files.getLastModifiedTime(file).toMillis();
+        } catch (Exception e) {
+            return file.toAbsolutePath().normalize().toString();
+        }
+    }
+
+    /**
+     * @return a copy of the cached preview, or {@code null} if there is none
+     */
+    public synchronized Preview get(String key) {
+        Preview preview = entries.get(key);
+        return preview == null ? null : preview.copy();
+    }
+
+    /**
+     * Caches a preview, evicting least recently used entries until it fits. A preview larger than
+     * the whole cache is not retained. The cache stores a copy; the caller keeps ownership of
+     * {@code preview}.
+     */
+    public synchronized void put(String key, Preview preview) {
+        if (preview.getBytes() > maxBytes) {
+            return;
+        }
+        Preview previous = entries.remove(key);
+        if (previous != null) {
+            usedBytes -= previous.getBytes();
+            previous.zeroize();
+        }
+        Iterator<Map.Entry<String, Preview>> eldest = entries.entrySet().iterator();
+        while (usedBytes + preview.getBytes() > maxBytes && eldest.hasNext()) {
+            Preview evicted = eldest.next().getValue();
+            eldest.remove();
+            usedBytes -= evicted.getBytes();
+            evicted.zeroize();
+        }
+        entries.put(key, preview.copy());
+        usedBytes += preview.getBytes();
+    }
+
+    /**
+     * Drops and zeroes every cached preview, e.g. when the vault is locked.
+     */
+    public synchronized void clear() {
+        for (Preview preview : entries.values()) {
+            preview.zeroize();
+        }
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public static final class Preview {
+
+        public enum Kind { TEXT, IMAGE, LISTING, BINARY }
+
+        private final Kind kind;
+        private final byte[] data;
+        private final int width;
+        private final int height;
+        private final boolean truncated;
+
+        /**
+         * @param data     UTF-8 text for TEXT and LISTING, BGRA pixels for IMAGE, raw head bytes for BINARY
+         * @param truncated whether only the head of the plaintext is included
+         */
+        public Preview(Kind kind, byte[] data, int width, int height, boolean truncated) {
+            this.kind = kind;
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.truncated = truncated;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public long getBytes() {
+            return data.length;
+        }
+
+        Preview copy() {
+            return new Preview(kind, data.clone(), width, height, truncated);
+        }
+
+        public void zeroize() {
+            Arrays.fill(data, (byte) 0);
+        }
+    }
+}
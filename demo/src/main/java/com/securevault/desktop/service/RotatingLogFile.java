@@ -0,0 +1,151 @@
+package com.securevault.desktop.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Appends log lines to a file from a background thread, so callers never wait on the disk.
+ *
+ * <p>The file is rotated once it reaches {@link #MAX_FILE_BYTES}: {@code app.log} becomes
+ * {@code app.log.1}, and so on up to {@link #KEPT_FILES}. If the writer falls behind by more than
+ * {@link #QUEUE_CAPACITY} lines, new lines are dropped and the count is written once it catches up.</p>
+ */
+public class RotatingLogFile implements AutoCloseable {
+
+    public static final String FILE_PROPERTY = "securevault.log.file";
+    static final long MAX_FILE_BYTES = 5L * 1024 * 1024;
+    static final int KEPT_FILES = 3;
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS ");
+
+    private final Path file;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    private RotatingLogFile(Path file) {
+        this.file = file;
+        this.writerThread = new Thread(this::run, "log-file-writer");
+        this.writerThread.setDaemon(true);
+    }
+
+    /**
+     * Opens the file named by the {@value #FILE_PROPERTY} system property, or returns null if it
+     * is not set.
+     */
+    public static RotatingLogFile fromSystemProperty() {
+        String path = System.getProperty(FILE_PROPERTY);
+        if (path == null || path.isBlank()) {
+            return null;
+        }
+        return open(Paths.get(path));
+    }
+
+    /**
+     * Starts the writer; what is still queued at JVM exit is written by a shutdown hook.
+     */
+    public static RotatingLogFile open(Path file) {
+        RotatingLogFile log = new RotatingLogFile(file.toAbsolutePath());
+        log.writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close, "log-file-close"));
+        return log;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Queues a line; never blocks.
+     */
+    public void write(String line) {
+        if (closed || !queue.offer(LocalDateTime.now().format(TIMESTAMP) + line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    private void run() {
+        List<String> batch = new ArrayList<>();
+        Writer out = null;
+        long written = 0;
+        try {
+            while (!closed || !queue.isEmpty()) {
+                String first = queue.take();
+                batch.add(first);
+                queue.drainTo(batch);
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    batch.add(lost + " log lines dropped, the log file could not keep up\n");
+                }
+                if (out == null || written >= MAX_FILE_BYTES) {
+                    if (out != null) {
+                        out.close();
+                        rotate();
+                    }
+                    Files.createDirectories(file.getParent());
+                    out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    written = Files.size(file);
+                }
+                for (String line : batch) {
+                    out.write(line);
+                    written += line.length();
+                }
+                // One flush per burst rather than per line
+                out.flush();
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Closed while idle
+        } catch (IOException e) {
+            closed = true;
+            System.err.println("Log file disabled: " + e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nothing left to report it to
+                }
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        for (int i = KEPT_FILES - 1; i >= 1; i--) {
+            Path older = file.resolveSibling(file.getFileName() + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, file.resolveSibling(file.getFileName() + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, file.resolveSibling(file.getFileName() + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes what is queued and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // Wakes the writer if it is waiting on an empty queue
+        queue.offer("");
+        try {
+            writerThread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
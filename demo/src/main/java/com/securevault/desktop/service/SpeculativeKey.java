@@ -0,0 +1,116 @@
+package com.securevault.desktop.service;
+
+import com.securevault.desktop.crypto.KeyDerivation;
+
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A key being derived in the background while the user is still answering dialogs, such as
+ * choosing the output directory. The job that needs it calls {@link #get}; a flow that is
+ * abandoned calls {@link #discard}, which zeroes the key whenever the derivation finishes.
+ *
+ * <p>{@link #of} wraps a key that was derived earlier and stays its caller's, such as a viewer's
+ * session key, so {@link VaultService} operations can take either kind.</p>
+ */
+public class SpeculativeKey {
+
+    private final char[] password;
+    private final CompletableFuture<SecretKey> key;
+    private final boolean owned;
+    private volatile SecretKey derived;
+    private volatile boolean discarded;
+
+    private SpeculativeKey(char[] password) {
+        this.password = password;
+        this.owned = true;
+        this.key = TaskScheduler.shared().submit("derive key", TaskScheduler.Priority.HIGH,
+                KeyDerivation.memoryCostBytes(), this::derive);
+    }
+
+    private SpeculativeKey(SecretKey key) {
+        this.password = new char[0];
+        this.owned = false;
+        this.key = CompletableFuture.completedFuture(key);
+    }
+
+    /**
+     * Starts deriving; {@code password} is zeroed once the derivation is done with it.
+     */
+    public static SpeculativeKey start(char[] password) {
+        return new SpeculativeKey(password);
+    }
+
+    /**
+     * A key that is already derived; {@link #release} and {@link #discard} leave it intact.
+     */
+    public static SpeculativeKey of(SecretKey key) {
+        return new SpeculativeKey(key);
+    }
+
+    private SecretKey derive() {
+        try {
+            derived = KeyDerivation.deriveKeyFromPassword(password);
+            // Pairs with discard(): whichever runs second sees the other's write
+            if (discarded) {
+                KeyDerivation.destroy(derived);
+                return null;
+            }
+            return derived;
+        } finally {
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    /**
+     * Waits for the key; usually it is ready by the time a job starts.
+     */
+    public SecretKey get() throws Exception {
+        if (discarded) {
+            throw new IllegalStateException("Key was discarded");
+        }
+        try {
+            return key.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Completes with the key once it is derived, without holding a thread while it waits.
+     */
+    CompletableFuture<SecretKey> whenReady() {
+        if (discarded) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Key was discarded"));
+        }
+        return key.thenApply(k -> k);
+    }
+
+    /**
+     * Destroys a derived key once the job using it is done.
+     */
+    void release() {
+        if (owned) {
+            KeyDerivation.destroy(derived);
+        }
+    }
+
+    /**
+     * Abandons the key. A derivation still queued never runs; a running one zeroes its key as soon
+     * as it finishes.
+     */
+    public void discard() {
+        if (!owned) {
+            return;
+        }
+        discarded = true;
+        key.cancel(false);
+        Arrays.fill(password, '\0');
+        SecretKey ready = derived;
+        if (ready != null) {
+            KeyDerivation.destroy(ready);
+        }
+    }
+}
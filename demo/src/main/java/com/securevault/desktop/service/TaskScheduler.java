@@ -0,0 +1,171 @@
+package com.securevault.desktop.service;
+
+import com.securevault.desktop.crypto.EngineSettings;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs background jobs on a bounded pool, in priority order, and only while their declared
+ * memory footprint fits in the budget. A job larger than the whole budget still runs, but alone.
+ */
+public class TaskScheduler {
+
+    public static final String WORKERS_PROPERTY = "securevault.workers";
+    public static final String MEMORY_BUDGET_PROPERTY = "securevault.memoryBudgetMb";
+
+    public enum Priority {
+        HIGH,   // interactive: listings, previews
+        NORMAL, // user-started encrypt/decrypt
+        LOW     // background sweeps
+    }
+
+    private static volatile TaskScheduler shared;
+
+    private final ExecutorService workers;
+    private final int maxConcurrent;
+    private final long memoryBudget;
+    private final PriorityQueue<Job<?>> pending = new PriorityQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private int running;
+    private long reservedBytes;
+
+    public TaskScheduler(int maxConcurrent, long memoryBudget) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.memoryBudget = Math.max(1, memoryBudget);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(this.maxConcurrent, r -> {
+            Thread t = new Thread(r, "vault-worker-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Application-wide scheduler, sized by the installed {@link EngineSettings} unless the system
+     * properties override it. The size is fixed when the first job is scheduled.
+     */
+    public static TaskScheduler shared() {
+        TaskScheduler scheduler = shared;
+        if (scheduler == null) {
+            synchronized (TaskScheduler.class) {
+                if (shared == null) {
+                    AppStartup.awaitSettings(); // the settings size the pool
+                    EngineSettings settings = EngineSettings.current();
+                    int workers = Integer.getInteger(WORKERS_PROPERTY, settings.effectiveWorkers());
+                    long budget = Long.getLong(MEMORY_BUDGET_PROPERTY, settings.effectiveMemoryBudgetMb()) * 1024 * 1024;
+                    shared = new TaskScheduler(workers, budget);
+                }
+                scheduler = shared;
+            }
+        }
+        return scheduler;
+    }
+
+    public <T> CompletableFuture<T> submit(String name, Priority priority, long estimatedBytes, Callable<T> work) {
+        Job<T> job = new Job<>(name, priority, estimatedBytes, sequence.incrementAndGet(), work);
+        synchronized (this) {
+            pending.add(job);
+        }
+        dispatch();
+        return job.future;
+    }
+
+    /**
+     * Schedules a runnable such as a JavaFX {@code Task} or a {@code SwingWorker}, which report
+     * their own outcome.
+     */
+    public void execute(String name, Priority priority, long estimatedBytes, Runnable work) {
+        submit(name, priority, estimatedBytes, () -> {
+            work.run();
+            return null;
+        });
+    }
+
+    public synchronized int getQueuedCount() {
+        return pending.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    private void dispatch() {
+        synchronized (this) {
+            while (running < maxConcurrent && !pending.isEmpty()) {
+                Job<?> head = pending.peek();
+                if (head.future.isDone()) {
+                    pending.poll(); // cancelled while queued
+                    continue;
+                }
+                long cost = Math.min(head.estimatedBytes, memoryBudget);
+                // Strict head-of-line admission so a large job is never starved by smaller ones
+                if (running > 0 && reservedBytes + cost > memoryBudget) {
+                    break;
+                }
+                pending.poll();
+                running++;
+                reservedBytes += cost;
+                workers.execute(() -> run(head, cost));
+            }
+        }
+    }
+
+    private <T> void run(Job<T> job, long cost) {
+        try {
+            if (!job.future.isDone()) {
+                job.future.complete(job.work.call());
+            }
+        } catch (Throwable t) {
+            job.future.completeExceptionally(t);
+        } finally {
+            synchronized (this) {
+                running--;
+                reservedBytes -= cost;
+            }
+            dispatch();
+        }
+    }
+
+    private static final class Job<T> implements Comparable<Job<?>> {
+        private final String name;
+        private final Priority priority;
+        private final long estimatedBytes;
+        private final long sequence;
+        private final Callable<T> work;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Job(String name, Priority priority, long estimatedBytes, long sequence, Callable<T> work) {
+            this.name = name;
+            this.priority = priority;
+            this.estimatedBytes = Math.max(0, estimatedBytes);
+            this.sequence = sequence;
+            this.work = work;
+        }
+
+        @Override
+        public int compareTo(Job<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
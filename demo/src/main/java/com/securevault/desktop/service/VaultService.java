@@ -0,0 +1,503 @@
+package com.securevault.desktop.service;
+
+import com.securevault.desktop.crypto.CipherBenchmark;
+import com.securevault.desktop.crypto.CipherSuite;
+import com.securevault.desktop.crypto.CryptoEngine;
+import com.securevault.desktop.crypto.EngineSettings;
+import com.securevault.desktop.crypto.FileMetadata;
+import com.securevault.desktop.crypto.PackFile;
+import com.securevault.desktop.crypto.VaultIndex;
+import com.securevault.desktop.crypto.VaultScrubber;
+import com.securevault.desktop.storage.LocalFileStorage;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * The vault operations both front ends offer, free of any UI toolkit. Each returns an
+ * {@link Operation}: a {@link CompletableFuture} for the result and a publisher of the stages it
+ * goes through. Front ends only collect input and hand results to their own UI thread.
+ *
+ * <p>Work is split into stages that each take only what they need:</p>
+ * <ul>
+ *   <li>key derivation is a {@link TaskScheduler} job of its own, admitted against Argon2's memory
+ *       cost ({@link SpeculativeKey});</li>
+ *   <li>the crypto work is queued only once its key is ready, so it never holds a worker while
+ *       waiting, and its footprint leaves out the derivation;</li>
+ *   <li>pure file system work, such as listing the vault, runs on a small I/O lane of its own
+ *       and is never stuck behind crypto jobs.</li>
+ * </ul>
+ */
+public class VaultService {
+
+    public static final String ENCRYPTED_FILE_EXTENSION = ".enc";
+    public static final String ENCRYPTED_DIR_EXTENSION = ".encdir";
+    public static final String ENCRYPTED_PACK_EXTENSION = PackFile.EXTENSION;
+
+    private static final int IO_THREADS = 2;
+
+    private static volatile VaultService shared;
+
+    private final TaskScheduler scheduler;
+    private final ExecutorService io;
+
+    public VaultService(TaskScheduler scheduler) {
+        this.scheduler = scheduler;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.io = Executors.newFixedThreadPool(IO_THREADS, r -> {
+            Thread t = new Thread(r, "vault-io-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Application-wide service on {@link TaskScheduler#shared()}.
+     */
+    public static VaultService shared() {
+        VaultService service = shared;
+        if (service == null) {
+            synchronized (VaultService.class) {
+                if (shared == null) {
+                    shared = new VaultService(TaskScheduler.shared());
+                }
+                service = shared;
+            }
+        }
+        return service;
+    }
+
+    // ===== Keys =====
+
+    /**
+     * Starts deriving a key; pass it to an operation, or {@link SpeculativeKey#discard} it.
+     */
+    public SpeculativeKey deriveKey(char[] password) {
+        return SpeculativeKey.start(password);
+    }
+
+    /**
+     * Derives a session key that stays the caller's, e.g. for a viewer.
+     */
+    public Operation<SecretKey> unlock(char[] password) {
+        Operation<SecretKey> operation = new Operation<>();
+        operation.publish(Stage.DERIVING_KEY, "Deriving key");
+        operation.complete(SpeculativeKey.start(password).whenReady());
+        return operation;
+    }
+
+    // ===== Files =====
+
+    public Operation<Path> encryptFile(Path input, Path output, SpeculativeKey key) {
+        return withKey("Encrypting " + input.getFileName(), TaskScheduler.Priority.NORMAL,
+                JobFootprint.withDerivedKey(JobFootprint.encryptFile(input)), key, true, k -> {
+                    CryptoEngine.encryptFile(input, output, k);
+                    return output;
+                });
+    }
+
+    /**
+     * Re-encrypts only the chunks of {@code encrypted} that differ from {@code input}.
+     *
+     * @return completes with the number of chunks written
+     */
+    public Operation<Long> updateFile(Path input, Path encrypted, SpeculativeKey key) {
+        return withKey("Updating " + encrypted.getFileName(), TaskScheduler.Priority.NORMAL,
+                JobFootprint.withDerivedKey(JobFootprint.encryptFile(input)), key, true,
+                k -> CryptoEngine.updateFile(input, encrypted, k));
+    }
+
+    public Operation<Path> encryptDirectory(Path inputDir, Path output, SpeculativeKey key) {
+        return withKey("Encrypting " + inputDir.getFileName(), TaskScheduler.Priority.NORMAL,
+                onIo(() -> JobFootprint.withDerivedKey(JobFootprint.encryptDirectory(inputDir))), key, true, k -> {
+                    CryptoEngine.encryptDirectory(inputDir, output, k);
+                    return output;
+                });
+    }
+
+    /**
+     * Encrypts the files below {@code inputDir} as members of the pack {@code pack}, appending to
+     * it if it exists unless {@code replace} is set; see {@link PackFile#suits} for when a
+     * directory is better packed than archived.
+     */
+    public Operation<Path> packDirectory(Path inputDir, Path pack, SpeculativeKey key, boolean replace) {
+        return withKey("Packing " + inputDir.getFileName(), TaskScheduler.Priority.NORMAL,
+                onIo(() -> JobFootprint.withDerivedKey(JobFootprint.packDirectory(inputDir))), key, true, k -> {
+                    PackFile.packDirectory(inputDir, pack, k, replace);
+                    return pack;
+                });
+    }
+
+    /**
+     * Encrypts {@code inputDir} into {@code outputDir} as a pack if it holds many small files and
+     * as a directory archive otherwise. The decision and the footprint both walk the tree, on the
+     * I/O lane while the key is derived.
+     *
+     * @return completes with the container written
+     */
+    public Operation<Path> encryptOrPackDirectory(Path inputDir, Path outputDir, SpeculativeKey key) {
+        String name = inputDir.getFileName().toString();
+        CompletableFuture<Boolean> pack = CompletableFuture.supplyAsync(() -> shouldPack(inputDir), io);
+        CompletableFuture<Long> footprint = pack.thenApplyAsync(packed -> JobFootprint.withDerivedKey(packed
+                ? JobFootprint.packDirectory(inputDir) : JobFootprint.encryptDirectory(inputDir)), io);
+        return withKey("Encrypting " + name, TaskScheduler.Priority.NORMAL, footprint, key, true, k -> {
+            if (pack.join()) {
+                Path output = outputDir.resolve(name + ENCRYPTED_PACK_EXTENSION);
+                PackFile.packDirectory(inputDir, output, k);
+                return output;
+            }
+            Path output = outputDir.resolve(name + ENCRYPTED_DIR_EXTENSION);
+            CryptoEngine.encryptDirectory(inputDir, output, k);
+            return output;
+        });
+    }
+
+    /**
+     * True if {@code inputDir} should be packed rather than archived; see {@link PackFile#suits}.
+     */
+    private static boolean shouldPack(Path inputDir) {
+        try {
+            return PackFile.suits(inputDir);
+        } catch (IOException | UncheckedIOException e) {
+            return false; // archived instead, which reports the error
+        }
+    }
+
+    public Operation<Path> unpackDirectory(Path pack, Path output, SpeculativeKey key) {
+        return withKey("Unpacking " + pack.getFileName(), TaskScheduler.Priority.NORMAL,
+                JobFootprint.withDerivedKey(JobFootprint.unpackDirectory()), key, true, k -> {
+                    PackFile.unpackToDirectory(pack, output, k);
+                    return output;
+                });
+    }
+
+    public Operation<Path> decryptFile(Path input, Path output, SpeculativeKey key) {
+        return withKey("Decrypting " + input.getFileName(), TaskScheduler.Priority.NORMAL,
+                JobFootprint.withDerivedKey(JobFootprint.decryptFile(input)), key, true, k -> {
+                    CryptoEngine.decryptFile(input, output, k);
+                    return output;
+                });
+    }
+
+    public Operation<Path> decryptDirectory(Path input, Path output, SpeculativeKey key) {
+        return withKey("Decrypting " + input.getFileName(), TaskScheduler.Priority.NORMAL,
+                JobFootprint.withDerivedKey(JobFootprint.decryptDirectory(input)), key, true, k -> {
+                    CryptoEngine.decryptDirectory(input, output, k);
+                    return output;
+                });
+    }
+
+    // ===== Vault =====
+
+    /**
+     * The encrypted files and directories directly in the vault.
+     */
+    public Operation<List<StoredFile>> listVault() {
+        return listVault(null);
+    }
+
+    /**
+     * The encrypted files and directories directly in the vault, with their {@link FileMetadata}
+     * where {@code sessionKey} opens it. Costs one small read per file; nothing is decrypted.
+     * A file that cannot be read is still listed, with {@link StoredFile#getError()} saying why.
+     *
+     * @param sessionKey an unlocked session's key, or null to list without metadata
+     */
+    public Operation<List<StoredFile>> listVault(SecretKey sessionKey) {
+        Operation<List<StoredFile>> operation = new Operation<>();
+        operation.publish(Stage.RUNNING, "Listing the vault");
+        operation.complete(CompletableFuture.supplyAsync(() -> {
+            List<StoredFile> files = new ArrayList<>();
+            Path vaultPath = LocalFileStorage.getVaultPath();
+            if (vaultPath == null || !Files.exists(vaultPath)) {
+                return files;
+            }
+            try (Stream<Path> entries = Files.list(vaultPath)) {
+                FileMetadata.Reader reader = sessionKey != null ? new FileMetadata.Reader(sessionKey) : null;
+                entries.filter(p -> p.toString().endsWith(ENCRYPTED_FILE_EXTENSION) || p.toString().endsWith(ENCRYPTED_DIR_EXTENSION)
+                                || p.toString().endsWith(ENCRYPTED_PACK_EXTENSION))
+                        .forEach(p -> {
+                            try {
+                                files.add(new StoredFile(p, Files.size(p), readMetadata(reader, p)));
+                            } catch (Exception e) {
+                                files.add(StoredFile.unreadable(p, e));
+                            }
+                        });
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+            return files;
+        }, io));
+        return operation;
+    }
+
+    private static FileMetadata readMetadata(FileMetadata.Reader reader, Path file) {
+        if (reader == null) {
+            return null;
+        }
+        try {
+            return reader.read(file);
+        } catch (Exception e) {
+            return null; // older file, another password, or damaged: listed without metadata
+        }
+    }
+
+    public Operation<VaultScrubber.Report> verifyVault(SpeculativeKey key) {
+        int threads = EngineSettings.current().effectiveScrubThreads();
+        return withKey("Verifying vault", TaskScheduler.Priority.LOW,
+                JobFootprint.withDerivedKey(JobFootprint.verifyVault(threads)), key, true,
+                k -> VaultScrubber.scrub(LocalFileStorage.getVaultPath(), k, threads));
+    }
+
+    public Operation<List<VaultIndex.Entry>> search(String query, SpeculativeKey key) {
+        return withKey("Searching for \"" + query + "\"", TaskScheduler.Priority.HIGH, JobFootprint.listing(), key, true,
+                k -> VaultIndex.search(LocalFileStorage.getVaultPath(), k, query));
+    }
+
+    public Operation<LocalFileStorage.MirrorResult> mirror(Path target, SpeculativeKey key) {
+        return withKey("Mirroring vault to " + target, TaskScheduler.Priority.LOW, JobFootprint.mirror(), key, true,
+                k -> LocalFileStorage.mirror(target, k));
+    }
+
+    /**
+     * Starts watching {@code inbox}. The watcher keeps using the key after the operation completes,
+     * so it is never released here.
+     */
+    public Operation<DropFolderWatcher> startDropFolder(Path inbox, SpeculativeKey key, Consumer<String> log) {
+        return withKey("Starting drop folder " + inbox, TaskScheduler.Priority.HIGH, JobFootprint.listing(), key, false,
+                k -> DropFolderWatcher.start(inbox, LocalFileStorage.getVaultPath(), k, log));
+    }
+
+    /**
+     * Benchmarks the cipher suites unless one is configured, so the choice is made before the
+     * first encryption needs it.
+     */
+    public Operation<CipherSuite> selectCipherSuite() {
+        Operation<CipherSuite> operation = new Operation<>();
+        operation.publish(Stage.QUEUED, "Selecting cipher suite");
+        operation.complete(scheduler.submit("cipher benchmark", TaskScheduler.Priority.HIGH, JobFootprint.listing(),
+                CipherBenchmark::preferredSuite));
+        return operation;
+    }
+
+    // ===== Plumbing =====
+
+    interface KeyedWork<T> {
+        T run(SecretKey key) throws Exception;
+    }
+
+    private <T> Operation<T> withKey(String name, TaskScheduler.Priority priority, long footprint, SpeculativeKey key,
+                                     boolean release, KeyedWork<T> work) {
+        return withKey(name, priority, CompletableFuture.completedFuture(footprint), key, release, work);
+    }
+
+    /**
+     * Queues the job once both its key and its footprint are ready.
+     */
+    private <T> Operation<T> withKey(String name, TaskScheduler.Priority priority, CompletableFuture<Long> footprint,
+                                     SpeculativeKey key, boolean release, KeyedWork<T> work) {
+        Operation<T> operation = new Operation<>();
+        operation.publish(Stage.DERIVING_KEY, "Deriving key");
+        operation.complete(key.whenReady().thenCombine(footprint, (k, bytes) -> {
+            operation.publish(Stage.QUEUED, name + " (queued)");
+            return scheduler.submit(name, priority, bytes, () -> {
+                operation.publish(Stage.RUNNING, name);
+                try {
+                    return work.run(k);
+                } finally {
+                    if (release) {
+                        key.release();
+                    }
+                }
+            });
+        }).thenCompose(job -> job));
+        return operation;
+    }
+
+    /**
+     * Measures a footprint on the I/O lane, for estimates that walk a tree.
+     */
+    private CompletableFuture<Long> onIo(Supplier<Long> footprint) {
+        return CompletableFuture.supplyAsync(footprint, io);
+    }
+
+    public enum Stage {
+        DERIVING_KEY,
+        QUEUED,    // waiting for a worker or memory
+        RUNNING,
+        SUCCEEDED,
+        FAILED
+    }
+
+    public static final class Progress {
+        private final Stage stage;
+        private final String message;
+
+        Progress(Stage stage, String message) {
+            this.stage = stage;
+            this.message = message;
+        }
+
+        public Stage getStage() {
+            return stage;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return stage + ": " + message;
+        }
+    }
+
+    /**
+     * A running operation. Every subscriber to {@link #progress()} sees all stages from the start,
+     * however late it subscribes, and then the stream completes once the result is in.
+     */
+    public static final class Operation<T> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final List<Progress> history = new ArrayList<>();
+        private final List<SubmissionPublisher<Progress>> publishers = new ArrayList<>();
+        private boolean closed;
+
+        public CompletableFuture<T> result() {
+            return result;
+        }
+
+        public Flow.Publisher<Progress> progress() {
+            return this::subscribe;
+        }
+
+        /**
+         * Runs {@code action} for each stage on {@code executor}, such as the UI thread.
+         */
+        public Operation<T> onProgress(Executor executor, Consumer<Progress> action) {
+            progress().subscribe(new Flow.Subscriber<>() {
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    subscription.request(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void onNext(Progress item) {
+                    executor.execute(() -> action.accept(item));
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+            return this;
+        }
+
+        private synchronized void subscribe(Flow.Subscriber<? super Progress> subscriber) {
+            SubmissionPublisher<Progress> publisher = new SubmissionPublisher<>();
+            publisher.subscribe(subscriber);
+            history.forEach(publisher::submit);
+            if (closed) {
+                publisher.close();
+            } else {
+                publishers.add(publisher);
+            }
+        }
+
+        synchronized void publish(Stage stage, String message) {
+            if (closed) {
+                return;
+            }
+            Progress progress = new Progress(stage, message);
+            history.add(progress);
+            publishers.forEach(p -> p.submit(progress));
+        }
+
+        private synchronized void close() {
+            closed = true;
+            publishers.forEach(SubmissionPublisher::close);
+            publishers.clear();
+        }
+
+        void complete(CompletableFuture<T> work) {
+            work.whenComplete((value, error) -> {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                publish(cause == null ? Stage.SUCCEEDED : Stage.FAILED, cause == null ? "Done" : String.valueOf(cause.getMessage()));
+                close();
+                if (cause == null) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally(cause);
+                }
+            });
+        }
+    }
+
+    /**
+     * An encrypted file or directory archive in the vault.
+     */
+    public static final class StoredFile {
+        private final Path path;
+        private final long size;
+        private final FileMetadata metadata;
+        private final String error;
+
+        StoredFile(Path path, long size, FileMetadata metadata) {
+            this(path, size, metadata, null);
+        }
+
+        private StoredFile(Path path, long size, FileMetadata metadata, String error) {
+            this.path = path;
+            this.size = size;
+            this.metadata = metadata;
+            this.error = error;
+        }
+
+        static StoredFile unreadable(Path path, Exception cause) {
+            String message = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+            return new StoredFile(path, -1, null, message);
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public String getName() {
+            return path.getFileName().toString();
+        }
+
+        /** Size on disk, or -1 if the file could not be read. */
+        public long getSize() {
+            return size;
+        }
+
+        /** Why the file could not be read, or null if it could. */
+        public String getError() {
+            return error;
+        }
+
+        /** What the file holds, or null if it was listed without a key or has no readable metadata. */
+        public FileMetadata getMetadata() {
+            return metadata;
+        }
+    }
+}
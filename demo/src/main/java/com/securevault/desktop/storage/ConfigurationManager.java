@@ -1,9 +1,254 @@
 package com.securevault.desktop.storage;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.securevault.desktop.crypto.CipherBenchmark;
+import com.securevault.desktop.crypto.EngineSettings;
+import com.securevault.desktop.crypto.KeyDerivation;
+import com.securevault.desktop.crypto.PipelineTuner;
+import com.securevault.desktop.service.TaskScheduler;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
 /**
- * Configuration manager for local application settings.
- * Authentication/token logic has been removed for local-only mode.
+ * Named performance profiles, persisted in {@value #SETTINGS_FILE} in the vault directory and
+ * installed as the engine's {@link EngineSettings}.
+ *
+ * <p>The file names the active profile and may define more, each starting from a built-in one:</p>
+ * <pre>
+ * {
+ *   "profile": "nas",
+ *   "profiles": { "nas": { "base": "low-memory", "chunkSizeKb": 512, "workers": 2 } }
+ * }
+ * </pre>
+ * <p>Fields are {@code chunkSizeKb}, {@code workers}, {@code memoryBudgetMb}, {@code scrubThreads},
+ * {@code compressionLevel} and {@code autoTune}; 0 means automatic for the counts. The
+ * {@code securevault.*} system properties still override the worker pool for one run.</p>
+ *
+ * <p>With {@code autoTune} on, {@link PipelineTuner} adjusts the chunk size and pipeline depth per
+ * file system; what it learns is kept next to the settings, in {@value PipelineTuner#TUNING_FILE}.</p>
+ *
+ * <p>Run {@code main} with {@code show}, {@code list} or {@code use <profile>} to inspect or switch
+ * profiles from a shell.</p>
  */
 public class ConfigurationManager {
-    // Reserved for future local configuration needs
+
+    public static final String SETTINGS_FILE = "settings.json";
+    public static final String DEFAULT_PROFILE = "balanced";
+
+    private static final Map<String, EngineSettings> BUILT_IN = new LinkedHashMap<>();
+
+    static {
+        int cores = Runtime.getRuntime().availableProcessors();
+        BUILT_IN.put(DEFAULT_PROFILE, EngineSettings.DEFAULTS);
+        // One job and one scrub thread at a time, and the cheapest compression
+        BUILT_IN.put("laptop-battery", new EngineSettings(1024 * 1024, 1, EngineSettings.AUTO, 1, Deflater.BEST_SPEED, false));
+        // Every core, and larger chunks to cut per-chunk overhead
+        BUILT_IN.put("workstation-max-throughput", new EngineSettings(4 * 1024 * 1024, cores, EngineSettings.AUTO,
+                EngineSettings.AUTO, Deflater.BEST_SPEED, true));
+        // Small chunks and a small budget, so few buffers are ever live; tuning could only grow them
+        BUILT_IN.put("low-memory", new EngineSettings(256 * 1024, 1, 128, 1, Deflater.DEFAULT_COMPRESSION, false));
+    }
+
+    private static volatile String activeProfile = DEFAULT_PROFILE;
+
+    public static Path getSettingsPath() {
+        return LocalFileStorage.getVaultPath().resolve(SETTINGS_FILE);
+    }
+
+    /**
+     * Installs the profile named in the settings file, or the default one if there is no file.
+     *
+     * @return the name of the installed profile
+     * @throws IOException if the file cannot be read or names an invalid profile; the default
+     *         profile is installed in that case
+     */
+    public static String load() throws IOException {
+        activeProfile = DEFAULT_PROFILE;
+        EngineSettings.install(EngineSettings.DEFAULTS);
+        PipelineTuner.load(getSettingsPath().resolveSibling(PipelineTuner.TUNING_FILE));
+        ObjectNode root = readSettings();
+        String name = profileName(root, "profile");
+        EngineSettings settings = profiles(root).get(name);
+        if (settings == null) {
+            throw new IOException("Unknown performance profile in " + SETTINGS_FILE + ": " + name);
+        }
+        EngineSettings.install(settings);
+        activeProfile = name;
+        return name;
+    }
+
+    public static String getActiveProfile() {
+        return activeProfile;
+    }
+
+    /**
+     * Built-in profiles followed by the ones defined in the settings file.
+     */
+    public static Map<String, EngineSettings> profiles() throws IOException {
+        return profiles(readSettings());
+    }
+
+    /**
+     * Makes {@code name} the active profile, now and on later starts.
+     */
+    public static void useProfile(String name) throws IOException {
+        ObjectNode root = readSettings();
+        EngineSettings settings = profiles(root).get(name);
+        if (settings == null) {
+            throw new IOException("Unknown performance profile: " + name);
+        }
+        root.put("profile", name);
+        writeSettings(root);
+        EngineSettings.install(settings);
+        activeProfile = name;
+    }
+
+    /**
+     * The settings the engine uses right now, one per line, with where each one comes from.
+     */
+    public static String describe() {
+        EngineSettings settings = EngineSettings.current();
+        String workersOverride = System.getProperty(TaskScheduler.WORKERS_PROPERTY);
+        String budgetOverride = System.getProperty(TaskScheduler.MEMORY_BUDGET_PROPERTY);
+        String cipherOverride = System.getProperty(CipherBenchmark.OVERRIDE_PROPERTY);
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Profile:            %s (%s)%n", activeProfile, getSettingsPath()));
+        text.append(String.format("Chunk size:         %d KB%s%n", settings.getChunkSize() / 1024,
+                settings.isAutoTune() ? " (starting point, tuned per file system)" : ""));
+        text.append(String.format("Background workers: %s%n", workersOverride != null
+                ? workersOverride + " (-D" + TaskScheduler.WORKERS_PROPERTY + ")"
+                : settings.effectiveWorkers() + automatic(settings.getWorkers())));
+        text.append(String.format("Memory budget:      %s%n", budgetOverride != null
+                ? budgetOverride + " MB (-D" + TaskScheduler.MEMORY_BUDGET_PROPERTY + ")"
+                : settings.effectiveMemoryBudgetMb() + " MB" + automatic(settings.getMemoryBudgetMb())));
+        text.append(String.format("Scrub threads:      %d%s%n", settings.effectiveScrubThreads(), automatic(settings.getScrubThreads())));
+        text.append(String.format("Compression level:  %s%n", settings.getCompressionLevel() == Deflater.DEFAULT_COMPRESSION
+                ? "default" : String.valueOf(settings.getCompressionLevel())));
+        text.append(String.format("Cipher suite:       %s%n", cipherOverride != null
+                ? cipherOverride + " (-D" + CipherBenchmark.OVERRIDE_PROPERTY + ")" : "fastest measured at startup"));
+        text.append(String.format("Key derivation:     %s (fixed)%n", KeyDerivation.describeCost()));
+        String learned = PipelineTuner.describe();
+        if (settings.isAutoTune() && !learned.isEmpty()) {
+            text.append(String.format("Learned per file system (chunk size x pipeline depth):%n"));
+            for (String line : learned.split("\\R")) {
+                text.append("  ").append(line).append(System.lineSeparator());
+            }
+        }
+        return text.toString();
+    }
+
+    private static String automatic(long value) {
+        return value == EngineSettings.AUTO ? " (auto)" : "";
+    }
+
+    /**
+     * Reads a profile name, falling back to the default profile when the field is absent.
+     * A field that is present but not a string yields {@code null}, which names no profile.
+     */
+    private static String profileName(JsonNode node, String field) {
+        return node.has(field) ? node.get(field).textValue() : DEFAULT_PROFILE;
+    }
+
+    private static Map<String, EngineSettings> profiles(ObjectNode root) throws IOException {
+        Map<String, EngineSettings> profiles = new LinkedHashMap<>(BUILT_IN);
+        JsonNode custom = root.path("profiles");
+        Iterator<Map.Entry<String, JsonNode>> fields = custom.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode node = field.getValue();
+            String baseName = profileName(node, "base");
+            EngineSettings base = BUILT_IN.get(baseName);
+            if (base == null) {
+                throw new IOException("Profile " + field.getKey() + " is based on an unknown profile: " + baseName);
+            }
+            try {
+                profiles.put(field.getKey(), new EngineSettings(
+                        node.path("chunkSizeKb").asInt(base.getChunkSize() / 1024) * 1024,
+                        node.path("workers").asInt(base.getWorkers()),
+                        node.path("memoryBudgetMb").asLong(base.getMemoryBudgetMb()),
+                        node.path("scrubThreads").asInt(base.getScrubThreads()),
+                        node.path("compressionLevel").asInt(base.getCompressionLevel()),
+                        node.path("autoTune").asBoolean(base.isAutoTune())));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid profile " + field.getKey() + ": " + e.getMessage());
+            }
+        }
+        return profiles;
+    }
+
+    private static ObjectNode readSettings() throws IOException {
+        Path path = getSettingsPath();
+        if (!Files.exists(path)) {
+            return mapper().createObjectNode();
+        }
+        JsonNode root = mapper().readTree(path.toFile());
+        if (!(root instanceof ObjectNode)) {
+            throw new IOException(SETTINGS_FILE + " must contain a JSON object");
+        }
+        return (ObjectNode) root;
+    }
+
+    private static void writeSettings(ObjectNode root) throws IOException {
+        Path path = getSettingsPath();
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(SETTINGS_FILE + ".tmp");
+        mapper().writeValue(temp.toFile(), root);
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static ObjectMapper mapper() {
+        return new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String command = args.length > 0 ? args[0] : "show";
+        try {
+            switch (command) {
+                case "show" -> {
+                    load();
+                    System.out.print(describe());
+                }
+                case "list" -> {
+                    load();
+                    for (Map.Entry<String, EngineSettings> entry : profiles().entrySet()) {
+                        EngineSettings s = entry.getValue();
+                        System.out.printf("%s %-28s chunk %5d KB, workers %s, budget %s, scrub %s, compression %d, tuning %s%n",
+                                entry.getKey().equals(activeProfile) ? "*" : " ", entry.getKey(), s.getChunkSize() / 1024,
+                                count(s.getWorkers()), s.getMemoryBudgetMb() == EngineSettings.AUTO ? "auto" : s.getMemoryBudgetMb() + " MB",
+                                count(s.getScrubThreads()), s.getCompressionLevel(), s.isAutoTune() ? "on" : "off");
+                    }
+                }
+                case "use" -> {
+                    if (args.length < 2) {
+                        throw new IllegalArgumentException("Usage: use <profile>");
+                    }
+                    useProfile(args[1]);
+                    System.out.print(describe());
+                }
+                default -> throw new IllegalArgumentException("Unknown command " + command + ", expected show, list or use <profile>");
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static String count(int value) {
+        return value == EngineSettings.AUTO ? "auto" : String.valueOf(value);
+    }
 }
@@ -1,14 +1,48 @@
 package com.securevault.desktop.storage;
 
+import com.securevault.desktop.crypto.DeltaUpdate;
+import com.securevault.desktop.crypto.KeyDerivation;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 public class LocalFileStorage {
 
     private static final String VAULT_DIR_NAME = ".securevault";
 
+    // Mirror manifest kept in the destination
+    public static final String MIRROR_MANIFEST = ".svmirror";
+    private static final byte[] MANIFEST_MAGIC = "SVMF".getBytes(StandardCharsets.US_ASCII);
+    private static final int MANIFEST_VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+    // In-flight files of interrupted or running jobs; they are mirrored once they complete
+    private static final List<String> TRANSIENT_SUFFIXES = List.of(".part", ".ckpt", ".journal", ".tmp");
+    // Containers that DeltaUpdate rewrites in place
+    private static final String ENCRYPTED_FILE_EXTENSION = ".enc";
+
     public static Path getVaultPath() {
         return Paths.get(System.getProperty("user.home"), VAULT_DIR_NAME);
     }
@@ -19,4 +53,256 @@ public class LocalFileStorage {
             Files.createDirectories(vaultPath);
         }
     }
+
+    /**
+     * Makes {@code destination} an exact copy of the vault.
+     */
+    public static MirrorResult mirror(Path destination, SecretKey key) throws Exception {
+        return mirror(getVaultPath(), destination, key);
+    }
+
+    /**
+     * Brings {@code destination} in sync with {@code source}: new and changed files are copied with
+     * {@link FileChannel#transferTo}, and files that were mirrored earlier but have since left the
+     * source are deleted. Files in the destination that the mirror never wrote are left alone.
+     *
+     * <p>A manifest in the destination records the size, mtime and keyed SHA-256 of every mirrored
+     * file, MAC'ed with a key derived from {@code key}. A file whose size and mtime match the
+     * manifest on both sides is skipped without being read; one that only looks changed is hashed,
+     * and copied only if its content really differs.</p>
+     *
+     * <p>Each {@code .enc} container is hashed and copied under its {@link DeltaUpdate} read lock,
+     * so an in-place update never lands halfway through. One with an unfinished update is skipped
+     * and its earlier mirrored copy kept.</p>
+     */
+    public static MirrorResult mirror(Path source, Path destination, SecretKey key) throws Exception {
+        Files.createDirectories(destination);
+        Mac hashMac = mirrorMac(key, "securevault mirror hash v1");
+        Mac manifestMac = mirrorMac(key, "securevault mirror manifest v1");
+        Path manifestFile = destination.resolve(MIRROR_MANIFEST);
+        Map<String, MirrorEntry> previous = loadManifest(manifestFile, manifestMac);
+        Map<String, MirrorEntry> next = new LinkedHashMap<>();
+        MirrorResult result = new MirrorResult();
+        long started = System.nanoTime();
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(source)) {
+            files = stream.filter(Files::isRegularFile).filter(LocalFileStorage::isMirrored).toList();
+        }
+
+        for (Path file : files) {
+            String name = source.relativize(file).toString().replace('\\', '/');
+            MirrorEntry known = previous.get(name);
+            boolean container = name.endsWith(ENCRYPTED_FILE_EXTENSION);
+            if (container) {
+                try {
+                    DeltaUpdate.startReading(file, key);
+                } catch (IOException e) {
+                    // Mirrored once its update is finished
+                    if (known != null) {
+                        next.put(name, known);
+                    }
+                    result.skipped++;
+                    continue;
+                }
+            }
+            try {
+                Path target = destination.resolve(name);
+                long size = Files.size(file);
+                FileTime modified = Files.getLastModifiedTime(file);
+                if (known != null && known.size == size && known.modified == modified.toMillis() && matches(target, known)) {
+                    next.put(name, known);
+                    result.unchanged++;
+                    continue;
+                }
+
+                byte[] hash = hash(file, hashMac);
+                boolean same = known != null && matches(target, known)
+                        ? MessageDigest.isEqual(known.hash, hash)
+                        : Files.exists(target) && Files.size(target) == size && MessageDigest.isEqual(hash(target, hashMac), hash);
+                if (same) {
+                    // Touched but not changed: only the timestamp needs to follow
+                    Files.setLastModifiedTime(target, modified);
+                    result.unchanged++;
+                } else {
+                    copy(file, target, size, modified);
+                    result.copied++;
+                    result.bytesCopied += size;
+                }
+                next.put(name, new MirrorEntry(size, modified.toMillis(), hash));
+            } finally {
+                if (container) {
+                    DeltaUpdate.endReading(file);
+                }
+            }
+        }
+
+        for (String name : previous.keySet()) {
+            if (!next.containsKey(name) && Files.deleteIfExists(destination.resolve(name))) {
+                result.deleted++;
+            }
+        }
+
+        saveManifest(manifestFile, next, manifestMac);
+        result.elapsedMillis = (System.nanoTime() - started) / 1_000_000;
+        return result;
+    }
+
+    private static boolean isMirrored(Path file) {
+        String name = file.getFileName().toString();
+        return !name.equals(MIRROR_MANIFEST) && TRANSIENT_SUFFIXES.stream().noneMatch(name::endsWith);
+    }
+
+    /**
+     * True if the mirrored copy still looks like what the manifest says was written.
+     */
+    private static boolean matches(Path target, MirrorEntry entry) throws IOException {
+        return Files.exists(target) && Files.size(target) == entry.size
+                && Files.getLastModifiedTime(target).toMillis() == entry.modified;
+    }
+
+    private static void copy(Path file, Path target, long size, FileTime modified) throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < size) {
+                // Lets the kernel move the bytes without copying them through the heap
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(true);
+        }
+        Files.setLastModifiedTime(temp, modified);
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static byte[] hash(Path file, Mac mac) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                mac.update(buffer);
+                buffer.clear();
+            }
+        }
+        return mac.doFinal();
+    }
+
+    private static Map<String, MirrorEntry> loadManifest(Path manifestFile, Mac mac) throws IOException {
+        Map<String, MirrorEntry> entries = new LinkedHashMap<>();
+        if (!Files.exists(manifestFile)) {
+            return entries;
+        }
+        byte[] data = Files.readAllBytes(manifestFile);
+        if (data.length < HASH_LENGTH) {
+            return entries;
+        }
+        byte[] body = Arrays.copyOf(data, data.length - HASH_LENGTH);
+        byte[] tag = Arrays.copyOfRange(data, data.length - HASH_LENGTH, data.length);
+        if (!MessageDigest.isEqual(tag, mac.doFinal(body))) {
+            // Written with another password or damaged: every file gets compared by content
+            return entries;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+            if (!Arrays.equals(in.readNBytes(MANIFEST_MAGIC.length), MANIFEST_MAGIC) || in.readUnsignedByte() != MANIFEST_VERSION) {
+                return entries;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                entries.put(name, new MirrorEntry(size, modified, in.readNBytes(HASH_LENGTH)));
+            }
+        }
+        return entries;
+    }
+
+    private static void saveManifest(Path manifestFile, Map<String, MirrorEntry> entries, Mac mac) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MANIFEST_MAGIC);
+            out.writeByte(MANIFEST_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, MirrorEntry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().modified);
+                out.write(entry.getValue().hash);
+            }
+            out.write(mac.doFinal(bytes.toByteArray()));
+        }
+        Path temp = manifestFile.resolveSibling(MIRROR_MANIFEST + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        try {
+            Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Mac mirrorMac(SecretKey key, String label) throws Exception {
+        byte[] macKey = KeyDerivation.deriveSubkey(key, label);
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        Arrays.fill(macKey, (byte) 0);
+        return mac;
+    }
+
+    private static final class MirrorEntry {
+        private final long size;
+        private final long modified;
+        private final byte[] hash;
+
+        MirrorEntry(long size, long modified, byte[] hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    public static class MirrorResult {
+        private int copied;
+        private int deleted;
+        private int unchanged;
+        private int skipped;
+        private long bytesCopied;
+        private long elapsedMillis;
+
+        public int getCopied() {
+            return copied;
+        }
+
+        public int getDeleted() {
+            return deleted;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public long getBytesCopied() {
+            return bytesCopied;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public String summary() {
+            return String.format("Mirrored in %d ms: %d copied (%.1f MB), %d deleted, %d unchanged", elapsedMillis,
+                    copied, bytesCopied / (1024.0 * 1024), deleted, unchanged)
+                    + (skipped > 0 ? ", " + skipped + " skipped with an unfinished update" : "");
+        }
+    }
 }
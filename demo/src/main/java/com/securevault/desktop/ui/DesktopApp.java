@@ -1,22 +1,32 @@
 package com.securevault.desktop.ui;
 
-import com.securevault.desktop.crypto.CryptoEngine;
-import com.securevault.desktop.crypto.KeyDerivation;
+import com.securevault.desktop.crypto.CipherBenchmark;
+import com.securevault.desktop.crypto.VaultIndex;
+import com.securevault.desktop.crypto.VaultScrubber;
+import com.securevault.desktop.service.AppStartup;
+import com.securevault.desktop.service.DropFolderWatcher;
+import com.securevault.desktop.service.LogBuffer;
+import com.securevault.desktop.service.RotatingLogFile;
+import com.securevault.desktop.service.SpeculativeKey;
+import com.securevault.desktop.service.VaultService;
+import com.securevault.desktop.storage.ConfigurationManager;
 import com.securevault.desktop.storage.LocalFileStorage;
 
-import javax.crypto.SecretKey;
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
 public class DesktopApp extends JFrame {
 
-    private static final String ENCRYPTED_FILE_EXTENSION = ".enc";
-    private static final String ENCRYPTED_DIR_EXTENSION = ".encdir";
+    private static final String ENCRYPTED_FILE_EXTENSION = VaultService.ENCRYPTED_FILE_EXTENSION;
+    private static final String ENCRYPTED_DIR_EXTENSION = VaultService.ENCRYPTED_DIR_EXTENSION;
+    private static final String ENCRYPTED_PACK_EXTENSION = VaultService.ENCRYPTED_PACK_EXTENSION;
 
     private final DefaultTableModel tableModel = new DefaultTableModel() {
         @Override
@@ -26,6 +36,10 @@ public class DesktopApp extends JFrame {
     };
 
     private final JTextArea logArea = new JTextArea(8, 80);
+    private final LogBuffer logBuffer = new LogBuffer(LogBuffer.DEFAULT_CAPACITY,
+            () -> SwingUtilities.invokeLater(this::flushLog), RotatingLogFile.fromSystemProperty());
+    private JButton dropFolderBtn;
+    private DropFolderWatcher dropFolder;
 
     public DesktopApp() {
         super("SecureVault Desktop - Local Mode");
@@ -41,6 +55,11 @@ public class DesktopApp extends JFrame {
         JButton encryptBtn = new JButton("Encrypt");
         JButton decryptBtn = new JButton("Decrypt");
         JButton refreshBtn = new JButton("Refresh Local Files");
+        JButton verifyBtn = new JButton("Verify Vault");
+        JButton searchBtn = new JButton("Search");
+        JButton mirrorBtn = new JButton("Mirror Vault");
+        dropFolderBtn = new JButton("Drop Folder");
+        JButton profileBtn = new JButton("Performance");
         JLabel titleLabel = new JLabel("SecureVault - Local File Encryption");
         titleLabel.setFont(titleLabel.getFont().deriveFont(Font.BOLD, 14f));
 
@@ -49,6 +68,11 @@ public class DesktopApp extends JFrame {
         topPanel.add(encryptBtn);
         topPanel.add(decryptBtn);
         topPanel.add(refreshBtn);
+        topPanel.add(verifyBtn);
+        topPanel.add(searchBtn);
+        topPanel.add(mirrorBtn);
+        topPanel.add(dropFolderBtn);
+        topPanel.add(profileBtn);
 
         add(topPanel, BorderLayout.NORTH);
 
@@ -68,25 +92,37 @@ public class DesktopApp extends JFrame {
         logScroll.setPreferredSize(new Dimension(800, 160));
         add(logScroll, BorderLayout.SOUTH);
 
-        // Ensure vault directory exists
-        try {
-            LocalFileStorage.init();
-            log("Vault path: " + LocalFileStorage.getVaultPath());
-        } catch (Exception e) {
-            log("Failed to initialize local vault: " + e.getMessage());
-        }
-
         // Actions
         encryptBtn.addActionListener(this::onShowEncryptDialog);
         decryptBtn.addActionListener(this::onDecryptFileOrDirectory);
         refreshBtn.addActionListener(e -> refreshLocalFiles());
+        verifyBtn.addActionListener(e -> onVerifyVault());
+        searchBtn.addActionListener(e -> onSearchVault());
+        mirrorBtn.addActionListener(e -> onMirrorVault());
+        dropFolderBtn.addActionListener(e -> onToggleDropFolder());
+        profileBtn.addActionListener(e -> onChooseProfile());
 
         pack();
         setLocationRelativeTo(null);
         setMinimumSize(new Dimension(800, 600));
-        
-        // Load local files on startup
-        refreshLocalFiles();
+
+        // Everything else waits until the window is on screen
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                // Queued behind the first paint
+                SwingUtilities.invokeLater(DesktopApp.this::onFirstFrame);
+            }
+        });
+    }
+
+    private void onFirstFrame() {
+        log("Window shown " + AppStartup.firstFrame() + " ms after launch");
+        AppStartup.begin(this::log).thenRun(() -> {
+            // Load local files on startup
+            refreshLocalFiles();
+            selectCipherSuite();
+        });
     }
 
     private void onShowEncryptDialog(ActionEvent e) {
@@ -135,6 +171,9 @@ public class DesktopApp extends JFrame {
             JOptionPane.showMessageDialog(this, "Passwords do not match or empty.", "Validation", JOptionPane.WARNING_MESSAGE);
             return;
         }
+        java.util.Arrays.fill(p2, '\0');
+        // Argon2 runs while the output directory is being chosen
+        SpeculativeKey pendingKey = VaultService.shared().deriveKey(p1);
 
         // Step 3: Choose output directory
         JFileChooser dirChooser = new JFileChooser();
@@ -143,42 +182,53 @@ public class DesktopApp extends JFrame {
         dirChooser.setCurrentDirectory(LocalFileStorage.getVaultPath().toFile());
         int dirRes = dirChooser.showSaveDialog(this);
         if (dirRes != JFileChooser.APPROVE_OPTION) {
+            pendingKey.discard();
             JOptionPane.showMessageDialog(this, "Output directory not selected.", "Cancelled", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
         
         File outputDir = dirChooser.getSelectedFile();
-        Path outputPath = outputDir.toPath().resolve(selected.getName() + ".enc");
-
-        new SwingWorker<Void, Void>() {
-            private Exception ex;
+        Path outputPath = outputDir.toPath().resolve(selected.getName() + ENCRYPTED_FILE_EXTENSION);
+        if (Files.exists(outputPath)) {
+            Object[] choices = {"Update changes", "Replace", "Cancel"};
+            int choice = JOptionPane.showOptionDialog(this, outputPath.getFileName() + " already exists. Update it by"
+                            + " re-encrypting only the parts that changed, or replace it with a new encrypted file?",
+                    "Encrypted file exists", JOptionPane.YES_NO_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE,
+                    null, choices, choices[0]);
+            if (choice == 0) {
+                updateFile(selected.toPath(), outputPath, pendingKey);
+                return;
+            }
+            if (choice != 1) {
+                pendingKey.discard();
+                return;
+            }
+        }
 
-            @Override
-            protected Void doInBackground() {
-                try {
-                    SecretKey key = KeyDerivation.deriveKeyFromPassword(p1);
-                    CryptoEngine.encryptFile(selected.toPath(), outputPath, key);
-                } catch (Exception exx) {
-                    ex = exx;
-                } finally {
-                    java.util.Arrays.fill(p1, '\0');
-                    java.util.Arrays.fill(p2, '\0');
-                }
-                return null;
+        logged(VaultService.shared().encryptFile(selected.toPath(), outputPath, pendingKey)).result().whenCompleteAsync((path, ex) -> {
+            if (ex != null) {
+                log("Encryption failed: " + ex.getMessage());
+                JOptionPane.showMessageDialog(DesktopApp.this, "Encryption failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            } else {
+                log("File encrypted: " + path);
+                JOptionPane.showMessageDialog(DesktopApp.this, "File encrypted successfully!\nSaved to: " + path, "Success", JOptionPane.INFORMATION_MESSAGE);
+                refreshLocalFiles();
             }
+        }, SwingUtilities::invokeLater);
+    }
 
-            @Override
-            protected void done() {
-                if (ex != null) {
-                    log("Encryption failed: " + ex.getMessage());
-                    JOptionPane.showMessageDialog(DesktopApp.this, "Encryption failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-                } else {
-                    log("File encrypted: " + outputPath);
-                    JOptionPane.showMessageDialog(DesktopApp.this, "File encrypted successfully!\nSaved to: " + outputPath, "Success", JOptionPane.INFORMATION_MESSAGE);
-                    refreshLocalFiles();
-                }
+    private void updateFile(Path input, Path encrypted, SpeculativeKey key) {
+        logged(VaultService.shared().updateFile(input, encrypted, key)).result().whenCompleteAsync((chunks, ex) -> {
+            if (ex != null) {
+                log("Update failed: " + ex.getMessage());
+                JOptionPane.showMessageDialog(DesktopApp.this, "Update failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            } else {
+                log("File updated in place: " + encrypted + " (" + chunks + " chunks rewritten)");
+                JOptionPane.showMessageDialog(DesktopApp.this, "Encrypted file updated.\n" + chunks + " chunks rewritten in " + encrypted,
+                        "Success", JOptionPane.INFORMATION_MESSAGE);
+                refreshLocalFiles();
             }
-        }.execute();
+        }, SwingUtilities::invokeLater);
     }
 
     private void onEncryptDirectory(ActionEvent e) {
@@ -209,6 +259,9 @@ public class DesktopApp extends JFrame {
             JOptionPane.showMessageDialog(this, "Passwords do not match or empty.", "Validation", JOptionPane.WARNING_MESSAGE);
             return;
         }
+        java.util.Arrays.fill(p2, '\0');
+        // Argon2 runs while the output directory is being chosen
+        SpeculativeKey pendingKey = VaultService.shared().deriveKey(p1);
 
         // Step 3: Choose output directory
         JFileChooser dirChooser = new JFileChooser();
@@ -217,42 +270,42 @@ public class DesktopApp extends JFrame {
         dirChooser.setCurrentDirectory(LocalFileStorage.getVaultPath().toFile());
         int dirRes = dirChooser.showSaveDialog(this);
         if (dirRes != JFileChooser.APPROVE_OPTION) {
+            pendingKey.discard();
             JOptionPane.showMessageDialog(this, "Output directory not selected.", "Cancelled", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
         
         File outputDir = dirChooser.getSelectedFile();
-        Path outputPath = outputDir.toPath().resolve(selected.getName() + ENCRYPTED_DIR_EXTENSION);
-
-        new SwingWorker<Void, Void>() {
-            private Exception ex;
-
-            @Override
-            protected Void doInBackground() {
-                try {
-                    SecretKey key = KeyDerivation.deriveKeyFromPassword(p1);
-                    CryptoEngine.encryptDirectory(selected.toPath(), outputPath, key);
-                } catch (Exception exx) {
-                    ex = exx;
-                } finally {
-                    java.util.Arrays.fill(p1, '\0');
-                    java.util.Arrays.fill(p2, '\0');
-                }
-                return null;
+        Path packPath = outputDir.toPath().resolve(selected.getName() + ENCRYPTED_PACK_EXTENSION);
+        VaultService.Operation<Path> operation;
+        if (Files.exists(packPath)) {
+            Object[] choices = {"Update changes", "Replace", "Cancel"};
+            int choice = JOptionPane.showOptionDialog(this, packPath.getFileName() + " already exists. Update it by adding"
+                            + " new and changed files (files since deleted stay in it), or replace it with a new pack?",
+                    "Encrypted pack exists", JOptionPane.YES_NO_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE,
+                    null, choices, choices[0]);
+            if (choice != 0 && choice != 1) {
+                pendingKey.discard();
+                return;
             }
+            operation = VaultService.shared().packDirectory(selected.toPath(), packPath, pendingKey, choice == 1);
+        } else {
+            // Many small files go into a pack, which takes them in with one key setup and sequential appends
+            operation = VaultService.shared().encryptOrPackDirectory(selected.toPath(), outputDir.toPath(), pendingKey);
+        }
 
-            @Override
-            protected void done() {
-                if (ex != null) {
-                    log("Encryption failed: " + ex.getMessage());
-                    JOptionPane.showMessageDialog(DesktopApp.this, "Encryption failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-                } else {
-                    log("Directory encrypted: " + outputPath);
-                    JOptionPane.showMessageDialog(DesktopApp.this, "Directory encrypted successfully!\nSaved to: " + outputPath, "Success", JOptionPane.INFORMATION_MESSAGE);
-                    refreshLocalFiles();
-                }
+        logged(operation).result().whenCompleteAsync((path, ex) -> {
+            if (ex != null) {
+                log("Encryption failed: " + ex.getMessage());
+                JOptionPane.showMessageDialog(DesktopApp.this, "Encryption failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            } else {
+                log("Directory encrypted: " + path);
+                boolean pack = path.toString().endsWith(ENCRYPTED_PACK_EXTENSION);
+                JOptionPane.showMessageDialog(DesktopApp.this, "Directory encrypted successfully!\nSaved to: " + path
+                        + (pack ? "\nEmpty folders are not kept in a pack." : ""), "Success", JOptionPane.INFORMATION_MESSAGE);
+                refreshLocalFiles();
             }
-        }.execute();
+        }, SwingUtilities::invokeLater);
     }
 
     private void onDecryptFileOrDirectory(ActionEvent e) {
@@ -264,15 +317,16 @@ public class DesktopApp extends JFrame {
         } else {
             chooser = new JFileChooser();
         }
-        chooser.setDialogTitle("Choose encrypted (.enc or .encdir) file");
+        chooser.setDialogTitle("Choose encrypted (.enc, .encdir or .svpack) file");
         chooser.setFileFilter(new javax.swing.filechooser.FileFilter() {
             @Override
             public boolean accept(File f) {
-                return f.isDirectory() || f.getName().endsWith(ENCRYPTED_FILE_EXTENSION) || f.getName().endsWith(ENCRYPTED_DIR_EXTENSION);
+                return f.isDirectory() || f.getName().endsWith(ENCRYPTED_FILE_EXTENSION) || f.getName().endsWith(ENCRYPTED_DIR_EXTENSION)
+                        || f.getName().endsWith(ENCRYPTED_PACK_EXTENSION);
             }
             @Override
             public String getDescription() {
-                return "Encrypted Files (*" + ENCRYPTED_FILE_EXTENSION + ", *" + ENCRYPTED_DIR_EXTENSION + ")";
+                return "Encrypted Files (*" + ENCRYPTED_FILE_EXTENSION + ", *" + ENCRYPTED_DIR_EXTENSION + ", *" + ENCRYPTED_PACK_EXTENSION + ")";
             }
         });
         int res = chooser.showOpenDialog(this);
@@ -281,12 +335,12 @@ public class DesktopApp extends JFrame {
         File selected = chooser.getSelectedFile();
         String fileName = selected.getName();
         
-        if (fileName.endsWith(ENCRYPTED_DIR_EXTENSION)) {
+        if (fileName.endsWith(ENCRYPTED_DIR_EXTENSION) || fileName.endsWith(ENCRYPTED_PACK_EXTENSION)) {
             onDecryptDirectory(selected);
         } else if (fileName.endsWith(ENCRYPTED_FILE_EXTENSION)) {
             onDecryptFile(selected);
         } else {
-            JOptionPane.showMessageDialog(this, "Selected file is not an " + ENCRYPTED_FILE_EXTENSION + " or " + ENCRYPTED_DIR_EXTENSION + " file.", "Validation", JOptionPane.WARNING_MESSAGE);
+            JOptionPane.showMessageDialog(this, "Selected file is not an " + ENCRYPTED_FILE_EXTENSION + ", " + ENCRYPTED_DIR_EXTENSION + " or " + ENCRYPTED_PACK_EXTENSION + " file.", "Validation", JOptionPane.WARNING_MESSAGE);
         }
     }
 
@@ -305,6 +359,8 @@ public class DesktopApp extends JFrame {
             JOptionPane.showMessageDialog(this, "Password cannot be empty.", "Validation", JOptionPane.WARNING_MESSAGE);
             return;
         }
+        // Argon2 runs while the output directory is being chosen
+        SpeculativeKey pendingKey = VaultService.shared().deriveKey(password);
 
         // Step 3: Choose output directory
         JFileChooser dirChooser = new JFileChooser();
@@ -312,6 +368,7 @@ public class DesktopApp extends JFrame {
         dirChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
         int dirRes = dirChooser.showSaveDialog(this);
         if (dirRes != JFileChooser.APPROVE_OPTION) {
+            pendingKey.discard();
             JOptionPane.showMessageDialog(this, "Output directory not selected.", "Cancelled", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
@@ -320,38 +377,21 @@ public class DesktopApp extends JFrame {
         String originalName = selected.getName().substring(0, selected.getName().length() - ENCRYPTED_FILE_EXTENSION.length());
         Path outputPath = outputDir.toPath().resolve(originalName);
 
-        new SwingWorker<Void, Void>() {
-            private Exception ex;
-
-            @Override
-            protected Void doInBackground() {
-                try {
-                    SecretKey key = KeyDerivation.deriveKeyFromPassword(password);
-                    CryptoEngine.decryptFile(selected.toPath(), outputPath, key);
-                } catch (Exception exx) {
-                    ex = exx;
-                } finally {
-                    java.util.Arrays.fill(password, '\0');
-                }
-                return null;
+        logged(VaultService.shared().decryptFile(selected.toPath(), outputPath, pendingKey)).result().whenCompleteAsync((path, ex) -> {
+            if (ex != null) {
+                log("Decryption failed: " + ex.getMessage());
+                JOptionPane.showMessageDialog(DesktopApp.this, "Decryption failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            } else {
+                log("File decrypted: " + path);
+                JOptionPane.showMessageDialog(DesktopApp.this, "File decrypted successfully!\nSaved to: " + path, "Success", JOptionPane.INFORMATION_MESSAGE);
             }
-
-            @Override
-            protected void done() {
-                if (ex != null) {
-                    log("Decryption failed: " + ex.getMessage());
-                    JOptionPane.showMessageDialog(DesktopApp.this, "Decryption failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-                } else {
-                    log("File decrypted: " + outputPath);
-                    JOptionPane.showMessageDialog(DesktopApp.this, "File decrypted successfully!\nSaved to: " + outputPath, "Success", JOptionPane.INFORMATION_MESSAGE);
-                }
-            }
-        }.execute();
+        }, SwingUtilities::invokeLater);
     }
 
     private void onDecryptDirectory(File selected) {
-        if (!selected.getName().endsWith(ENCRYPTED_DIR_EXTENSION)) {
-            JOptionPane.showMessageDialog(this, "Selected file is not an " + ENCRYPTED_DIR_EXTENSION + " file.", "Validation", JOptionPane.WARNING_MESSAGE);
+        boolean pack = selected.getName().endsWith(ENCRYPTED_PACK_EXTENSION);
+        if (!pack && !selected.getName().endsWith(ENCRYPTED_DIR_EXTENSION)) {
+            JOptionPane.showMessageDialog(this, "Selected file is not an " + ENCRYPTED_DIR_EXTENSION + " or " + ENCRYPTED_PACK_EXTENSION + " file.", "Validation", JOptionPane.WARNING_MESSAGE);
             return;
         }
 
@@ -364,6 +404,8 @@ public class DesktopApp extends JFrame {
             JOptionPane.showMessageDialog(this, "Password cannot be empty.", "Validation", JOptionPane.WARNING_MESSAGE);
             return;
         }
+        // Argon2 runs while the output directory is being chosen
+        SpeculativeKey pendingKey = VaultService.shared().deriveKey(password);
 
         // Step 3: Choose output directory
         JFileChooser dirChooser = new JFileChooser();
@@ -371,88 +413,217 @@ public class DesktopApp extends JFrame {
         dirChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
         int dirRes = dirChooser.showSaveDialog(this);
         if (dirRes != JFileChooser.APPROVE_OPTION) {
+            pendingKey.discard();
             JOptionPane.showMessageDialog(this, "Output directory not selected.", "Cancelled", JOptionPane.INFORMATION_MESSAGE);
             return;
         }
         
         File outputDir = dirChooser.getSelectedFile();
-        String originalName = selected.getName().substring(0, selected.getName().length() - ENCRYPTED_DIR_EXTENSION.length());
+        String extension = pack ? ENCRYPTED_PACK_EXTENSION : ENCRYPTED_DIR_EXTENSION;
+        String originalName = selected.getName().substring(0, selected.getName().length() - extension.length());
         Path outputPath = outputDir.toPath().resolve(originalName);
 
-        new SwingWorker<Void, Void>() {
-            private Exception ex;
+        logged(pack
+                ? VaultService.shared().unpackDirectory(selected.toPath(), outputPath, pendingKey)
+                : VaultService.shared().decryptDirectory(selected.toPath(), outputPath, pendingKey)).result().whenCompleteAsync((path, ex) -> {
+            if (ex != null) {
+                log("Decryption failed: " + ex.getMessage());
+                JOptionPane.showMessageDialog(DesktopApp.this, "Decryption failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            } else {
+                log("Directory decrypted: " + path);
+                JOptionPane.showMessageDialog(DesktopApp.this, "Directory decrypted successfully!\nSaved to: " + path, "Success", JOptionPane.INFORMATION_MESSAGE);
+            }
+        }, SwingUtilities::invokeLater);
+    }
 
-            @Override
-            protected Void doInBackground() {
-                try {
-                    SecretKey key = KeyDerivation.deriveKeyFromPassword(password);
-                    CryptoEngine.decryptDirectory(selected.toPath(), outputPath, key);
-                } catch (Exception exx) {
-                    ex = exx;
-                } finally {
-                    java.util.Arrays.fill(password, '\0');
-                }
-                return null;
+    private void onVerifyVault() {
+        JPasswordField pwd = new JPasswordField();
+        int ok = JOptionPane.showConfirmDialog(this, pwd, "Enter vault password to verify", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (ok != JOptionPane.OK_OPTION) return;
+        char[] password = pwd.getPassword();
+        if (password.length == 0) {
+            JOptionPane.showMessageDialog(this, "Password cannot be empty.", "Validation", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        log("Verifying vault...");
+        VaultService.shared().verifyVault(VaultService.shared().deriveKey(password)).result().whenCompleteAsync((report, ex) -> {
+            if (ex != null) {
+                log("Verification failed: " + ex.getMessage());
+                JOptionPane.showMessageDialog(DesktopApp.this, "Verification failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                return;
             }
+            log(report.summary());
+            for (VaultScrubber.Failure failure : report.getFailures()) {
+                log("Corrupted: " + failure.getFile() + " (" + failure.getReason() + ")");
+            }
+            int type = report.getFailures().isEmpty() ? JOptionPane.INFORMATION_MESSAGE : JOptionPane.WARNING_MESSAGE;
+            JOptionPane.showMessageDialog(DesktopApp.this, report.summary(), "Vault Verification", type);
+        }, SwingUtilities::invokeLater);
+    }
 
-            @Override
-            protected void done() {
-                if (ex != null) {
-                    log("Decryption failed: " + ex.getMessage());
-                    JOptionPane.showMessageDialog(DesktopApp.this, "Decryption failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-                } else {
-                    log("Directory decrypted: " + outputPath);
-                    JOptionPane.showMessageDialog(DesktopApp.this, "Directory decrypted successfully!\nSaved to: " + outputPath, "Success", JOptionPane.INFORMATION_MESSAGE);
-                }
+    private void onSearchVault() {
+        JTextField queryField = new JTextField();
+        JPasswordField pwd = new JPasswordField();
+        JPanel panel = new JPanel(new GridLayout(2, 2));
+        panel.add(new JLabel("Search for:"));
+        panel.add(queryField);
+        panel.add(new JLabel("Password:"));
+        panel.add(pwd);
+        int ok = JOptionPane.showConfirmDialog(this, panel, "Search vault", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (ok != JOptionPane.OK_OPTION) return;
+        String query = queryField.getText().trim();
+        char[] password = pwd.getPassword();
+        if (password.length == 0) {
+            JOptionPane.showMessageDialog(this, "Password cannot be empty.", "Validation", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        VaultService.shared().search(query, VaultService.shared().deriveKey(password)).result().whenCompleteAsync((matches, ex) -> {
+            if (ex != null) {
+                log("Search failed: " + ex.getMessage());
+                JOptionPane.showMessageDialog(DesktopApp.this, "Search failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            log("Search \"" + query + "\": " + matches.size() + " matches");
+            StringBuilder sb = new StringBuilder();
+            for (VaultIndex.Entry match : matches) {
+                sb.append(match.getMember()).append(" (").append(match.getSize()).append(" bytes) in ")
+                    .append(match.getContainer()).append('\n');
+            }
+            JTextArea results = new JTextArea(matches.isEmpty() ? "No matches." : sb.toString(), 16, 60);
+            results.setEditable(false);
+            JOptionPane.showMessageDialog(DesktopApp.this, new JScrollPane(results), "Search Results", JOptionPane.INFORMATION_MESSAGE);
+        }, SwingUtilities::invokeLater);
+    }
+
+    private void onMirrorVault() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Choose the mirror directory");
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path target = chooser.getSelectedFile().toPath();
+
+        JPasswordField pwd = new JPasswordField();
+        int ok = JOptionPane.showConfirmDialog(this, pwd, "Enter vault password to mirror", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (ok != JOptionPane.OK_OPTION) return;
+        char[] password = pwd.getPassword();
+        if (password.length == 0) {
+            JOptionPane.showMessageDialog(this, "Password cannot be empty.", "Validation", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        log("Mirroring vault to " + target + "...");
+        VaultService.shared().mirror(target, VaultService.shared().deriveKey(password)).result().whenCompleteAsync((result, ex) -> {
+            if (ex != null) {
+                log("Mirror failed: " + ex.getMessage());
+                JOptionPane.showMessageDialog(DesktopApp.this, "Mirror failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            log(result.summary());
+            JOptionPane.showMessageDialog(DesktopApp.this, result.summary(), "Mirror Vault", JOptionPane.INFORMATION_MESSAGE);
+        }, SwingUtilities::invokeLater);
+    }
+
+    private void onChooseProfile() {
+        String[] names;
+        try {
+            names = ConfigurationManager.profiles().keySet().toArray(new String[0]);
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Cannot read settings: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        JTextArea current = new JTextArea(ConfigurationManager.describe());
+        current.setEditable(false);
+        current.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        String active = ConfigurationManager.getActiveProfile();
+        Object choice = JOptionPane.showInputDialog(this, current, "Performance Profile", JOptionPane.PLAIN_MESSAGE, null, names, active);
+        if (choice == null || choice.equals(active)) return;
+        try {
+            ConfigurationManager.useProfile((String) choice);
+            log("Performance profile: " + choice);
+            log("The number of background workers changes on the next start.");
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Cannot switch profile: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void onToggleDropFolder() {
+        if (dropFolder != null) {
+            dropFolder.close();
+            log("Drop folder stopped: " + dropFolder.getInbox());
+            dropFolder = null;
+            dropFolderBtn.setText("Drop Folder");
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Choose the drop folder: files put here are encrypted into the vault and removed");
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        Path inbox = chooser.getSelectedFile().toPath();
+
+        JPasswordField pwd = new JPasswordField();
+        int ok = JOptionPane.showConfirmDialog(this, pwd, "Enter vault password for the drop folder", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (ok != JOptionPane.OK_OPTION) return;
+        char[] password = pwd.getPassword();
+        if (password.length == 0) {
+            JOptionPane.showMessageDialog(this, "Password cannot be empty.", "Validation", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+
+        // One key for the whole session; batches never derive again
+        SpeculativeKey key = VaultService.shared().deriveKey(password);
+        VaultService.shared().startDropFolder(inbox, key, message -> {
+            log(message);
+            if (message.startsWith("Drop folder encrypted")) {
+                SwingUtilities.invokeLater(DesktopApp.this::refreshLocalFiles);
+            }
+        }).result().whenCompleteAsync((watcher, ex) -> {
+            if (ex != null) {
+                log("Drop folder failed: " + ex.getMessage());
+                JOptionPane.showMessageDialog(DesktopApp.this, "Drop folder failed: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                return;
             }
-        }.execute();
+            dropFolder = watcher;
+            dropFolderBtn.setText("Stop Drop Folder");
+            log("Drop folder active: " + inbox);
+        }, SwingUtilities::invokeLater);
     }
 
     private void refreshLocalFiles() {
-        new SwingWorker<java.util.List<Object[]>, Void>() {
-            @Override
-            protected java.util.List<Object[]> doInBackground() {
-                java.util.List<Object[]> fileData = new java.util.ArrayList<>();
-                
-                Path vaultPath = LocalFileStorage.getVaultPath();
-                if (vaultPath != null && Files.exists(vaultPath)) {
-                    try {
-                        Files.list(vaultPath)
-                            .filter(p -> p.toString().endsWith(ENCRYPTED_FILE_EXTENSION) || p.toString().endsWith(ENCRYPTED_DIR_EXTENSION))
-                            .forEach(p -> {
-                                try {
-                                    long size = Files.size(p);
-                                    String sizeStr = formatFileSize(size);
-                                    fileData.add(new Object[]{
-                                        p.getFileName().toString(),
-                                        sizeStr,
-                                        p.getParent().toString()
-                                    });
-                                } catch (Exception ex) {
-                                    // Skip files we can't read
-                                }
-                            });
-                    } catch (Exception ex) {
-                        SwingUtilities.invokeLater(() -> log("Failed to list files: " + ex.getMessage()));
-                    }
+        VaultService.shared().listVault().result().whenCompleteAsync((files, ex) -> {
+            if (ex != null) {
+                log("Failed to refresh files: " + ex.getMessage());
+                return;
+            }
+            tableModel.setRowCount(0);
+            int unreadable = 0;
+            for (VaultService.StoredFile file : files) {
+                String size;
+                if (file.getError() != null) {
+                    unreadable++;
+                    log("Cannot read " + file.getName() + ": " + file.getError());
+                    size = "Unreadable";
+                } else {
+                    size = formatFileSize(file.getSize());
                 }
-                return fileData;
+                tableModel.addRow(new Object[]{file.getName(), size, file.getPath().getParent().toString()});
             }
+            log("Refreshed local files: " + tableModel.getRowCount() + " encrypted files found"
+                + (unreadable > 0 ? ", " + unreadable + " unreadable" : ""));
+        }, SwingUtilities::invokeLater);
+    }
 
-            @Override
-            protected void done() {
-                try {
-                    java.util.List<Object[]> fileData = get();
-                    tableModel.setRowCount(0);
-                    for (Object[] row : fileData) {
-                        tableModel.addRow(row);
-                    }
-                    log("Refreshed local files: " + tableModel.getRowCount() + " encrypted files found");
-                } catch (Exception ex) {
-                    log("Failed to refresh files: " + ex.getMessage());
-                }
+    private void selectCipherSuite() {
+        // Benchmark the cipher suites in the background so the result is ready before the first encryption
+        VaultService.shared().selectCipherSuite().result().whenCompleteAsync((suite, ex) -> {
+            if (ex != null) {
+                log("Cipher selection failed: " + ex.getMessage());
+                return;
             }
-        }.execute();
+            log("Cipher suite for new files: " + suite.getConfigName()
+                + (CipherBenchmark.getLastResults() == null ? " (configured)" : " (benchmarked)"));
+        }, SwingUtilities::invokeLater);
     }
 
     private String formatFileSize(long bytes) {
@@ -462,8 +633,27 @@ public class DesktopApp extends JFrame {
         return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
     }
 
+    /**
+     * Logs when an operation actually starts, which may be after its key and a free worker.
+     */
+    private <T> VaultService.Operation<T> logged(VaultService.Operation<T> operation) {
+        return operation.onProgress(Runnable::run, progress -> {
+            if (progress.getStage() == VaultService.Stage.RUNNING) {
+                log(progress.getMessage() + "...");
+            }
+        });
+    }
+
     private void log(String msg) {
-        logArea.append(msg + "\n");
+        logBuffer.append(msg);
+    }
+
+    private void flushLog() {
+        LogBuffer.Batch batch = logBuffer.drain();
+        logArea.append(batch.getAppended());
+        if (batch.getRemovedChars() > 0) {
+            logArea.replaceRange(null, 0, batch.getRemovedChars());
+        }
         logArea.setCaretPosition(logArea.getDocument().getLength());
     }
 
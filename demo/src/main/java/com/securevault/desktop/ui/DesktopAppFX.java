@@ -1,7 +1,22 @@
 package com.securevault.desktop.ui;
 
-import com.securevault.desktop.crypto.CryptoEngine;
+import com.securevault.desktop.crypto.CipherBenchmark;
+import com.securevault.desktop.crypto.CipherSuite;
+import com.securevault.desktop.crypto.EngineSettings;
+import com.securevault.desktop.crypto.FileMetadata;
 import com.securevault.desktop.crypto.KeyDerivation;
+import com.securevault.desktop.crypto.VaultIndex;
+import com.securevault.desktop.crypto.VaultScrubber;
+import com.securevault.desktop.service.AppStartup;
+import com.securevault.desktop.service.DropFolderWatcher;
+import com.securevault.desktop.service.JobFootprint;
+import com.securevault.desktop.service.LogBuffer;
+import com.securevault.desktop.service.PreviewCache;
+import com.securevault.desktop.service.RotatingLogFile;
+import com.securevault.desktop.service.SpeculativeKey;
+import com.securevault.desktop.service.TaskScheduler;
+import com.securevault.desktop.service.VaultService;
+import com.securevault.desktop.storage.ConfigurationManager;
 import com.securevault.desktop.storage.LocalFileStorage;
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -13,6 +28,9 @@ import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.layout.*;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
@@ -20,8 +38,10 @@ import javafx.stage.Stage;
 
 import javax.crypto.SecretKey;
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Optional;
 
 public class DesktopAppFX extends Application {
@@ -33,27 +53,41 @@ public class DesktopAppFX extends Application {
     private static final String ICON_DECRYPT = "🔓";
     private static final String ICON_VIEWER = "👁️";
     private static final String ICON_LOCK = "🔒";
+    private static final String ICON_VERIFY = "🛡️";
+    private static final String ICON_SEARCH = "🔍";
+    private static final String ICON_MIRROR = "💾";
+    private static final String ICON_INBOX = "📥";
+    private static final String ICON_SETTINGS = "⚙️";
 
     // File extensions
-    private static final String ENCRYPTED_FILE_EXTENSION = ".enc";
-    private static final String ENCRYPTED_DIR_EXTENSION = ".encdir";
+    private static final String ENCRYPTED_FILE_EXTENSION = VaultService.ENCRYPTED_FILE_EXTENSION;
+    private static final String ENCRYPTED_DIR_EXTENSION = VaultService.ENCRYPTED_DIR_EXTENSION;
+    private static final String ENCRYPTED_PACK_EXTENSION = VaultService.ENCRYPTED_PACK_EXTENSION;
 
     private final ObservableList<FileRecord> files = FXCollections.observableArrayList();
     private final TextArea logArea = new TextArea();
+    private final LogBuffer logBuffer = new LogBuffer(LogBuffer.DEFAULT_CAPACITY,
+            () -> Platform.runLater(this::flushLog), RotatingLogFile.fromSystemProperty());
     private VBox logPanel;
     private boolean logPanelExpanded = false;
     private TableView<FileRecord> tableView;
     private Button activeMenuItem;
 
+    // File viewer: decrypted previews live only in memory, in a bounded cache that zeroes evictions
+    private static final long PREVIEW_CACHE_BYTES = 64L * 1024 * 1024;
+    private final PreviewCache previewCache = new PreviewCache(PREVIEW_CACHE_BYTES);
+    private final PreviewLoader previewLoader = new PreviewLoader(previewCache);
+    private SecretKey viewerKey;
+    private VBox previewCard;
+    private Label previewTitle;
+    private TextArea previewText;
+    private ImageView previewImage;
+    private Button viewerLockBtn;
+    private Button dropFolderBtn;
+    private DropFolderWatcher dropFolder;
+
     @Override
     public void start(Stage stage) {
-        try {
-            LocalFileStorage.init();
-            log("Vault path: " + LocalFileStorage.getVaultPath());
-        } catch (Exception e) {
-            log("Failed to init vault: " + e.getMessage());
-        }
-
         BorderPane root = new BorderPane();
         root.getStyleClass().add("main-container");
 
@@ -84,9 +118,39 @@ public class DesktopAppFX extends Application {
         stage.setMinHeight(600);
         stage.setScene(scene);
         stage.show();
-        
-        // Load local encrypted files on startup
-        refreshLocalFiles();
+
+        // Everything else waits until the first frame is on screen
+        Runnable[] firstPulse = new Runnable[1];
+        firstPulse[0] = new Runnable() {
+            private boolean seen;
+
+            @Override
+            public void run() {
+                if (!seen) {
+                    seen = true;
+                    // Removed outside the pulse that is calling it, and after that pulse has rendered
+                    Platform.runLater(() -> {
+                        scene.removePostLayoutPulseListener(firstPulse[0]);
+                        onFirstFrame();
+                    });
+                }
+            }
+        };
+        scene.addPostLayoutPulseListener(firstPulse[0]);
+    }
+
+    private void onFirstFrame() {
+        log("Window shown " + AppStartup.firstFrame() + " ms after launch");
+        AppStartup.begin(this::log).thenRun(() -> {
+            // Load local encrypted files on startup
+            refreshLocalFiles();
+            selectCipherSuite();
+        });
+    }
+
+    @Override
+    public void stop() {
+        lockViewer();
     }
 
     private HBox createHeader() {
@@ -132,6 +196,7 @@ public class DesktopAppFX extends Application {
         Button encryptBtn = createSidebarItem(ICON_ENCRYPT, "Encrypt");
         Button decryptBtn = createSidebarItem(ICON_DECRYPT, "Decrypt");
         Button viewerBtn = createSidebarItem(ICON_VIEWER, "File Viewer");
+        Button settingsBtn = createSidebarItem(ICON_SETTINGS, "Performance");
 
         // Set Dashboard as default active
         dashboardBtn.getStyleClass().add("active");
@@ -143,11 +208,14 @@ public class DesktopAppFX extends Application {
 
         sidebar.getChildren().addAll(
             dashboardBtn, encryptBtn, decryptBtn, viewerBtn,
-            spacer
+            spacer, settingsBtn
         );
 
         // Sidebar item actions
-        dashboardBtn.setOnAction(e -> handleMenuClick(dashboardBtn, "dashboard"));
+        dashboardBtn.setOnAction(e -> {
+            handleMenuClick(dashboardBtn, "dashboard");
+            showViewer(false);
+        });
         encryptBtn.setOnAction(e -> {
             handleMenuClick(encryptBtn, "encrypt");
             showEncryptDialog();
@@ -156,9 +224,11 @@ public class DesktopAppFX extends Application {
             handleMenuClick(decryptBtn, "decrypt");
             decryptFileOrDirectory();
         });
+        settingsBtn.setOnAction(e -> choosePerformanceProfile());
         viewerBtn.setOnAction(e -> {
             handleMenuClick(viewerBtn, "viewer");
             refreshLocalFiles();
+            showViewer(true);
         });
 
         return sidebar;
@@ -203,7 +273,31 @@ public class DesktopAppFX extends Application {
         decryptActionBtn.getStyleClass().addAll("button", "button-success");
         decryptActionBtn.setOnAction(e -> decryptFileOrDirectory());
 
-        actionBar.getChildren().addAll(encryptActionBtn, decryptActionBtn);
+        Button verifyActionBtn = new Button(ICON_VERIFY + " Verify Vault");
+        verifyActionBtn.getStyleClass().add("button");
+        verifyActionBtn.setOnAction(e -> verifyVault());
+
+        Button mirrorActionBtn = new Button(ICON_MIRROR + " Mirror Vault");
+        mirrorActionBtn.getStyleClass().add("button");
+        mirrorActionBtn.setOnAction(e -> mirrorVault());
+
+        dropFolderBtn = new Button(ICON_INBOX + " Drop Folder");
+        dropFolderBtn.getStyleClass().add("button");
+        dropFolderBtn.setOnAction(e -> toggleDropFolder());
+
+        TextField searchField = new TextField();
+        searchField.setPromptText(ICON_SEARCH + " Search vault: name, folder, month...");
+        searchField.setPrefWidth(280);
+        searchField.setOnAction(e -> {
+            if (!searchField.getText().isBlank()) {
+                searchVault(searchField.getText().trim());
+            }
+        });
+
+        Region actionSpacer = new Region();
+        HBox.setHgrow(actionSpacer, Priority.ALWAYS);
+
+        actionBar.getChildren().addAll(encryptActionBtn, decryptActionBtn, verifyActionBtn, mirrorActionBtn, dropFolderBtn, actionSpacer, searchField);
 
         // File table card (for future file viewer functionality)
         VBox tableCard = new VBox(0);
@@ -218,18 +312,62 @@ public class DesktopAppFX extends Application {
         VBox.setVgrow(tableView, Priority.ALWAYS);
         
         tableCard.getChildren().addAll(tableTitle, tableView);
+        HBox.setHgrow(tableCard, Priority.ALWAYS);
+
+        previewCard = createPreviewCard();
+        tableView.getSelectionModel().selectedItemProperty().addListener((obs, old, selected) -> {
+            if (previewCard.isVisible()) {
+                previewSelected();
+            }
+        });
 
-        contentArea.getChildren().addAll(pageTitle, actionBar, tableCard);
+        HBox filesRow = new HBox(16, tableCard, previewCard);
+        VBox.setVgrow(filesRow, Priority.ALWAYS);
+
+        contentArea.getChildren().addAll(pageTitle, actionBar, filesRow);
         return contentArea;
     }
 
+    private VBox createPreviewCard() {
+        VBox card = new VBox(8);
+        card.getStyleClass().add("card");
+        card.setPrefWidth(380);
+        card.setMinWidth(300);
+
+        previewTitle = new Label(ICON_VIEWER + " Preview");
+        previewTitle.getStyleClass().add("card-title");
+
+        viewerLockBtn = new Button(ICON_LOCK + " Lock Viewer");
+        viewerLockBtn.getStyleClass().add("button");
+        viewerLockBtn.setOnAction(e -> {
+            lockViewer();
+            refreshLocalFiles();
+            showPreviewMessage("Viewer locked. Select a file to unlock and preview it.");
+        });
+
+        previewText = new TextArea();
+        previewText.setEditable(false);
+        previewText.setWrapText(false);
+        previewText.setStyle("-fx-font-family: monospace;");
+        VBox.setVgrow(previewText, Priority.ALWAYS);
+
+        previewImage = new ImageView();
+        previewImage.setPreserveRatio(true);
+        previewImage.setFitWidth(340);
+
+        card.getChildren().addAll(previewTitle, viewerLockBtn, previewImage, previewText);
+        card.setVisible(false);
+        card.setManaged(false);
+        return card;
+    }
+
     private TableView<FileRecord> createFileTable() {
         TableView<FileRecord> table = new TableView<>(files);
         table.getStyleClass().add("table-view");
 
         // File icon + name column
         TableColumn<FileRecord, String> nameCol = new TableColumn<>("Filename");
-        nameCol.setCellValueFactory(new PropertyValueFactory<>("filename"));
+        nameCol.setCellValueFactory(new PropertyValueFactory<>("displayName"));
         nameCol.setCellFactory(column -> new TableCell<>() {
             @Override
             protected void updateItem(String item, boolean empty) {
@@ -260,6 +398,11 @@ public class DesktopAppFX extends Application {
         });
         sizeCol.setPrefWidth(100);
 
+        // Content type, known once the viewer is unlocked
+        TableColumn<FileRecord, String> typeCol = new TableColumn<>("Type");
+        typeCol.setCellValueFactory(new PropertyValueFactory<>("type"));
+        typeCol.setPrefWidth(160);
+
         // Path column
         TableColumn<FileRecord, String> pathCol = new TableColumn<>("Location");
         pathCol.setCellValueFactory(new PropertyValueFactory<>("path"));
@@ -267,6 +410,7 @@ public class DesktopAppFX extends Application {
 
         table.getColumns().add(nameCol);
         table.getColumns().add(sizeCol);
+        table.getColumns().add(typeCol);
         table.getColumns().add(pathCol);
         table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
         
@@ -422,6 +566,8 @@ public class DesktopAppFX extends Application {
         Optional<char[]> res = dialog.showAndWait();
         if (res.isEmpty() || res.get() == null) return;
         char[] password = res.get();
+        // Argon2 runs while the output directory is being chosen
+        SpeculativeKey pendingKey = VaultService.shared().deriveKey(password);
 
         // Step 3: Select output directory
         DirectoryChooser dirChooser = new DirectoryChooser();
@@ -429,28 +575,65 @@ public class DesktopAppFX extends Application {
         dirChooser.setInitialDirectory(LocalFileStorage.getVaultPath().toFile());
         File outDir = dirChooser.showDialog(null);
         if (outDir == null) {
+            pendingKey.discard();
             showInfo("Output directory not selected");
             return;
         }
 
         Path outputPath = outDir.toPath().resolve(selected.getName() + ENCRYPTED_FILE_EXTENSION);
+        if (Files.exists(outputPath)) {
+            Optional<Boolean> update = askUpdateOrReplace(outputPath);
+            if (update.isEmpty()) {
+                pendingKey.discard();
+                return;
+            }
+            if (update.get()) {
+                updateFile(selected.toPath(), outputPath, pendingKey);
+                return;
+            }
+        }
 
-        Task<Void> task = new Task<>() {
-            @Override
-            protected Void call() throws Exception {
-                SecretKey key = KeyDerivation.deriveKeyFromPassword(password);
-                CryptoEngine.encryptFile(selected.toPath(), outputPath, key);
-                return null;
+        logged(VaultService.shared().encryptFile(selected.toPath(), outputPath, pendingKey)).result().whenCompleteAsync((path, ex) -> {
+            if (ex != null) {
+                showError("Encryption failed", ex);
+                return;
             }
-        };
+            log("File encrypted: " + path);
+            showInfo("File encrypted successfully!\nSaved to: " + path);
+            refreshLocalFiles();
+        }, Platform::runLater);
+    }
 
-        task.setOnSucceeded(e -> {
-            log("File encrypted: " + outputPath);
-            showInfo("File encrypted successfully!\nSaved to: " + outputPath);
+    /**
+     * Asks what to do about an existing container: true to update it in place, false to replace
+     * it, empty to cancel.
+     */
+    private Optional<Boolean> askUpdateOrReplace(Path existing) {
+        return askUpdateOrReplace("Encrypted file exists", existing.getFileName() + " already exists."
+                + " Update it by re-encrypting only the parts that changed, or replace it with a new encrypted file?");
+    }
+
+    private Optional<Boolean> askUpdateOrReplace(String title, String question) {
+        ButtonType update = new ButtonType("Update changes", ButtonBar.ButtonData.YES);
+        ButtonType replace = new ButtonType("Replace", ButtonBar.ButtonData.NO);
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION, question, update, replace, ButtonType.CANCEL);
+        alert.setTitle(title);
+        alert.setHeaderText(null);
+        return alert.showAndWait()
+                .filter(choice -> choice != ButtonType.CANCEL)
+                .map(choice -> choice == update);
+    }
+
+    private void updateFile(Path input, Path encrypted, SpeculativeKey key) {
+        logged(VaultService.shared().updateFile(input, encrypted, key)).result().whenCompleteAsync((chunks, ex) -> {
+            if (ex != null) {
+                showError("Update failed", ex);
+                return;
+            }
+            log("File updated in place: " + encrypted + " (" + chunks + " chunks rewritten)");
+            showInfo("Encrypted file updated.\n" + chunks + " chunks rewritten in " + encrypted);
             refreshLocalFiles();
-        });
-        task.setOnFailed(e -> showError("Encryption failed", task.getException()));
-        new Thread(task).start();
+        }, Platform::runLater);
     }
 
     private void encryptDirectory() {
@@ -513,6 +696,8 @@ public class DesktopAppFX extends Application {
         Optional<char[]> res = dialog.showAndWait();
         if (res.isEmpty() || res.get() == null) return;
         char[] password = res.get();
+        // Argon2 runs while the output directory is being chosen
+        SpeculativeKey pendingKey = VaultService.shared().deriveKey(password);
 
         // Step 3: Select output directory
         DirectoryChooser dirChooser = new DirectoryChooser();
@@ -520,39 +705,48 @@ public class DesktopAppFX extends Application {
         dirChooser.setInitialDirectory(LocalFileStorage.getVaultPath().toFile());
         File outDir = dirChooser.showDialog(null);
         if (outDir == null) {
+            pendingKey.discard();
             showInfo("Output directory not selected");
             return;
         }
 
-        Path outputPath = outDir.toPath().resolve(selected.getName() + ENCRYPTED_DIR_EXTENSION);
-
-        Task<Void> task = new Task<>() {
-            @Override
-            protected Void call() throws Exception {
-                SecretKey key = KeyDerivation.deriveKeyFromPassword(password);
-                CryptoEngine.encryptDirectory(selected.toPath(), outputPath, key);
-                return null;
+        Path packPath = outDir.toPath().resolve(selected.getName() + ENCRYPTED_PACK_EXTENSION);
+        VaultService.Operation<Path> operation;
+        if (Files.exists(packPath)) {
+            Optional<Boolean> update = askUpdateOrReplace("Encrypted pack exists", packPath.getFileName()
+                    + " already exists. Update it by adding new and changed files (files since deleted stay in it),"
+                    + " or replace it with a new pack?");
+            if (update.isEmpty()) {
+                pendingKey.discard();
+                return;
             }
-        };
+            operation = VaultService.shared().packDirectory(selected.toPath(), packPath, pendingKey, !update.get());
+        } else {
+            // Many small files go into a pack, which takes them in with one key setup and sequential appends
+            operation = VaultService.shared().encryptOrPackDirectory(selected.toPath(), outDir.toPath(), pendingKey);
+        }
 
-        task.setOnSucceeded(e -> {
-            log("Directory encrypted: " + outputPath);
-            showInfo("Directory encrypted successfully!\nSaved to: " + outputPath);
+        logged(operation).result().whenCompleteAsync((path, ex) -> {
+            if (ex != null) {
+                showError("Encryption failed", ex);
+                return;
+            }
+            log("Directory encrypted: " + path);
+            boolean pack = path.toString().endsWith(ENCRYPTED_PACK_EXTENSION);
+            showInfo("Directory encrypted successfully!\nSaved to: " + path + (pack ? "\nEmpty folders are not kept in a pack." : ""));
             refreshLocalFiles();
-        });
-        task.setOnFailed(e -> showError("Encryption failed", task.getException()));
-        new Thread(task).start();
+        }, Platform::runLater);
     }
 
     private void decryptFileOrDirectory() {
         // Step 1: Select encrypted file (either .enc or .encdir)
         FileChooser chooser = new FileChooser();
-        chooser.setTitle("Select encrypted file (" + ENCRYPTED_FILE_EXTENSION + " or " + ENCRYPTED_DIR_EXTENSION + ")");
+        chooser.setTitle("Select encrypted file (" + ENCRYPTED_FILE_EXTENSION + ", " + ENCRYPTED_DIR_EXTENSION + " or " + ENCRYPTED_PACK_EXTENSION + ")");
         chooser.setInitialDirectory(LocalFileStorage.getVaultPath().toFile());
         chooser.getExtensionFilters().addAll(
-            new FileChooser.ExtensionFilter("All Encrypted Files", "*" + ENCRYPTED_FILE_EXTENSION, "*" + ENCRYPTED_DIR_EXTENSION),
+            new FileChooser.ExtensionFilter("All Encrypted Files", "*" + ENCRYPTED_FILE_EXTENSION, "*" + ENCRYPTED_DIR_EXTENSION, "*" + ENCRYPTED_PACK_EXTENSION),
             new FileChooser.ExtensionFilter("Encrypted Files", "*" + ENCRYPTED_FILE_EXTENSION),
-            new FileChooser.ExtensionFilter("Encrypted Directories", "*" + ENCRYPTED_DIR_EXTENSION)
+            new FileChooser.ExtensionFilter("Encrypted Directories", "*" + ENCRYPTED_DIR_EXTENSION, "*" + ENCRYPTED_PACK_EXTENSION)
         );
         File selected = chooser.showOpenDialog(null);
         if (selected == null) {
@@ -560,12 +754,12 @@ public class DesktopAppFX extends Application {
         }
 
         String fileName = selected.getName();
-        if (fileName.endsWith(ENCRYPTED_DIR_EXTENSION)) {
+        if (fileName.endsWith(ENCRYPTED_DIR_EXTENSION) || fileName.endsWith(ENCRYPTED_PACK_EXTENSION)) {
             decryptDirectory(selected);
         } else if (fileName.endsWith(ENCRYPTED_FILE_EXTENSION)) {
             decryptFile(selected);
         } else {
-            showError("Selected file is not an " + ENCRYPTED_FILE_EXTENSION + " or " + ENCRYPTED_DIR_EXTENSION + " file", null);
+            showError("Selected file is not an " + ENCRYPTED_FILE_EXTENSION + ", " + ENCRYPTED_DIR_EXTENSION + " or " + ENCRYPTED_PACK_EXTENSION + " file", null);
         }
     }
 
@@ -611,12 +805,15 @@ public class DesktopAppFX extends Application {
             return;
         }
         char[] password = pwdRes.get().toCharArray();
+        // Argon2 runs while the output directory is being chosen
+        SpeculativeKey pendingKey = VaultService.shared().deriveKey(password);
 
         // Step 3: Select output directory
         DirectoryChooser dirChooser = new DirectoryChooser();
         dirChooser.setTitle("Choose output directory for decrypted file");
         File outDir = dirChooser.showDialog(null);
         if (outDir == null) {
+            pendingKey.discard();
             showInfo("Output directory not selected");
             return;
         }
@@ -628,21 +825,14 @@ public class DesktopAppFX extends Application {
         }
         Path outputPath = outDir.toPath().resolve(originalName);
 
-        Task<Void> task = new Task<>() {
-            @Override
-            protected Void call() throws Exception {
-                SecretKey key = KeyDerivation.deriveKeyFromPassword(password);
-                CryptoEngine.decryptFile(selected.toPath(), outputPath, key);
-                return null;
+        logged(VaultService.shared().decryptFile(selected.toPath(), outputPath, pendingKey)).result().whenCompleteAsync((path, ex) -> {
+            if (ex != null) {
+                showError("Decryption failed", ex);
+                return;
             }
-        };
-
-        task.setOnSucceeded(e -> {
-            log("File decrypted: " + outputPath);
-            showInfo("File decrypted successfully!\nSaved to: " + outputPath);
-        });
-        task.setOnFailed(e -> showError("Decryption failed", task.getException()));
-        new Thread(task).start();
+            log("File decrypted: " + path);
+            showInfo("File decrypted successfully!\nSaved to: " + path);
+        }, Platform::runLater);
     }
 
     private void decryptDirectory(File selected) {
@@ -650,8 +840,9 @@ public class DesktopAppFX extends Application {
             return;
         }
 
-        if (!selected.getName().endsWith(ENCRYPTED_DIR_EXTENSION)) {
-            showError("Selected file is not an " + ENCRYPTED_DIR_EXTENSION + " file", null);
+        boolean pack = selected.getName().endsWith(ENCRYPTED_PACK_EXTENSION);
+        if (!pack && !selected.getName().endsWith(ENCRYPTED_DIR_EXTENSION)) {
+            showError("Selected file is not an " + ENCRYPTED_DIR_EXTENSION + " or " + ENCRYPTED_PACK_EXTENSION + " file", null);
             return;
         }
 
@@ -687,78 +878,391 @@ public class DesktopAppFX extends Application {
             return;
         }
         char[] password = pwdRes.get().toCharArray();
+        // Argon2 runs while the output directory is being chosen
+        SpeculativeKey pendingKey = VaultService.shared().deriveKey(password);
 
         // Step 3: Select output directory
         DirectoryChooser dirChooser = new DirectoryChooser();
         dirChooser.setTitle("Choose output directory for decrypted directory");
         File outDir = dirChooser.showDialog(null);
         if (outDir == null) {
+            pendingKey.discard();
             showInfo("Output directory not selected");
             return;
         }
 
-        // Remove .encdir extension for output directory name
+        // Remove the .encdir or .svpack extension for output directory name
         String originalName = selected.getName();
-        if (originalName.endsWith(ENCRYPTED_DIR_EXTENSION)) {
-            originalName = originalName.substring(0, originalName.length() - ENCRYPTED_DIR_EXTENSION.length());
-        }
+        String extension = pack ? ENCRYPTED_PACK_EXTENSION : ENCRYPTED_DIR_EXTENSION;
+        originalName = originalName.substring(0, originalName.length() - extension.length());
         Path outputPath = outDir.toPath().resolve(originalName);
 
-        Task<Void> task = new Task<>() {
+        logged(pack
+                ? VaultService.shared().unpackDirectory(selected.toPath(), outputPath, pendingKey)
+                : VaultService.shared().decryptDirectory(selected.toPath(), outputPath, pendingKey)).result().whenCompleteAsync((path, ex) -> {
+            if (ex != null) {
+                showError("Decryption failed", ex);
+                return;
+            }
+            log("Directory decrypted: " + path);
+            showInfo("Directory decrypted successfully!\nSaved to: " + path);
+        }, Platform::runLater);
+    }
+
+    private void showViewer(boolean show) {
+        previewCard.setVisible(show);
+        previewCard.setManaged(show);
+        if (show) {
+            previewSelected();
+        }
+    }
+
+    private void previewSelected() {
+        FileRecord record = tableView.getSelectionModel().getSelectedItem();
+        if (record == null) {
+            showPreviewMessage("Select a file to preview it without writing it to disk.");
+            return;
+        }
+        if (viewerKey == null) {
+            unlockViewer("Enter the vault password to preview: " + record.getFilename(), this::previewSelected);
+            if (viewerKey == null) {
+                showPreviewMessage("Viewer is locked.");
+            }
+            return;
+        }
+
+        Path file = Path.of(record.getPath(), record.getFilename());
+        SecretKey key = viewerKey;
+        previewTitle.setText(ICON_VIEWER + " " + record.getFilename());
+        Task<PreviewCache.Preview> task = new Task<>() {
             @Override
-            protected Void call() throws Exception {
-                SecretKey key = KeyDerivation.deriveKeyFromPassword(password);
-                CryptoEngine.decryptDirectory(selected.toPath(), outputPath, key);
-                return null;
+            protected PreviewCache.Preview call() throws Exception {
+                return previewLoader.load(file, key);
             }
         };
-
         task.setOnSucceeded(e -> {
-            log("Directory decrypted: " + outputPath);
-            showInfo("Directory decrypted successfully!\nSaved to: " + outputPath);
+            // Ignore results for a file that is no longer selected
+            PreviewCache.Preview preview = task.getValue();
+            try {
+                if (record == tableView.getSelectionModel().getSelectedItem()) {
+                    showPreview(preview);
+                }
+            } finally {
+                preview.zeroize();
+            }
         });
-        task.setOnFailed(e -> showError("Decryption failed", task.getException()));
-        new Thread(task).start();
+        task.setOnFailed(e -> showPreviewMessage("Cannot preview: " + task.getException().getMessage()));
+        TaskScheduler.shared().execute("preview " + record.getFilename(), TaskScheduler.Priority.HIGH,
+                JobFootprint.preview(), task);
     }
 
+    /**
+     * Prompts for the vault password and derives the session key used by the viewer and search,
+     * then runs {@code next} on the FX thread.
+     */
+    private void unlockViewer(String message, Runnable next) {
+        Optional<char[]> password = promptPassword(ICON_VIEWER + " Unlock Viewer", message, "Unlock", "Vault password");
+        if (password.isEmpty()) {
+            return;
+        }
+        VaultService.shared().unlock(password.get()).result().whenCompleteAsync((key, ex) -> {
+            if (ex != null) {
+                showError("Unlock failed", ex);
+                return;
+            }
+            viewerKey = key;
+            refreshLocalFiles();
+            next.run();
+        }, Platform::runLater);
+    }
+
+    private void searchVault(String query) {
+        if (viewerKey == null) {
+            unlockViewer("Enter the vault password to search for: " + query, () -> searchVault(query));
+            return;
+        }
+        VaultService.shared().search(query, SpeculativeKey.of(viewerKey)).result().whenCompleteAsync((matches, ex) -> {
+            if (ex != null) {
+                showError("Search failed", ex);
+                return;
+            }
+            showSearchResults(query, matches);
+        }, Platform::runLater);
+    }
+
+    private void mirrorVault() {
+        DirectoryChooser dirChooser = new DirectoryChooser();
+        dirChooser.setTitle("Choose the mirror directory (e.g. on a second disk)");
+        File target = dirChooser.showDialog(null);
+        if (target != null) {
+            mirrorVaultTo(target);
+        }
+    }
+
+    private void mirrorVaultTo(File target) {
+        if (viewerKey == null) {
+            unlockViewer("Enter the vault password to mirror the vault to: " + target, () -> mirrorVaultTo(target));
+            return;
+        }
+        log("Mirroring vault to " + target + "...");
+        VaultService.shared().mirror(target.toPath(), SpeculativeKey.of(viewerKey)).result().whenCompleteAsync((result, ex) -> {
+            if (ex != null) {
+                showError("Mirror failed", ex);
+                return;
+            }
+            log(result.summary());
+            showInfo(result.summary() + "\nMirror: " + target);
+        }, Platform::runLater);
+    }
+
+    private void choosePerformanceProfile() {
+        Map<String, EngineSettings> profiles;
+        try {
+            profiles = ConfigurationManager.profiles();
+        } catch (IOException e) {
+            showError("Cannot read " + ConfigurationManager.getSettingsPath(), e);
+            return;
+        }
+        String active = ConfigurationManager.getActiveProfile();
+        ChoiceDialog<String> dialog = new ChoiceDialog<>(active, profiles.keySet());
+        dialog.setTitle(ICON_SETTINGS + " Performance Profile");
+        dialog.setHeaderText(ConfigurationManager.describe());
+        dialog.setContentText("Profile:");
+        dialog.getDialogPane().getStyleClass().add("dialog-pane");
+        dialog.showAndWait().filter(name -> !name.equals(active)).ifPresent(name -> {
+            try {
+                ConfigurationManager.useProfile(name);
+                log("Performance profile: " + name);
+                showInfo(ConfigurationManager.describe() + "\nThe number of background workers changes on the next start.");
+            } catch (IOException e) {
+                showError("Cannot switch profile", e);
+            }
+        });
+    }
+
+    private void toggleDropFolder() {
+        if (dropFolder != null) {
+            stopDropFolder();
+            return;
+        }
+        DirectoryChooser dirChooser = new DirectoryChooser();
+        dirChooser.setTitle("Choose the drop folder: files put here are encrypted into the vault and removed");
+        File inbox = dirChooser.showDialog(null);
+        if (inbox != null) {
+            startDropFolder(inbox);
+        }
+    }
+
+    private void startDropFolder(File inbox) {
+        if (viewerKey == null) {
+            unlockViewer("Enter the vault password to encrypt files dropped into: " + inbox, () -> startDropFolder(inbox));
+            return;
+        }
+        VaultService.shared().startDropFolder(inbox.toPath(), SpeculativeKey.of(viewerKey), message -> {
+            log(message);
+            if (message.startsWith("Drop folder encrypted")) {
+                Platform.runLater(this::refreshLocalFiles);
+            }
+        }).result().whenCompleteAsync((watcher, ex) -> {
+            if (ex != null) {
+                showError("Cannot watch drop folder", ex);
+                return;
+            }
+            dropFolder = watcher;
+            dropFolderBtn.setText(ICON_INBOX + " Stop Drop Folder");
+            log("Drop folder active: " + inbox);
+        }, Platform::runLater);
+    }
+
+    private void stopDropFolder() {
+        if (dropFolder != null) {
+            dropFolder.close();
+            log("Drop folder stopped: " + dropFolder.getInbox());
+            dropFolder = null;
+            dropFolderBtn.setText(ICON_INBOX + " Drop Folder");
+        }
+    }
+
+    private void showSearchResults(String query, java.util.List<VaultIndex.Entry> matches) {
+        log("Search \"" + query + "\": " + matches.size() + " matches");
+        java.time.format.DateTimeFormatter dateFormat = java.time.format.DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+        StringBuilder sb = new StringBuilder();
+        for (VaultIndex.Entry match : matches) {
+            String modified = java.time.LocalDateTime.ofInstant(java.time.Instant.ofEpochMilli(match.getModifiedTime()),
+                java.time.ZoneId.systemDefault()).format(dateFormat);
+            sb.append(match.getMember()).append("  (").append(formatFileSize(match.getSize())).append(", ").append(modified)
+                .append(")\n    in ").append(match.getContainer()).append('\n');
+        }
+
+        TextArea results = new TextArea(matches.isEmpty() ? "No matches." : sb.toString());
+        results.setEditable(false);
+        results.setPrefSize(560, 360);
+
+        Alert a = new Alert(Alert.AlertType.INFORMATION);
+        a.setTitle(ICON_SEARCH + " Search Results");
+        a.setHeaderText(matches.size() + " matches for \"" + query + "\"");
+        a.getDialogPane().setContent(results);
+        a.getDialogPane().getStyleClass().add("dialog-pane");
+        a.showAndWait();
+    }
+
+    private void showPreview(PreviewCache.Preview preview) {
+        if (preview.getKind() == PreviewCache.Preview.Kind.IMAGE) {
+            WritableImage image = new WritableImage(preview.getWidth(), preview.getHeight());
+            image.getPixelWriter().setPixels(0, 0, preview.getWidth(), preview.getHeight(),
+                PixelFormat.getByteBgraInstance(), preview.getData(), 0, preview.getWidth() * 4);
+            previewImage.setImage(image);
+            previewText.setText("");
+            return;
+        }
+        previewImage.setImage(null);
+        String text = new String(preview.getData(), java.nio.charset.StandardCharsets.UTF_8);
+        if (preview.isTruncated()) {
+            text += "\n... (preview truncated)";
+        }
+        previewText.setText(text);
+        previewText.positionCaret(0);
+    }
+
+    private void showPreviewMessage(String message) {
+        previewImage.setImage(null);
+        previewText.setText(message);
+    }
+
+    private void lockViewer() {
+        // The drop folder encrypts with the session key, so locking ends it too
+        stopDropFolder();
+        KeyDerivation.destroy(viewerKey);
+        viewerKey = null;
+        previewCache.clear();
+    }
+
+    private Optional<char[]> promptPassword(String title, String message, String actionLabel, String prompt) {
+        Dialog<String> pwd = new Dialog<>();
+        pwd.setTitle(title);
+        ButtonType actionBtn = new ButtonType(actionLabel, ButtonBar.ButtonData.OK_DONE);
+        pwd.getDialogPane().getButtonTypes().addAll(actionBtn, ButtonType.CANCEL);
+
+        VBox pwdContent = new VBox(16);
+        pwdContent.setPadding(new Insets(16, 0, 8, 0));
+
+        Label pwdTitleLabel = new Label(message);
+        pwdTitleLabel.setStyle("-fx-font-size: 14px; -fx-text-fill: #333333;");
+
+        Label pwdLabel = new Label("Password");
+        pwdLabel.setStyle("-fx-font-size: 12px; -fx-text-fill: #666666; -fx-font-weight: bold;");
+        PasswordField pwdField = new PasswordField();
+        pwdField.setPromptText(prompt);
+        pwdField.getStyleClass().add("password-field");
+
+        pwdContent.getChildren().addAll(pwdTitleLabel, pwdLabel, pwdField);
+        pwd.getDialogPane().setContent(pwdContent);
+        pwd.getDialogPane().getStyleClass().add("dialog-pane");
+
+        pwd.getDialogPane().lookupButton(actionBtn).getStyleClass().addAll("button", "button-primary");
+        pwd.getDialogPane().lookupButton(ButtonType.CANCEL).getStyleClass().add("button");
+
+        pwd.setResultConverter(btn -> btn == actionBtn ? pwdField.getText() : null);
+
+        Optional<String> pwdRes = pwd.showAndWait();
+        if (pwdRes.isEmpty() || pwdRes.get().isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(pwdRes.get().toCharArray());
+    }
+
+    private void verifyVault() {
+        Optional<char[]> pwdRes = promptPassword(ICON_VERIFY + " Verify Vault",
+            "Check every encrypted file in the vault without decrypting to disk.", "Verify", "Vault password");
+        if (pwdRes.isEmpty()) {
+            return;
+        }
+        log("Verifying vault...");
+        VaultService.shared().verifyVault(VaultService.shared().deriveKey(pwdRes.get())).result().whenCompleteAsync((report, ex) -> {
+            if (ex != null) {
+                showError("Verification failed", ex);
+                return;
+            }
+            log(report.summary());
+            for (VaultScrubber.Failure failure : report.getFailures()) {
+                log("Corrupted: " + failure.getFile() + " (" + failure.getReason() + ")");
+            }
+            showInfo(report.summary());
+        }, Platform::runLater);
+    }
+
+    /**
+     * Lists the vault; while the viewer is unlocked, with the original names, sizes and types read
+     * from each file's metadata block.
+     */
     private void refreshLocalFiles() {
-        Task<java.util.List<FileRecord>> task = new Task<>() {
-            @Override
-            protected java.util.List<FileRecord> call() throws Exception {
-                java.util.List<FileRecord> localFiles = new java.util.ArrayList<>();
-                Path vaultPath = LocalFileStorage.getVaultPath();
-                
-                if (Files.exists(vaultPath)) {
-                    Files.list(vaultPath)
-                        .filter(p -> p.toString().endsWith(ENCRYPTED_FILE_EXTENSION) || p.toString().endsWith(ENCRYPTED_DIR_EXTENSION))
-                        .forEach(p -> {
-                            try {
-                                long size = Files.size(p);
-                                localFiles.add(new FileRecord(
-                                    p.getFileName().toString(),
-                                    size,
-                                    p.getParent().toString()
-                                ));
-                            } catch (Exception e) {
-                                // Skip files we can't read
-                            }
-                        });
-                }
-                return localFiles;
+        VaultService.shared().listVault(viewerKey).result().whenCompleteAsync((stored, ex) -> {
+            if (ex != null) {
+                log("Failed to refresh files: " + ex.getMessage());
+                return;
             }
-        };
-        
-        task.setOnSucceeded(e -> {
             files.clear();
-            files.addAll(task.getValue());
-            log("Refreshed local files: " + files.size() + " encrypted files found");
+            int unreadable = 0;
+            for (VaultService.StoredFile file : stored) {
+                FileMetadata metadata = file.getMetadata();
+                String location = file.getPath().getParent().toString();
+                if (file.getError() != null) {
+                    unreadable++;
+                    log("Cannot read " + file.getName() + ": " + file.getError());
+                    files.add(new FileRecord(file.getName(), null, location, file.getName(), "Unreadable"));
+                } else if (metadata == null) {
+                    files.add(new FileRecord(file.getName(), file.getSize(), location, file.getName(), ""));
+                } else {
+                    files.add(new FileRecord(file.getName(), metadata.getSize(), location, metadata.getName(),
+                            metadata.isDirectory() ? "Folder, " + metadata.getEntryCount() + " files" : metadata.getType()));
+                }
+            }
+            log("Refreshed local files: " + files.size() + " encrypted files found"
+                    + (unreadable > 0 ? ", " + unreadable + " unreadable" : ""));
+        }, Platform::runLater);
+    }
+
+    private void selectCipherSuite() {
+        // Benchmark the cipher suites off the FX thread so the result is ready before the first encryption
+        VaultService.shared().selectCipherSuite().result().whenComplete((suite, ex) -> log(ex != null
+                ? "Cipher selection failed: " + ex.getMessage()
+                : "Cipher suite for new files: " + suite.getConfigName() + describeBenchmark()));
+    }
+
+    private String describeBenchmark() {
+        java.util.Map<CipherSuite, Double> results = CipherBenchmark.getLastResults();
+        if (results == null) {
+            return " (configured)";
+        }
+        StringBuilder sb = new StringBuilder(" (");
+        results.forEach((suite, mbps) -> {
+            if (sb.length() > 2) sb.append(", ");
+            sb.append(suite.getConfigName()).append(String.format(" %.0f MB/s", mbps));
+        });
+        return sb.append(")").toString();
+    }
+
+    /**
+     * Logs when an operation actually starts, which may be after its key and a free worker.
+     */
+    private <T> VaultService.Operation<T> logged(VaultService.Operation<T> operation) {
+        return operation.onProgress(Runnable::run, progress -> {
+            if (progress.getStage() == VaultService.Stage.RUNNING) {
+                log(progress.getMessage() + "...");
+            }
         });
-        task.setOnFailed(e -> log("Failed to refresh files: " + task.getException().getMessage()));
-        new Thread(task).start();
     }
 
     private void log(String msg) {
-        Platform.runLater(() -> logArea.appendText(msg + "\n"));
+        logBuffer.append(msg);
+    }
+
+    private void flushLog() {
+        LogBuffer.Batch batch = logBuffer.drain();
+        logArea.appendText(batch.getAppended());
+        if (batch.getRemovedChars() > 0) {
+            logArea.deleteText(0, batch.getRemovedChars());
+        }
     }
 
     private void showError(String title, Throwable t) {
@@ -794,15 +1298,35 @@ public class DesktopAppFX extends Application {
         private final String filename;
         private final Long size;
         private final String path;
+        private final String displayName;
+        private final String type;
 
-        public FileRecord(String filename, Long size, String path) {
+        public FileRecord(String filename, Long size, String path, String displayName, String type) {
             this.filename = filename;
             this.size = size;
             this.path = path;
+            this.displayName = displayName;
+            this.type = type;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public Long getSize() {
+            return size;
+        }
+
+        public String getPath() {
+            return path;
         }
 
-        public String getFilename() { return filename; }
-        public Long getSize() { return size; }
-        public String getPath() { return path; }
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public String getType() {
+            return type;
+        }
     }
 }
@@ -0,0 +1,16 @@
+package com.securevault.desktop.ui;
+
+/**
+ * Main class of the shaded jar. JavaFX refuses to start from the classpath when the main class
+ * itself extends {@code Application}, so this one only hands over to {@link DesktopAppFX}, or to
+ * {@link CommandLine} when started with one of its commands.
+ */
+public class Launcher {
+
+    public static void main(String[] args) {
+        if (CommandLine.handles(args)) {
+            System.exit(CommandLine.run(args));
+        }
+        DesktopAppFX.main(args);
+    }
+}
@@ -0,0 +1,146 @@
+package com.securevault.desktop.ui;
+
+import com.securevault.desktop.crypto.CryptoEngine;
+import com.securevault.desktop.crypto.PackFile;
+import com.securevault.desktop.service.PreviewCache;
+import com.securevault.desktop.service.PreviewCache.Preview;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decrypts just enough of a vault file to preview it, going through the shared {@link PreviewCache}.
+ */
+class PreviewLoader {
+
+    private static final int TEXT_HEAD_BYTES = 64 * 1024;
+    private static final int BINARY_HEAD_BYTES = 512;
+    private static final int MAX_IMAGE_BYTES = 32 * 1024 * 1024;
+    private static final int THUMBNAIL_SIZE = 320;
+
+    private static final Set<String> TEXT_TYPES = Set.of(
+            "txt", "md", "csv", "log", "json", "xml", "yaml", "yml", "ini", "conf", "properties",
+            "html", "css", "js", "java", "py", "sh", "sql");
+    private static final Set<String> IMAGE_TYPES = Set.of("png", "jpg", "jpeg", "gif", "bmp");
+
+    private final PreviewCache cache;
+
+    PreviewLoader(PreviewCache cache) {
+        this.cache = cache;
+    }
+
+    Preview load(Path encryptedFile, SecretKey key) throws Exception {
+        String cacheKey = PreviewCache.keyFor(encryptedFile);
+        Preview cached = cache.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+        Preview preview = build(encryptedFile, key);
+        cache.put(cacheKey, preview);
+        return preview;
+    }
+
+    private Preview build(Path encryptedFile, SecretKey key) throws Exception {
+        String name = encryptedFile.getFileName().toString();
+        if (name.endsWith(".encdir")) {
+            return listing(CryptoEngine.listDirectory(encryptedFile, key));
+        }
+        if (name.endsWith(PackFile.EXTENSION)) {
+            try (PackFile pack = PackFile.openReadOnly(encryptedFile, key)) {
+                List<CryptoEngine.ArchiveEntry> entries = new ArrayList<>();
+                for (PackFile.Entry entry : pack.entries()) {
+                    entries.add(new CryptoEngine.ArchiveEntry(entry.getName(), false, entry.getSize(), entry.getModifiedTime()));
+                }
+                return listing(entries);
+            }
+        }
+
+        String type = extensionOf(name.endsWith(".enc") ? name.substring(0, name.length() - 4) : name);
+        if (IMAGE_TYPES.contains(type)) {
+            byte[] image = CryptoEngine.decryptHead(encryptedFile, key, MAX_IMAGE_BYTES + 1);
+            try {
+                if (image.length <= MAX_IMAGE_BYTES) {
+                    Preview thumbnail = thumbnail(image);
+                    if (thumbnail != null) {
+                        return thumbnail;
+                    }
+                }
+            } finally {
+                Arrays.fill(image, (byte) 0);
+            }
+            return binary(CryptoEngine.decryptHead(encryptedFile, key, BINARY_HEAD_BYTES + 1));
+        }
+        if (TEXT_TYPES.contains(type)) {
+            byte[] head = CryptoEngine.decryptHead(encryptedFile, key, TEXT_HEAD_BYTES + 1);
+            boolean truncated = head.length > TEXT_HEAD_BYTES;
+            byte[] text = truncated ? Arrays.copyOf(head, TEXT_HEAD_BYTES) : head;
+            if (truncated) {
+                Arrays.fill(head, (byte) 0);
+            }
+            return new Preview(Preview.Kind.TEXT, text, 0, 0, truncated);
+        }
+        return binary(CryptoEngine.decryptHead(encryptedFile, key, BINARY_HEAD_BYTES + 1));
+    }
+
+    private static Preview thumbnail(byte[] imageBytes) {
+        Image image = new Image(new ByteArrayInputStream(imageBytes), THUMBNAIL_SIZE, THUMBNAIL_SIZE, true, true);
+        if (image.isError() || image.getPixelReader() == null) {
+            return null;
+        }
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        byte[] pixels = new byte[width * height * 4];
+        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getByteBgraInstance(), pixels, 0, width * 4);
+        return new Preview(Preview.Kind.IMAGE, pixels, width, height, false);
+    }
+
+    private static Preview listing(List<CryptoEngine.ArchiveEntry> entries) {
+        StringBuilder sb = new StringBuilder();
+        long files = 0;
+        long bytes = 0;
+        for (CryptoEngine.ArchiveEntry entry : entries) {
+            if (entry.isDirectory()) {
+                sb.append(entry.getName()).append('\n');
+            } else {
+                files++;
+                bytes += entry.getSize();
+                sb.append(entry.getName()).append("  (").append(entry.getSize()).append(" B)\n");
+            }
+        }
+        sb.insert(0, files + " files, " + bytes + " bytes\n\n");
+        return new Preview(Preview.Kind.LISTING, sb.toString().getBytes(StandardCharsets.UTF_8), 0, 0, false);
+    }
+
+    /**
+     * @param head up to {@code BINARY_HEAD_BYTES + 1} bytes of plaintext; the extra byte only tells
+     *             whether the file goes on past what is shown
+     */
+    private static Preview binary(byte[] head) {
+        boolean truncated = head.length > BINARY_HEAD_BYTES;
+        int shown = Math.min(head.length, BINARY_HEAD_BYTES);
+        StringBuilder sb = new StringBuilder();
+        for (int offset = 0; offset < shown; offset += 16) {
+            sb.append(String.format("%08x  ", offset));
+            for (int i = offset; i < Math.min(offset + 16, shown); i++) {
+                sb.append(String.format("%02x ", head[i]));
+            }
+            sb.append('\n');
+        }
+        Arrays.fill(head, (byte) 0);
+        return new Preview(Preview.Kind.BINARY, sb.toString().getBytes(StandardCharsets.US_ASCII), 0, 0, truncated);
+    }
+
+    private static String extensionOf(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
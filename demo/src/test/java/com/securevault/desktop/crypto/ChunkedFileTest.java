@@ -0,0 +1,147 @@
+package com.securevault.desktop.crypto;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.securevault.desktop.crypto.CryptoTestSupport.flipByte;
+import static com.securevault.desktop.crypto.CryptoTestSupport.randomKey;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChunkedFileTest {
+
+    private static final int CHUNK = EngineSettings.MIN_CHUNK_SIZE;
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(29);
+    private final SecretKey key = randomKey(random);
+
+    @Test
+    void roundTripsAtEveryChunkBoundary() throws Exception {
+        for (int size : new int[] {0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK, 3 * CHUNK + 5}) {
+            byte[] data = randomBytes(size);
+            Path encrypted = encrypt(data);
+
+            assertEquals(size, CryptoEngine.verifyFile(encrypted, key), "size " + size);
+            assertArrayEquals(data, decrypt(encrypted), "size " + size);
+        }
+    }
+
+    @Test
+    void encryptFileRoundTripsWithTheTunedChunkSize() throws Exception {
+        byte[] data = randomBytes(3 * ChunkCodec.DEFAULT_CHUNK_SIZE + 12345);
+        Path input = dir.resolve("plain.bin");
+        Path encrypted = dir.resolve("plain.bin.enc");
+        Files.write(input, data);
+
+        CryptoEngine.encryptFile(input, encrypted, key);
+        assertArrayEquals(data, decrypt(encrypted));
+        assertArrayEquals(Arrays.copyOf(data, 1000), CryptoEngine.decryptHead(encrypted, key, 1000));
+    }
+
+    @Test
+    void truncatedFinalChunkIsRejected() throws Exception {
+        Path encrypted = encrypt(randomBytes(5 * CHUNK + 100));
+        ChunkCodec codec = new ChunkCodec(CryptoEngine.readHeader(encrypted), key);
+
+        // Cut into the final chunk, then drop it altogether so the file ends on a full chunk
+        for (long size : new long[] {Files.size(encrypted) - 1, codec.chunkOffset(5)}) {
+            try (FileChannel file = FileChannel.open(encrypted, StandardOpenOption.WRITE)) {
+                file.truncate(size);
+            }
+            assertThrows(SecurityException.class, () -> CryptoEngine.verifyFile(encrypted, key), "size " + size);
+            assertThrows(SecurityException.class, () -> decrypt(encrypted), "size " + size);
+            assertFalse(Files.exists(dir.resolve("decrypted.bin")));
+        }
+    }
+
+    @Test
+    void flippedByteFailsOnlyTheChunkItIsIn() throws Exception {
+        byte[] data = randomBytes(5 * CHUNK + 100);
+        for (int chunk = 0; chunk <= 5; chunk++) {
+            Path encrypted = encrypt(data);
+            ChunkCodec codec = new ChunkCodec(CryptoEngine.readHeader(encrypted), key);
+            flipByte(encrypted, codec.chunkOffset(chunk) + 50);
+
+            assertThrows(SecurityException.class, () -> CryptoEngine.verifyFile(encrypted, key), "chunk " + chunk);
+            assertThrows(SecurityException.class, () -> decrypt(encrypted), "chunk " + chunk);
+            assertFalse(Files.exists(dir.resolve("decrypted.bin")), "chunk " + chunk);
+            if (chunk > 0) {
+                // Chunks before the damaged one still authenticate on their own
+                assertArrayEquals(Arrays.copyOf(data, CHUNK), CryptoEngine.decryptHead(encrypted, key, CHUNK));
+            }
+        }
+    }
+
+    @Test
+    void chunksCannotBeReordered() throws Exception {
+        Path encrypted = encrypt(randomBytes(3 * CHUNK + 100));
+        ChunkCodec codec = new ChunkCodec(CryptoEngine.readHeader(encrypted), key);
+        byte[] bytes = Files.readAllBytes(encrypted);
+        int first = (int) codec.chunkOffset(0);
+        int second = (int) codec.chunkOffset(1);
+        byte[] chunk0 = Arrays.copyOfRange(bytes, first, second);
+        System.arraycopy(bytes, second, bytes, first, second - first);
+        System.arraycopy(chunk0, 0, bytes, second, chunk0.length);
+        Files.write(encrypted, bytes);
+
+        assertThrows(SecurityException.class, () -> CryptoEngine.verifyFile(encrypted, key));
+        assertThrows(SecurityException.class, () -> decrypt(encrypted));
+    }
+
+    @Test
+    void chunkSizeAboveTheLimitIsRejectedBeforeAnythingIsAllocated() throws Exception {
+        byte[] header = FileHeader.chunked(CipherSuite.AES_256_GCM, ChunkCodec.DEFAULT_CHUNK_SIZE).toBytes();
+        ByteBuffer.wrap(header).putInt(FileHeader.PREFIX_LENGTH + 2, Integer.MAX_VALUE);
+        assertThrows(IOException.class, () -> FileHeader.parse(header));
+
+        Path file = dir.resolve("crafted.enc");
+        Files.write(file, header);
+        assertThrows(IOException.class, () -> CryptoEngine.decryptFile(file, dir.resolve("out"), randomKey(random)));
+
+        ByteBuffer.wrap(header).putInt(FileHeader.PREFIX_LENGTH + 2, EngineSettings.MAX_CHUNK_SIZE);
+        assertEquals(EngineSettings.MAX_CHUNK_SIZE, FileHeader.parse(header).getChunkSize());
+    }
+
+    @Test
+    void offsetsOfTheLargestChunksDoNotOverflow() throws Exception {
+        ChunkCodec codec = new ChunkCodec(FileHeader.chunked(CipherSuite.AES_256_GCM, EngineSettings.MAX_CHUNK_SIZE), randomKey(random));
+        long index = 1L << 20;
+        assertEquals(codec.getHeader().getLength() + index * ((long) EngineSettings.MAX_CHUNK_SIZE + ChunkCodec.OVERHEAD),
+                codec.chunkOffset(index));
+    }
+
+    private Path encrypt(byte[] data) throws Exception {
+        Path input = dir.resolve("plain.bin");
+        Path encrypted = dir.resolve("plain.bin.enc");
+        Files.write(input, data);
+        AsyncFilePipeline.encrypt(input, encrypted, new ChunkCodec(FileHeader.chunked(CipherSuite.AES_256_GCM, CHUNK), key));
+        return encrypted;
+    }
+
+    private byte[] decrypt(Path encrypted) throws Exception {
+        Path output = dir.resolve("decrypted.bin");
+        CryptoEngine.decryptFile(encrypted, output, key);
+        return Files.readAllBytes(output);
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
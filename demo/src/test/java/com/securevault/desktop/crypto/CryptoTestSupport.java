@@ -0,0 +1,39 @@
+package com.securevault.desktop.crypto;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Keys and damage shared by the crypto tests.
+ */
+final class CryptoTestSupport {
+
+    private CryptoTestSupport() {
+    }
+
+    /**
+     * A 256-bit key from the test's seeded {@code random}, so runs are repeatable.
+     */
+    static SecretKey randomKey(Random random) {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new SecretKeySpec(bytes, "AES");
+    }
+
+    /**
+     * Flips one bit of the byte at {@code offset}, in place.
+     */
+    static void flipByte(Path file, long offset) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, offset);
+            b.put(0, (byte) (b.get(0) ^ 0x40));
+            channel.write(b.rewind(), offset);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.securevault.desktop.crypto;
+
+import com.securevault.desktop.storage.LocalFileStorage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static com.securevault.desktop.crypto.CryptoTestSupport.randomKey;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeltaUpdateTest {
+
+    private static final int SIZE = 20 * 1024 * 1024;
+
+    @TempDir
+    Path dir;
+
+    @TempDir
+    Path mirror;
+
+    private final Random random = new Random(34);
+    private SecretKey key;
+    private Path input;
+    private Path encrypted;
+    private Path journal;
+    private byte[] original;
+
+    @BeforeEach
+    void encryptOriginal() throws Exception {
+        key = randomKey(random);
+        input = dir.resolve("data.bin");
+        encrypted = dir.resolve("data.bin.enc");
+        journal = dir.resolve("data.bin.enc" + DeltaUpdate.JOURNAL_SUFFIX);
+        original = new byte[SIZE];
+        random.nextBytes(original);
+        Files.write(input, original);
+        CryptoEngine.encryptFile(input, encrypted, key);
+    }
+
+    @Test
+    void updateRewritesOnlyTheChangedChunkAndTheFinalOne() throws Exception {
+        byte[] changed = modify(SIZE / 2);
+
+        assertEquals(2, CryptoEngine.updateFile(input, encrypted, key));
+        assertArrayEquals(changed, decrypt());
+        assertFalse(Files.exists(journal));
+
+        // The second update compares against the chunk table the first one wrote
+        changed[10] ^= 1;
+        Files.write(input, changed);
+        assertEquals(2, CryptoEngine.updateFile(input, encrypted, key));
+        assertArrayEquals(changed, decrypt());
+    }
+
+    @Test
+    void updateFollowsAGrowingAndShrinkingInput() throws Exception {
+        byte[] longer = new byte[SIZE + 300_000];
+        random.nextBytes(longer);
+        System.arraycopy(original, 0, longer, 0, SIZE);
+        Files.write(input, longer);
+        CryptoEngine.updateFile(input, encrypted, key);
+        assertArrayEquals(longer, decrypt());
+
+        byte[] shorter = new byte[SIZE / 3];
+        System.arraycopy(original, 0, shorter, 0, shorter.length);
+        Files.write(input, shorter);
+        CryptoEngine.updateFile(input, encrypted, key);
+        assertArrayEquals(shorter, decrypt());
+    }
+
+    @Test
+    void sealedJournalIsReplayedAfterACrashWhileApplyingIt() throws Exception {
+        byte[] changed = modify(SIZE / 2);
+        byte[] before = Files.readAllBytes(encrypted);
+
+        DeltaUpdate.stage(input, encrypted, key);
+        assertTrue(Files.exists(journal));
+        assertArrayEquals(before, Files.readAllBytes(encrypted));
+
+        // Torn write of the changed chunk
+        ChunkCodec codec = new ChunkCodec(CryptoEngine.readHeader(encrypted), key);
+        try (FileChannel file = FileChannel.open(encrypted, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.allocate(4096), codec.chunkOffset(SIZE / 2 / codec.getChunkSize()) + 100);
+        }
+        DeltaUpdate.recover(encrypted, key);
+
+        assertFalse(Files.exists(journal));
+        assertArrayEquals(changed, decrypt());
+    }
+
+    @Test
+    void tamperedJournalIsDiscardedWithoutTouchingTheFile() throws Exception {
+        modify(SIZE / 2);
+        byte[] before = Files.readAllBytes(encrypted);
+        DeltaUpdate.stage(input, encrypted, key);
+
+        byte[] log = Files.readAllBytes(journal);
+        log[log.length / 2] ^= 1;
+        Files.write(journal, log);
+        DeltaUpdate.recover(encrypted, key);
+
+        assertFalse(Files.exists(journal));
+        assertArrayEquals(before, Files.readAllBytes(encrypted));
+        assertArrayEquals(original, decrypt());
+    }
+
+    @Test
+    void journalOfAnotherKeyIsNeitherAppliedNorDeleted() throws Exception {
+        modify(SIZE / 2);
+        byte[] before = Files.readAllBytes(encrypted);
+        DeltaUpdate.stage(input, encrypted, key);
+
+        assertThrows(SecurityException.class, () -> DeltaUpdate.recover(encrypted, randomKey(random)));
+        assertTrue(Files.exists(journal));
+        assertArrayEquals(before, Files.readAllBytes(encrypted));
+    }
+
+    @Test
+    void readersRefuseAFileWithAnUnfinishedUpdateUntilItIsUpdatedAgain() throws Exception {
+        byte[] changed = modify(SIZE / 2);
+        DeltaUpdate.stage(input, encrypted, key);
+
+        assertThrows(IOException.class, () -> CryptoEngine.verifyFile(encrypted, key));
+        assertThrows(IOException.class, () -> CryptoEngine.decryptHead(encrypted, key, 1024));
+        assertTrue(Files.exists(journal));
+
+        CryptoEngine.updateFile(input, encrypted, key);
+        assertFalse(Files.exists(journal));
+        assertArrayEquals(changed, decrypt());
+    }
+
+    @Test
+    void readersLeaveAJournalThatWasNeverSealedAlone() throws Exception {
+        modify(SIZE / 2);
+        DeltaUpdate.stage(input, encrypted, key);
+        try (FileChannel log = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            log.truncate(log.size() / 2);
+        }
+
+        assertEquals(SIZE, CryptoEngine.verifyFile(encrypted, key));
+        assertTrue(Files.exists(journal));
+    }
+
+    @Test
+    void mirrorKeepsTheEarlierCopyOfAFileWithAnUnfinishedUpdate() throws Exception {
+        LocalFileStorage.mirror(dir, mirror, key);
+        byte[] mirrored = Files.readAllBytes(mirror.resolve(encrypted.getFileName()));
+        modify(SIZE / 2);
+        DeltaUpdate.stage(input, encrypted, key);
+
+        assertEquals(1, LocalFileStorage.mirror(dir, mirror, key).getSkipped());
+        assertArrayEquals(mirrored, Files.readAllBytes(mirror.resolve(encrypted.getFileName())));
+
+        CryptoEngine.updateFile(input, encrypted, key);
+        assertEquals(0, LocalFileStorage.mirror(dir, mirror, key).getSkipped());
+        assertArrayEquals(Files.readAllBytes(encrypted), Files.readAllBytes(mirror.resolve(encrypted.getFileName())));
+    }
+
+    @Test
+    void updateUnderTheWrongKeyStagesNothing() throws Exception {
+        modify(SIZE / 2);
+        byte[] before = Files.readAllBytes(encrypted);
+
+        assertThrows(SecurityException.class, () -> CryptoEngine.updateFile(input, encrypted, randomKey(random)));
+        assertFalse(Files.exists(journal));
+        assertArrayEquals(before, Files.readAllBytes(encrypted));
+    }
+
+    @Test
+    void replacingTheFileDropsItsJournal() throws Exception {
+        modify(SIZE / 2);
+        DeltaUpdate.stage(input, encrypted, key);
+
+        CryptoEngine.encryptFile(input, encrypted, key);
+        assertFalse(Files.exists(journal));
+    }
+
+    private byte[] modify(int offset) throws Exception {
+        byte[] changed = original.clone();
+        changed[offset] ^= 1;
+        Files.write(input, changed);
+        return changed;
+    }
+
+    private byte[] decrypt() throws Exception {
+        Path output = dir.resolve("decrypted.bin");
+        CryptoEngine.decryptFile(encrypted, output, key);
+        return Files.readAllBytes(output);
+    }
+}
@@ -0,0 +1,145 @@
+package com.securevault.desktop.crypto;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.securevault.desktop.crypto.CryptoTestSupport.flipByte;
+import static com.securevault.desktop.crypto.CryptoTestSupport.randomKey;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirectoryArchiveTest {
+
+    private static final int SIZE = 200_000;
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(39);
+    private final SecretKey key = randomKey(random);
+
+    @Test
+    void duplicatesAreStoredOnceAndExtractedEverywhere() throws Exception {
+        byte[] shared = randomBytes(SIZE);
+        byte[] sameSize = randomBytes(SIZE);
+        Path source = Files.createDirectories(dir.resolve("source/sub"));
+        Files.write(source.resolve("copy.bin"), shared);
+        Files.write(dir.resolve("source/original.bin"), shared);
+        Files.write(dir.resolve("source/other.bin"), sameSize);
+        Files.write(dir.resolve("source/empty1"), new byte[0]);
+        Files.write(dir.resolve("source/empty2"), new byte[0]);
+        Path archive = dir.resolve("source.encdir");
+        CryptoEngine.encryptDirectory(dir.resolve("source"), archive, key);
+
+        // Random content does not compress, so storing the copy again would take 3 * SIZE
+        assertTrue(Files.size(archive) < 2 * SIZE + 16_384, Files.size(archive) + " bytes");
+        Map<String, Long> sizes = CryptoEngine.listDirectory(archive, key).stream()
+                .filter(entry -> !entry.isDirectory())
+                .collect(Collectors.toMap(CryptoEngine.ArchiveEntry::getName, CryptoEngine.ArchiveEntry::getSize));
+        assertEquals(Map.of("sub/copy.bin", (long) SIZE, "original.bin", (long) SIZE, "other.bin", (long) SIZE,
+                "empty1", 0L, "empty2", 0L), sizes);
+
+        Path out = dir.resolve("restored");
+        CryptoEngine.decryptDirectory(archive, out, key);
+        assertArrayEquals(shared, Files.readAllBytes(out.resolve("sub/copy.bin")));
+        assertArrayEquals(shared, Files.readAllBytes(out.resolve("original.bin")));
+        assertArrayEquals(sameSize, Files.readAllBytes(out.resolve("other.bin")));
+        assertEquals(0, Files.size(out.resolve("empty1")));
+        assertEquals(0, Files.size(out.resolve("empty2")));
+    }
+
+    @Test
+    void tamperedArchiveExtractsNothing() throws Exception {
+        byte[] shared = randomBytes(SIZE);
+        Path source = Files.createDirectories(dir.resolve("source"));
+        Files.write(source.resolve("a.bin"), shared);
+        Files.write(source.resolve("b.bin"), shared);
+        Path archive = dir.resolve("source.encdir");
+        CryptoEngine.encryptDirectory(source, archive, key);
+        flipByte(archive, Files.size(archive) - 100);
+
+        Path out = dir.resolve("restored");
+        assertThrows(SecurityException.class, () -> CryptoEngine.decryptDirectory(archive, out, key));
+        assertFalse(Files.exists(out.resolve("a.bin")));
+        assertFalse(Files.exists(out.resolve("b.bin")));
+    }
+
+    @Test
+    void referenceToAnythingButAnEarlierEntryIsRejected() throws Exception {
+        Files.writeString(dir.resolve("victim.txt"), "outside the archive");
+        Path out = Files.createDirectories(dir.resolve("restored"));
+
+        for (String target : List.of("../victim.txt", "later.txt")) {
+            Path archive = sealArchive(zip(
+                    new Member("copy.txt", null, target),
+                    new Member("later.txt", "content".getBytes(StandardCharsets.UTF_8), null)));
+
+            IOException e = assertThrows(IOException.class, () -> CryptoEngine.decryptDirectory(archive, out, key), target);
+            assertTrue(e.getMessage().contains("missing entry"), e.getMessage());
+            assertFalse(Files.exists(out.resolve("copy.txt")), target);
+            assertFalse(Files.exists(out.resolve("later.txt")), target);
+        }
+    }
+
+    private record Member(String name, byte[] content, String referenced) {
+    }
+
+    private static byte[] zip(Member... members) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(bytes)) {
+            for (Member member : members) {
+                ZipEntry entry = new ZipEntry(member.name());
+                if (member.referenced() != null) {
+                    byte[] name = member.referenced().getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer extra = ByteBuffer.allocate(4 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+                    extra.putShort(CryptoEngine.DUPLICATE_EXTRA_ID).putShort((short) name.length).put(name);
+                    entry.setExtra(extra.array());
+                }
+                zos.putNextEntry(entry);
+                if (member.content() != null) {
+                    zos.write(member.content());
+                }
+                zos.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Encrypts {@code zipData} the way a directory archive is stored.
+     */
+    private Path sealArchive(byte[] zipData) throws Exception {
+        Path archive = dir.resolve("crafted.encdir");
+        ChunkCodec codec = new ChunkCodec(FileHeader.chunked(CipherSuite.AES_256_GCM, EngineSettings.MIN_CHUNK_SIZE), key);
+        try (OutputStream out = Files.newOutputStream(archive)) {
+            StreamPipeline.encrypt(new ByteArrayInputStream(zipData), out, codec);
+        }
+        return archive;
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,139 @@
+package com.securevault.desktop.crypto;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+
+import static com.securevault.desktop.crypto.CryptoTestSupport.randomKey;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileMetadataTest {
+
+    // Where the block starts in a chunked header
+    private static final int BLOCK_OFFSET = FileHeader.PREFIX_LENGTH + 2 + 4 + FileHeader.FILE_ID_LENGTH;
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(49);
+    private final SecretKey key = randomKey(random);
+
+    @Test
+    void encryptedFileCarriesItsMetadata() throws Exception {
+        byte[] data = randomBytes(150_000);
+        Path input = dir.resolve("report.txt");
+        Files.write(input, data);
+        Files.setLastModifiedTime(input, FileTime.fromMillis(1_700_000_000_000L));
+        Path encrypted = encrypt(input);
+
+        FileMetadata metadata = FileMetadata.read(encrypted, key);
+        assertEquals("report.txt", metadata.getName());
+        assertEquals(data.length, metadata.getSize());
+        assertFalse(metadata.isDirectory());
+        assertEquals(1_700_000_000_000L, metadata.getModified());
+        assertArrayEquals(data, decrypt(encrypted));
+    }
+
+    @Test
+    void directoryArchiveCarriesItsFileCountAndTotalSize() throws Exception {
+        Path folder = Files.createDirectories(dir.resolve("photos"));
+        Files.write(folder.resolve("a.jpg"), randomBytes(1000));
+        Files.write(Files.createDirectories(folder.resolve("2024")).resolve("b.jpg"), randomBytes(2500));
+        Path encrypted = dir.resolve("photos.encdir");
+        CryptoEngine.encryptDirectory(folder, encrypted, key);
+
+        FileMetadata metadata = FileMetadata.read(encrypted, key);
+        assertTrue(metadata.isDirectory());
+        assertEquals("photos", metadata.getName());
+        assertEquals(2, metadata.getEntryCount());
+        assertEquals(3500, metadata.getSize());
+    }
+
+    @Test
+    void blockHasTheSameLengthWhateverTheName() throws Exception {
+        Path shortName = dir.resolve("a");
+        Path longName = dir.resolve("a".repeat(200));
+        Files.write(shortName, randomBytes(100));
+        Files.write(longName, randomBytes(100));
+
+        assertEquals(Files.size(encrypt(shortName)), Files.size(encrypt(longName)));
+        assertEquals(BLOCK_OFFSET + FileMetadata.BLOCK_LENGTH, CryptoEngine.readHeader(encrypt(longName)).getLength());
+    }
+
+    @Test
+    void wrongKeyCannotReadTheBlock() throws Exception {
+        Path input = dir.resolve("secret.txt");
+        Files.write(input, randomBytes(100));
+        Path encrypted = encrypt(input);
+
+        assertThrows(SecurityException.class, () -> FileMetadata.read(encrypted, randomKey(random)));
+    }
+
+    @Test
+    void tamperedBlockFailsWithoutAffectingThePayload() throws Exception {
+        byte[] data = randomBytes(100_000);
+        Path input = dir.resolve("notes.txt");
+        Files.write(input, data);
+        Path encrypted = encrypt(input);
+
+        byte[] bytes = Files.readAllBytes(encrypted);
+        bytes[BLOCK_OFFSET + 100] ^= 1;
+        Files.write(encrypted, bytes);
+
+        assertThrows(SecurityException.class, () -> FileMetadata.read(encrypted, key));
+        assertArrayEquals(data, decrypt(encrypted));
+    }
+
+    @Test
+    void blockMovedToAnotherFileFails() throws Exception {
+        Path first = dir.resolve("first.txt");
+        Path second = dir.resolve("second.txt");
+        Files.write(first, randomBytes(100));
+        Files.write(second, randomBytes(100));
+        byte[] from = Files.readAllBytes(encrypt(first));
+        Path target = encrypt(second);
+        byte[] to = Files.readAllBytes(target);
+
+        System.arraycopy(from, BLOCK_OFFSET, to, BLOCK_OFFSET, FileMetadata.BLOCK_LENGTH);
+        Files.write(target, to);
+        assertThrows(SecurityException.class, () -> FileMetadata.read(target, key));
+    }
+
+    @Test
+    void filesWithoutABlockHaveNoMetadata() throws Exception {
+        Path input = dir.resolve("plain.bin");
+        Files.write(input, randomBytes(100));
+        Path encrypted = dir.resolve("plain.bin.enc");
+        AsyncFilePipeline.encrypt(input, encrypted, new ChunkCodec(FileHeader.chunked(CipherSuite.AES_256_GCM, EngineSettings.MIN_CHUNK_SIZE), key));
+
+        assertNull(FileMetadata.read(encrypted, key));
+    }
+
+    private Path encrypt(Path input) throws Exception {
+        Path encrypted = dir.resolve(input.getFileName() + ".enc");
+        CryptoEngine.encryptFile(input, encrypted, key);
+        return encrypted;
+    }
+
+    private byte[] decrypt(Path encrypted) throws Exception {
+        Path output = dir.resolve("decrypted.bin");
+        CryptoEngine.decryptFile(encrypted, output, key);
+        return Files.readAllBytes(output);
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
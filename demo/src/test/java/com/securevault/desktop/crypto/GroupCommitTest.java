@@ -0,0 +1,159 @@
+package com.securevault.desktop.crypto;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static com.securevault.desktop.crypto.CryptoTestSupport.randomKey;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GroupCommitTest {
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(47);
+    private final SecretKey key = randomKey(random);
+
+    @Test
+    void committedBatchMovesEveryFileIntoPlace() throws Exception {
+        Path root = dir.resolve("out");
+        try (GroupCommit batch = GroupCommit.begin(root, key)) {
+            Files.writeString(batch.stage(root.resolve("a.txt")), "a");
+            Files.createDirectories(root.resolve("sub"));
+            Files.writeString(batch.stage(root.resolve("sub/b.txt")), "b");
+            batch.commit();
+        }
+
+        assertEquals("a", Files.readString(root.resolve("a.txt")));
+        assertEquals("b", Files.readString(root.resolve("sub/b.txt")));
+        assertEquals(List.of(), leftovers(root));
+    }
+
+    @Test
+    void crashBeforeTheJournalIsSealedTouchesNoTarget() throws Exception {
+        Path root = Files.createDirectories(dir.resolve("out"));
+        Files.writeString(root.resolve("a.txt"), "old");
+        // What a crash while writing the batch leaves: staged files and a torn journal
+        Files.writeString(root.resolve("a.txt" + GroupCommit.STAGED_SUFFIX), "new");
+        Files.write(root.resolve(GroupCommit.JOURNAL_PREFIX + "0011223344556677" + GroupCommit.JOURNAL_SUFFIX), new byte[] {'S', 'V'});
+
+        GroupCommit.begin(root, key).close();
+
+        assertEquals("old", Files.readString(root.resolve("a.txt")));
+        assertEquals(List.of(), leftovers(root));
+    }
+
+    @Test
+    void failedRenameLeavesTheSealedBatchForRecovery() throws Exception {
+        Path root = dir.resolve("out");
+        // A non-empty directory where the second file goes makes its rename fail
+        Files.createDirectories(root.resolve("b.txt/blocker"));
+        try (GroupCommit batch = GroupCommit.begin(root, key)) {
+            Files.writeString(batch.stage(root.resolve("a.txt")), "a");
+            Files.writeString(batch.stage(root.resolve("b.txt")), "b");
+            Files.writeString(batch.stage(root.resolve("c.txt")), "c");
+            assertThrows(IOException.class, batch::commit);
+        }
+        assertTrue(Files.exists(root.resolve("b.txt" + GroupCommit.STAGED_SUFFIX)));
+        assertTrue(Files.exists(root.resolve("c.txt" + GroupCommit.STAGED_SUFFIX)));
+
+        Files.delete(root.resolve("b.txt/blocker"));
+        Files.delete(root.resolve("b.txt"));
+        GroupCommit.begin(root, key).close();
+
+        assertEquals("a", Files.readString(root.resolve("a.txt")));
+        assertEquals("b", Files.readString(root.resolve("b.txt")));
+        assertEquals("c", Files.readString(root.resolve("c.txt")));
+        assertEquals(List.of(), leftovers(root));
+    }
+
+    @Test
+    void concurrentBatchesInOneFolderKeepTheirOwnFiles() throws Exception {
+        Path root = dir.resolve("out");
+        try (GroupCommit first = GroupCommit.begin(root, key)) {
+            Files.writeString(first.stage(root.resolve("a.txt")), "a");
+            try (GroupCommit second = GroupCommit.begin(root, key)) {
+                assertTrue(Files.exists(root.resolve("a.txt" + GroupCommit.STAGED_SUFFIX)));
+                Files.writeString(second.stage(root.resolve("b.txt")), "b");
+                second.commit();
+            }
+            first.commit();
+        }
+
+        assertEquals("a", Files.readString(root.resolve("a.txt")));
+        assertEquals("b", Files.readString(root.resolve("b.txt")));
+        assertEquals(List.of(), leftovers(root));
+    }
+
+    @Test
+    void journalOfAnotherKeyIsNeitherAppliedNorDeleted() throws Exception {
+        Path root = Files.createDirectories(dir.resolve("out"));
+        Files.writeString(root.resolve("a.txt"), "old");
+        Files.writeString(root.resolve("a.txt" + GroupCommit.STAGED_SUFFIX), "planted");
+        Path journal = root.resolve(GroupCommit.JOURNAL_PREFIX + "0011223344556677" + GroupCommit.JOURNAL_SUFFIX);
+        GroupCommit.writeJournal(journal, List.of("a.txt"), randomKey(random));
+
+        GroupCommit.begin(root, key).close();
+
+        assertEquals("old", Files.readString(root.resolve("a.txt")));
+        assertTrue(Files.exists(journal));
+    }
+
+    @Test
+    void journalNamingFilesOutsideItsFolderIsRejected() throws Exception {
+        Path root = Files.createDirectories(dir.resolve("out"));
+        Path victim = dir.resolve("victim.txt");
+        Files.writeString(victim, "keep");
+        Files.writeString(dir.resolve("victim.txt" + GroupCommit.STAGED_SUFFIX), "overwritten");
+        GroupCommit.writeJournal(root.resolve(GroupCommit.JOURNAL_PREFIX + "0011223344556677" + GroupCommit.JOURNAL_SUFFIX),
+                List.of("../victim.txt"), key);
+
+        assertThrows(IOException.class, () -> GroupCommit.begin(root, key));
+        assertEquals("keep", Files.readString(victim));
+        try (GroupCommit batch = GroupCommit.begin(dir.resolve("other"), key)) {
+            assertThrows(IllegalArgumentException.class, () -> batch.stage(victim));
+        }
+    }
+
+    @Test
+    void directoryArchiveExtractsAsOneBatch() throws Exception {
+        Path source = Files.createDirectories(dir.resolve("source/sub"));
+        byte[] data = new byte[5000];
+        random.nextBytes(data);
+        Files.write(source.resolve("one.bin"), data);
+        Files.writeString(dir.resolve("source/two.txt"), "two");
+        Path archive = dir.resolve("source.encdir");
+        CryptoEngine.encryptDirectory(dir.resolve("source"), archive, key);
+
+        Path out = dir.resolve("restored");
+        CryptoEngine.decryptDirectory(archive, out, key);
+
+        assertArrayEquals(data, Files.readAllBytes(out.resolve("sub/one.bin")));
+        assertEquals("two", Files.readString(out.resolve("two.txt")));
+        assertEquals(List.of(), leftovers(out));
+    }
+
+    /**
+     * Journals and staged files anywhere below {@code root}.
+     */
+    private static List<Path> leftovers(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(p -> {
+                String name = p.getFileName().toString();
+                return name.endsWith(GroupCommit.STAGED_SUFFIX) || name.startsWith(GroupCommit.JOURNAL_PREFIX);
+            }).toList();
+        }
+    }
+}
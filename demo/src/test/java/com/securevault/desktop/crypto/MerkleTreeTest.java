@@ -0,0 +1,137 @@
+package com.securevault.desktop.crypto;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.securevault.desktop.crypto.CryptoTestSupport.flipByte;
+import static com.securevault.desktop.crypto.CryptoTestSupport.randomKey;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MerkleTreeTest {
+
+    private static final int CHUNK = EngineSettings.MIN_CHUNK_SIZE;
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(44);
+    private final SecretKey key = randomKey(random);
+
+    @Test
+    void rootMatchesTheRecursiveDefinition() throws Exception {
+        for (int count = 1; count <= 20; count++) {
+            byte[][] leaves = new byte[count][];
+            MerkleTree tree = new MerkleTree();
+            for (int i = 0; i < count; i++) {
+                leaves[i] = MerkleTree.leafHash(i, ByteBuffer.wrap(randomBytes(100)));
+                tree.addLeaf(leaves[i]);
+            }
+            assertArrayEquals(root(leaves, 0, count), tree.digest(), count + " leaves");
+        }
+    }
+
+    @Test
+    void restoredStateContinuesToTheSameRoot() throws Exception {
+        MerkleTree straight = new MerkleTree();
+        MerkleTree interrupted = new MerkleTree();
+        for (int i = 0; i < 11; i++) {
+            byte[] leaf = MerkleTree.leafHash(i, ByteBuffer.wrap(randomBytes(100)));
+            straight.addLeaf(leaf);
+            if (i == 5) {
+                interrupted = MerkleTree.restore(interrupted.encodedState());
+                assertEquals(5, interrupted.getLeafCount());
+            }
+            interrupted.addLeaf(leaf);
+        }
+        assertArrayEquals(straight.digest(), interrupted.digest());
+
+        byte[] state = straight.encodedState();
+        assertThrows(IOException.class, () -> MerkleTree.restore(Arrays.copyOf(state, state.length - 1)));
+    }
+
+    @Test
+    void newFilesCarryTheTreeRootAndVerifyOnSeveralThreads() throws Exception {
+        byte[] data = randomBytes(9 * CHUNK + 100);
+        Path encrypted = encrypt(data, FileHeader.chunked(CipherSuite.AES_256_GCM, CHUNK));
+        assertTrue(CryptoEngine.readHeader(encrypted).hasMerkleTrailer());
+
+        assertEquals(data.length, CryptoEngine.verifyFile(encrypted, key, 1));
+        assertEquals(data.length, CryptoEngine.verifyFile(encrypted, key, 4));
+        assertArrayEquals(data, decrypt(encrypted));
+    }
+
+    @Test
+    void verifyNamesEveryDamagedChunk() throws Exception {
+        Path encrypted = encrypt(randomBytes(9 * CHUNK + 100), FileHeader.chunked(CipherSuite.AES_256_GCM, CHUNK));
+        ChunkCodec codec = new ChunkCodec(CryptoEngine.readHeader(encrypted), key);
+        flipByte(encrypted, codec.chunkOffset(3) + 50);
+        flipByte(encrypted, codec.chunkOffset(7) + 50);
+
+        SecurityException e = assertThrows(SecurityException.class, () -> CryptoEngine.verifyFile(encrypted, key, 3));
+        assertTrue(e.getMessage().startsWith("2 of 10 chunks"), e.getMessage());
+        assertTrue(e.getMessage().contains("chunk 3 (bytes " + 3 * CHUNK + "-" + (4 * CHUNK - 1) + ")"), e.getMessage());
+        assertTrue(e.getMessage().contains("chunk 7 "), e.getMessage());
+    }
+
+    @Test
+    void filesWithTheOlderChecksumTrailerStillVerify() throws Exception {
+        // The same header with the hash-tree flag cleared, as written before it existed
+        byte[] headerBytes = FileHeader.chunked(CipherSuite.AES_256_GCM, CHUNK).toBytes();
+        ByteBuffer.wrap(headerBytes).putShort(FileHeader.PREFIX_LENGTH, (short) 0);
+        FileHeader header = FileHeader.parse(headerBytes);
+        assertFalse(header.hasMerkleTrailer());
+
+        byte[] data = randomBytes(4 * CHUNK + 100);
+        Path encrypted = encrypt(data, header);
+        assertEquals(data.length, CryptoEngine.verifyFile(encrypted, key, 4));
+        assertArrayEquals(data, decrypt(encrypted));
+    }
+
+    /**
+     * RFC 6962: the left subtree holds the largest power of two below the leaf count.
+     */
+    private static byte[] root(byte[][] leaves, int from, int to) throws Exception {
+        if (to - from == 1) {
+            return leaves[from];
+        }
+        int split = Integer.highestOneBit(to - from - 1);
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((byte) 1);
+        digest.update(root(leaves, from, from + split));
+        digest.update(root(leaves, from + split, to));
+        return digest.digest();
+    }
+
+    private Path encrypt(byte[] data, FileHeader header) throws Exception {
+        Path input = dir.resolve("plain.bin");
+        Path encrypted = dir.resolve("plain.bin.enc");
+        Files.write(input, data);
+        AsyncFilePipeline.encrypt(input, encrypted, new ChunkCodec(header, key));
+        return encrypted;
+    }
+
+    private byte[] decrypt(Path encrypted) throws Exception {
+        Path output = dir.resolve("decrypted.bin");
+        CryptoEngine.decryptFile(encrypted, output, key);
+        return Files.readAllBytes(output);
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,198 @@
+package com.securevault.desktop.crypto;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import static com.securevault.desktop.crypto.CryptoTestSupport.flipByte;
+import static com.securevault.desktop.crypto.CryptoTestSupport.randomKey;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PackFileTest {
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(27);
+    private SecretKey key;
+    private Path pack;
+    private byte[][] members;
+    private long firstSessionEnd;
+
+    /**
+     * Two committed sessions: members 0-2, then 3-5.
+     */
+    @BeforeEach
+    void writeTwoSessions() throws Exception {
+        key = randomKey(random);
+        pack = dir.resolve("small" + PackFile.EXTENSION);
+        members = new byte[6][];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new byte[1000 + random.nextInt(20_000)];
+            random.nextBytes(members[i]);
+        }
+        try (PackFile p = PackFile.open(pack, key)) {
+            for (int i = 0; i < 3; i++) {
+                p.add("m" + i, members[i], i);
+            }
+        }
+        firstSessionEnd = Files.size(pack);
+        try (PackFile p = PackFile.open(pack, key)) {
+            for (int i = 3; i < 6; i++) {
+                p.add("m" + i, members[i], i);
+            }
+        }
+    }
+
+    @Test
+    void membersRoundTripAcrossSessions() throws Exception {
+        assertMembers(6);
+        try (PackFile p = PackFile.openReadOnly(pack, key)) {
+            assertEquals(members[4].length, p.getEntry("m4").getSize());
+            assertEquals(sum(6), p.verify());
+        }
+    }
+
+    @Test
+    void tornTailOfAnUncommittedSessionIsDiscarded() throws Exception {
+        long committed = Files.size(pack);
+        appendPartialRecord();
+
+        assertMembers(6);
+        assertEquals(committed, Files.size(pack));
+        try (PackFile p = PackFile.open(pack, key)) {
+            p.add("m6", new byte[] {1, 2, 3}, 6);
+        }
+        try (PackFile p = PackFile.openReadOnly(pack, key)) {
+            assertArrayEquals(new byte[] {1, 2, 3}, p.read("m6"));
+        }
+    }
+
+    @Test
+    void readOnlyOpenAndUnpackLeaveATornTailInPlace() throws Exception {
+        appendPartialRecord();
+        long torn = Files.size(pack);
+
+        Path out = dir.resolve("out");
+        assertEquals(6, PackFile.unpackToDirectory(pack, out, key));
+        assertArrayEquals(members[5], Files.readAllBytes(out.resolve("m5")));
+        assertEquals(torn, Files.size(pack));
+    }
+
+    @Test
+    void flippedFooterTypeKeepsTheLastSession() throws Exception {
+        flipByte(pack, Files.size(pack) - 13);
+
+        assertMembers(6);
+        assertMembers(6); // the footer was rewritten
+    }
+
+    @Test
+    void flippedFooterOffsetFailsWithoutTruncating() throws Exception {
+        long size = Files.size(pack);
+        flipByte(pack, size - 2);
+
+        assertThrows(SecurityException.class, () -> PackFile.open(pack, key));
+        assertEquals(size, Files.size(pack));
+    }
+
+    @Test
+    void tamperedMemberFailsAuthentication() throws Exception {
+        long offset;
+        try (PackFile p = PackFile.openReadOnly(pack, key)) {
+            offset = p.getEntry("m1").getOffset();
+        }
+        flipByte(pack, offset + 40);
+
+        try (PackFile p = PackFile.openReadOnly(pack, key)) {
+            assertArrayEquals(members[0], p.read("m0"));
+            assertThrows(Exception.class, () -> p.read("m1"));
+            assertThrows(Exception.class, p::verify);
+        }
+    }
+
+    @Test
+    void damageBeforeTheEndIsNotMistakenForATornTail() throws Exception {
+        long size = Files.size(pack);
+        // Break the last footer and a record of the second session
+        flipByte(pack, size - 13);
+        flipByte(pack, firstSessionEnd);
+
+        assertThrows(Exception.class, () -> PackFile.open(pack, key));
+        assertEquals(size, Files.size(pack));
+    }
+
+    @Test
+    void failedPackDirectoryCommitsNothing() throws Exception {
+        Path input = Files.createDirectories(dir.resolve("input"));
+        for (int i = 0; i < 5; i++) {
+            Files.write(input.resolve("small" + i), new byte[] {(byte) i});
+        }
+        try (RandomAccessFile huge = new RandomAccessFile(input.resolve("huge").toFile(), "rw")) {
+            huge.setLength(PackFile.MAX_MEMBER_SIZE + 1L); // sparse, so cheap
+        }
+        long size = Files.size(pack);
+
+        assertThrows(IOException.class, () -> PackFile.packDirectory(input, pack, key));
+        assertEquals(size, Files.size(pack));
+        assertMembers(6);
+
+        Path created = dir.resolve("new" + PackFile.EXTENSION);
+        assertThrows(IOException.class, () -> PackFile.packDirectory(input, created, key));
+        assertFalse(Files.exists(created));
+    }
+
+    @Test
+    void replacingPackDirectoryDropsMembersOfDeletedFiles() throws Exception {
+        Path input = Files.createDirectories(dir.resolve("input"));
+        Files.writeString(input.resolve("kept.txt"), "kept");
+
+        assertEquals(1, PackFile.packDirectory(input, pack, key, true));
+        try (PackFile p = PackFile.open(pack, key)) {
+            assertEquals(1, p.entries().size());
+            assertEquals("kept", new String(p.read("kept.txt")));
+        }
+        assertFalse(Files.exists(dir.resolve(pack.getFileName() + PackFile.TEMP_SUFFIX)));
+    }
+
+    private void assertMembers(int count) throws Exception {
+        try (PackFile p = PackFile.open(pack, key)) {
+            assertEquals(count, p.entries().size());
+            for (int i = 0; i < count; i++) {
+                assertArrayEquals(members[i], p.read("m" + i));
+            }
+        }
+    }
+
+    private long sum(int count) {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += members[i].length;
+        }
+        return total;
+    }
+
+    /**
+     * What a crash in the middle of appending a data record leaves behind.
+     */
+    private void appendPartialRecord() throws Exception {
+        ByteBuffer record = ByteBuffer.allocate(5 + 300);
+        record.put((byte) 1).putInt(5000);
+        try (FileChannel file = FileChannel.open(pack, StandardOpenOption.APPEND)) {
+            file.write(record.rewind());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.securevault.desktop.crypto;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PipelineTunerTest {
+
+    @TempDir
+    Path dir;
+
+    @AfterEach
+    void forgetWhatWasLoaded() throws Exception {
+        PipelineTuner.load(dir.resolve("none.properties"));
+    }
+
+    @Test
+    void settingsOutsideTheTunedRangeAreDropped() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("disk|encrypt.best", "1024KBx3");
+        properties.setProperty("disk|encrypt.measured", "1024KBx3=120.0/4;1024KBx64=900.0/2;65536KBx3=900.0/2");
+        properties.setProperty("deep|encrypt.best", "1024KBx1000");
+        properties.setProperty("huge|encrypt.best", "2097152KBx3");
+        properties.setProperty("overflow|encrypt.best", "4194304KBx3");
+        properties.setProperty("disk|decrypt|64.best", "64KBx4");
+        properties.setProperty("other|decrypt|64.best", "16384KBx4");
+        Path file = dir.resolve(PipelineTuner.TUNING_FILE);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, null);
+        }
+
+        PipelineTuner.load(file);
+
+        // Targets come back in the file's hash order
+        assertEquals(Set.of("disk encrypt: 1024KBx3, 120 MB/s, 4 run(s)", "disk decrypt 64: 64KBx4 (not measured yet)"),
+                Set.copyOf(PipelineTuner.describe().lines().toList()));
+    }
+}
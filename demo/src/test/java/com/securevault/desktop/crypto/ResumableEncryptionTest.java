@@ -0,0 +1,124 @@
+package com.securevault.desktop.crypto;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static com.securevault.desktop.crypto.CryptoTestSupport.flipByte;
+import static com.securevault.desktop.crypto.CryptoTestSupport.randomKey;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResumableEncryptionTest {
+
+    private static final int CHUNK = EngineSettings.MIN_CHUNK_SIZE;
+    private static final int CHUNKS = 2 * ResumableEncryption.CHECKPOINT_INTERVAL + 90;
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(31);
+    private final SecretKey key = randomKey(random);
+    private Path input;
+    private Path output;
+    private Path part;
+    private Path checkpoint;
+    private byte[] data;
+
+    @BeforeEach
+    void interruptAnEncryption() throws Exception {
+        // Small chunks put two checkpoints in a 40 MB file
+        EngineSettings.install(new EngineSettings(CHUNK, EngineSettings.AUTO, EngineSettings.AUTO, EngineSettings.AUTO,
+                Deflater.DEFAULT_COMPRESSION, false));
+        input = dir.resolve("large.bin");
+        output = dir.resolve("large.bin.enc");
+        part = dir.resolve("large.bin.enc" + ResumableEncryption.PART_SUFFIX);
+        checkpoint = dir.resolve("large.bin.enc" + ResumableEncryption.CHECKPOINT_SUFFIX);
+        data = new byte[CHUNKS * CHUNK + 1000];
+        random.nextBytes(data);
+        Files.write(input, data);
+
+        // A directory in the output's place makes the run fail after its last checkpoint, at the final rename
+        Files.createDirectories(output.resolve("blocker"));
+        assertThrows(IOException.class, () -> ResumableEncryption.encryptFile(input, output, key));
+        Files.delete(output.resolve("blocker"));
+        Files.delete(output);
+        assertTrue(ResumableEncryption.hasPartialOutput(output));
+    }
+
+    @AfterEach
+    void restoreSettings() {
+        EngineSettings.install(EngineSettings.DEFAULTS);
+    }
+
+    @Test
+    void resumesAfterTheLastCheckpointAndRewritesWhatFollowsIt() throws Exception {
+        ChunkCodec codec = new ChunkCodec(CryptoEngine.readHeader(part), key);
+        // Written after the last checkpoint, so never committed
+        flipByte(part, codec.chunkOffset(2L * ResumableEncryption.CHECKPOINT_INTERVAL + 10) + 50);
+
+        assertEquals(2L * ResumableEncryption.CHECKPOINT_INTERVAL, ResumableEncryption.encryptFile(input, output, key));
+        assertFalse(Files.exists(part));
+        assertFalse(Files.exists(checkpoint));
+        assertArrayEquals(data, decrypt(key));
+    }
+
+    @Test
+    void encryptFilePicksUpAnInterruptedRun() throws Exception {
+        CryptoEngine.encryptFile(input, output, key);
+
+        assertFalse(ResumableEncryption.hasPartialOutput(output));
+        assertArrayEquals(data, decrypt(key));
+    }
+
+    @Test
+    void changedInputStartsOver() throws Exception {
+        Files.setLastModifiedTime(input, FileTime.fromMillis(Files.getLastModifiedTime(input).toMillis() + 2000));
+
+        assertEquals(0, ResumableEncryption.encryptFile(input, output, key));
+        assertArrayEquals(data, decrypt(key));
+    }
+
+    @Test
+    void damagedLastCommittedChunkStartsOver() throws Exception {
+        ChunkCodec codec = new ChunkCodec(CryptoEngine.readHeader(part), key);
+        flipByte(part, codec.chunkOffset(2L * ResumableEncryption.CHECKPOINT_INTERVAL - 1) + 50);
+
+        assertEquals(0, ResumableEncryption.encryptFile(input, output, key));
+        assertArrayEquals(data, decrypt(key));
+    }
+
+    @Test
+    void tamperedCheckpointStartsOver() throws Exception {
+        flipByte(checkpoint, Files.size(checkpoint) / 2);
+
+        assertEquals(0, ResumableEncryption.encryptFile(input, output, key));
+        assertArrayEquals(data, decrypt(key));
+    }
+
+    @Test
+    void checkpointOfAnotherKeyIsNotResumed() throws Exception {
+        SecretKey other = randomKey(random);
+
+        assertEquals(0, ResumableEncryption.encryptFile(input, output, other));
+        assertArrayEquals(data, decrypt(other));
+    }
+
+    private byte[] decrypt(SecretKey with) throws Exception {
+        Path decrypted = dir.resolve("decrypted.bin");
+        CryptoEngine.decryptFile(output, decrypted, with);
+        return Files.readAllBytes(decrypted);
+    }
+}
@@ -0,0 +1,129 @@
+package com.securevault.desktop.crypto;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.securevault.desktop.crypto.CryptoTestSupport.randomKey;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamPipelineTest {
+
+    private static final int CHUNK = EngineSettings.MIN_CHUNK_SIZE;
+
+    @TempDir
+    Path dir;
+
+    private final Random random = new Random(50);
+    private final SecretKey key = randomKey(random);
+
+    @Test
+    void roundTripsAtEveryChunkBoundary() throws Exception {
+        for (int size : new int[] {0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK, 3 * CHUNK + 5}) {
+            byte[] data = randomBytes(size);
+            byte[] encrypted = encrypt(data);
+
+            assertArrayEquals(data, decrypt(encrypted, key), "size " + size);
+        }
+    }
+
+    @Test
+    void streamsAndFilesShareOneFormat() throws Exception {
+        byte[] data = randomBytes(2 * CHUNK + 300);
+        Path file = dir.resolve("streamed.enc");
+        Files.write(file, encrypt(data));
+        Path output = dir.resolve("decrypted.bin");
+        CryptoEngine.decryptFile(file, output, key);
+        assertArrayEquals(data, Files.readAllBytes(output));
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        assertEquals(data.length, CryptoEngine.encryptStream(new ByteArrayInputStream(data), encrypted, key));
+        Files.write(file, encrypted.toByteArray());
+        CryptoEngine.decryptFile(file, output, key);
+        assertArrayEquals(data, Files.readAllBytes(output));
+    }
+
+    @Test
+    void inputOfWholeChunksEndsWithAnEmptyFinalChunk() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK));
+        ChunkCodec codec = codec();
+
+        assertEquals(codec.chunkOffset(3) + ChunkCodec.finalChunkLength(0), encrypted.length);
+    }
+
+    @Test
+    void truncatedStreamIsRejected() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(3 * CHUNK + 100));
+        ChunkCodec codec = codec();
+        int lastChunk = (int) codec.chunkOffset(3);
+
+        // Cut into the final chunk, or drop it so the stream ends on a full chunk taken for the final one
+        assertThrows(SecurityException.class, () -> decrypt(Arrays.copyOf(encrypted, encrypted.length - 1), key));
+        assertThrows(SecurityException.class, () -> decrypt(Arrays.copyOf(encrypted, lastChunk), key));
+        assertThrows(SecurityException.class, () -> decrypt(Arrays.copyOf(encrypted, lastChunk + 5), key));
+        // Too little left after the header to be any chunk
+        assertThrows(IOException.class, () -> decrypt(Arrays.copyOf(encrypted, (int) codec.chunkOffset(0) + 5), key));
+    }
+
+    @Test
+    void bytesAfterTheFinalChunkAreRejected() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(CHUNK + 100));
+
+        assertThrows(SecurityException.class, () -> decrypt(Arrays.copyOf(encrypted, encrypted.length + 16), key));
+    }
+
+    @Test
+    void tamperedChunkFailsAfterWritingOnlyWhatPrecedesIt() throws Exception {
+        byte[] data = randomBytes(3 * CHUNK + 100);
+        byte[] encrypted = encrypt(data);
+        encrypted[(int) codec().chunkOffset(1) + 50] ^= 0x40;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThrows(SecurityException.class,
+                () -> CryptoEngine.decryptStream(new ByteArrayInputStream(encrypted), out, key));
+        byte[] written = out.toByteArray();
+        assertTrue(written.length <= CHUNK, written.length + " bytes written");
+        assertArrayEquals(Arrays.copyOf(data, written.length), written);
+    }
+
+    @Test
+    void wrongKeyIsRejected() throws Exception {
+        byte[] encrypted = encrypt(randomBytes(100));
+
+        assertThrows(SecurityException.class, () -> decrypt(encrypted, randomKey(random)));
+    }
+
+    private ChunkCodec codec() throws Exception {
+        return new ChunkCodec(FileHeader.chunked(CipherSuite.AES_256_GCM, CHUNK), key);
+    }
+
+    private byte[] encrypt(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(data.length, StreamPipeline.encrypt(new ByteArrayInputStream(data), out, codec()));
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] encrypted, SecretKey with) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = CryptoEngine.decryptStream(new ByteArrayInputStream(encrypted), out, with);
+        assertEquals(written, out.size());
+        return out.toByteArray();
+    }
+
+    private byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}